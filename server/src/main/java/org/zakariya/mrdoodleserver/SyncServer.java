@@ -1,5 +1,6 @@
 package org.zakariya.mrdoodleserver;
 
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zakariya.mrdoodleserver.auth.Authenticator;
@@ -11,20 +12,34 @@ import org.zakariya.mrdoodleserver.factories.SyncManagerFactory;
 import org.zakariya.mrdoodleserver.routes.DashboardRouter;
 import org.zakariya.mrdoodleserver.routes.Router;
 import org.zakariya.mrdoodleserver.routes.SyncRouter;
+import org.zakariya.mrdoodleserver.services.DispatchingServerFactory;
 import org.zakariya.mrdoodleserver.services.WebSocketConnection;
+import org.zakariya.mrdoodleserver.sync.BlobCache;
+import org.zakariya.mrdoodleserver.sync.BlobCodec;
+import org.zakariya.mrdoodleserver.sync.BlobCodecs;
+import org.zakariya.mrdoodleserver.sync.BoundedJedisPool;
 import org.zakariya.mrdoodleserver.sync.DeviceIdManager;
 import org.zakariya.mrdoodleserver.sync.DeviceIdManagerInterface;
+import org.zakariya.mrdoodleserver.sync.RedisStorageEngine;
+import org.zakariya.mrdoodleserver.sync.StorageEngine;
 import org.zakariya.mrdoodleserver.sync.SyncManager;
+import org.zakariya.mrdoodleserver.sync.SyncManagerCache;
+import org.zakariya.mrdoodleserver.sync.file.FileStorageEngine;
+import org.zakariya.mrdoodleserver.sync.memory.MemoryStorageEngine;
 import org.zakariya.mrdoodleserver.sync.mock.MockDeviceIdManager;
 import org.zakariya.mrdoodleserver.util.Configuration;
-import redis.clients.jedis.Jedis;
+import org.zakariya.mrdoodleserver.util.VirtualThreads;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import static spark.Spark.*;
 
@@ -34,6 +49,9 @@ import static spark.Spark.*;
 public class SyncServer {
 
 	private static final Logger logger = LoggerFactory.getLogger(SyncServer.class);
+	private static final String STORAGE_ENGINE_REDIS = "redis";
+	private static final String STORAGE_ENGINE_MEMORY = "memory";
+	private static final String STORAGE_BLOBS_FILE = "file";
 
 	/**
 	 * Start the server
@@ -73,17 +91,22 @@ public class SyncServer {
 	 *
 	 * @param configuration a configuration
 	 * @param flushStorage  if true, all storage under the configuration's prefix will be deleted
+	 * @return the storage engine the server persists to
 	 */
-	public static void start(Configuration configuration, boolean flushStorage) {
+	public static StorageEngine start(Configuration configuration, boolean flushStorage) {
 		logger.info("Starting SyncServer");
 
+		configureRequestExecution(configuration);
+
 		Authenticator syncAuthenticator = buildSyncAuthenticator(configuration);
 		Authenticator dashboardAuthenticator = buildDashboardAuthenticator(configuration);
-		JedisPool jedisPool = buildJedisPool(configuration);
+		StorageEngine storageEngine = buildStorageEngine(configuration);
 
 		if (flushStorage) {
 			String prefix = configuration.get("prefix");
-			flushStorage(jedisPool, prefix);
+			if (prefix != null) {
+				storageEngine.flush(prefix);
+			}
 		}
 
 		// set static files location
@@ -92,11 +115,13 @@ public class SyncServer {
 		// build routers
 		String storagePrefix = configuration.get("jedisStoragePrefix");
 		String apiVersion = configuration.get("apiVersion");
-		SyncManagerFactory syncManagerFactory = buildSyncManagerFactory(configuration);
+		BlobCache blobCache = buildBlobCache(configuration);
+		SyncManagerFactory syncManagerFactory = buildSyncManagerFactory(configuration, blobCache);
+		SyncManagerCache syncManagerCache = buildSyncManagerCache(configuration, syncManagerFactory, storageEngine, storagePrefix);
 		List<String> dashboardUserWhitelist = configuration.getArray("dashboard/whitelist");
 
-		SyncRouter syncRouter = new SyncRouter(jedisPool, storagePrefix, apiVersion, syncAuthenticator, syncManagerFactory);
-		DashboardRouter dashboardRouter = new DashboardRouter(jedisPool, storagePrefix, apiVersion, dashboardAuthenticator, dashboardUserWhitelist);
+		SyncRouter syncRouter = new SyncRouter(storageEngine, storagePrefix, apiVersion, syncAuthenticator, syncManagerCache);
+		DashboardRouter dashboardRouter = new DashboardRouter(storageEngine, storagePrefix, apiVersion, dashboardAuthenticator, dashboardUserWhitelist, blobCache, syncManagerCache);
 		Router routers[] = {syncRouter, dashboardRouter};
 
 		// set up the WebSocketConnection. Note, since Spark lazily creates it, we can't pass
@@ -111,32 +136,98 @@ public class SyncServer {
 		}
 
 		init();
+		return storageEngine;
 	}
 
 	/**
-	 * Delete storage for a given configuration
+	 * Build the storage engine named by the configuration's "storage/engine" value: "redis" (the default) or "memory".
+	 * If "storage/blobs" is "file", blobs are instead kept in segment files on local disk (see FileStorageEngine),
+	 * and the named engine stores everything else.
 	 *
-	 * @param configuration a configuration describing the jedis store, prefix, etc
+	 * @param configuration a configuration
+	 * @return a StorageEngine
 	 */
-	public static void flushStorage(Configuration configuration) {
-		String prefix = configuration.get("prefix");
-		if (prefix != null) {
-			JedisPool pool = buildJedisPool(configuration);
-			flushStorage(pool, prefix);
+	public static StorageEngine buildStorageEngine(Configuration configuration) {
+		StorageEngine storageEngine;
+		String engine = configuration.get("storage/engine", STORAGE_ENGINE_REDIS);
+		switch (engine) {
+			case STORAGE_ENGINE_MEMORY:
+				logger.info("Using in-memory storage engine, nothing will be persisted across restarts");
+				storageEngine = new MemoryStorageEngine();
+				break;
+
+			case STORAGE_ENGINE_REDIS:
+				storageEngine = new RedisStorageEngine(buildJedisPool(configuration));
+				break;
+
+			default:
+				logger.error("Unrecognized storage/engine \"{}\", falling back to {}", engine, STORAGE_ENGINE_REDIS);
+				storageEngine = new RedisStorageEngine(buildJedisPool(configuration));
+				break;
 		}
+
+		if (STORAGE_BLOBS_FILE.equals(configuration.get("storage/blobs"))) {
+			storageEngine = buildFileStorageEngine(configuration, storageEngine);
+		}
+
+		return storageEngine;
 	}
 
-	private static void flushStorage(JedisPool pool, String prefix) {
-		logger.info("Deleting all storage under the {}* namespace", prefix);
-		try (Jedis jedis = pool.getResource()) {
-			Set<String> keys = jedis.keys(prefix + "*");
-			keys.forEach(jedis::del);
+	private static FileStorageEngine buildFileStorageEngine(Configuration configuration, StorageEngine delegate) {
+		File directory = new File(configuration.get("storage/file/directory", "blobs"));
+		long segmentSize = configuration.getInt("storage/file/segmentSizeMegabytes", 64) * 1024L * 1024L;
+		double compactionGarbageRatio = configuration.getInt("storage/file/compactionGarbagePercent", 50) / 100.0;
+		int compactionIntervalSeconds = configuration.getInt("storage/file/compactionIntervalSeconds", 60);
+
+		logger.info("Storing blobs in segment files under {}", directory.getAbsolutePath());
+		try {
+			return new FileStorageEngine(directory, segmentSize, compactionGarbageRatio, compactionIntervalSeconds, delegate);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to open blob storage directory " + directory.getAbsolutePath(), e);
+		}
+	}
+
+	/**
+	 * If "server/virtualThreads" is true, and the JDK has them (21+), run each request's routes on a virtual thread
+	 * rather than a Jetty pool thread (see DispatchingServerFactory). Must be called before any route is declared.
+	 * config/virtual-threads.json turns this on, with a larger redis pool, when passed after the base configuration.
+	 *
+	 * @param configuration a configuration
+	 */
+	private static void configureRequestExecution(Configuration configuration) {
+		if (!configuration.getBoolean("server/virtualThreads", false)) {
+			return;
+		}
+
+		ExecutorService executor = VirtualThreads.newThreadPerTaskExecutor("request-");
+		if (executor == null) {
+			logger.warn("server/virtualThreads is set, but Java {} has no virtual threads; serving requests on Jetty's thread pool", System.getProperty("java.version"));
+			return;
+		}
+
+		if (DispatchingServerFactory.install(executor)) {
+			logger.info("Serving requests on virtual threads");
+		} else {
+			executor.shutdown();
 		}
 	}
 
+	/**
+	 * Build the pool of redis connections. At most "redis/maxConnections" are open at once; callers beyond that queue
+	 * for up to "redis/connectionWaitMilliseconds" (see BoundedJedisPool).
+	 *
+	 * @param configuration a configuration
+	 * @return a JedisPool
+	 */
 	public static JedisPool buildJedisPool(Configuration configuration) {
+		int maxConnections = configuration.getInt("redis/maxConnections", 128);
+		long maxWaitMillis = configuration.getInt("redis/connectionWaitMilliseconds", 10000);
+
 		JedisPoolConfig jedisPoolConfig = new JedisPoolConfig();
-		jedisPoolConfig.setMaxTotal(128);
+		jedisPoolConfig.setMaxTotal(maxConnections);
+
+		// keep connections open between bursts, rather than closing all but the default 8 idle ones
+		jedisPoolConfig.setMaxIdle(maxConnections);
 
 		// TODO Figure out how to implement WHEN_EXHAUSTED_GROW, if possible
 		jedisPoolConfig.setBlockWhenExhausted(true);
@@ -144,12 +235,12 @@ public class SyncServer {
 		String redisHost = configuration.get("redis/host");
 		int redisPort = configuration.getInt("redis/port", -1);
 		if (redisPort != -1) {
-			logger.info("Building jedisPool with host {} and port {}", redisHost, redisPort);
-			return new JedisPool(jedisPoolConfig, redisHost, redisPort);
+			logger.info("Building jedisPool with host {} and port {}, and up to {} connections", redisHost, redisPort, maxConnections);
 		} else {
-			logger.info("Building jedisPool with host {} and default port", redisHost);
-			return new JedisPool(jedisPoolConfig, redisHost);
+			logger.info("Building jedisPool with host {} and default port, and up to {} connections", redisHost, maxConnections);
+			redisPort = Protocol.DEFAULT_PORT;
 		}
+		return new BoundedJedisPool(jedisPoolConfig, redisHost, redisPort, maxWaitMillis);
 	}
 
 	private static Authenticator buildSyncAuthenticator(Configuration configuration) {
@@ -183,14 +274,70 @@ public class SyncServer {
 		return new GoogleIdTokenAuthenticator(oauthServerId, issuer, new Whitelist(whitelistGraceperiodSeconds));
 	}
 
-	private static SyncManagerFactory buildSyncManagerFactory(Configuration configuration) {
+	/**
+	 * Build the in-process cache of hot blobs shared by all accounts, sized by "blobStore/cache/capacityMegabytes".
+	 * Blobs larger than "blobStore/cache/maxEntryKilobytes" are never cached.
+	 *
+	 * @param configuration a configuration
+	 * @return the blob cache, or null if its capacity is 0
+	 */
+	@Nullable
+	private static BlobCache buildBlobCache(Configuration configuration) {
+		long capacity = configuration.getInt("blobStore/cache/capacityMegabytes", 64) * 1024L * 1024L;
+		long maxEntrySize = configuration.getInt("blobStore/cache/maxEntryKilobytes", 1024) * 1024L;
+		if (capacity <= 0) {
+			logger.info("Blob cache is disabled");
+			return null;
+		}
+
+		logger.info("Caching up to {} bytes of blobs of up to {} bytes each", capacity, maxEntrySize);
+		return new BlobCache(capacity, maxEntrySize);
+	}
+
+	/**
+	 * Build the cache of account SyncManagers. Those of accounts with no connected devices are evicted after
+	 * "syncManagerCache/idleSeconds" unused, or "syncManagerCache/gracePeriodSeconds" after the last device
+	 * disconnects, and the least recently used are evicted while the cached SyncManagers' timestamp records hold more
+	 * than "syncManagerCache/maxTimestampRecordEntries" entries.
+	 */
+	private static SyncManagerCache buildSyncManagerCache(Configuration configuration, SyncManagerFactory syncManagerFactory, StorageEngine storageEngine, String storagePrefix) {
+		long maxWeight = configuration.getInt("syncManagerCache/maxTimestampRecordEntries", 1000000);
+		long idleMillis = configuration.getInt("syncManagerCache/idleSeconds", 600) * 1000L;
+		long gracePeriodMillis = configuration.getInt("syncManagerCache/gracePeriodSeconds", 300) * 1000L;
+		int sweepIntervalSeconds = configuration.getInt("syncManagerCache/sweepIntervalSeconds", 30);
+
+		logger.info("Caching SyncManagers holding up to {} timestamp record entries, for {} seconds idle or {} seconds after disconnect", maxWeight, idleMillis / 1000, gracePeriodMillis / 1000);
+		return new SyncManagerCache(accountId -> syncManagerFactory.create(storageEngine, storagePrefix, accountId), SyncRouter::getReadWriteLockForAccount, maxWeight, idleMillis, gracePeriodMillis, sweepIntervalSeconds);
+	}
+
+	private static SyncManagerFactory buildSyncManagerFactory(Configuration configuration, @Nullable BlobCache blobCache) {
 
 		final List<String> deviceIds = configuration.getArray("syncManager/deviceIdManager/mock/deviceIds");
 		if (deviceIds != null) {
 			logger.debug("SyncManager instances will be using MockDeviceIdManager with mock device ids: {}", deviceIds);
 		}
 
-		return (jedisPool, storagePrefix, accountId) -> {
+		final boolean contentAddressedBlobs = configuration.getBoolean("blobStore/contentAddressed", false);
+		if (contentAddressedBlobs) {
+			logger.info("SyncManager instances will store blob data content-addressed");
+		}
+
+		final String blobCompression = configuration.get("blobStore/compression", BlobCodecs.IDENTITY);
+		final BlobCodec blobCodec = BlobCodecs.get(blobCompression);
+		if (blobCodec != null) {
+			logger.info("SyncManager instances will store blob data compressed with {}", blobCodec.getName());
+		} else if (!BlobCodecs.isIdentity(blobCompression)) {
+			logger.error("Unrecognized blobStore/compression \"{}\", blob data will be stored uncompressed", blobCompression);
+		}
+
+		final long tombstoneHorizonSeconds = configuration.getInt("timestampRecord/tombstoneHorizonDays", 90) * 24L * 60 * 60;
+		if (tombstoneHorizonSeconds > 0) {
+			logger.info("SyncManager instances will compact DELETE tombstones older than {} days", tombstoneHorizonSeconds / (24 * 60 * 60));
+		}
+
+		final int statusBroadcastIntervalMilliseconds = configuration.getInt("syncManager/statusBroadcastIntervalMilliseconds", 1000);
+
+		return (storageEngine, storagePrefix, accountId) -> {
 
 			DeviceIdManagerInterface deviceIdManager;
 			if (deviceIds != null) {
@@ -199,7 +346,11 @@ public class SyncServer {
 				deviceIdManager = new DeviceIdManager();
 			}
 
-			return new SyncManager(jedisPool, deviceIdManager, storagePrefix, accountId);
+			SyncManager syncManager = new SyncManager(storageEngine, deviceIdManager, storagePrefix, accountId, contentAddressedBlobs, blobCodec);
+			syncManager.setBlobCache(blobCache);
+			syncManager.setTombstoneHorizonSeconds(tombstoneHorizonSeconds);
+			syncManager.setStatusBroadcastIntervalMilliseconds(statusBroadcastIntervalMilliseconds);
+			return syncManager;
 		};
 	}
 
@@ -1,8 +1,7 @@
 package org.zakariya.mrdoodleserver.factories;
 
-import org.zakariya.mrdoodleserver.sync.DeviceIdManagerInterface;
+import org.zakariya.mrdoodleserver.sync.StorageEngine;
 import org.zakariya.mrdoodleserver.sync.SyncManager;
-import redis.clients.jedis.JedisPool;
 
 /**
  * SyncManagerFactory
@@ -10,5 +9,5 @@ import redis.clients.jedis.JedisPool;
  * I never thought I'd create a java "factory" dingus, but here it is.
  */
 public interface SyncManagerFactory {
-	SyncManager create(JedisPool jedisPool, String storagePrefix, String accountId);
+	SyncManager create(StorageEngine storageEngine, String storagePrefix, String accountId);
 }
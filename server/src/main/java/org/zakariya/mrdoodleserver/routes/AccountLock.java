@@ -0,0 +1,132 @@
+package org.zakariya.mrdoodleserver.routes;
+
+import org.zakariya.mrdoodleserver.transport.AccountLockTimings;
+import org.zakariya.mrdoodleserver.util.LatencyHistogram;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * AccountLock
+ * An account's lock as taken by one request, recording how long the request waited for and held it into histograms
+ * kept per route. Cheap queries can read optimistically, without taking the lock at all: they only fall back to the
+ * read lock if a writer got in while they read. Not reentrant, and not to be shared between threads.
+ */
+class AccountLock {
+
+	private static class RouteTimings {
+		final LatencyHistogram wait = new LatencyHistogram();
+		final LatencyHistogram hold = new LatencyHistogram();
+		final AtomicLong optimisticReads = new AtomicLong();
+		final AtomicLong optimisticFallbacks = new AtomicLong();
+	}
+
+	private static final ConcurrentMap<String, RouteTimings> timingsByRoute = new ConcurrentHashMap<>();
+
+	private final StampedLock lock;
+	private final RouteTimings timings;
+	private long stamp;
+	private long acquiredNanos;
+
+	/**
+	 * @param lock  the account's lock
+	 * @param route names the route taking the lock, whose histograms its timings are recorded in
+	 */
+	AccountLock(StampedLock lock, String route) {
+		this.lock = lock;
+		this.timings = timingsByRoute.computeIfAbsent(route, r -> new RouteTimings());
+	}
+
+	void readLock() {
+		long startNanos = System.nanoTime();
+		stamp = lock.readLock();
+		acquired(startNanos);
+	}
+
+	void writeLock() {
+		long startNanos = System.nanoTime();
+		stamp = lock.writeLock();
+		acquired(startNanos);
+	}
+
+	/**
+	 * Release the lock, if held. Safe to call from a finally block whether or not the lock was taken.
+	 */
+	void unlock() {
+		if (stamp != 0) {
+			long heldNanos = System.nanoTime() - acquiredNanos;
+			lock.unlock(stamp);
+			stamp = 0;
+			timings.hold.record(heldNanos);
+		}
+	}
+
+	/**
+	 * Run a reader without locking, and return its result if no writer took the lock meanwhile; otherwise run it
+	 * again under the read lock. It may run twice, so must have no side effects (e.g., don't load a SyncManager in
+	 * it). A valid stamp only proves no writer of this lock intervened, so the reader must only read volatile or
+	 * immutable fields, which are written under the write lock; never walk collections, which may be changed by
+	 * other threads mid-read. Its exceptions are only propagated if the stamp is valid.
+	 *
+	 * @param reader reads volatile or immutable state guarded by the lock
+	 * @return the reader's result
+	 */
+	<T> T readOptimistically(Supplier<T> reader) {
+		long optimisticStamp = lock.tryOptimisticRead();
+		if (optimisticStamp != 0) {
+			try {
+				T result = reader.get();
+				if (lock.validate(optimisticStamp)) {
+					timings.optimisticReads.incrementAndGet();
+					return result;
+				}
+			} catch (RuntimeException e) {
+				if (lock.validate(optimisticStamp)) {
+					throw e;
+				}
+			}
+		}
+
+		timings.optimisticFallbacks.incrementAndGet();
+		readLock();
+		try {
+			return reader.get();
+		} finally {
+			unlock();
+		}
+	}
+
+	private void acquired(long startNanos) {
+		acquiredNanos = System.nanoTime();
+		timings.wait.record(acquiredNanos - startNanos);
+	}
+
+	/**
+	 * @return the lock timings of each route which has taken an account lock, by route name
+	 */
+	static Map<String, AccountLockTimings> getTimings() {
+		Map<String, AccountLockTimings> timings = new TreeMap<>();
+		for (Map.Entry<String, RouteTimings> e : timingsByRoute.entrySet()) {
+			RouteTimings routeTimings = e.getValue();
+			AccountLockTimings t = new AccountLockTimings();
+			t.acquisitions = routeTimings.wait.getCount();
+			t.waitMeanMicros = routeTimings.wait.getMeanMicros();
+			t.waitP50Micros = routeTimings.wait.getPercentileMicros(50);
+			t.waitP99Micros = routeTimings.wait.getPercentileMicros(99);
+			t.waitMaxMicros = routeTimings.wait.getMaxMicros();
+			t.holdMeanMicros = routeTimings.hold.getMeanMicros();
+			t.holdP50Micros = routeTimings.hold.getPercentileMicros(50);
+			t.holdP99Micros = routeTimings.hold.getPercentileMicros(99);
+			t.holdMaxMicros = routeTimings.hold.getMaxMicros();
+			t.optimisticReads = routeTimings.optimisticReads.get();
+			t.optimisticFallbacks = routeTimings.optimisticFallbacks.get();
+			timings.put(e.getKey(), t);
+		}
+		return timings;
+	}
+}
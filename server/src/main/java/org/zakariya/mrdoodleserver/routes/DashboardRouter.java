@@ -6,12 +6,19 @@ import org.slf4j.LoggerFactory;
 import org.zakariya.mrdoodleserver.auth.Authenticator;
 import org.zakariya.mrdoodleserver.auth.User;
 import org.zakariya.mrdoodleserver.services.WebSocketConnection;
+import org.zakariya.mrdoodleserver.sync.BlobCache;
+import org.zakariya.mrdoodleserver.sync.StorageEngine;
+import org.zakariya.mrdoodleserver.sync.SyncManagerCache;
 import org.zakariya.mrdoodleserver.sync.UserRecordAccess;
+import org.zakariya.mrdoodleserver.transport.AccountLockTimings;
+import org.zakariya.mrdoodleserver.transport.BlobCacheStatus;
+import org.zakariya.mrdoodleserver.transport.DebouncerStatus;
+import org.zakariya.mrdoodleserver.transport.SyncManagerCacheStatus;
 import org.zakariya.mrdoodleserver.transport.UserConnectionInfo;
 import org.zakariya.mrdoodleserver.transport.UserPage;
 import org.zakariya.mrdoodleserver.transport.UserStatus;
 import org.zakariya.mrdoodleserver.util.Configuration;
-import redis.clients.jedis.JedisPool;
+import org.zakariya.mrdoodleserver.util.Debouncer;
 import spark.Request;
 import spark.Response;
 
@@ -32,12 +39,24 @@ public class DashboardRouter extends Router {
 	private Authenticator authenticator;
 	private UserRecordAccess userRecordAccess;
 	private Set<String> userEmailWhitelist;
+	private BlobCache blobCache;
+	private SyncManagerCache syncManagerCache;
 	private static final int USER_PAGE_SIZE = 100;
 
-	public DashboardRouter(JedisPool jedisPool, String storagePrefix, String apiVersion, Authenticator authenticator, List<String> userEmailWhitelist) {
-		super(jedisPool, storagePrefix, apiVersion);
+	public DashboardRouter(StorageEngine storageEngine, String storagePrefix, String apiVersion, Authenticator authenticator, List<String> userEmailWhitelist) {
+		this(storageEngine, storagePrefix, apiVersion, authenticator, userEmailWhitelist, null);
+	}
+
+	public DashboardRouter(StorageEngine storageEngine, String storagePrefix, String apiVersion, Authenticator authenticator, List<String> userEmailWhitelist, @Nullable BlobCache blobCache) {
+		this(storageEngine, storagePrefix, apiVersion, authenticator, userEmailWhitelist, blobCache, null);
+	}
+
+	public DashboardRouter(StorageEngine storageEngine, String storagePrefix, String apiVersion, Authenticator authenticator, List<String> userEmailWhitelist, @Nullable BlobCache blobCache, @Nullable SyncManagerCache syncManagerCache) {
+		super(storageEngine, storagePrefix, apiVersion);
+		this.blobCache = blobCache;
+		this.syncManagerCache = syncManagerCache;
 		this.authenticator = authenticator;
-		this.userRecordAccess = new UserRecordAccess(getJedisPool(), getStoragePrefix());
+		this.userRecordAccess = getStorageEngine().createUserRecordAccess(getStoragePrefix());
 		this.userEmailWhitelist = userEmailWhitelist != null ? new HashSet<>(userEmailWhitelist) : Collections.emptySet();
 	}
 
@@ -59,6 +78,18 @@ public class DashboardRouter extends Router {
 
 		// get general info on user count, connected count, etc
 		get(basePath + "/userStatus", this::getUserStatus, getJsonResponseTransformer());
+
+		// get blob cache size and hit/miss/eviction counts, returns BlobCacheStatus
+		get(basePath + "/blobCache", this::getBlobCacheStatus, getJsonResponseTransformer());
+
+		// get SyncManager cache size and load/eviction counts, returns SyncManagerCacheStatus
+		get(basePath + "/syncManagers", this::getSyncManagerCacheStatus, getJsonResponseTransformer());
+
+		// get pending/active/completed counts of debounced calls, returns DebouncerStatus
+		get(basePath + "/debouncer", this::getDebouncerStatus, getJsonResponseTransformer());
+
+		// get account lock wait/hold time percentiles and optimistic read counts, by sync route; returns a map of AccountLockTimings
+		get(basePath + "/accountLocks", this::getAccountLockTimings, getJsonResponseTransformer());
 	}
 
 	private void authenticate(Request request, Response response) {
@@ -120,6 +151,48 @@ public class DashboardRouter extends Router {
 		return status;
 	}
 
+	private BlobCacheStatus getBlobCacheStatus(Request request, Response response) {
+		BlobCacheStatus status = new BlobCacheStatus();
+		status.enabled = blobCache != null;
+		if (blobCache != null) {
+			status.capacity = blobCache.getCapacity();
+			status.size = blobCache.getSize();
+			status.count = blobCache.getCount();
+			status.hits = blobCache.getHitCount();
+			status.misses = blobCache.getMissCount();
+			status.evictions = blobCache.getEvictionCount();
+		}
+		return status;
+	}
+
+	private SyncManagerCacheStatus getSyncManagerCacheStatus(Request request, Response response) {
+		SyncManagerCacheStatus status = new SyncManagerCacheStatus();
+		status.enabled = syncManagerCache != null;
+		if (syncManagerCache != null) {
+			status.count = syncManagerCache.getCount();
+			status.weight = syncManagerCache.getWeight();
+			status.maxWeight = syncManagerCache.getMaxWeight();
+			status.hits = syncManagerCache.getHitCount();
+			status.loads = syncManagerCache.getLoadCount();
+			status.averageLoadMillis = syncManagerCache.getAverageLoadMillis();
+			status.idleEvictions = syncManagerCache.getIdleEvictionCount();
+			status.weightEvictions = syncManagerCache.getWeightEvictionCount();
+		}
+		return status;
+	}
+
+	private DebouncerStatus getDebouncerStatus(Request request, Response response) {
+		DebouncerStatus status = new DebouncerStatus();
+		status.pending = Debouncer.getPendingCount();
+		status.active = Debouncer.getActiveCount();
+		status.completed = Debouncer.getCompletedCount();
+		return status;
+	}
+
+	private Map<String, AccountLockTimings> getAccountLockTimings(Request request, Response response) {
+		return AccountLock.getTimings();
+	}
+
 	@Nullable
 	private UserConnectionInfo getUserConnectionInfo(Request request, Response response) {
 
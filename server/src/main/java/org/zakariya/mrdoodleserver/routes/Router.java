@@ -3,9 +3,8 @@ package org.zakariya.mrdoodleserver.routes;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.net.MediaType;
 import org.slf4j.Logger;
-import org.zakariya.mrdoodleserver.sync.UserRecordAccess;
+import org.zakariya.mrdoodleserver.sync.StorageEngine;
 import org.zakariya.mrdoodleserver.util.Configuration;
-import redis.clients.jedis.JedisPool;
 import spark.Response;
 import spark.ResponseTransformer;
 
@@ -20,19 +19,19 @@ public abstract class Router {
 	static final String RESPONSE_TYPE_TEXT = MediaType.PLAIN_TEXT_UTF_8.toString();
 	static final String RESPONSE_TYPE_OCTET_STREAM = MediaType.OCTET_STREAM.toString();
 
-	private JedisPool jedisPool;
+	private StorageEngine storageEngine;
 	private String storagePrefix;
 	private String apiVersion;
 	private ResponseTransformer jsonResponseTransformer;
 
-	Router(JedisPool jedisPool, String storagePrefix, String apiVersion) {
-		this.jedisPool = jedisPool;
+	Router(StorageEngine storageEngine, String storagePrefix, String apiVersion) {
+		this.storageEngine = storageEngine;
 		this.storagePrefix = storagePrefix;
 		this.apiVersion = apiVersion;
 	}
 
-	JedisPool getJedisPool() {
-		return jedisPool;
+	StorageEngine getStorageEngine() {
+		return storageEngine;
 	}
 
 	String getStoragePrefix() {
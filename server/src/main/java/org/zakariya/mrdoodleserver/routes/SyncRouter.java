@@ -1,32 +1,43 @@
 package org.zakariya.mrdoodleserver.routes;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jetty.server.HttpOutput;
 import org.eclipse.jetty.websocket.api.Session;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.zakariya.mrdoodleserver.auth.Authenticator;
 import org.zakariya.mrdoodleserver.auth.User;
-import org.zakariya.mrdoodleserver.factories.SyncManagerFactory;
 import org.zakariya.mrdoodleserver.services.WebSocketConnection;
 import org.zakariya.mrdoodleserver.sync.*;
 import org.zakariya.mrdoodleserver.transport.LockStatus;
 import org.zakariya.mrdoodleserver.transport.Status;
 import org.zakariya.mrdoodleserver.transport.TimestampRecordEntry;
+import org.zakariya.mrdoodleserver.util.AcceptEncoding;
+import org.zakariya.mrdoodleserver.util.ByteRange;
 import org.zakariya.mrdoodleserver.util.Configuration;
+import org.zakariya.mrdoodleserver.util.EntityTag;
 import org.zakariya.mrdoodleserver.util.Preconditions;
-import redis.clients.jedis.JedisPool;
+import org.zakariya.mrdoodleserver.util.StripedStampedLock;
 import spark.Request;
 import spark.Response;
 
 import javax.servlet.MultipartConfigElement;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static spark.Spark.*;
 
@@ -42,23 +53,51 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 	public static final String REQUEST_HEADER_DOCUMENT_TYPE = "X-Document-Type";
 	public static final String REQUEST_HEADER_WRITE_TOKEN = "X-Write-Token";
 	public static final String REQUEST_HEADER_DEVICE_ID = "X-Device-ID";
-
-	private static final boolean READ_WRITE_LOCK_IS_FAIR = true;
+	public static final String REQUEST_HEADER_RANGE = "Range";
+	public static final String REQUEST_HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+	public static final String REQUEST_HEADER_CONTENT_ENCODING = "Content-Encoding";
+	public static final String REQUEST_HEADER_IF_NONE_MATCH = "If-None-Match";
+	public static final String REQUEST_HEADER_IF_RANGE = "If-Range";
+	public static final String REQUEST_HEADER_DELTA_BASE = "X-Delta-Base";
+
+	public static final String RESPONSE_HEADER_BLOB_ID = "X-Blob-ID";
+	public static final String RESPONSE_HEADER_BLOB_TIMESTAMP = "X-Blob-Timestamp";
+	public static final String RESPONSE_HEADER_BLOB_STATUS = "X-Blob-Status";
+	public static final String RESPONSE_HEADER_ACCEPT_RANGES = "Accept-Ranges";
+	public static final String RESPONSE_HEADER_CONTENT_RANGE = "Content-Range";
+	public static final String RESPONSE_HEADER_CONTENT_ENCODING = "Content-Encoding";
+	public static final String RESPONSE_HEADER_VARY = "Vary";
+	public static final String RESPONSE_HEADER_ETAG = "ETag";
+	public static final String RESPONSE_HEADER_NEXT_CURSOR = "X-Next-Cursor";
+	public static final String RESPONSE_HEADER_NEXT_SINCE_SEQ = "X-Next-Since-Seq";
+
+	private static final int MAX_BLOBS_PER_BATCH = 500;
+	private static final long MAX_BYTES_PER_BATCH = 16 * 1024 * 1024;
+	private static final int MAX_DELTA_RESULT_BYTES = 64 * 1024 * 1024;
+	private static final int MAX_CHANGES_PER_PAGE = 10000;
+	private static final String MULTIPART_LINE_FEED = "\r\n";
+
+	private static final int READ_WRITE_LOCK_STRIPES = 1024;
 
 	// multiple SyncRouters may exist because of threading, so we need to
-	// make certain our syncManagers and locks are unique per account
-	private static Map<String, SyncManager> syncManagersByAccountId = new HashMap<>();
-	private static Map<String, ReentrantReadWriteLock> readWriteLocksByAccountId = new HashMap<>();
+	// make certain our locks are unique per account; SyncManagers are shared through the SyncManagerCache.
+	// accounts are striped over a fixed table of locks, so looking one up is uncontended and the table never grows
+	private static final StripedStampedLock readWriteLocks = new StripedStampedLock(READ_WRITE_LOCK_STRIPES);
 
-	private SyncManagerFactory syncManagerFactory;
+	private SyncManagerCache syncManagerCache;
 	private Authenticator authenticator;
 	private UserRecordAccess userRecordAccess;
-
-	public SyncRouter(JedisPool jedisPool, String storagePrefix, String apiVersion, Authenticator authenticator, SyncManagerFactory syncManagerFactory) {
-		super(jedisPool, storagePrefix, apiVersion);
+	private ObjectMapper objectMapper = new ObjectMapper();
+
+	/**
+	 * @param syncManagerCache vends each account's SyncManager; it must evict them under the account's write lock
+	 *                         (see getReadWriteLockForAccount)
+	 */
+	public SyncRouter(StorageEngine storageEngine, String storagePrefix, String apiVersion, Authenticator authenticator, SyncManagerCache syncManagerCache) {
+		super(storageEngine, storagePrefix, apiVersion);
 		this.authenticator = authenticator;
-		this.syncManagerFactory = syncManagerFactory;
-		userRecordAccess = new UserRecordAccess(getJedisPool(), getStoragePrefix());
+		this.syncManagerCache = syncManagerCache;
+		userRecordAccess = getStorageEngine().createUserRecordAccess(getStoragePrefix());
 	}
 
 	@Override
@@ -75,7 +114,7 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 		before(basePath + "/*", this::recordUserVisit);
 
 		get(basePath + "/status", this::getStatus, getJsonResponseTransformer());
-		get(basePath + "/changes", this::getChanges, getJsonResponseTransformer());
+		get(basePath + "/changes", this::getChanges);
 
 		// get a write session token
 		get(basePath + "/writeSession/start", this::startWriteSession);
@@ -84,6 +123,8 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 
 		// blobs
 		get(basePath + "/blob/:blobId", this::getBlob);
+		// batch fetch of blobs; body is a JSON array of blob ids, response is multipart/mixed
+		post(basePath + "/blobs", this::getBlobs);
 		put(basePath + "/blob/:blobId", this::putBlob, getJsonResponseTransformer());
 		delete(basePath + "/blob/:blobId", this::deleteBlob, getJsonResponseTransformer());
 
@@ -155,49 +196,144 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 	private Object getStatus(Request request, Response response) {
 		String accountId = request.params("accountId");
 		String deviceId = request.headers(REQUEST_HEADER_DEVICE_ID);
-		ReadWriteLock lock = getReadWriteLockForAccount(accountId);
-
-		try {
-			lock.readLock().lock();
-
-			SyncManager syncManager = getSyncManagerForAccount(accountId);
-			Status status = syncManager.getStatus(deviceId);
+		AccountLock lock = lockForAccount(accountId, "getStatus");
+		SyncManager syncManager = getSyncManagerForAccount(accountId);
 
-			response.type(RESPONSE_TYPE_JSON);
-			return status;
+		// the timestamp record's head and watermark are volatile snapshots, which a commit updates together under the
+		// write lock; read them optimistically, rather than queue behind a committing writer. Locks are guarded by the
+		// LockManager itself.
+		Status status = lock.readOptimistically(() -> syncManager.getTimestampStatus(deviceId));
+		syncManager.addLockStatus(status);
 
-		} finally {
-			lock.readLock().unlock();
-		}
+		response.type(RESPONSE_TYPE_JSON);
+		return status;
 	}
 
+	/**
+	 * Get the changes since a timestamp (the "since" query parameter), as a JSON object mapping document id to
+	 * TimestampRecordEntry. If a "limit" is given, at most that many changes are sent, oldest first, and if there are
+	 * more the X-Next-Cursor response header holds a cursor; pass it as the "cursor" query parameter to get the next
+	 * page. The response is streamed, and the account is only locked while the page is gathered.
+	 * Alternatively, the "sinceSeq" query parameter gets exactly the changes with a sequence number greater than it
+	 * (see Status.headSeq), in sequence order; if a "limit" cuts the page short, the X-Next-Since-Seq response header
+	 * holds the "sinceSeq" of the next page.
+	 * If deletions the client hasn't seen have been compacted away (see Status.compactionWatermarkSeconds), the
+	 * changes would be incomplete, so 410 Gone is sent instead; the client must resync in full, with no "since".
+	 */
 	@Nullable
 	private Object getChanges(Request request, Response response) {
 		String accountId = request.params("accountId");
-		ReadWriteLock lock = getReadWriteLockForAccount(accountId);
+
+		String since = request.queryParams("since");
+		long sinceTimestamp = 0;
+		if (since != null && !since.isEmpty()) {
+			try {
+				sinceTimestamp = Long.parseLong(since);
+			} catch (NumberFormatException nfe) {
+				sendErrorAndHalt(response, 500, "SyncRouter::getChanges - Unable to parse 'since' query parameter \"" + since + "\" as a number. error: " + nfe.getLocalizedMessage(), nfe);
+				return null;
+			}
+		}
+
+		int limit = -1;
+		String limitParam = request.queryParams("limit");
+		if (limitParam != null && !limitParam.isEmpty()) {
+			try {
+				limit = Math.min(Integer.parseInt(limitParam), MAX_CHANGES_PER_PAGE);
+			} catch (NumberFormatException nfe) {
+				limit = 0;
+			}
+			if (limit <= 0) {
+				sendErrorAndHalt(response, 400, "SyncRouter::getChanges - 'limit' query parameter \"" + limitParam + "\" must be a positive number");
+				return null;
+			}
+		}
+
+		long sinceSeq = -1;
+		String sinceSeqParam = request.queryParams("sinceSeq");
+		if (sinceSeqParam != null && !sinceSeqParam.isEmpty()) {
+			try {
+				sinceSeq = Long.parseLong(sinceSeqParam);
+			} catch (NumberFormatException nfe) {
+				sinceSeq = -1;
+			}
+			if (sinceSeq < 0) {
+				sendErrorAndHalt(response, 400, "SyncRouter::getChanges - 'sinceSeq' query parameter \"" + sinceSeqParam + "\" must be a non-negative number");
+				return null;
+			}
+		}
+
+		ChangeCursor cursor = null;
+		String cursorParam = request.queryParams("cursor");
+		if (cursorParam != null && !cursorParam.isEmpty()) {
+			try {
+				cursor = ChangeCursor.decode(cursorParam);
+			} catch (IllegalArgumentException e) {
+				sendErrorAndHalt(response, 400, "SyncRouter::getChanges - Invalid 'cursor' query parameter \"" + cursorParam + "\"", e);
+				return null;
+			}
+		}
+
+		// gather the page under the read lock, then release it before serializing. One entry past the limit is
+		// gathered, to find whether there's another page.
+		List<TimestampRecordEntry> page = new ArrayList<>();
+		AccountLock lock = lockForAccount(accountId, "getChanges");
 		try {
-			lock.readLock().lock();
+			lock.readLock();
 
 			SyncManager syncManager = getSyncManagerForAccount(accountId);
 			TimestampRecord timestampRecord = syncManager.getTimestampRecord();
 
-			String since = request.queryParams("since");
-			long sinceTimestamp = 0;
-			if (since != null && !since.isEmpty()) {
-				try {
-					sinceTimestamp = Long.parseLong(since);
-				} catch (NumberFormatException nfe) {
-					sendErrorAndHalt(response, 500, "SyncRouter::getChanges - Unable to parse 'since' query parameter \"" + since + "\" as a number. error: " + nfe.getLocalizedMessage(), nfe);
-					return null;
+			CompactionWatermark watermark = timestampRecord.getCompactionWatermark();
+			boolean incomplete = sinceSeq >= 0 ? watermark.isAfterSeq(sinceSeq) : watermark.isAfterTimestamp(cursor != null ? cursor.getTimestampSeconds() : sinceTimestamp);
+			if (incomplete) {
+				sendErrorAndHalt(response, 410, "SyncRouter::getChanges - Deletions since the requested position have been compacted away; full resync required");
+				return null;
+			}
+
+			Collection<TimestampRecordEntry> entries;
+			if (sinceSeq >= 0) {
+				entries = timestampRecord.getEntriesAfterSeqView(sinceSeq);
+			} else if (cursor != null) {
+				entries = timestampRecord.getEntriesAfterView(cursor);
+			} else {
+				entries = timestampRecord.getEntriesSinceView(sinceTimestamp);
+			}
+			for (TimestampRecordEntry entry : entries) {
+				if (limit > 0 && page.size() > limit) {
+					break;
 				}
+				page.add(entry);
 			}
+		} finally {
+			lock.unlock();
+		}
 
-			response.type(RESPONSE_TYPE_JSON);
-			return timestampRecord.getEntriesSince(sinceTimestamp);
+		if (limit > 0 && page.size() > limit) {
+			page.remove(page.size() - 1);
+			TimestampRecordEntry last = page.get(page.size() - 1);
+			if (sinceSeq >= 0) {
+				response.header(RESPONSE_HEADER_NEXT_SINCE_SEQ, Long.toString(last.getSeq()));
+			} else {
+				response.header(RESPONSE_HEADER_NEXT_CURSOR, ChangeCursor.after(last).encode());
+			}
+		}
 
-		} finally {
-			lock.readLock().unlock();
+		response.status(200);
+		response.type(RESPONSE_TYPE_JSON);
+
+		try (JsonGenerator generator = objectMapper.getFactory().createGenerator(response.raw().getOutputStream())) {
+			generator.writeStartObject();
+			for (TimestampRecordEntry entry : page) {
+				generator.writeFieldName(entry.getDocumentId());
+				generator.writeObject(entry);
+			}
+			generator.writeEndObject();
+		} catch (IOException e) {
+			sendErrorAndHalt(response, 500, "SyncRouter::getChanges - Unable to write changes to response", e);
 		}
+
+		return response.raw();
 	}
 
 	@Nullable
@@ -227,10 +363,10 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 		String authToken = request.headers(REQUEST_HEADER_AUTH);
 		authenticator.removeFromWhitelist(authToken);
 
-		ReadWriteLock lock = getReadWriteLockForAccount(accountId);
+		AccountLock lock = lockForAccount(accountId, "commitWriteSession");
 
 		try {
-			lock.writeLock().lock();
+			lock.writeLock();
 			if (syncManager.commitWriteSession(deviceId, sessionToken)) {
 
 				// notify all clients of updated status
@@ -247,35 +383,91 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 				return null;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			lock.unlock();
 		}
 	}
 
 	@Nullable
 	private Object getBlob(Request request, Response response) {
 		String accountId = request.params("accountId");
-		ReadWriteLock lock = getReadWriteLockForAccount(accountId);
+		AccountLock lock = lockForAccount(accountId, "getBlob");
 
 		try {
-			lock.readLock().lock();
+			lock.readLock();
 
 			String blobId = request.params("blobId");
 			SyncManager syncManager = getSyncManagerForAccount(accountId);
 			BlobStore blobStore = syncManager.getBlobStore();
-			BlobStore.Entry entry = blobStore.get(blobId);
 
-			if (entry != null) {
-				byte[] blobBytes = entry.getData();
+			// only the metadata is read until it's certain the data will be sent
+			BlobStore.Metadata metadata = syncManager.getBlobMetadata(blobId);
+
+			if (metadata != null) {
+
+				// compressed blobs are served as stored to clients which accept their encoding, and decoded for the rest
+				String encoding = metadata.getEncoding();
+				boolean sendEncoded = encoding == null || AcceptEncoding.accepts(request.headers(REQUEST_HEADER_ACCEPT_ENCODING), encoding);
+				long length = sendEncoded ? metadata.getLength() : metadata.getDecodedLength();
+				long offset = 0;
+				String etag = getETag(metadata, sendEncoded);
+
+				response.header(RESPONSE_HEADER_VARY, REQUEST_HEADER_ACCEPT_ENCODING);
+				response.header(RESPONSE_HEADER_ETAG, etag);
+
+				// clients which already have this version of the blob are told so without its data being read
+				if (EntityTag.matchesAny(request.headers(REQUEST_HEADER_IF_NONE_MATCH), etag)) {
+					response.status(304);
+					return "";
+				}
 
-				response.raw().setContentLength(blobBytes.length);
 				response.status(200);
 
+				// clients resuming an interrupted download request just the bytes they're missing. Ranges
+				// apply to the representation being sent, so can't be honored if its length isn't known,
+				// and are ignored if the blob has changed since the client's partial copy (If-Range).
+				if (length >= 0) {
+					response.header(RESPONSE_HEADER_ACCEPT_RANGES, "bytes");
+					String rangeHeader = EntityTag.rangeApplies(request.headers(REQUEST_HEADER_IF_RANGE), etag) ? request.headers(REQUEST_HEADER_RANGE) : null;
+					ByteRange range = ByteRange.parse(rangeHeader, length);
+					if (range != null) {
+						response.header(RESPONSE_HEADER_CONTENT_RANGE, range.getContentRange());
+						if (!range.isSatisfiable()) {
+							sendErrorAndHalt(response, 416, "Requested range not satisfiable");
+						}
+
+						offset = range.getFirst();
+						length = range.getLength();
+						response.status(206);
+					}
+
+					response.raw().setContentLengthLong(length);
+				}
+
+				response.type(RESPONSE_TYPE_OCTET_STREAM);
+
+				// hot blobs are served from the blob cache without touching the store, and concurrent
+				// requests for the same cold blob share one read of the store
+				metadata = syncManager.readBlob(metadata);
+				BlobCache.CachedBlob cachedBlob = metadata instanceof BlobCache.CachedBlob ? (BlobCache.CachedBlob) metadata : null;
+
 				ServletOutputStream os = response.raw().getOutputStream();
-				org.apache.commons.io.IOUtils.write(blobBytes, os);
+				if (sendEncoded) {
+					if (encoding != null) {
+						response.header(RESPONSE_HEADER_CONTENT_ENCODING, encoding);
+					}
+					if (cachedBlob != null) {
+						cachedBlob.writeData(offset, length, os);
+					} else {
+						blobStore.writeData(metadata, offset, length, getChannel(os));
+					}
+				} else if (cachedBlob != null) {
+					cachedBlob.writeDecodedData(offset, length, os);
+				} else {
+					blobStore.writeDecodedData(metadata, offset, length, os);
+				}
 				os.flush();
 				os.close();
 
-				response.type(RESPONSE_TYPE_OCTET_STREAM);
 				return response.raw();
 			} else {
 				sendErrorAndHalt(response, 404, "Unknown blob ID");
@@ -284,17 +476,200 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 		} catch (IOException e) {
 			sendErrorAndHalt(response, 500, "SyncRouter::getBlob - Unable to copy blob bytes to response", e);
 		} finally {
-			lock.readLock().unlock();
+			lock.unlock();
 		}
 
 		return null;
 	}
 
+	/**
+	 * A blob's ETag is its digest, so it changes whenever the blob's data does. The decoded representation of an
+	 * encoded blob is a different representation, and gets a different tag. Blobs whose digest isn't known
+	 * (written before digests were recorded) are tagged by their timestamp and length instead.
+	 *
+	 * @param metadata    a blob's metadata
+	 * @param sendEncoded true if the blob is being sent as stored, false if decoded
+	 * @return the ETag of the representation of the blob being sent
+	 */
+	private static String getETag(BlobStore.Metadata metadata, boolean sendEncoded) {
+		String tag = metadata.getDigest();
+		if (tag == null) {
+			tag = metadata.getTimestamp() + "-" + metadata.getLength();
+		}
+		if (!sendEncoded) {
+			tag += "-identity";
+		}
+		return EntityTag.strong(tag);
+	}
+
+	/**
+	 * @param os a response's output stream
+	 * @return a channel writing to the response. Jetty's output takes ByteBuffers as-is, so buffers such as
+	 * memory-mapped blob data aren't first copied through a temporary array, as Channels.newChannel would.
+	 */
+	private static WritableByteChannel getChannel(ServletOutputStream os) {
+		if (!(os instanceof HttpOutput)) {
+			return Channels.newChannel(os);
+		}
+
+		final HttpOutput output = (HttpOutput) os;
+		return new WritableByteChannel() {
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				int length = src.remaining();
+				output.write(src);
+
+				// the write blocks until everything has been written
+				src.position(src.limit());
+				return length;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return !output.isClosed();
+			}
+
+			@Override
+			public void close() throws IOException {
+				output.close();
+			}
+		};
+	}
+
+	/**
+	 * Fetch many blobs in one request. The request body is a JSON array of blob ids, and the response
+	 * is a multipart/mixed body with one part per requested id, in request order. Each part carries the
+	 * blob id, document type and timestamp as headers. Ids which aren't in the store get an empty part
+	 * with an X-Blob-Status of 404. The batch's data is held in memory while it's sent, so only as many blobs as
+	 * fit in MAX_BYTES_PER_BATCH are sent; the rest get an empty part with an X-Blob-Status of 413, and should be
+	 * requested in another batch, or through GET /blob if they're too large to fit in one on their own.
+	 */
+	@Nullable
+	private Object getBlobs(Request request, Response response) {
+		String accountId = request.params("accountId");
+
+		List<String> blobIds;
+		try {
+			blobIds = objectMapper.readValue(request.body(), new TypeReference<List<String>>() {
+			});
+		} catch (IOException e) {
+			sendErrorAndHalt(response, 400, "SyncRouter::getBlobs - Unable to parse request body as a JSON array of blob ids", e);
+			return null;
+		}
+
+		if (blobIds == null || blobIds.isEmpty()) {
+			sendErrorAndHalt(response, 400, "SyncRouter::getBlobs - No blob ids requested");
+			return null;
+		}
+
+		if (blobIds.size() > MAX_BLOBS_PER_BATCH) {
+			sendErrorAndHalt(response, 400, "SyncRouter::getBlobs - Too many blob ids requested (" + blobIds.size() + "), the limit is " + MAX_BLOBS_PER_BATCH);
+			return null;
+		}
+
+		// ids are echoed in part headers, so mustn't be able to break out of them
+		for (String blobId : blobIds) {
+			if (blobId == null || !isValidBlobId(blobId)) {
+				sendErrorAndHalt(response, 400, "SyncRouter::getBlobs - Blob ids may not be null or contain control characters");
+				return null;
+			}
+		}
+
+		Map<String, BlobStore.Metadata> metadata;
+		Map<String, BlobStore.Entry> entries;
+		AccountLock lock = lockForAccount(accountId, "getBlobs");
+		try {
+			lock.readLock();
+			SyncManager syncManager = getSyncManagerForAccount(accountId);
+			BlobStore blobStore = syncManager.getBlobStore();
+
+			// only the data of the blobs which fit in the batch is read. Blobs whose decoded length is unknown
+			// (they were uploaded already encoded) could decode to anything, so never fit.
+			metadata = blobStore.getAllMetadata(blobIds);
+			List<String> batchIds = new ArrayList<>();
+			long batchBytes = 0;
+			for (BlobStore.Metadata m : metadata.values()) {
+				long length = m.getDecodedLength();
+				if (length >= 0 && batchBytes + length <= MAX_BYTES_PER_BATCH) {
+					batchIds.add(m.getId());
+					batchBytes += length;
+				}
+			}
+
+			entries = blobStore.getAll(batchIds);
+		} finally {
+			lock.unlock();
+		}
+
+		// the entries are in memory now, so we can write the response without holding the lock
+		String boundary = "mrdoodle-" + UUID.randomUUID().toString();
+		response.status(200);
+		response.raw().setContentType("multipart/mixed; boundary=" + boundary);
+
+		try {
+			ServletOutputStream os = response.raw().getOutputStream();
+			for (String blobId : blobIds) {
+				BlobStore.Entry entry = entries.get(blobId);
+				writeBlobPart(os, boundary, blobId, entry, entry != null ? 200 : metadata.containsKey(blobId) ? 413 : 404);
+			}
+			os.write(("--" + boundary + "--" + MULTIPART_LINE_FEED).getBytes(StandardCharsets.UTF_8));
+			os.flush();
+			os.close();
+		} catch (IOException e) {
+			sendErrorAndHalt(response, 500, "SyncRouter::getBlobs - Unable to copy blob bytes to response", e);
+		}
+
+		return response.raw();
+	}
+
+	/**
+	 * @return true if blobId is safe to echo in a header: it has no control characters, such as CR and LF
+	 */
+	private static boolean isValidBlobId(String blobId) {
+		for (int i = 0; i < blobId.length(); i++) {
+			if (Character.isISOControl(blobId.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param entry  the blob, if it's being sent
+	 * @param status the part's X-Blob-Status; 200 if entry is being sent
+	 */
+	private void writeBlobPart(OutputStream os, String boundary, String blobId, @Nullable BlobStore.Entry entry, int status) throws IOException {
+		byte[] data = entry != null && entry.getData() != null ? entry.getData() : new byte[0];
+
+		StringBuilder headers = new StringBuilder();
+		headers.append("--").append(boundary).append(MULTIPART_LINE_FEED);
+		headers.append("Content-Type: ").append(RESPONSE_TYPE_OCTET_STREAM).append(MULTIPART_LINE_FEED);
+		headers.append("Content-Length: ").append(data.length).append(MULTIPART_LINE_FEED);
+		headers.append(RESPONSE_HEADER_BLOB_ID).append(": ").append(blobId).append(MULTIPART_LINE_FEED);
+		if (entry != null) {
+			headers.append(REQUEST_HEADER_DOCUMENT_TYPE).append(": ").append(entry.getType()).append(MULTIPART_LINE_FEED);
+			headers.append(RESPONSE_HEADER_BLOB_TIMESTAMP).append(": ").append(entry.getTimestamp()).append(MULTIPART_LINE_FEED);
+		}
+		headers.append(RESPONSE_HEADER_BLOB_STATUS).append(": ").append(status).append(MULTIPART_LINE_FEED);
+		headers.append(MULTIPART_LINE_FEED);
+
+		os.write(headers.toString().getBytes(StandardCharsets.UTF_8));
+		os.write(data);
+		os.write(MULTIPART_LINE_FEED.getBytes(StandardCharsets.UTF_8));
+	}
+
 	@Nullable
 	private Object putBlob(Request request, Response response) {
 
-		// we need to do this to extract the blob form data
-		request.attribute("org.eclipse.jetty.multipartConfig", new MultipartConfigElement("/temp"));
+		// blob data may be sent as the raw request body, which is streamed straight to redis,
+		// or as the "blob" part of a multipart form, which jetty spools to disk first. Or the
+		// body may be a delta against a version of the blob the client already has.
+		boolean delta = isDeltaBlobUpload(request);
+		boolean rawBody = delta || isRawBlobUpload(request);
+		if (!rawBody) {
+			// we need to do this to extract the blob form data
+			request.attribute("org.eclipse.jetty.multipartConfig", new MultipartConfigElement("/temp"));
+		}
 
 		String modelClass = request.headers(REQUEST_HEADER_DOCUMENT_TYPE);
 		if (modelClass == null || modelClass.isEmpty()) {
@@ -318,22 +693,52 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 			return null;
 		}
 
+		// raw uploads may be already compressed, in which case they're stored as-is
+		String contentEncoding = rawBody ? request.headers(REQUEST_HEADER_CONTENT_ENCODING) : null;
+		if (!BlobCodecs.isIdentity(contentEncoding) && BlobCodecs.get(contentEncoding) == null) {
+			sendErrorAndHalt(response, 415, "SyncRouter::putBlob - Unsupported content encoding \"" + contentEncoding + "\"");
+			return null;
+		}
+
+		String deltaBase = request.headers(REQUEST_HEADER_DELTA_BASE);
+		if (delta && (deltaBase == null || deltaBase.isEmpty())) {
+			sendErrorAndHalt(response, 400, "SyncRouter::putBlob - Missing delta base (\"" + REQUEST_HEADER_DELTA_BASE + "\"); deltas must name the version they apply to");
+			return null;
+		}
+
 		// now get timestamp record and blobstore for this write session.
 		// note: because writes go into the session, we don't need to wrap this in a writeLock
 		TimestampRecord timestampRecord = session.getTimestampRecord();
 		BlobStore blobStore = session.getBlobStore();
 
-		try (InputStream is = request.raw().getPart("blob").getInputStream()) {
+		try (InputStream is = rawBody ? request.raw().getInputStream() : request.raw().getPart("blob").getInputStream()) {
 
+			// record the write only once the data's stored, so a failed upload doesn't leave a dangling timestamp
 			long timestamp = syncManager.getTimestampSeconds();
+			if (delta) {
+				BlobCodec bodyCodec = BlobCodecs.get(contentEncoding);
+				byte[] data = applyDelta(syncManager, session, blobId, deltaBase, bodyCodec != null ? bodyCodec.decode(is) : is);
+				if (data == null) {
+					sendErrorAndHalt(response, 412, "SyncRouter::putBlob - Delta base " + deltaBase + " is not the current version of blob \"" + blobId + "\"; upload the whole blob instead");
+					return null;
+				}
+				blobStore.set(blobId, modelClass, timestamp, new ByteArrayInputStream(data));
+			} else {
+				blobStore.set(blobId, modelClass, timestamp, is, contentEncoding);
+			}
 			TimestampRecordEntry entry = timestampRecord.record(blobId, modelClass, timestamp, TimestampRecord.Action.WRITE);
 
-			byte[] data = org.apache.commons.io.IOUtils.toByteArray(is);
-			blobStore.set(blobId, modelClass, timestamp, data);
+			// the tag lets the client name this version as the base of its next delta
+			BlobStore.Metadata metadata = blobStore.getMetadata(blobId);
+			if (metadata != null) {
+				response.header(RESPONSE_HEADER_ETAG, getETag(metadata, true));
+			}
 
 			response.type(RESPONSE_TYPE_JSON);
-			return entry;
+			return unsequenced(entry);
 
+		} catch (BlobDelta.InvalidDeltaException e) {
+			sendErrorAndHalt(response, 400, "SyncRouter::putBlob - Invalid delta: " + e.getMessage(), e);
 		} catch (ServletException | IOException e) {
 			sendErrorAndHalt(response, 500, "SyncRouter::putBlob - Unable to read blob data from request", e);
 		}
@@ -341,6 +746,85 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 		return null;
 	}
 
+	/**
+	 * Rebuild a blob from a delta against a version of it the client has. The base is the blob as written earlier in
+	 * the write session, or else as committed.
+	 *
+	 * @param syncManager the account's SyncManager
+	 * @param session     the write session the blob is being written in
+	 * @param blobId      the blob's id
+	 * @param deltaBase   names the version the delta applies to: its ETag, as served by GET /blob or PUT /blob.
+	 *                    Timestamps aren't accepted, since two writes in the same second share one.
+	 * @param delta       the delta (see BlobDelta)
+	 * @return the rebuilt blob data, or null if the base isn't the blob's current version
+	 * @throws IOException if the base can't be read, or the delta is invalid
+	 */
+	@Nullable
+	private byte[] applyDelta(SyncManager syncManager, SyncManager.WriteSession session, String blobId, String deltaBase, InputStream delta) throws IOException {
+		byte[] base;
+		BlobStore sessionStore = session.getBlobStore();
+		if (sessionStore.has(blobId)) {
+			base = readDeltaBase(sessionStore, blobId, deltaBase);
+		} else {
+			// the committed store changes as other sessions commit, so read it under the account's read lock
+			AccountLock lock = lockForAccount(syncManager.getAccountId(), "applyDelta");
+			try {
+				lock.readLock();
+				base = readDeltaBase(syncManager.getBlobStore(), blobId, deltaBase);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		if (base == null) {
+			return null;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(base.length + 4096);
+		BlobDelta.apply(base, delta, out, MAX_DELTA_RESULT_BYTES);
+		logger.debug("Rebuilt blob: {} from {} byte base to {} bytes", blobId, base.length, out.size());
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return the blob's decoded data, or null if there's no such blob or deltaBase doesn't name its current version
+	 */
+	@Nullable
+	private static byte[] readDeltaBase(BlobStore blobStore, String blobId, String deltaBase) throws IOException {
+		BlobStore.Metadata metadata = blobStore.getMetadata(blobId);
+		if (metadata == null) {
+			return null;
+		}
+
+		// only the ETag identifies a version; applied to any other version, the delta would silently corrupt the blob
+		String base = deltaBase.trim();
+		boolean matches = EntityTag.rangeApplies(base, getETag(metadata, true))
+				|| EntityTag.rangeApplies(base, getETag(metadata, false));
+		if (!matches) {
+			return null;
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		blobStore.writeDecodedData(metadata, 0, -1, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * @return true if the request's body is a BlobDelta
+	 */
+	private static boolean isDeltaBlobUpload(Request request) {
+		String contentType = request.contentType();
+		return contentType != null && contentType.toLowerCase().startsWith(BlobDelta.CONTENT_TYPE);
+	}
+
+	/**
+	 * @return true if the request's body is the blob data itself, rather than a multipart form
+	 */
+	private static boolean isRawBlobUpload(Request request) {
+		String contentType = request.contentType();
+		return contentType != null && contentType.toLowerCase().startsWith(RESPONSE_TYPE_OCTET_STREAM);
+	}
+
 	@Nullable
 	private Object deleteBlob(Request request, Response response) {
 		String accountId = request.params("accountId");
@@ -391,7 +875,18 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 		logger.info("Deleted blob: {} type: {} timestamp: {}", blobId, blobType, timestamp);
 
 		response.type(RESPONSE_TYPE_JSON);
-		return entry;
+		return unsequenced(entry);
+	}
+
+	/**
+	 * An entry recorded in a write session only has a sequence number local to the session; the account-wide one is
+	 * assigned when the session commits. So it's served without one, rather than with one that won't match GET /changes.
+	 *
+	 * @param entry an entry recorded in a write session
+	 * @return a copy of entry without its sequence number
+	 */
+	private static TimestampRecordEntry unsequenced(TimestampRecordEntry entry) {
+		return new TimestampRecordEntry(entry.getDocumentId(), entry.getDocumentType(), entry.getTimestampSeconds(), entry.getAction());
 	}
 
 	@Nullable
@@ -399,14 +894,14 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 		String accountId = request.params("accountId");
 		String documentId = request.params("documentId");
 		String deviceId = request.headers(REQUEST_HEADER_DEVICE_ID);
-		ReadWriteLock lock = getReadWriteLockForAccount(accountId);
+		AccountLock lock = lockForAccount(accountId, "requestLock");
 
 		try {
 
 			SyncManager syncManager = getSyncManagerForAccount(accountId);
 			LockManager lockManager = syncManager.getLockManager();
 
-			lock.writeLock().lock();
+			lock.writeLock();
 
 			LockStatus lockStatus = new LockStatus();
 			lockStatus.documentId = documentId;
@@ -424,7 +919,7 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 
 			return lockStatus;
 		} finally {
-			lock.writeLock().unlock();
+			lock.unlock();
 		}
 	}
 
@@ -433,14 +928,14 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 		String accountId = request.params("accountId");
 		String documentId = request.params("documentId");
 		String deviceId = request.headers(REQUEST_HEADER_DEVICE_ID);
-		ReadWriteLock lock = getReadWriteLockForAccount(accountId);
+		AccountLock lock = lockForAccount(accountId, "releaseLock");
 
 		try {
 
 			SyncManager syncManager = getSyncManagerForAccount(accountId);
 			LockManager lockManager = syncManager.getLockManager();
 
-			lock.writeLock().lock();
+			lock.writeLock();
 
 			LockStatus lockStatus = new LockStatus();
 			lockStatus.documentId = documentId;
@@ -460,7 +955,7 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 			response.type(RESPONSE_TYPE_JSON);
 			return lockStatus;
 		} finally {
-			lock.writeLock().unlock();
+			lock.unlock();
 		}
 	}
 
@@ -469,14 +964,12 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 		String accountId = request.params("accountId");
 		String documentId = request.params("documentId");
 		String deviceId = request.headers(REQUEST_HEADER_DEVICE_ID);
-		ReadWriteLock lock = getReadWriteLockForAccount(accountId);
+		AccountLock lock = lockForAccount(accountId, "isLocked");
+		LockManager lockManager = getSyncManagerForAccount(accountId).getLockManager();
 
 		try {
-
-			SyncManager syncManager = getSyncManagerForAccount(accountId);
-			LockManager lockManager = syncManager.getLockManager();
-
-			lock.readLock().lock();
+			// the read lock keeps requestLock and releaseLock from changing the lock between the two reads
+			lock.readLock();
 
 			LockStatus lockStatus = new LockStatus();
 			lockStatus.documentId = documentId;
@@ -486,7 +979,7 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 			response.type(RESPONSE_TYPE_JSON);
 			return lockStatus;
 		} finally {
-			lock.readLock().unlock();
+			lock.unlock();
 		}
 	}
 
@@ -496,28 +989,29 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 		return "/api/" + getApiVersion() + "/sync/:accountId";
 	}
 
-	private synchronized ReentrantReadWriteLock getReadWriteLockForAccount(String accountId) {
-		ReentrantReadWriteLock lock = readWriteLocksByAccountId.get(accountId);
-		if (lock == null) {
-			lock = new ReentrantReadWriteLock(READ_WRITE_LOCK_IS_FAIR);
-			readWriteLocksByAccountId.put(accountId, lock);
-		}
+	/**
+	 * @param accountId an account id
+	 * @return the lock requests hold while using the account's SyncManager; read for reads, write for changes.
+	 * Other accounts may share it, and it isn't reentrant, so never take another lock of an account while holding it.
+	 */
+	public static ReadWriteLock getReadWriteLockForAccount(String accountId) {
+		return readWriteLocks.get(accountId);
+	}
 
-		return lock;
+	/**
+	 * @param accountId an account id
+	 * @param route     the route taking the lock, whose lock timings it's recorded in
+	 * @return the account's lock (see getReadWriteLockForAccount), for a request to take
+	 */
+	private static AccountLock lockForAccount(String accountId, String route) {
+		return new AccountLock(readWriteLocks.getStampedLock(accountId), route);
 	}
 
 	private SyncManager getSyncManagerForAccount(String accountId) {
-		Preconditions.checkNotNull(getJedisPool(), "jedisPool instance must be set");
+		Preconditions.checkNotNull(getStorageEngine(), "storageEngine instance must be set");
 		Preconditions.checkArgument(accountId != null && !accountId.isEmpty(), "accountId must be non-null and non-empty");
 
-		SyncManager syncManager = syncManagersByAccountId.get(accountId);
-
-		if (syncManager == null) {
-			syncManager = syncManagerFactory.create(getJedisPool(), getStoragePrefix(), accountId);
-			syncManagersByAccountId.put(accountId, syncManager);
-		}
-
-		return syncManager;
+		return syncManagerCache.get(accountId);
 	}
 
 	///////////////////////////////////////////////////////////////////
@@ -529,6 +1023,7 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 			@Override
 			public void onUserSessionConnected(WebSocketConnection connection, Session session, String accountId) {
 
+				syncManagerCache.setConnected(accountId, true);
 				SyncManager syncManager = getSyncManagerForAccount(accountId);
 				syncManager.onUserSessionConnected(connection, session, accountId);
 
@@ -545,11 +1040,10 @@ public class SyncRouter extends Router implements WebSocketConnection.WebSocketC
 				syncManager.onUserSessionDisconnected(connection, session, accountId);
 
 				// now check if any users of a particular account are still connected. if
-				// not, we can free that account's syncManager
+				// not, the cache may free that account's syncManager once its grace period passes
 				if (connection.getTotalConnectedDevicesForAccountId(accountId) == 0) {
-					logger.info("SyncRouter::onWebSocketConnectionCreated#onUserSessionDisconnected - userId: {} has no connected devices. Freeing user's syncManager", accountId);
-					syncManager.close();
-					syncManagersByAccountId.remove(accountId);
+					logger.info("SyncRouter::onWebSocketConnectionCreated#onUserSessionDisconnected - userId: {} has no connected devices. User's syncManager may now be evicted", accountId);
+					syncManagerCache.setConnected(accountId, false);
 				}
 			}
 		});
@@ -0,0 +1,136 @@
+package org.zakariya.mrdoodleserver.services;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.Service;
+import spark.Spark;
+import spark.embeddedserver.EmbeddedServer;
+import spark.embeddedserver.EmbeddedServerFactory;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyServer;
+import spark.embeddedserver.jetty.HttpRequestWrapper;
+import spark.http.matching.MatcherFilter;
+import spark.route.Routes;
+import spark.staticfiles.StaticFilesConfiguration;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.Filter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * DispatchingServerFactory
+ * Builds Spark's embedded Jetty server such that routes run on an executor of our choosing (e.g., one which runs
+ * each request on a virtual thread) rather than Jetty's thread pool. Spark 2.5 builds its Jetty server's thread pool
+ * itself, so instead each request is put into async mode and handed to the executor, freeing the Jetty thread to
+ * serve other connections while the route blocks on Redis or token verification. WebSocket upgrades still run on
+ * Jetty's threads. HTTP sessions aren't supported, as Spark's session handler is bypassed.
+ */
+public class DispatchingServerFactory implements EmbeddedServerFactory {
+
+	private static final Logger logger = LoggerFactory.getLogger(DispatchingServerFactory.class);
+
+	private static final String IDENTIFIER = "dispatching-jetty";
+
+	private final Executor executor;
+
+	/**
+	 * @param executor runs each request's routes and filters
+	 */
+	public DispatchingServerFactory(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Make Spark serve requests on an executor. Must be called before any route is declared, since that starts the
+	 * server. Spark re-registers its own factory under the default identifier as it starts, and 2.5 has no public
+	 * way to choose another, so Spark's (private) choice of identifier is set reflectively.
+	 *
+	 * @param executor runs each request's routes and filters
+	 * @return true if installed; false if this version of Spark can't be configured so, and will use Jetty's threads
+	 */
+	public static boolean install(Executor executor) {
+		try {
+			Method getInstance = Spark.class.getDeclaredMethod("getInstance");
+			getInstance.setAccessible(true);
+			Service service = (Service) getInstance.invoke(null);
+
+			Field identifier = Service.class.getDeclaredField("embeddedServerIdentifier");
+			identifier.setAccessible(true);
+			identifier.set(service, IDENTIFIER);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			logger.warn("DispatchingServerFactory::install - Unable to select embedded server", e);
+			return false;
+		}
+
+		EmbeddedServers.add(IDENTIFIER, new DispatchingServerFactory(executor));
+		return true;
+	}
+
+	@Override
+	public EmbeddedServer create(Routes routeMatcher, StaticFilesConfiguration staticFilesConfiguration, boolean hasMultipleHandler) {
+		// requests reaching the filter are always consumed, since WebSocket upgrades never do (see DispatchingHandler)
+		MatcherFilter matcherFilter = new MatcherFilter(routeMatcher, staticFilesConfiguration, false, false);
+		matcherFilter.init(null);
+		return new EmbeddedJettyServer(new DispatchingHandler(matcherFilter, executor));
+	}
+
+	private static class DispatchingHandler extends AbstractHandler {
+
+		private final Filter filter;
+		private final Executor executor;
+
+		DispatchingHandler(Filter filter, Executor executor) {
+			this.filter = filter;
+			this.executor = executor;
+		}
+
+		@Override
+		public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+			if ("websocket".equalsIgnoreCase(request.getHeader("Upgrade"))) {
+				// left unhandled, for the WebSocket handler which follows this one
+				return;
+			}
+
+			baseRequest.setHandled(true);
+			AsyncContext asyncContext = request.startAsync();
+
+			// blob uploads and downloads may take a while; they're bounded by the connection's idle timeout instead
+			asyncContext.setTimeout(0);
+
+			try {
+				executor.execute(() -> {
+					try {
+						filter.doFilter(new HttpRequestWrapper(request), response, null);
+					} catch (Exception e) {
+						logger.error("DispatchingHandler::handle - Unable to handle request: " + request.getRequestURI(), e);
+						sendError(response, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+					} finally {
+						asyncContext.complete();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				logger.error("DispatchingHandler::handle - Executor rejected request: " + request.getRequestURI(), e);
+				sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				asyncContext.complete();
+			}
+		}
+
+		private static void sendError(HttpServletResponse response, int status) {
+			if (!response.isCommitted()) {
+				try {
+					response.sendError(status);
+				} catch (IOException ignored) {
+					// the client has gone
+				}
+			}
+		}
+	}
+}
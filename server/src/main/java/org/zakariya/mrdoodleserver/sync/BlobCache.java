@@ -0,0 +1,248 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import org.apache.commons.io.IOUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * BlobCache
+ * Server-wide LRU cache of blobs' stored data, bounded by the total bytes it holds rather than by entry count. Entries
+ * are keyed by account and blob id, and tagged with the blob's timestamp; a lookup only hits if the caller's timestamp
+ * (from the account's TimestampRecord) matches, so a cached blob can never be served after it's been rewritten.
+ */
+public class BlobCache {
+
+	/**
+	 * Rough per-entry cost of the key, metadata and map node, so many tiny blobs can't exceed the capacity unnoticed
+	 */
+	private static final int ENTRY_OVERHEAD_BYTES = 256;
+
+	/**
+	 * A blob's metadata and its data as stored, held in memory by the cache, or to share one read among concurrent readers
+	 */
+	public static class CachedBlob extends BlobStore.Metadata {
+		private byte[] data;
+
+		CachedBlob(BlobStore.Metadata metadata, byte[] data) {
+			super(metadata.getId(), metadata.getType(), metadata.getTimestamp(), data.length, metadata.getChunkSize(), metadata.getEncoding(), metadata.getDecodedLength(), metadata.getDigest());
+			this.data = data;
+		}
+
+		/**
+		 * @return the blob's data, as stored; do not modify
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * Write a range of the blob's data, as stored, to a stream
+		 */
+		public void writeData(long offset, long length, OutputStream out) throws IOException {
+			if (offset < 0 || length < 0 || offset + length > data.length) {
+				throw new IllegalArgumentException("Range [" + offset + ", " + (offset + length) + ") is outside blob of length " + data.length);
+			}
+			out.write(data, (int) offset, (int) length);
+		}
+
+		/**
+		 * Write a range of the blob's data to a stream, decoded
+		 *
+		 * @param offset offset in the decoded data of the first byte to write
+		 * @param length number of decoded bytes to write, or -1 to write everything after offset
+		 * @param out    the stream to write to
+		 * @throws IOException if the stream can't be written to, or the data can't be decoded
+		 */
+		public void writeDecodedData(long offset, long length, OutputStream out) throws IOException {
+			BlobCodec blobCodec = BlobStore.getCodec(getEncoding());
+			if (blobCodec == null) {
+				writeData(offset, length >= 0 ? length : data.length - offset, out);
+				return;
+			}
+
+			try (InputStream in = blobCodec.decode(new ByteArrayInputStream(data))) {
+				IOUtils.copyLarge(in, out, offset, length);
+			}
+		}
+
+		private long getWeight() {
+			return data.length + ENTRY_OVERHEAD_BYTES;
+		}
+	}
+
+	private static final class Key {
+		final String accountId;
+		final String blobId;
+
+		Key(String accountId, String blobId) {
+			this.accountId = accountId;
+			this.blobId = blobId;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return accountId.equals(other.accountId) && blobId.equals(other.blobId);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(accountId, blobId);
+		}
+	}
+
+	private long capacity;
+	private long maxEntrySize;
+	private LinkedHashMap<Key, CachedBlob> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long size;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * @param capacity     maximum number of bytes of blob data (plus a small per-entry overhead) to hold
+	 * @param maxEntrySize blobs whose stored data is larger than this many bytes aren't cached
+	 */
+	public BlobCache(long capacity, long maxEntrySize) {
+		this.capacity = capacity;
+		this.maxEntrySize = Math.min(maxEntrySize, Math.min(capacity, Integer.MAX_VALUE) - ENTRY_OVERHEAD_BYTES);
+	}
+
+	/**
+	 * @param length length of a blob's stored data
+	 * @return true if a blob of this length would be cached
+	 */
+	public boolean accepts(long length) {
+		return length <= maxEntrySize;
+	}
+
+	/**
+	 * Look up a blob
+	 *
+	 * @param accountId the account owning the blob
+	 * @param blobId    the blob's id
+	 * @param timestamp the blob's current timestamp
+	 * @return the cached blob, or null if it isn't cached, or the cached copy has a different timestamp
+	 */
+	@Nullable
+	public synchronized CachedBlob get(String accountId, String blobId, long timestamp) {
+		Key key = new Key(accountId, blobId);
+		CachedBlob blob = entries.get(key);
+		if (blob != null && blob.getTimestamp() != timestamp) {
+			remove(key);
+			blob = null;
+		}
+
+		if (blob != null) {
+			hitCount++;
+		} else {
+			missCount++;
+		}
+		return blob;
+	}
+
+	/**
+	 * Cache a blob, replacing any cached copy, and evicting the least recently used blobs as needed to stay within capacity
+	 *
+	 * @param accountId the account owning the blob
+	 * @param metadata  the blob's metadata
+	 * @param data      the blob's data, as stored
+	 * @return the cached blob, or null if it's too large to cache
+	 */
+	@Nullable
+	public CachedBlob put(String accountId, BlobStore.Metadata metadata, byte[] data) {
+		if (!accepts(data.length)) {
+			return null;
+		}
+
+		CachedBlob blob = new CachedBlob(metadata, data);
+		synchronized (this) {
+			Key key = new Key(accountId, metadata.getId());
+			remove(key);
+			entries.put(key, blob);
+			size += blob.getWeight();
+
+			Iterator<CachedBlob> eldest = entries.values().iterator();
+			while (size > capacity && eldest.hasNext()) {
+				size -= eldest.next().getWeight();
+				eldest.remove();
+				evictionCount++;
+			}
+		}
+		return blob;
+	}
+
+	/**
+	 * Drop a blob from the cache
+	 *
+	 * @param accountId the account owning the blob
+	 * @param blobId    the blob's id
+	 */
+	public synchronized void invalidate(String accountId, String blobId) {
+		remove(new Key(accountId, blobId));
+	}
+
+	/**
+	 * Drop every cached blob of an account
+	 *
+	 * @param accountId an account
+	 */
+	public synchronized void invalidateAll(String accountId) {
+		Iterator<Map.Entry<Key, CachedBlob>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Key, CachedBlob> entry = iterator.next();
+			if (entry.getKey().accountId.equals(accountId)) {
+				size -= entry.getValue().getWeight();
+				iterator.remove();
+			}
+		}
+	}
+
+	private void remove(Key key) {
+		CachedBlob removed = entries.remove(key);
+		if (removed != null) {
+			size -= removed.getWeight();
+		}
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return bytes currently held, including per-entry overhead
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @return number of blobs evicted to make room for others; invalidations aren't counted
+	 */
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+}
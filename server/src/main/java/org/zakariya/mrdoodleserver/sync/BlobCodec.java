@@ -0,0 +1,33 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * BlobCodec
+ * A compression stage applied to blob data as it's stored. A codec's name is the HTTP content-coding
+ * (e.g., "gzip") its encoded form corresponds to, so encoded blob data can be served and accepted as-is
+ * by clients which support that coding.
+ */
+public interface BlobCodec {
+
+	/**
+	 * @return the HTTP content-coding name of this codec's encoded form
+	 */
+	String getName();
+
+	/**
+	 * @param out a stream to write encoded data to
+	 * @return a stream which encodes what's written to it and writes the result to out. Closing it closes out.
+	 * @throws IOException if the encoder can't write to out
+	 */
+	OutputStream encode(OutputStream out) throws IOException;
+
+	/**
+	 * @param in a stream of encoded data
+	 * @return a stream of the decoded data read from in
+	 * @throws IOException if the encoded data can't be read
+	 */
+	InputStream decode(InputStream in) throws IOException;
+}
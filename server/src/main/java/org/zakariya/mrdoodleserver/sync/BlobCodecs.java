@@ -0,0 +1,95 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * BlobCodecs
+ * Registry of the BlobCodecs blob data may be stored with, looked up by content-coding name.
+ */
+public class BlobCodecs {
+
+	/**
+	 * Content-coding name for data stored as-is
+	 */
+	public static final String IDENTITY = "identity";
+
+	public static final BlobCodec GZIP = new BlobCodec() {
+		@Override
+		public String getName() {
+			return "gzip";
+		}
+
+		@Override
+		public OutputStream encode(OutputStream out) throws IOException {
+			return new GZIPOutputStream(out, 8192);
+		}
+
+		@Override
+		public InputStream decode(InputStream in) throws IOException {
+			return new GZIPInputStream(in, 8192);
+		}
+	};
+
+	/**
+	 * HTTP's "deflate" coding, which is zlib-wrapped deflate data
+	 */
+	public static final BlobCodec DEFLATE = new BlobCodec() {
+		@Override
+		public String getName() {
+			return "deflate";
+		}
+
+		@Override
+		public OutputStream encode(OutputStream out) throws IOException {
+			return new DeflaterOutputStream(out);
+		}
+
+		@Override
+		public InputStream decode(InputStream in) throws IOException {
+			return new InflaterInputStream(in);
+		}
+	};
+
+	private static final Map<String, BlobCodec> codecsByName = new ConcurrentHashMap<>();
+
+	static {
+		register(GZIP);
+		register(DEFLATE);
+	}
+
+	/**
+	 * Make a codec available to BlobStores, replacing any codec already registered with the same name
+	 *
+	 * @param codec the codec to register
+	 */
+	public static void register(BlobCodec codec) {
+		codecsByName.put(codec.getName().toLowerCase(), codec);
+	}
+
+	/**
+	 * @param name a content-coding name, e.g., "gzip"
+	 * @return the codec registered for the name, or null if there is none. Note: there's no codec for "identity".
+	 */
+	@Nullable
+	public static BlobCodec get(@Nullable String name) {
+		return name != null ? codecsByName.get(name.trim().toLowerCase()) : null;
+	}
+
+	/**
+	 * @param name a content-coding name
+	 * @return true if the name is null, empty or "identity", meaning data isn't encoded
+	 */
+	public static boolean isIdentity(@Nullable String name) {
+		return name == null || name.trim().isEmpty() || name.trim().equalsIgnoreCase(IDENTITY);
+	}
+}
@@ -0,0 +1,165 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * BlobDelta
+ * A binary patch rebuilding a new version of a blob from a base version, so clients can upload just what changed.
+ * A delta is a sequence of ops, each introduced by a one byte opcode, and all integers are big-endian:
+ * <ul>
+ * <li>COPY (1): 8 byte offset, 4 byte length; copies that range of the base</li>
+ * <li>INSERT (2): 4 byte length, then that many bytes, which are copied as-is</li>
+ * <li>END (0): ends the delta; anything after it is ignored</li>
+ * </ul>
+ * Appending to a blob, as StrokeDoodle does while drawing, is a COPY of the whole base followed by an INSERT of the
+ * appended bytes. Rolling-hash differs can express arbitrary edits as interleaved COPYs and INSERTs.
+ */
+public class BlobDelta {
+
+	/**
+	 * Content type of a request body which is a delta
+	 */
+	public static final String CONTENT_TYPE = "application/vnd.mrdoodle.delta";
+
+	public static final int OP_END = 0;
+	public static final int OP_COPY = 1;
+	public static final int OP_INSERT = 2;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Thrown when a delta is malformed, or references bytes outside its base
+	 */
+	public static class InvalidDeltaException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		InvalidDeltaException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Apply a delta to a base
+	 *
+	 * @param base      the base version's data
+	 * @param delta     the delta
+	 * @param out       receives the new version's data
+	 * @param maxLength longest new version to accept, since a few bytes of COPYs can describe a huge one
+	 * @return number of bytes written to out
+	 * @throws InvalidDeltaException if the delta is malformed, or the new version would exceed maxLength
+	 * @throws IOException           if the delta can't be read or out can't be written to
+	 */
+	public static long apply(byte[] base, InputStream delta, OutputStream out, long maxLength) throws IOException {
+		DataInputStream in = new DataInputStream(delta);
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long written = 0;
+
+		try {
+			while (true) {
+				int op = in.read();
+				switch (op) {
+					case OP_END:
+						return written;
+
+					case OP_COPY: {
+						long offset = in.readLong();
+						int length = in.readInt();
+						// written so as not to overflow, whatever the offset
+						if (offset < 0 || length < 0 || length > base.length || offset > base.length - length) {
+							throw new InvalidDeltaException("COPY of " + length + " bytes at " + offset + " is outside base of length " + base.length);
+						}
+						checkLength(written, length, maxLength);
+						out.write(base, (int) offset, length);
+						written += length;
+						break;
+					}
+
+					case OP_INSERT: {
+						int length = in.readInt();
+						if (length < 0) {
+							throw new InvalidDeltaException("INSERT of negative length " + length);
+						}
+						checkLength(written, length, maxLength);
+
+						// copy in pieces, so a length the delta doesn't actually hold can't make us allocate it
+						for (int remaining = length; remaining > 0; ) {
+							int n = in.read(buffer, 0, Math.min(remaining, buffer.length));
+							if (n < 0) {
+								throw new EOFException();
+							}
+							out.write(buffer, 0, n);
+							remaining -= n;
+						}
+						written += length;
+						break;
+					}
+
+					case -1:
+						throw new InvalidDeltaException("Delta is missing its END op");
+
+					default:
+						throw new InvalidDeltaException("Unrecognized delta op " + op);
+				}
+			}
+		} catch (EOFException e) {
+			throw new InvalidDeltaException("Delta is truncated");
+		}
+	}
+
+	/**
+	 * Reject an op before it writes anything, if it would take the new version past maxLength
+	 */
+	private static void checkLength(long written, int length, long maxLength) throws InvalidDeltaException {
+		if (written + length > maxLength) {
+			throw new InvalidDeltaException("Delta produces more than " + maxLength + " bytes");
+		}
+	}
+
+	/**
+	 * Apply a delta to a base
+	 *
+	 * @param base  the base version's data
+	 * @param delta the delta
+	 * @return the new version's data
+	 * @throws IOException if the delta is malformed
+	 */
+	public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		apply(base, new ByteArrayInputStream(delta), out, Integer.MAX_VALUE - 8);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Create a delta which appends to a base
+	 *
+	 * @param baseLength length of the base
+	 * @param suffix     the bytes appended to it
+	 * @return a delta which rebuilds the base with suffix appended
+	 */
+	public static byte[] append(long baseLength, byte[] suffix) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(suffix.length + 24);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			if (baseLength > 0) {
+				out.writeByte(OP_COPY);
+				out.writeLong(0);
+				out.writeInt((int) baseLength);
+			}
+			if (suffix.length > 0) {
+				out.writeByte(OP_INSERT);
+				out.writeInt(suffix.length);
+				out.write(suffix);
+			}
+			out.writeByte(OP_END);
+		} catch (IOException e) {
+			throw new IllegalStateException("ByteArrayOutputStream can't throw", e);
+		}
+		return bytes.toByteArray();
+	}
+}
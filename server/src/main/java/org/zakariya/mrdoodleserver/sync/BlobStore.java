@@ -1,19 +1,27 @@
 package org.zakariya.mrdoodleserver.sync;
 
+import org.apache.commons.io.IOUtils;
 import org.jetbrains.annotations.Nullable;
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.Response;
-import redis.clients.jedis.Transaction;
-
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import org.zakariya.mrdoodleserver.util.BufferPool;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
 
 /**
- * Created by shamyl on 8/25/16.
+ * BlobStore
+ * Stores an account's blobs. Storage engines (see StorageEngine) subclass BlobStore to persist blobs to a particular
+ * backend; the chunking, encoding and upload plumbing common to every engine lives here.
  */
-public class BlobStore {
+public abstract class BlobStore {
 
 	public static class Entry {
 		byte[] data;
@@ -21,7 +29,7 @@ public class BlobStore {
 		String type;
 		long timestamp;
 
-		Entry(String id, String type, long timestamp, byte[] data) {
+		public Entry(String id, String type, long timestamp, byte[] data) {
 			this.data = data;
 			this.id = id;
 			this.type = type;
@@ -55,37 +63,153 @@ public class BlobStore {
 		}
 	}
 
+	/**
+	 * Describes a blob without loading its data, so the data can be streamed a chunk at a time via BlobStore::writeData.
+	 * Storage engines subclass Metadata to carry whatever they need to find the blob's chunks.
+	 */
+	public static class Metadata {
+		private String id;
+		private String type;
+		private long timestamp;
+		private long length;
+		private int chunkSize;
+		private String encoding;
+		private long decodedLength;
+		private String digest;
+
+		protected Metadata(String id, String type, long timestamp, long length, int chunkSize, @Nullable String encoding, long decodedLength, @Nullable String digest) {
+			this.id = id;
+			this.type = type;
+			this.timestamp = timestamp;
+			this.length = length;
+			this.chunkSize = chunkSize;
+			this.encoding = BlobCodecs.isIdentity(encoding) ? null : encoding;
+			this.decodedLength = decodedLength;
+			this.digest = digest;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * @return length of the blob's data as stored (i.e., encoded) in bytes
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		public int getChunkSize() {
+			return chunkSize;
+		}
+
+		/**
+		 * @return the content-coding the blob's data is stored with, or null if it's stored as-is
+		 */
+		@Nullable
+		public String getEncoding() {
+			return encoding;
+		}
+
+		/**
+		 * @return length of the blob's data once decoded, or -1 if unknown (it was uploaded already encoded)
+		 */
+		public long getDecodedLength() {
+			return decodedLength;
+		}
+
+		/**
+		 * @return a digest of the blob's data as stored, which changes whenever the data does; its form is up to the
+		 * storage engine. Null if unknown, e.g., for blobs written before digests were recorded.
+		 */
+		@Nullable
+		public String getDigest() {
+			return digest;
+		}
+	}
+
+	/**
+	 * Blob data is stored in chunks of this many bytes, so it can be streamed without loading it entirely into memory
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 128 * 1024;
+
+	// upload buffers are recycled, since every upload needs one
+	private static final BufferPool chunkBufferPool = new BufferPool(DEFAULT_CHUNK_SIZE, 64);
+
 	private String accountId;
 	private String namespace;
-	private JedisPool jedisPool;
-	private Set<String> writes = new HashSet<>();
-	private Set<String> deletions = new HashSet<>();
+	private String contentNamespace;
+	private boolean contentAddressed;
+	private BlobCodec codec;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	protected Set<String> writes = new HashSet<>();
+	protected Set<String> deletions = new HashSet<>();
 
 	/**
-	 * Create a BlobStore which will persist to a given redis connection.
-	 *
-	 * @param jedisPool pool brokering access to a redis connection
-	 * @param namespace the top-level namespace under which blobs will be persisted
-	 * @param accountId the user account for the blobs which will be persisted
+	 * @param namespace        the top-level namespace under which blobs will be persisted
+	 * @param accountId        the user account for the blobs which will be persisted
+	 * @param contentNamespace the namespace under which content-addressed blob data is shared. Stores whose changes are
+	 *                         saved to one another must use the same content namespace.
+	 * @param contentAddressed if true, blob data is stored once under its SHA-256 digest and shared by every blob
+	 *                         (in any account or write session) with identical data; otherwise it's stored inline
+	 * @param codec            if non-null, blob data written to the store is compressed with this codec. Data written
+	 *                         already encoded is stored as-is. Blobs are read back correctly regardless of the codec.
 	 */
-	public BlobStore(JedisPool jedisPool, String namespace, String accountId) {
-		this.jedisPool = jedisPool;
-		this.accountId = accountId;
+	protected BlobStore(String namespace, String accountId, String contentNamespace, boolean contentAddressed, @Nullable BlobCodec codec) {
 		this.namespace = namespace;
+		this.accountId = accountId;
+		this.contentNamespace = contentNamespace;
+		this.contentAddressed = contentAddressed;
+		this.codec = codec;
 	}
 
 	public String getAccountId() {
 		return accountId;
 	}
 
-	public JedisPool getJedisPool() {
-		return jedisPool;
-	}
-
 	public String getNamespace() {
 		return namespace;
 	}
 
+	public String getContentNamespace() {
+		return contentNamespace;
+	}
+
+	public boolean isContentAddressed() {
+		return contentAddressed;
+	}
+
+	/**
+	 * @return the codec blob data is compressed with when written, or null if it's written as-is
+	 */
+	@Nullable
+	public BlobCodec getCodec() {
+		return codec;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @param chunkSize size in bytes of the chunks blob data written by this store is split into. Blobs already
+	 *                  written keep the chunk size they were written with.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunkSize must be > 0");
+		}
+		this.chunkSize = chunkSize;
+	}
+
 	/**
 	 * Persist an entry to the store
 	 *
@@ -103,16 +227,70 @@ public class BlobStore {
 	 * @param timestamp the timestamp (generally in seconds) of the data
 	 * @param data      the actual blob data
 	 */
-	public void set(String id, String type, long timestamp, byte[] data) {
-		try (Jedis jedis = jedisPool.getResource()) {
-			Transaction transaction = jedis.multi();
-			transaction.set(getEntryIdKey(accountId, namespace, id), id);
-			transaction.set(getEntryTypeKey(accountId, namespace, id), type);
-			transaction.set(getEntryTimestampKey(accountId, namespace, id), Long.toString(timestamp));
-			transaction.set(getEntryDataKey(accountId, namespace, id).getBytes(), data);
-			transaction.exec();
-			writes.add(id);
+	public abstract void set(String id, String type, long timestamp, byte[] data);
+
+	/**
+	 * Persist a blob to the store, streaming its data from an InputStream. The data is read and written a chunk
+	 * at a time, so memory use is bounded by the chunk size regardless of the blob's size. Chunks are staged and
+	 * only replace the blob once the stream has been read in its entirety; if reading fails the blob is left untouched.
+	 *
+	 * @param id        the id of the blob
+	 * @param type      the "type" of blob - this might map to a java object on the client side
+	 * @param timestamp the timestamp (generally in seconds) of the data
+	 * @param in        stream of the blob data, read to its end but not closed
+	 * @throws IOException if the stream can't be read
+	 */
+	public void set(String id, String type, long timestamp, InputStream in) throws IOException {
+		set(id, type, timestamp, in, null);
+	}
+
+	/**
+	 * Persist a blob to the store, streaming its data from an InputStream which may already be encoded. Encoded
+	 * data is stored as-is, it isn't decoded and re-encoded with this store's codec.
+	 *
+	 * @param id        the id of the blob
+	 * @param type      the "type" of blob - this might map to a java object on the client side
+	 * @param timestamp the timestamp (generally in seconds) of the data
+	 * @param in        stream of the blob data, read to its end but not closed
+	 * @param encoding  the content-coding of the data in the stream, or null if it's not encoded
+	 * @throws IOException              if the stream can't be read
+	 * @throws IllegalArgumentException if there's no BlobCodec registered for the encoding
+	 */
+	public void set(String id, String type, long timestamp, InputStream in, @Nullable String encoding) throws IOException {
+		BlobCodec inputCodec = null;
+		if (!BlobCodecs.isIdentity(encoding)) {
+			inputCodec = BlobCodecs.get(encoding);
+			if (inputCodec == null) {
+				throw new IllegalArgumentException("No BlobCodec is registered for encoding \"" + encoding + "\"");
+			}
 		}
+
+		Upload upload = beginUpload();
+		String storedEncoding;
+		long decodedLength = -1;
+
+		try {
+			if (inputCodec != null) {
+				storedEncoding = inputCodec.getName();
+				IOUtils.copyLarge(in, upload);
+				upload.close();
+			} else if (codec != null) {
+				storedEncoding = codec.getName();
+				try (OutputStream encoder = codec.encode(upload)) {
+					decodedLength = IOUtils.copyLarge(in, encoder);
+				}
+			} else {
+				storedEncoding = BlobCodecs.IDENTITY;
+				decodedLength = IOUtils.copyLarge(in, upload);
+				upload.close();
+			}
+		} catch (IOException | RuntimeException e) {
+			upload.abort();
+			throw e;
+		}
+
+		finishUpload(id, type, timestamp, upload, storedEncoding, decodedLength);
+		writes.add(id);
 	}
 
 	/**
@@ -120,40 +298,116 @@ public class BlobStore {
 	 * @return the Entry for a given blob in the store
 	 */
 	@Nullable
-	public Entry get(String id) {
-		try (Jedis jedis = jedisPool.getResource()) {
-			Transaction transaction = jedis.multi();
-			Response<String> idResponse = transaction.get(getEntryIdKey(accountId, namespace, id));
-			Response<String> modelClassResponse = transaction.get(getEntryTypeKey(accountId, namespace, id));
-			Response<String> timestampResponse = transaction.get(getEntryTimestampKey(accountId, namespace, id));
-			Response<byte[]> byteResponse = transaction.get(getEntryDataKey(accountId, namespace, id).getBytes());
-
-			transaction.exec();
-
-			String id2 = idResponse.get();
-			String modelClass = modelClassResponse.get();
-			String timestampString = timestampResponse.get();
-			byte[] data = byteResponse.get();
-
-			if (id2 != null && id2.equals(id) && modelClass != null && !modelClass.isEmpty() && timestampString != null && !timestampString.isEmpty()) {
-				long timestamp = Long.parseLong(timestampString);
-				return new Entry(id2, modelClass, timestamp, data);
-			} else {
-				return null;
+	public abstract Entry get(String id);
+
+	/**
+	 * Get a blob's metadata without reading its data. Use writeData to stream the data itself.
+	 *
+	 * @param id the id of the blob
+	 * @return the blob's Metadata, or null if the store doesn't have the blob
+	 */
+	@Nullable
+	public abstract Metadata getMetadata(String id);
+
+	/**
+	 * Write a range of a blob's data, as stored, to a stream. Only the chunks overlapping the range are read.
+	 *
+	 * @param metadata the blob's metadata, from getMetadata
+	 * @param offset   offset of the first byte to write
+	 * @param length   number of bytes to write
+	 * @param out      the stream to write to
+	 * @throws IOException if the stream can't be written to, or the blob was removed while being read
+	 */
+	public void writeData(Metadata metadata, long offset, long length, OutputStream out) throws IOException {
+		if (offset < 0 || length < 0 || offset + length > metadata.getLength()) {
+			throw new IllegalArgumentException("Range [" + offset + ", " + (offset + length) + ") is outside blob of length " + metadata.getLength());
+		}
+
+		try (InputStream in = openData(metadata)) {
+			for (long remaining = offset; remaining > 0; ) {
+				long skipped = in.skip(remaining);
+				if (skipped <= 0) {
+					throw new EOFException("Blob \"" + metadata.getId() + "\" is shorter than its recorded length");
+				}
+				remaining -= skipped;
 			}
+
+			IOUtils.copyLarge(in, out, 0, length);
+		}
+	}
+
+	/**
+	 * Write a range of a blob's data, as stored, to a channel. Engines which can hand the bytes to the channel
+	 * without copying them through the heap override this; by default it's the same as writing to a stream.
+	 *
+	 * @param metadata the blob's metadata, from getMetadata
+	 * @param offset   offset of the first byte to write
+	 * @param length   number of bytes to write
+	 * @param out      the channel to write to
+	 * @throws IOException if the channel can't be written to, or the blob was removed while being read
+	 */
+	public void writeData(Metadata metadata, long offset, long length, WritableByteChannel out) throws IOException {
+		writeData(metadata, offset, length, Channels.newOutputStream(out));
+	}
+
+	/**
+	 * Write a range of a blob's data to a stream, decoded. Decoding starts from the beginning of the data no matter
+	 * where the range starts, and reads one chunk at a time.
+	 *
+	 * @param metadata the blob's metadata, from getMetadata
+	 * @param offset   offset in the decoded data of the first byte to write
+	 * @param length   number of decoded bytes to write, or -1 to write everything after offset
+	 * @param out      the stream to write to
+	 * @throws IOException if the stream can't be written to, the data can't be decoded, or the blob was removed while being read
+	 */
+	public void writeDecodedData(Metadata metadata, long offset, long length, OutputStream out) throws IOException {
+		BlobCodec blobCodec = getCodec(metadata.getEncoding());
+		if (blobCodec == null) {
+			writeData(metadata, offset, length >= 0 ? length : metadata.getLength() - offset, out);
+			return;
+		}
+
+		try (InputStream in = blobCodec.decode(openData(metadata))) {
+			IOUtils.copyLarge(in, out, offset, length);
 		}
 	}
 
+	/**
+	 * Fetch a number of entries at once. This is far cheaper than calling get() for each id when a client needs
+	 * many blobs at once.
+	 *
+	 * @param ids the ids of the blobs to fetch
+	 * @return map of blob id to Entry, in the iteration order of ids. Ids which aren't in the store are omitted.
+	 */
+	public abstract Map<String, Entry> getAll(Collection<String> ids);
+
+	/**
+	 * Get many blobs' metadata at once, without reading their data, e.g., to decide how many of them getAll can
+	 * fetch without holding too much in memory. By default this calls getMetadata for each id; engines which can
+	 * fetch them all in one round trip override it.
+	 *
+	 * @param ids the ids of the blobs
+	 * @return map of blob id to Metadata, in the iteration order of ids. Ids which aren't in the store are omitted.
+	 */
+	public Map<String, Metadata> getAllMetadata(Collection<String> ids) {
+		Map<String, Metadata> metadata = new LinkedHashMap<>();
+		for (String id : ids) {
+			Metadata m = getMetadata(id);
+			if (m != null) {
+				metadata.put(id, m);
+			}
+		}
+		return metadata;
+	}
+
 	/**
 	 * Get just the data type of a blob
+	 *
 	 * @param id the id of the blob in question
 	 * @return the type assigned when the blob was written
 	 */
-	public String getType(String id) {
-		try (Jedis jedis = jedisPool.getResource()) {
-			return jedis.get(getEntryTypeKey(accountId, namespace, id));
-		}
-	}
+	@Nullable
+	public abstract String getType(String id);
 
 	/**
 	 * Check if a given blob id is accessible to this store
@@ -161,45 +415,19 @@ public class BlobStore {
 	 * @param id the id of a blob
 	 * @return true if this store has the given blob
 	 */
-	public boolean has(String id) {
-		try (Jedis jedis = jedisPool.getResource()) {
-			return jedis.exists(
-					getEntryIdKey(accountId, namespace, id),
-					getEntryTypeKey(accountId, namespace, id),
-					getEntryTimestampKey(accountId, namespace, id),
-					getEntryDataKey(accountId, namespace, id)) == 4;
-		}
-	}
+	public abstract boolean has(String id);
 
 	/**
 	 * Remove a blob and associated data from the store
 	 *
 	 * @param id the id of the blob to remove
 	 */
-	public void delete(String id) {
-		deletions.add(id);
-		try (Jedis jedis = jedisPool.getResource()) {
-			Transaction transaction = jedis.multi();
-			transaction.del(getEntryIdKey(accountId, namespace, id));
-			transaction.del(getEntryTypeKey(accountId, namespace, id));
-			transaction.del(getEntryTimestampKey(accountId, namespace, id));
-			transaction.del(getEntryDataKey(accountId, namespace, id));
-			transaction.exec();
-		}
-	}
+	public abstract void delete(String id);
 
 	/**
 	 * Deletes ALL blobs and associated data for this blob store's account and namespace
 	 */
-	public void discard() {
-		try (Jedis jedis = jedisPool.getResource()) {
-			Set<String> keys = jedis.keys(getEntryRootKey(accountId, namespace) + "*");
-			keys.forEach(jedis::del);
-		}
-
-		deletions.clear();
-		writes.clear();
-	}
+	public abstract void discard();
 
 	/**
 	 * Save this BlobStore's writes and deletes to another BlobStore. What this means is, if we wrote a blob 'A', and deleted a blob 'B',
@@ -207,57 +435,296 @@ public class BlobStore {
 	 * no longer have a blob 'B'. The purpose of this is to enable one blob store to represent a batch of "temp" writes and deletes, which
 	 * can be committed at a later date to the "real" blob store for that account.
 	 *
-	 * @param store the store to copy changes from this store to
+	 * @param store the store to copy changes from this store to; it must belong to the same storage engine
 	 */
-	public void save(BlobStore store) {
-		try (Jedis jedis = store.getJedisPool().getResource()) {
-
-			// rename all our writes from our temp namespace to the actual one
-			if (!writes.isEmpty()) {
-				Transaction writeTransaction = jedis.multi();
-				for (String id : writes) {
-					writeTransaction.rename(getEntryIdKey(accountId, namespace, id), getEntryIdKey(store.getAccountId(), store.getNamespace(), id));
-					writeTransaction.rename(getEntryTypeKey(accountId, namespace, id), getEntryTypeKey(store.getAccountId(), store.getNamespace(), id));
-					writeTransaction.rename(getEntryTimestampKey(accountId, namespace, id), getEntryTimestampKey(store.getAccountId(), store.getNamespace(), id));
-					writeTransaction.rename(getEntryDataKey(accountId, namespace, id), getEntryDataKey(store.getAccountId(), store.getNamespace(), id));
+	public abstract void save(BlobStore store);
+
+	/**
+	 * @return a new Upload, to which a streamed blob's data will be written
+	 */
+	protected abstract Upload beginUpload();
+
+	/**
+	 * Make an upload's data the data of a blob, replacing the blob if it exists. The upload has been closed.
+	 *
+	 * @param id             the id of the blob
+	 * @param type           the blob's type
+	 * @param timestamp      the blob's timestamp
+	 * @param upload         the upload holding the blob's data
+	 * @param encoding       the encoding of the data in the upload
+	 * @param decodedLength  length of the data once decoded, or -1 if unknown
+	 */
+	protected abstract void finishUpload(String id, String type, long timestamp, Upload upload, String encoding, long decodedLength);
+
+	/**
+	 * @param metadata a blob's metadata
+	 * @return a stream of the blob's data, as stored
+	 * @throws IOException if the data can't be read
+	 */
+	protected abstract InputStream openData(Metadata metadata) throws IOException;
+
+	/**
+	 * Upload
+	 * OutputStream which splits what's written to it into chunks of the store's chunk size, handing each to writeChunk
+	 * as it fills, and digests the data as it goes.
+	 */
+	protected abstract class Upload extends OutputStream {
+		private byte[] buffer;
+		private int count;
+		private int chunkCount;
+		private long length;
+		private MessageDigest digest = createDigest();
+		private boolean closed;
+
+		protected Upload() {
+			buffer = chunkSize == DEFAULT_CHUNK_SIZE ? chunkBufferPool.acquire() : new byte[chunkSize];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			buffer[count++] = (byte) b;
+			if (count == buffer.length) {
+				flushChunk();
+			}
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				if (count == buffer.length) {
+					flushChunk();
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				if (count > 0) {
+					flushChunk();
+				}
+				releaseBuffer();
+			}
+		}
+
+		/**
+		 * Discard everything written to the upload
+		 */
+		void abort() {
+			releaseBuffer();
+			discardChunks();
+		}
+
+		/**
+		 * @return number of bytes written to the upload
+		 */
+		public long getLength() {
+			return length;
+		}
+
+		/**
+		 * @return the hex encoded SHA-256 digest of the bytes written; only valid once the upload is closed
+		 */
+		public String getDigest() {
+			return toHex(digest.digest());
+		}
+
+		/**
+		 * Store a chunk of the upload's data. The chunk is passed in place in the upload's (pooled) buffer, which is
+		 * reused once this returns, so implementations which retain the bytes must copy them.
+		 *
+		 * @param index  the chunk's index
+		 * @param buffer the buffer holding the chunk
+		 * @param offset the offset of the chunk in buffer
+		 * @param length the chunk's length in bytes
+		 */
+		protected abstract void writeChunk(int index, byte[] buffer, int offset, int length);
+
+		/**
+		 * Delete whatever chunks writeChunk has stored
+		 */
+		protected abstract void discardChunks();
+
+		private void flushChunk() {
+			digest.update(buffer, 0, count);
+			writeChunk(chunkCount++, buffer, 0, count);
+			length += count;
+			count = 0;
+		}
+
+		private void releaseBuffer() {
+			if (!closed) {
+				closed = true;
+				if (buffer.length == DEFAULT_CHUNK_SIZE) {
+					chunkBufferPool.release(buffer);
 				}
-				writeTransaction.exec();
-				store.writes.addAll(writes);
+				buffer = null;
 			}
+		}
+	}
 
-			// now delete everything from our deletions record
-			if (!deletions.isEmpty()) {
-				Transaction deleteTransaction = jedis.multi();
-				for (String id : deletions) {
-					deleteTransaction.del(getEntryIdKey(store.getAccountId(), store.getNamespace(), id));
-					deleteTransaction.del(getEntryTypeKey(store.getAccountId(), store.getNamespace(), id));
-					deleteTransaction.del(getEntryTimestampKey(store.getAccountId(), store.getNamespace(), id));
-					deleteTransaction.del(getEntryDataKey(store.getAccountId(), store.getNamespace(), id));
+	/**
+	 * ChunkInputStream
+	 * InputStream over a blob's stored data which fetches a chunk at a time as it's read. Skipping is free; chunks
+	 * which are skipped over are never fetched.
+	 */
+	protected abstract static class ChunkInputStream extends InputStream {
+		private Metadata metadata;
+		private long position;
+		private byte[] chunk;
+		private int chunkIndex = -1;
+
+		protected ChunkInputStream(Metadata metadata) {
+			this.metadata = metadata;
+		}
+
+		/**
+		 * @param index index of a chunk of the blob's data
+		 * @return the chunk, or null if it's missing
+		 * @throws IOException if the chunk can't be read
+		 */
+		@Nullable
+		protected abstract byte[] readChunk(int index) throws IOException;
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == 1 ? b[0] & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (position >= metadata.getLength()) {
+				return -1;
+			}
+
+			int index = (int) (position / metadata.getChunkSize());
+			if (index != chunkIndex) {
+				chunk = readChunk(index);
+				chunkIndex = index;
+				if (chunk == null) {
+					throw new IOException("Blob \"" + metadata.getId() + "\" was modified while being read");
 				}
-				deleteTransaction.exec();
-				store.deletions.addAll(deletions);
 			}
+
+			int chunkOffset = (int) (position - (long) index * metadata.getChunkSize());
+			if (chunkOffset >= chunk.length) {
+				throw new EOFException("Blob \"" + metadata.getId() + "\" chunk " + index + " is shorter than its recorded chunk size");
+			}
+
+			int n = Math.min(len, chunk.length - chunkOffset);
+			System.arraycopy(chunk, chunkOffset, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if (n <= 0) {
+				return 0;
+			}
+
+			long skipped = Math.min(n, metadata.getLength() - position);
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(Integer.MAX_VALUE, metadata.getLength() - position);
 		}
 	}
 
-	private static String getEntryRootKey(String accountId, String namespace) {
-		return namespace + "/" + accountId + "/blob/";
+	/**
+	 * @param encoding the encoding blob data was stored with
+	 * @return the codec to decode the data with, or null if the data isn't encoded
+	 * @throws IllegalStateException if no codec is registered for the encoding
+	 */
+	@Nullable
+	protected static BlobCodec getCodec(@Nullable String encoding) {
+		if (BlobCodecs.isIdentity(encoding)) {
+			return null;
+		}
+
+		BlobCodec blobCodec = BlobCodecs.get(encoding);
+		if (blobCodec == null) {
+			throw new IllegalStateException("No BlobCodec is registered for stored encoding \"" + encoding + "\"");
+		}
+		return blobCodec;
+	}
+
+	protected static byte[] encode(BlobCodec blobCodec, byte[] data) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (OutputStream encoder = blobCodec.encode(out)) {
+			encoder.write(data);
+		} catch (IOException e) {
+			// in-memory streams don't throw
+			throw new IllegalStateException("Unable to encode blob data with " + blobCodec.getName(), e);
+		}
+		return out.toByteArray();
 	}
 
-	static String getEntryIdKey(String accountId, String namespace, String id) {
-		return getEntryRootKey(accountId, namespace) + id + ":id";
+	/**
+	 * @param encoding the encoding data was stored with
+	 * @param data     data as stored
+	 * @return the data, decoded
+	 */
+	protected static byte[] decode(@Nullable String encoding, byte[] data) {
+		BlobCodec blobCodec = getCodec(encoding);
+		if (blobCodec == null) {
+			return data;
+		}
+
+		try (InputStream decoder = blobCodec.decode(new ByteArrayInputStream(data))) {
+			return IOUtils.toByteArray(decoder);
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to decode blob data stored with " + blobCodec.getName(), e);
+		}
 	}
 
-	static String getEntryDataKey(String accountId, String namespace, String id) {
-		return getEntryRootKey(accountId, namespace) + id + ":data";
+	/**
+	 * Encoded data is addressed by its digest and encoding, so identical bytes stored with different
+	 * encodings (say, a gzip file uploaded as-is, and the same file's contents uploaded gzip encoded)
+	 * never share content.
+	 *
+	 * @param digest   hex digest of the data as stored
+	 * @param encoding the encoding of the stored data
+	 * @return the id the data's content is stored under
+	 */
+	protected static String getContentId(String digest, String encoding) {
+		return BlobCodecs.isIdentity(encoding) ? digest : digest + "-" + encoding;
 	}
 
-	static String getEntryTypeKey(String accountId, String namespace, String id) {
-		return getEntryRootKey(accountId, namespace) + id + ":type";
+	/**
+	 * @param data some bytes
+	 * @return the hex encoded SHA-256 digest of the bytes
+	 */
+	protected static String getDigest(byte[] data) {
+		return toHex(createDigest().digest(data));
 	}
 
-	static String getEntryTimestampKey(String accountId, String namespace, String id) {
-		return getEntryRootKey(accountId, namespace) + id + ":timestamp";
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM is required to provide SHA-256
+			throw new IllegalStateException("SHA-256 is unavailable", e);
+		}
 	}
 
+	private static String toHex(byte[] digest) {
+		StringBuilder hex = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
 }
@@ -0,0 +1,187 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * BlobStoreMigrator
+ * Converts blobs persisted in the legacy layout, where each blob was four string keys (:id, :type, :timestamp, :data),
+ * to the single hash per blob layout used by RedisBlobStore. An account is migrated on a background thread the first time
+ * its RedisBlobStore is opened; until that finishes, the store migrates individual blobs on demand when a read misses.
+ * Migration also builds the store's index of blob ids (see RedisBlobStore::discard) for blobs written before the index existed.
+ * When an account is fully migrated, a layout marker is written so subsequent opens cost a single GET.
+ */
+public class BlobStoreMigrator {
+
+	private static final Logger logger = LoggerFactory.getLogger(BlobStoreMigrator.class);
+
+	// version 2 introduced the hash per blob layout, version 3 the blob id index
+	private static final String LAYOUT_VERSION = "3";
+	private static final int SCAN_COUNT = 100;
+
+	/**
+	 * Atomically converts one blob. If the blob's hash already exists (e.g., it was written after the
+	 * layout change) the legacy keys are stale and are simply deleted.
+	 * KEYS[1] is the hash, KEYS[2..5] are the legacy id, type, timestamp and data keys, KEYS[6] is the
+	 * store's blob id index and ARGV[1] the blob's id. Returns 1 if the hash was created.
+	 */
+	private static final String MIGRATE_ENTRY_SCRIPT = "" +
+			"local created = 0\n" +
+			"if redis.call('EXISTS', KEYS[1]) == 0 then\n" +
+			"  local t = redis.call('GET', KEYS[3])\n" +
+			"  local ts = redis.call('GET', KEYS[4])\n" +
+			"  if t and ts then\n" +
+			"    redis.call('HMSET', KEYS[1], 'type', t, 'timestamp', ts, 'data', redis.call('GET', KEYS[5]) or '')\n" +
+			"    redis.call('SADD', KEYS[6], ARGV[1])\n" +
+			"    created = 1\n" +
+			"  end\n" +
+			"end\n" +
+			"redis.call('DEL', KEYS[2], KEYS[3], KEYS[4], KEYS[5])\n" +
+			"return created\n";
+
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "BlobStoreMigrator");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private static final Set<String> migrationsInFlight = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * If the store hasn't yet been converted to the current layout, mark it as pending migration and
+	 * migrate it on a background thread.
+	 *
+	 * @param store a RedisBlobStore for an account's committed blobs
+	 */
+	public static void migrateInBackground(RedisBlobStore store) {
+		if (isMigrated(store)) {
+			return;
+		}
+
+		String layoutKey = getLayoutKey(store.getAccountId(), store.getNamespace());
+		store.setLegacyLayoutMigrationPending(true);
+		if (migrationsInFlight.add(layoutKey)) {
+			executor.submit(() -> {
+				try {
+					migrate(store);
+				} catch (Exception e) {
+					logger.error("BlobStoreMigrator::migrateInBackground - migration of " + layoutKey + " failed, will retry next time the store is opened", e);
+				} finally {
+					migrationsInFlight.remove(layoutKey);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Synchronously migrate every legacy blob in the store, index every blob, and mark the store as migrated.
+	 *
+	 * @param store the store to migrate
+	 * @return the number of blobs which were converted
+	 */
+	public static int migrate(RedisBlobStore store) {
+		String accountId = store.getAccountId();
+		String namespace = store.getNamespace();
+		String idKeySuffix = ":id";
+		int count = 0;
+
+		try (Jedis jedis = store.getJedisPool().getResource()) {
+			ScanParams params = new ScanParams()
+					.match(getLegacyEntryRootKey(accountId, namespace) + "*" + idKeySuffix)
+					.count(SCAN_COUNT);
+
+			String cursor = ScanParams.SCAN_POINTER_START;
+			do {
+				ScanResult<String> result = jedis.scan(cursor, params);
+				for (String idKey : result.getResult()) {
+					String id = idKey.substring(getLegacyEntryRootKey(accountId, namespace).length(), idKey.length() - idKeySuffix.length());
+					if (migrateEntry(jedis, accountId, namespace, id)) {
+						count++;
+					}
+				}
+				cursor = result.getStringCursor();
+			} while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+
+			indexEntries(jedis, accountId, namespace);
+			jedis.set(getLayoutKey(accountId, namespace), LAYOUT_VERSION);
+		}
+
+		store.setLegacyLayoutMigrationPending(false);
+		logger.info("BlobStoreMigrator::migrate - migrated {} blobs for account: {} namespace: {}", count, accountId, namespace);
+		return count;
+	}
+
+	/**
+	 * Add the id of every blob hash in the store to the store's index
+	 */
+	private static void indexEntries(Jedis jedis, String accountId, String namespace) {
+		String entryRootKey = RedisBlobStore.getEntryRootKey(accountId, namespace);
+		String indexKey = RedisBlobStore.getIndexKey(accountId, namespace);
+		ScanParams params = new ScanParams().match(entryRootKey + "*").count(SCAN_COUNT);
+
+		String cursor = ScanParams.SCAN_POINTER_START;
+		do {
+			ScanResult<String> result = jedis.scan(cursor, params);
+			if (!result.getResult().isEmpty()) {
+				String[] ids = result.getResult().stream()
+						.map(key -> key.substring(entryRootKey.length()))
+						.toArray(String[]::new);
+				jedis.sadd(indexKey, ids);
+			}
+			cursor = result.getStringCursor();
+		} while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+	}
+
+	/**
+	 * @param store a RedisBlobStore
+	 * @return true if the store's account has been marked as converted to the current layout
+	 */
+	static boolean isMigrated(RedisBlobStore store) {
+		try (Jedis jedis = store.getJedisPool().getResource()) {
+			return LAYOUT_VERSION.equals(jedis.get(getLayoutKey(store.getAccountId(), store.getNamespace())));
+		}
+	}
+
+	/**
+	 * Migrate a single blob from the legacy layout, if it's present in the legacy layout
+	 *
+	 * @return true if the blob was converted
+	 */
+	static boolean migrateEntry(Jedis jedis, String accountId, String namespace, String id) {
+		String[] legacyKeys = getLegacyEntryKeys(accountId, namespace, id);
+		String[] keys = new String[legacyKeys.length + 2];
+		keys[0] = RedisBlobStore.getEntryKey(accountId, namespace, id);
+		System.arraycopy(legacyKeys, 0, keys, 1, legacyKeys.length);
+		keys[keys.length - 1] = RedisBlobStore.getIndexKey(accountId, namespace);
+
+		Object result = jedis.eval(MIGRATE_ENTRY_SCRIPT, Arrays.asList(keys), Collections.singletonList(id));
+		return result instanceof Long && (Long) result == 1;
+	}
+
+	/**
+	 * @return the legacy id, type, timestamp and data keys for a blob, in that order
+	 */
+	static String[] getLegacyEntryKeys(String accountId, String namespace, String id) {
+		String root = getLegacyEntryRootKey(accountId, namespace) + id;
+		return new String[]{root + ":id", root + ":type", root + ":timestamp", root + ":data"};
+	}
+
+	private static String getLegacyEntryRootKey(String accountId, String namespace) {
+		return namespace + "/" + accountId + "/blob/";
+	}
+
+	static String getLayoutKey(String accountId, String namespace) {
+		return namespace + "/" + accountId + "/blob-layout";
+	}
+
+}
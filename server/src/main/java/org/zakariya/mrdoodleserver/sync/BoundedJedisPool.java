@@ -0,0 +1,104 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BoundedJedisPool
+ * A JedisPool whose connections are handed out through a fair semaphore with one permit per connection. Callers
+ * beyond the pool's size queue on the semaphore, in arrival order, rather than inside the pool, where borrowers
+ * contend on its internal locks (and would pin a virtual thread's carrier). A caller which can't get a connection
+ * within the wait time fails with a JedisConnectionException, rather than blocking its request indefinitely.
+ */
+public class BoundedJedisPool extends JedisPool {
+
+	private final Semaphore permits;
+	private final long maxWaitMillis;
+	private final Set<Jedis> borrowed = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param poolConfig    the pool's configuration; its maxTotal is the number of connections handed out at once
+	 * @param host          redis host
+	 * @param port          redis port
+	 * @param maxWaitMillis how long getResource() waits for a connection before failing
+	 */
+	public BoundedJedisPool(JedisPoolConfig poolConfig, String host, int port, long maxWaitMillis) {
+		super(poolConfig, host, port, Protocol.DEFAULT_TIMEOUT);
+		this.permits = new Semaphore(poolConfig.getMaxTotal(), true);
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	@Override
+	public Jedis getResource() {
+		try {
+			if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+				throw new JedisConnectionException("Timed out after " + maxWaitMillis + "ms waiting for a redis connection");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JedisConnectionException("Interrupted waiting for a redis connection", e);
+		}
+
+		Jedis jedis;
+		try {
+			jedis = super.getResource();
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+
+		borrowed.add(jedis);
+		return jedis;
+	}
+
+	// deprecated for callers, but Jedis.close() still returns connections through it, so releasing permits needs it
+	@Override
+	@SuppressWarnings("deprecation")
+	public void returnResource(Jedis resource) {
+		try {
+			super.returnResource(resource);
+		} finally {
+			release(resource);
+		}
+	}
+
+	// deprecated for callers, but Jedis.close() still returns connections through it, so releasing permits needs it
+	@Override
+	@SuppressWarnings("deprecation")
+	public void returnBrokenResource(Jedis resource) {
+		try {
+			super.returnBrokenResource(resource);
+		} finally {
+			release(resource);
+		}
+	}
+
+	private void release(Jedis resource) {
+		// a connection returned twice (which the pool rejects) only gives back one permit
+		if (resource != null && borrowed.remove(resource)) {
+			permits.release();
+		}
+	}
+
+	/**
+	 * @return number of callers waiting for a connection
+	 */
+	public int getWaitingCount() {
+		return permits.getQueueLength();
+	}
+
+	/**
+	 * @return number of connections which may be handed out without waiting
+	 */
+	public int getAvailableCount() {
+		return permits.availablePermits();
+	}
+}
@@ -0,0 +1,64 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import org.zakariya.mrdoodleserver.transport.TimestampRecordEntry;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * ChangeCursor
+ * A position in a TimestampRecord's time index, just after a given entry, for paging through changes. Clients treat
+ * the encoded form as opaque. Since re-recording a document moves its entry to a later timestamp, a client paging
+ * with cursors sees each change at least once, even if documents change while it pages.
+ */
+public class ChangeCursor {
+
+	private long timestampSeconds;
+	private String documentId;
+
+	public ChangeCursor(long timestampSeconds, String documentId) {
+		this.timestampSeconds = timestampSeconds;
+		this.documentId = documentId;
+	}
+
+	/**
+	 * @param entry the last entry of a page of changes
+	 * @return a cursor positioned just after the entry
+	 */
+	public static ChangeCursor after(TimestampRecordEntry entry) {
+		return new ChangeCursor(entry.getTimestampSeconds(), entry.getDocumentId());
+	}
+
+	public long getTimestampSeconds() {
+		return timestampSeconds;
+	}
+
+	public String getDocumentId() {
+		return documentId;
+	}
+
+	/**
+	 * @return the cursor's opaque, URL safe, encoded form
+	 */
+	public String encode() {
+		String position = timestampSeconds + ":" + documentId;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @param encoded a cursor's encoded form, from encode()
+	 * @return the cursor
+	 * @throws IllegalArgumentException if encoded isn't an encoded cursor
+	 */
+	public static ChangeCursor decode(String encoded) {
+		String position = new String(Base64.getUrlDecoder().decode(encoded), StandardCharsets.UTF_8);
+
+		// document ids may contain colons, timestamps can't
+		int separator = position.indexOf(':');
+		if (separator < 0) {
+			throw new IllegalArgumentException("Malformed cursor \"" + encoded + "\"");
+		}
+
+		return new ChangeCursor(Long.parseLong(position.substring(0, separator)), position.substring(separator + 1));
+	}
+}
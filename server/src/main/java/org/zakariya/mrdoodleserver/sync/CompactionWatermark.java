@@ -0,0 +1,52 @@
+package org.zakariya.mrdoodleserver.sync;
+
+/**
+ * CompactionWatermark
+ * How far a TimestampRecord's DELETE tombstones have been compacted away: the greatest timestamp, and the greatest
+ * sequence number, of any tombstone dropped. A client which last synced at or before the watermark may have missed a
+ * deletion, so can't be brought up to date with a delta, and must resync in full.
+ */
+public class CompactionWatermark {
+
+	public static final CompactionWatermark NONE = new CompactionWatermark(0, 0);
+
+	private long timestampSeconds;
+	private long seq;
+
+	public CompactionWatermark(long timestampSeconds, long seq) {
+		this.timestampSeconds = timestampSeconds;
+		this.seq = seq;
+	}
+
+	public long getTimestampSeconds() {
+		return timestampSeconds;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * @param other another watermark
+	 * @return a watermark at least as high as both this and other
+	 */
+	public CompactionWatermark max(CompactionWatermark other) {
+		return new CompactionWatermark(Math.max(timestampSeconds, other.timestampSeconds), Math.max(seq, other.seq));
+	}
+
+	/**
+	 * @param sinceTimestampSeconds the "since" timestamp a client asked for changes since; 0 or less for all changes
+	 * @return true if tombstones at or after sinceTimestampSeconds have been dropped, so the changes would be incomplete
+	 */
+	public boolean isAfterTimestamp(long sinceTimestampSeconds) {
+		return sinceTimestampSeconds > 0 && sinceTimestampSeconds <= timestampSeconds;
+	}
+
+	/**
+	 * @param sinceSeq the sequence number a client asked for changes after; 0 or less for all changes
+	 * @return true if tombstones after sinceSeq have been dropped, so the changes would be incomplete
+	 */
+	public boolean isAfterSeq(long sinceSeq) {
+		return sinceSeq > 0 && sinceSeq < seq;
+	}
+}
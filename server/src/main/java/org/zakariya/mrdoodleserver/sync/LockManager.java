@@ -136,24 +136,24 @@ public class LockManager {
 	 * @param documentId the id of a specific document
 	 * @return true if that document is locked, false if it's open
 	 */
-	public boolean isLocked(String documentId) {
+	synchronized public boolean isLocked(String documentId) {
 		return lockedDocumentIds.contains(documentId);
 	}
 
 	/**
 	 * @return a set of all locked document ids
 	 */
-	public Set<String> getLockedDocumentIds() {
+	synchronized public Set<String> getLockedDocumentIds() {
 		return new HashSet<>(lockedDocumentIds);
 	}
 
 	/**
 	 * @param deviceId id of a specific device
-	 * @return set of locked document ids for a specific device
+	 * @return a copy of the set of locked document ids for a specific device
 	 */
-	public Set<String> getLockedDocumentIds(String deviceId) {
+	synchronized public Set<String> getLockedDocumentIds(String deviceId) {
 		DeviceLocks locks = getDeviceLocks(deviceId);
-		return locks.getDocumentIds();
+		return new HashSet<>(locks.getDocumentIds());
 	}
 
 	private DeviceLocks getDeviceLocks(String deviceId) {
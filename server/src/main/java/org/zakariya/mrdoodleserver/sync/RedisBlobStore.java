@@ -0,0 +1,759 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import org.jetbrains.annotations.Nullable;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Created by shamyl on 8/25/16.
+ */
+public class RedisBlobStore extends BlobStore {
+
+	/**
+	 * Metadata of a blob stored in redis; records the hash holding the blob's chunks
+	 */
+	static class RedisMetadata extends Metadata {
+		String payloadKey;
+
+		RedisMetadata(String id, String type, long timestamp, long length, int chunkSize, String payloadKey, @Nullable String encoding, long decodedLength, @Nullable String digest) {
+			super(id, type, timestamp, length, chunkSize, encoding, decodedLength, digest);
+			this.payloadKey = payloadKey;
+		}
+	}
+
+	/**
+	 * Chunks of an upload in progress expire after this long, so uploads abandoned by a crash don't leak
+	 */
+	private static final int UPLOAD_TTL_SECONDS = 60 * 60;
+
+	private static final int DISCARD_BATCH_SIZE = 100;
+
+	private static final byte[] FIELD_TYPE = "type".getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Lua helper shared by the scripts below. Drops one reference to a content digest, and deletes the
+	 * content when nothing references it anymore. ARGV[1] is always the content key prefix.
+	 * Note: content keys are computed in the script, so this assumes a single (non-cluster) redis instance.
+	 */
+	private static final String RELEASE_FUNCTION = "" +
+			"local function release(digest)\n" +
+			"  local content = ARGV[1] .. digest\n" +
+			"  if redis.call('DECR', content .. ':refs') <= 0 then\n" +
+			"    redis.call('DEL', content, content .. ':refs')\n" +
+			"  end\n" +
+			"end\n";
+
+	/**
+	 * Lua helpers for chunked blob data. A blob's data is split into fixed-size chunks stored in the fields
+	 * "data", "data:1", "data:2"... of its payload hash - the blob hash itself for inline data, or the content
+	 * hash for content-addressed data - alongside "length" and "chunkSize" fields. payload() resolves the
+	 * payload hash for a blob hash, re-chunking data written before blobs were chunked (a single "data" field,
+	 * or a content string) into chunks of ARGV[2] bytes.
+	 */
+	private static final String CHUNK_FUNCTIONS = "" +
+			"local function chunkField(i)\n" +
+			"  if i == 0 then return 'data' end\n" +
+			"  return 'data:' .. i\n" +
+			"end\n" +
+			"local function rechunk(key, d)\n" +
+			"  local size = tonumber(ARGV[2])\n" +
+			"  local i = 0\n" +
+			"  redis.call('HDEL', key, 'data')\n" +
+			"  for s = 1, #d, size do\n" +
+			"    redis.call('HSET', key, chunkField(i), string.sub(d, s, s + size - 1))\n" +
+			"    i = i + 1\n" +
+			"  end\n" +
+			"  redis.call('HMSET', key, 'length', #d, 'chunkSize', size)\n" +
+			"end\n" +
+			"local function payload(key)\n" +
+			"  local f = redis.call('HMGET', key, 'digest', 'length')\n" +
+			"  if f[1] then\n" +
+			"    local content = ARGV[1] .. f[1]\n" +
+			"    if redis.call('TYPE', content).ok == 'string' then\n" +
+			"      local d = redis.call('GET', content)\n" +
+			"      redis.call('DEL', content)\n" +
+			"      rechunk(content, d)\n" +
+			"    end\n" +
+			"    return content\n" +
+			"  end\n" +
+			"  if not f[2] then\n" +
+			"    rechunk(key, redis.call('HGET', key, 'data') or '')\n" +
+			"  end\n" +
+			"  return key\n" +
+			"end\n";
+
+	/**
+	 * Reads a blob's metadata. KEYS[1] is the blob hash. Returns type, timestamp, length, chunk size, the
+	 * key of the hash holding the blob's chunks, encoding, decoded length and SHA-256 digest. The chunks themselves aren't read.
+	 */
+	private static final byte[] METADATA_SCRIPT = (CHUNK_FUNCTIONS +
+			"if redis.call('EXISTS', KEYS[1]) == 0 then return nil end\n" +
+			"local p = payload(KEYS[1])\n" +
+			"local f = redis.call('HMGET', KEYS[1], 'type', 'timestamp')\n" +
+			"local c = redis.call('HMGET', p, 'length', 'chunkSize', 'encoding', 'decodedLength', 'sha256')\n" +
+			"return {f[1], f[2], c[1], c[2], p, c[3], c[4], c[5]}\n").getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Reads a blob. KEYS[1] is the blob hash. Returns type, timestamp, the blob's chunks joined into one value,
+	 * and the encoding of the joined data.
+	 */
+	private static final byte[] GET_SCRIPT = (CHUNK_FUNCTIONS +
+			"if redis.call('EXISTS', KEYS[1]) == 0 then return nil end\n" +
+			"local p = payload(KEYS[1])\n" +
+			"local f = redis.call('HMGET', KEYS[1], 'type', 'timestamp')\n" +
+			"local c = redis.call('HMGET', p, 'length', 'chunkSize', 'encoding')\n" +
+			"local chunks = {}\n" +
+			"for i = 0, math.ceil(tonumber(c[1]) / tonumber(c[2])) - 1 do\n" +
+			"  chunks[#chunks + 1] = redis.call('HGET', p, chunkField(i))\n" +
+			"end\n" +
+			"return {f[1], f[2], table.concat(chunks), c[3]}\n").getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Writes a blob with inline data. KEYS[1] is the blob hash; ARGV[2..8] are type, timestamp, length,
+	 * chunk size, encoding, decoded length and SHA-256 digest, and ARGV[9..] are the data's chunks.
+	 */
+	private static final byte[] SET_INLINE_SCRIPT = (RELEASE_FUNCTION + CHUNK_FUNCTIONS +
+			"local old = redis.call('HGET', KEYS[1], 'digest')\n" +
+			"redis.call('DEL', KEYS[1])\n" +
+			"redis.call('HMSET', KEYS[1], 'type', ARGV[2], 'timestamp', ARGV[3], 'length', ARGV[4], 'chunkSize', ARGV[5], 'encoding', ARGV[6], 'decodedLength', ARGV[7], 'sha256', ARGV[8])\n" +
+			"for i = 9, #ARGV do\n" +
+			"  redis.call('HSET', KEYS[1], chunkField(i - 9), ARGV[i])\n" +
+			"end\n" +
+			"if old then release(old) end\n").getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Writes a blob whose data is stored once under its digest. KEYS[1] is the blob hash; ARGV[2..9] are
+	 * type, timestamp, content id, length, chunk size, encoding, decoded length and SHA-256 digest, and ARGV[10..] are the data's chunks. The new digest
+	 * is referenced before the previous one is released, so rewriting identical data never drops the content.
+	 */
+	private static final byte[] SET_CONTENT_ADDRESSED_SCRIPT = (RELEASE_FUNCTION + CHUNK_FUNCTIONS +
+			"local old = redis.call('HGET', KEYS[1], 'digest')\n" +
+			"local content = ARGV[1] .. ARGV[4]\n" +
+			"if redis.call('EXISTS', content) == 0 then\n" +
+			"  redis.call('HMSET', content, 'length', ARGV[5], 'chunkSize', ARGV[6], 'encoding', ARGV[7], 'decodedLength', ARGV[8], 'sha256', ARGV[9])\n" +
+			"  for i = 10, #ARGV do\n" +
+			"    redis.call('HSET', content, chunkField(i - 10), ARGV[i])\n" +
+			"  end\n" +
+			"end\n" +
+			"redis.call('INCR', content .. ':refs')\n" +
+			"redis.call('DEL', KEYS[1])\n" +
+			"redis.call('HMSET', KEYS[1], 'type', ARGV[2], 'timestamp', ARGV[3], 'digest', ARGV[4])\n" +
+			"if old then release(old) end\n").getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Deletes a blob. KEYS[1] is the blob hash, any further KEYS are deleted along with it.
+	 */
+	private static final byte[] DELETE_SCRIPT = (RELEASE_FUNCTION +
+			"local old = redis.call('HGET', KEYS[1], 'digest')\n" +
+			"redis.call('DEL', unpack(KEYS))\n" +
+			"if old then release(old) end\n").getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Completes a streamed upload of inline data. KEYS[1] is the staging hash the chunks were uploaded to,
+	 * KEYS[2] the blob hash it becomes; ARGV[2..8] are type, timestamp, length, chunk size, encoding, decoded length and SHA-256 digest.
+	 */
+	private static final byte[] FINISH_INLINE_UPLOAD_SCRIPT = (RELEASE_FUNCTION +
+			"local old = redis.call('HGET', KEYS[2], 'digest')\n" +
+			"redis.call('HMSET', KEYS[1], 'type', ARGV[2], 'timestamp', ARGV[3], 'length', ARGV[4], 'chunkSize', ARGV[5], 'encoding', ARGV[6], 'decodedLength', ARGV[7], 'sha256', ARGV[8])\n" +
+			"redis.call('PERSIST', KEYS[1])\n" +
+			"redis.call('RENAME', KEYS[1], KEYS[2])\n" +
+			"if old then release(old) end\n").getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Completes a streamed upload of content-addressed data. KEYS[1] is the staging hash the chunks were uploaded to,
+	 * KEYS[2] the blob hash; ARGV[2..9] are type, timestamp, content id, length, chunk size, encoding, decoded length and SHA-256 digest.
+	 * The staging hash becomes the content hash, unless the content is already stored, in which case it's simply dropped.
+	 */
+	private static final byte[] FINISH_CONTENT_ADDRESSED_UPLOAD_SCRIPT = (RELEASE_FUNCTION +
+			"local old = redis.call('HGET', KEYS[2], 'digest')\n" +
+			"local content = ARGV[1] .. ARGV[4]\n" +
+			"if redis.call('EXISTS', content) == 0 then\n" +
+			"  redis.call('HMSET', KEYS[1], 'length', ARGV[5], 'chunkSize', ARGV[6], 'encoding', ARGV[7], 'decodedLength', ARGV[8], 'sha256', ARGV[9])\n" +
+			"  redis.call('PERSIST', KEYS[1])\n" +
+			"  redis.call('RENAME', KEYS[1], content)\n" +
+			"else\n" +
+			"  redis.call('DEL', KEYS[1])\n" +
+			"end\n" +
+			"redis.call('INCR', content .. ':refs')\n" +
+			"redis.call('DEL', KEYS[2])\n" +
+			"redis.call('HMSET', KEYS[2], 'type', ARGV[2], 'timestamp', ARGV[3], 'digest', ARGV[4])\n" +
+			"if old then release(old) end\n").getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Moves a blob from a write session's namespace to the committed namespace. KEYS[1] is the session's
+	 * blob hash, KEYS[2] the committed blob hash. The reference held by the session's hash moves with it,
+	 * and the reference held by the blob it replaces is released.
+	 */
+	private static final byte[] COMMIT_SCRIPT = (RELEASE_FUNCTION +
+			"if redis.call('EXISTS', KEYS[1]) == 1 then\n" +
+			"  local old = redis.call('HGET', KEYS[2], 'digest')\n" +
+			"  redis.call('RENAME', KEYS[1], KEYS[2])\n" +
+			"  if old then release(old) end\n" +
+			"end\n").getBytes(StandardCharsets.UTF_8);
+
+	private JedisPool jedisPool;
+	private volatile boolean legacyLayoutMigrationPending;
+
+	/**
+	 * Create a BlobStore which will persist to a given redis connection, storing blob data inline.
+	 *
+	 * @param jedisPool pool brokering access to a redis connection
+	 * @param namespace the top-level namespace under which blobs will be persisted
+	 * @param accountId the user account for the blobs which will be persisted
+	 */
+	public RedisBlobStore(JedisPool jedisPool, String namespace, String accountId) {
+		this(jedisPool, namespace, accountId, namespace, false);
+	}
+
+	/**
+	 * Create a BlobStore which will persist to a given redis connection.
+	 *
+	 * @param jedisPool        pool brokering access to a redis connection
+	 * @param namespace        the top-level namespace under which blobs will be persisted
+	 * @param accountId        the user account for the blobs which will be persisted
+	 * @param contentNamespace the namespace under which content-addressed blob data is shared. Stores whose changes are
+	 *                         saved to one another must use the same content namespace.
+	 * @param contentAddressed if true, blob data is stored once under its SHA-256 digest and shared by every blob
+	 *                         (in any account or write session) with identical data; otherwise it's stored inline
+	 */
+	public RedisBlobStore(JedisPool jedisPool, String namespace, String accountId, String contentNamespace, boolean contentAddressed) {
+		this(jedisPool, namespace, accountId, contentNamespace, contentAddressed, null);
+	}
+
+	/**
+	 * Create a BlobStore which will persist to a given redis connection.
+	 *
+	 * @param jedisPool        pool brokering access to a redis connection
+	 * @param namespace        the top-level namespace under which blobs will be persisted
+	 * @param accountId        the user account for the blobs which will be persisted
+	 * @param contentNamespace the namespace under which content-addressed blob data is shared. Stores whose changes are
+	 *                         saved to one another must use the same content namespace.
+	 * @param contentAddressed if true, blob data is stored once under its SHA-256 digest and shared by every blob
+	 *                         (in any account or write session) with identical data; otherwise it's stored inline
+	 * @param codec            if non-null, blob data written to the store is compressed with this codec. Data written
+	 *                         already encoded is stored as-is. Blobs are read back correctly regardless of the codec.
+	 */
+	public RedisBlobStore(JedisPool jedisPool, String namespace, String accountId, String contentNamespace, boolean contentAddressed, @Nullable BlobCodec codec) {
+		super(namespace, accountId, contentNamespace, contentAddressed, codec);
+		this.jedisPool = jedisPool;
+	}
+
+	public JedisPool getJedisPool() {
+		return jedisPool;
+	}
+
+	/**
+	 * @return true while BlobStoreMigrator is converting this store's blobs from the legacy layout. While
+	 * pending, reads which miss will attempt to migrate the requested blob on demand.
+	 */
+	public boolean isLegacyLayoutMigrationPending() {
+		return legacyLayoutMigrationPending;
+	}
+
+	void setLegacyLayoutMigrationPending(boolean legacyLayoutMigrationPending) {
+		this.legacyLayoutMigrationPending = legacyLayoutMigrationPending;
+	}
+
+	@Override
+	public void set(String id, String type, long timestamp, byte[] data) {
+		List<byte[]> keys = Collections.singletonList(getEntryKeyBytes(getAccountId(), getNamespace(), id));
+		List<byte[]> args = new ArrayList<>();
+		byte[] script;
+
+		String encoding = BlobCodecs.IDENTITY;
+		long decodedLength = data.length;
+		BlobCodec codec = getCodec();
+		if (codec != null) {
+			encoding = codec.getName();
+			data = encode(codec, data);
+		}
+
+		int chunkSize = getChunkSize();
+		String digest = getDigest(data);
+		args.add(getContentKeyPrefixBytes());
+		args.add(bytes(type));
+		args.add(bytes(Long.toString(timestamp)));
+		if (isContentAddressed()) {
+			script = SET_CONTENT_ADDRESSED_SCRIPT;
+			args.add(bytes(getContentId(digest, encoding)));
+		} else {
+			script = SET_INLINE_SCRIPT;
+		}
+		args.add(bytes(Integer.toString(data.length)));
+		args.add(bytes(Integer.toString(chunkSize)));
+		args.add(bytes(encoding));
+		args.add(bytes(Long.toString(decodedLength)));
+		args.add(bytes(digest));
+		for (int offset = 0; offset < data.length; offset += chunkSize) {
+			args.add(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + chunkSize)));
+		}
+
+		write(id, script, keys, args);
+		writes.add(id);
+	}
+
+	@Override
+	protected Upload beginUpload() {
+		return new RedisUpload(bytes(getUploadKey(getAccountId(), getNamespace(), UUID.randomUUID().toString())));
+	}
+
+	@Override
+	protected void finishUpload(String id, String type, long timestamp, Upload upload, String encoding, long decodedLength) {
+		List<byte[]> keys = Arrays.asList(((RedisUpload) upload).key, getEntryKeyBytes(getAccountId(), getNamespace(), id));
+		List<byte[]> args = new ArrayList<>();
+		byte[] script;
+
+		args.add(getContentKeyPrefixBytes());
+		args.add(bytes(type));
+		args.add(bytes(Long.toString(timestamp)));
+		String digest = upload.getDigest();
+		if (isContentAddressed()) {
+			script = FINISH_CONTENT_ADDRESSED_UPLOAD_SCRIPT;
+			args.add(bytes(getContentId(digest, encoding)));
+		} else {
+			script = FINISH_INLINE_UPLOAD_SCRIPT;
+		}
+		args.add(bytes(Long.toString(upload.getLength())));
+		args.add(bytes(Integer.toString(getChunkSize())));
+		args.add(bytes(encoding));
+		args.add(bytes(Long.toString(decodedLength)));
+		args.add(bytes(digest));
+
+		write(id, script, keys, args);
+	}
+
+	/**
+	 * Upload which writes to a staging hash a chunk at a time, borrowing a redis connection only to write each chunk
+	 */
+	private class RedisUpload extends Upload {
+		byte[] key;
+
+		RedisUpload(byte[] key) {
+			this.key = key;
+		}
+
+		@Override
+		protected void writeChunk(int index, byte[] buffer, int offset, int length) {
+			// jedis serializes the command as it's sent, so a whole buffer needn't be copied; a partial one must be
+			byte[] chunk = offset == 0 && length == buffer.length ? buffer : Arrays.copyOfRange(buffer, offset, offset + length);
+			try (Jedis jedis = jedisPool.getResource()) {
+				Pipeline pipeline = jedis.pipelined();
+				pipeline.hset(key, bytes(getChunkField(index)), chunk);
+				pipeline.expire(key, UPLOAD_TTL_SECONDS);
+				pipeline.sync();
+			}
+		}
+
+		@Override
+		protected void discardChunks() {
+			try (Jedis jedis = jedisPool.getResource()) {
+				jedis.del(key);
+			}
+		}
+	}
+
+	/**
+	 * Run a script which writes a blob, recording the blob's id in the store's index. The id is indexed first,
+	 * so the index never misses a blob, though it may name blobs whose write failed.
+	 */
+	private void write(String id, byte[] script, List<byte[]> keys, List<byte[]> args) {
+		try (Jedis jedis = jedisPool.getResource()) {
+			Pipeline pipeline = jedis.pipelined();
+			pipeline.sadd(getIndexKeyBytes(getAccountId(), getNamespace()), bytes(id));
+			Response<Object> result = pipeline.eval(script, keys, args);
+			pipeline.sync();
+
+			// surfaces script errors
+			result.get();
+		}
+	}
+
+	@Nullable
+	@Override
+	public Entry get(String id) {
+		try (Jedis jedis = jedisPool.getResource()) {
+			Entry entry = createEntry(id, jedis.eval(GET_SCRIPT, getReadKeys(id), getReadArgs()));
+			if (entry == null && migrateLegacyEntry(jedis, id)) {
+				entry = createEntry(id, jedis.eval(GET_SCRIPT, getReadKeys(id), getReadArgs()));
+			}
+
+			return entry;
+		}
+	}
+
+	@Nullable
+	@Override
+	public Metadata getMetadata(String id) {
+		try (Jedis jedis = jedisPool.getResource()) {
+			Metadata metadata = createMetadata(id, jedis.eval(METADATA_SCRIPT, getReadKeys(id), getReadArgs()));
+			if (metadata == null && migrateLegacyEntry(jedis, id)) {
+				metadata = createMetadata(id, jedis.eval(METADATA_SCRIPT, getReadKeys(id), getReadArgs()));
+			}
+
+			return metadata;
+		}
+	}
+
+	/**
+	 * Reads a blob's data one chunk at a time from redis. A redis connection is only held while reading each
+	 * chunk, never while the caller consumes it, so slow readers don't starve the connection pool.
+	 */
+	@Override
+	protected InputStream openData(Metadata metadata) throws IOException {
+		final byte[] payloadKey = bytes(((RedisMetadata) metadata).payloadKey);
+		return new ChunkInputStream(metadata) {
+			@Override
+			protected byte[] readChunk(int index) throws IOException {
+				try (Jedis jedis = jedisPool.getResource()) {
+					return jedis.hget(payloadKey, bytes(getChunkField(index)));
+				}
+			}
+		};
+	}
+
+	/**
+	 * Fetch a number of entries in a single pipelined round trip to redis. This is far cheaper
+	 * than calling get() for each id when a client needs many blobs at once.
+	 *
+	 * @param ids the ids of the blobs to fetch
+	 * @return map of blob id to Entry, in the iteration order of ids. Ids which aren't in the store are omitted.
+	 */
+	@Override
+	public Map<String, Entry> getAll(Collection<String> ids) {
+		Map<String, Entry> entries = new LinkedHashMap<>();
+		if (ids.isEmpty()) {
+			return entries;
+		}
+
+		try (Jedis jedis = jedisPool.getResource()) {
+			Map<String, Entry> fetched = fetchAll(jedis, new LinkedHashSet<>(ids));
+
+			// blobs which haven't been migrated yet get a second pass after on-demand migration
+			Set<String> migrated = new LinkedHashSet<>();
+			for (String id : ids) {
+				if (fetched.get(id) == null && migrateLegacyEntry(jedis, id)) {
+					migrated.add(id);
+				}
+			}
+
+			if (!migrated.isEmpty()) {
+				fetched.putAll(fetchAll(jedis, migrated));
+			}
+
+			for (String id : ids) {
+				Entry entry = fetched.get(id);
+				if (entry != null) {
+					entries.put(id, entry);
+				}
+			}
+		}
+
+		return entries;
+	}
+
+	/**
+	 * Fetch a number of blobs' metadata in a single pipelined round trip to redis
+	 *
+	 * @param ids the ids of the blobs
+	 * @return map of blob id to Metadata, in the iteration order of ids. Ids which aren't in the store are omitted.
+	 */
+	@Override
+	public Map<String, Metadata> getAllMetadata(Collection<String> ids) {
+		Map<String, Metadata> metadata = new LinkedHashMap<>();
+		if (ids.isEmpty()) {
+			return metadata;
+		}
+
+		try (Jedis jedis = jedisPool.getResource()) {
+			Pipeline pipeline = jedis.pipelined();
+			Map<String, Response<Object>> responses = new LinkedHashMap<>();
+			for (String id : new LinkedHashSet<>(ids)) {
+				responses.put(id, pipeline.eval(METADATA_SCRIPT, getReadKeys(id), getReadArgs()));
+			}
+			pipeline.sync();
+
+			for (String id : responses.keySet()) {
+				Metadata m = createMetadata(id, responses.get(id).get());
+
+				// blobs which haven't been migrated yet get a second look after on-demand migration
+				if (m == null && migrateLegacyEntry(jedis, id)) {
+					m = createMetadata(id, jedis.eval(METADATA_SCRIPT, getReadKeys(id), getReadArgs()));
+				}
+
+				if (m != null) {
+					metadata.put(id, m);
+				}
+			}
+		}
+
+		return metadata;
+	}
+
+	private Map<String, Entry> fetchAll(Jedis jedis, Set<String> ids) {
+		Pipeline pipeline = jedis.pipelined();
+		Map<String, Response<Object>> responses = new LinkedHashMap<>();
+		for (String id : ids) {
+			responses.put(id, pipeline.eval(GET_SCRIPT, getReadKeys(id), getReadArgs()));
+		}
+
+		pipeline.sync();
+
+		Map<String, Entry> entries = new HashMap<>();
+		for (String id : responses.keySet()) {
+			entries.put(id, createEntry(id, responses.get(id).get()));
+		}
+
+		return entries;
+	}
+
+	@Nullable
+	@Override
+	public String getType(String id) {
+		try (Jedis jedis = jedisPool.getResource()) {
+			byte[] key = getEntryKeyBytes(getAccountId(), getNamespace(), id);
+			byte[] type = jedis.hget(key, FIELD_TYPE);
+			if (type == null && migrateLegacyEntry(jedis, id)) {
+				type = jedis.hget(key, FIELD_TYPE);
+			}
+			return type != null ? new String(type, StandardCharsets.UTF_8) : null;
+		}
+	}
+
+	@Override
+	public boolean has(String id) {
+		try (Jedis jedis = jedisPool.getResource()) {
+			return jedis.exists(getEntryKey(getAccountId(), getNamespace(), id)) || migrateLegacyEntry(jedis, id);
+		}
+	}
+
+	@Override
+	public void delete(String id) {
+		deletions.add(id);
+		try (Jedis jedis = jedisPool.getResource()) {
+			jedis.eval(DELETE_SCRIPT, getDeletionKeys(getAccountId(), getNamespace(), id, legacyLayoutMigrationPending), getReadArgs());
+			jedis.srem(getIndexKeyBytes(getAccountId(), getNamespace()), bytes(id));
+		}
+	}
+
+	/**
+	 * Deletes ALL blobs and associated data for this blob store's account and namespace. Rather than searching
+	 * redis's keyspace, this walks the store's index of blob ids, so the cost is proportional to the number of
+	 * blobs in the store - for a write session, the blobs written during the session. Deletes are pipelined in
+	 * batches so a burst of discards (say, many devices disconnecting mid-session) doesn't monopolize redis.
+	 */
+	@Override
+	public void discard() {
+		String accountId = getAccountId();
+		String namespace = getNamespace();
+		try (Jedis jedis = jedisPool.getResource()) {
+			byte[] indexKey = getIndexKeyBytes(accountId, namespace);
+			ScanParams params = new ScanParams().count(DISCARD_BATCH_SIZE);
+			byte[] cursor = ScanParams.SCAN_POINTER_START_BINARY;
+			do {
+				ScanResult<byte[]> result = jedis.sscan(indexKey, cursor, params);
+				if (!result.getResult().isEmpty()) {
+					Pipeline pipeline = jedis.pipelined();
+					for (byte[] id : result.getResult()) {
+						pipeline.eval(DELETE_SCRIPT, getDeletionKeys(accountId, namespace, new String(id, StandardCharsets.UTF_8), legacyLayoutMigrationPending), getReadArgs());
+					}
+					pipeline.sync();
+				}
+				cursor = result.getCursorAsBytes();
+			} while (!Arrays.equals(cursor, ScanParams.SCAN_POINTER_START_BINARY));
+
+			jedis.del(indexKey);
+		}
+
+		deletions.clear();
+		writes.clear();
+	}
+
+	/**
+	 * Save this store's writes and deletes to another RedisBlobStore, in two transactions. Written blobs are
+	 * renamed into the destination rather than copied.
+	 *
+	 * @param store the store to copy changes from this store to; must be a RedisBlobStore
+	 */
+	@Override
+	public void save(BlobStore store) {
+		if (!(store instanceof RedisBlobStore)) {
+			throw new IllegalArgumentException("RedisBlobStore can only save to another RedisBlobStore");
+		}
+
+		RedisBlobStore destination = (RedisBlobStore) store;
+		String accountId = getAccountId();
+		String namespace = getNamespace();
+		try (Jedis jedis = destination.getJedisPool().getResource()) {
+
+			// rename all our writes from our temp namespace to the actual one
+			if (!writes.isEmpty()) {
+				Transaction writeTransaction = jedis.multi();
+				for (String id : writes) {
+					List<byte[]> keys = Arrays.asList(getEntryKeyBytes(accountId, namespace, id), getEntryKeyBytes(destination.getAccountId(), destination.getNamespace(), id));
+					writeTransaction.sadd(getIndexKeyBytes(destination.getAccountId(), destination.getNamespace()), bytes(id));
+					writeTransaction.eval(COMMIT_SCRIPT, keys, destination.getReadArgs());
+					writeTransaction.srem(getIndexKeyBytes(accountId, namespace), bytes(id));
+				}
+				writeTransaction.exec();
+				destination.writes.addAll(writes);
+			}
+
+			// now delete everything from our deletions record
+			if (!deletions.isEmpty()) {
+				Transaction deleteTransaction = jedis.multi();
+				for (String id : deletions) {
+					deleteTransaction.eval(DELETE_SCRIPT, getDeletionKeys(destination.getAccountId(), destination.getNamespace(), id, destination.isLegacyLayoutMigrationPending()), destination.getReadArgs());
+					deleteTransaction.srem(getIndexKeyBytes(destination.getAccountId(), destination.getNamespace()), bytes(id));
+				}
+				deleteTransaction.exec();
+				destination.deletions.addAll(deletions);
+			}
+		}
+	}
+
+	/**
+	 * If this store's legacy layout is still being migrated, migrate the blob with the given id right now
+	 *
+	 * @return true if a blob was migrated
+	 */
+	private boolean migrateLegacyEntry(Jedis jedis, String id) {
+		return legacyLayoutMigrationPending && BlobStoreMigrator.migrateEntry(jedis, getAccountId(), getNamespace(), id);
+	}
+
+	private List<byte[]> getReadKeys(String id) {
+		return Collections.singletonList(getEntryKeyBytes(getAccountId(), getNamespace(), id));
+	}
+
+	private List<byte[]> getReadArgs() {
+		return Arrays.asList(getContentKeyPrefixBytes(), bytes(Integer.toString(getChunkSize())));
+	}
+
+	private byte[] getContentKeyPrefixBytes() {
+		return bytes(getContentKeyPrefix(getContentNamespace()));
+	}
+
+	/**
+	 * Build an Entry from the type, timestamp and data returned by GET_SCRIPT
+	 *
+	 * @return an Entry, or null if the values don't describe a valid blob
+	 */
+	@Nullable
+	private static Entry createEntry(String id, Object scriptResult) {
+		if (!(scriptResult instanceof List)) {
+			return null;
+		}
+
+		List<?> fields = (List<?>) scriptResult;
+		byte[] type = fields.size() > 0 ? (byte[]) fields.get(0) : null;
+		byte[] timestamp = fields.size() > 1 ? (byte[]) fields.get(1) : null;
+		byte[] data = fields.size() > 2 ? (byte[]) fields.get(2) : null;
+		byte[] encoding = fields.size() > 3 ? (byte[]) fields.get(3) : null;
+
+		if (type != null && type.length > 0 && timestamp != null && timestamp.length > 0) {
+			if (data != null) {
+				data = decode(encoding != null ? new String(encoding, StandardCharsets.UTF_8) : null, data);
+			}
+
+			return new Entry(id, new String(type, StandardCharsets.UTF_8), Long.parseLong(new String(timestamp, StandardCharsets.UTF_8)), data);
+		} else {
+			return null;
+		}
+	}
+
+	/**
+	 * Build a Metadata from the values returned by METADATA_SCRIPT
+	 *
+	 * @return a Metadata, or null if the values don't describe a valid blob
+	 */
+	@Nullable
+	private static Metadata createMetadata(String id, Object scriptResult) {
+		if (!(scriptResult instanceof List) || ((List<?>) scriptResult).size() < 5) {
+			return null;
+		}
+
+		List<?> fields = (List<?>) scriptResult;
+		String type = fields.get(0) != null ? new String((byte[]) fields.get(0), StandardCharsets.UTF_8) : null;
+		String timestamp = fields.get(1) != null ? new String((byte[]) fields.get(1), StandardCharsets.UTF_8) : null;
+		if (type == null || type.isEmpty() || timestamp == null || timestamp.isEmpty()) {
+			return null;
+		}
+
+		long length = Long.parseLong(new String((byte[]) fields.get(2), StandardCharsets.UTF_8));
+		String encoding = fields.size() > 5 && fields.get(5) != null ? new String((byte[]) fields.get(5), StandardCharsets.UTF_8) : null;
+		long decodedLength = fields.size() > 6 && fields.get(6) != null ? Long.parseLong(new String((byte[]) fields.get(6), StandardCharsets.UTF_8)) : length;
+		String digest = fields.size() > 7 && fields.get(7) != null ? new String((byte[]) fields.get(7), StandardCharsets.UTF_8) : null;
+
+		return new RedisMetadata(id, type, Long.parseLong(timestamp), length,
+				Integer.parseInt(new String((byte[]) fields.get(3), StandardCharsets.UTF_8)),
+				new String((byte[]) fields.get(4), StandardCharsets.UTF_8), encoding, decodedLength, digest);
+	}
+
+	/**
+	 * @return the keys to delete to remove a blob; while a legacy migration is pending this includes the blob's legacy keys so they can't be resurrected
+	 */
+	private static List<byte[]> getDeletionKeys(String accountId, String namespace, String id, boolean includeLegacyKeys) {
+		List<byte[]> keys = new ArrayList<>();
+		keys.add(getEntryKeyBytes(accountId, namespace, id));
+		if (includeLegacyKeys) {
+			for (String legacyKey : BlobStoreMigrator.getLegacyEntryKeys(accountId, namespace, id)) {
+				keys.add(bytes(legacyKey));
+			}
+		}
+		return keys;
+	}
+
+	private static byte[] bytes(String string) {
+		return string.getBytes(StandardCharsets.UTF_8);
+	}
+
+	static String getEntryRootKey(String accountId, String namespace) {
+		return namespace + "/" + accountId + "/b/";
+	}
+
+	static String getEntryKey(String accountId, String namespace, String id) {
+		return getEntryRootKey(accountId, namespace) + id;
+	}
+
+	private static byte[] getEntryKeyBytes(String accountId, String namespace, String id) {
+		return bytes(getEntryKey(accountId, namespace, id));
+	}
+
+	static String getIndexKey(String accountId, String namespace) {
+		return namespace + "/" + accountId + "/index";
+	}
+
+	private static byte[] getIndexKeyBytes(String accountId, String namespace) {
+		return bytes(getIndexKey(accountId, namespace));
+	}
+
+	static String getUploadKey(String accountId, String namespace, String uploadId) {
+		return namespace + "/" + accountId + "/upload/" + uploadId;
+	}
+
+	static String getChunkField(int index) {
+		return index == 0 ? "data" : "data:" + index;
+	}
+
+	static String getContentKeyPrefix(String contentNamespace) {
+		return contentNamespace + "/content/";
+	}
+
+	static String getContentKey(String contentNamespace, String digest) {
+		return getContentKeyPrefix(contentNamespace) + digest;
+	}
+
+	static String getContentRefCountKey(String contentNamespace, String digest) {
+		return getContentKey(contentNamespace, digest) + ":refs";
+	}
+
+}
@@ -0,0 +1,76 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+/**
+ * RedisStorageEngine
+ * StorageEngine which persists everything to redis
+ */
+public class RedisStorageEngine implements StorageEngine {
+
+	private static final Logger logger = LoggerFactory.getLogger(RedisStorageEngine.class);
+	private static final int FLUSH_BATCH_SIZE = 1000;
+
+	private JedisPool jedisPool;
+
+	/**
+	 * @param jedisPool pool brokering access to a redis connection
+	 */
+	public RedisStorageEngine(JedisPool jedisPool) {
+		this.jedisPool = jedisPool;
+	}
+
+	public JedisPool getJedisPool() {
+		return jedisPool;
+	}
+
+	/**
+	 * Opens the committed store, and if its blobs are still in the legacy layout starts migrating them (see BlobStoreMigrator)
+	 */
+	@Override
+	public BlobStore openBlobStore(String namespace, String accountId, boolean contentAddressed, @Nullable BlobCodec codec) {
+		RedisBlobStore blobStore = new RedisBlobStore(jedisPool, namespace, accountId, namespace, contentAddressed, codec);
+		BlobStoreMigrator.migrateInBackground(blobStore);
+		return blobStore;
+	}
+
+	@Override
+	public BlobStore createBlobStore(String namespace, String accountId, String contentNamespace, boolean contentAddressed, @Nullable BlobCodec codec) {
+		return new RedisBlobStore(jedisPool, namespace, accountId, contentNamespace, contentAddressed, codec);
+	}
+
+	@Override
+	public TimestampRecordStorage createTimestampRecordStorage(String namespace, String accountId) {
+		return new RedisTimestampRecordStorage(jedisPool, namespace, accountId);
+	}
+
+	@Override
+	public UserRecordAccess createUserRecordAccess(String namespace) {
+		return new RedisUserRecordAccess(jedisPool, namespace);
+	}
+
+	/**
+	 * Deletes every key under the prefix, walking the keyspace with SCAN so redis isn't blocked
+	 */
+	@Override
+	public void flush(String prefix) {
+		logger.info("Deleting all storage under the {}* namespace", prefix);
+		try (Jedis jedis = jedisPool.getResource()) {
+			ScanParams params = new ScanParams().match(prefix + "*").count(FLUSH_BATCH_SIZE);
+			String cursor = ScanParams.SCAN_POINTER_START;
+			do {
+				ScanResult<String> result = jedis.scan(cursor, params);
+				if (!result.getResult().isEmpty()) {
+					jedis.del(result.getResult().toArray(new String[0]));
+				}
+				cursor = result.getStringCursor();
+			} while (!cursor.equals(ScanParams.SCAN_POINTER_START));
+		}
+	}
+}
@@ -0,0 +1,320 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zakariya.mrdoodleserver.transport.TimestampRecordEntry;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Transaction;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * RedisTimestampRecordStorage
+ * Persists a TimestampRecord to redis incrementally: each entry is a field of a hash keyed by document id, so writing
+ * an entry costs the same however many entries the record holds. Entries aren't indexed by time here; TimestampRecord
+ * loads them all, and answers queries for changes since a timestamp or sequence number from its own index.
+ * Entries are encoded with TimestampRecordEntryCodec, whose string table of document types is an append-only list.
+ * Records persisted by earlier versions as a single JSON snapshot are migrated to this layout when loaded, and
+ * entries persisted as JSON are read as such, and rewritten in the binary encoding.
+ */
+public class RedisTimestampRecordStorage implements TimestampRecordStorage {
+
+	private static final Logger logger = LoggerFactory.getLogger(RedisTimestampRecordStorage.class);
+
+	private JedisPool jedisPool;
+	private String namespace;
+	private String accountId;
+	private ObjectMapper objectMapper = new ObjectMapper();
+
+	// cache of the append-only string table of document types, and each type's index in it; guarded by documentTypes
+	private final List<String> documentTypes = new ArrayList<>();
+	private final Map<String, Integer> documentTypeIndexes = new HashMap<>();
+
+	/**
+	 * @param jedisPool the pool where jedis instances will be extracted for reads and writes
+	 * @param namespace the top-level namespace used for storage in redis (all fields will be named namespace/*)
+	 * @param accountId the account namespace for all writes/reads
+	 */
+	public RedisTimestampRecordStorage(JedisPool jedisPool, String namespace, String accountId) {
+		this.jedisPool = jedisPool;
+		this.namespace = namespace;
+		this.accountId = accountId;
+	}
+
+	public JedisPool getJedisPool() {
+		return jedisPool;
+	}
+
+	public String getNamespace() {
+		return namespace;
+	}
+
+	public String getAccountId() {
+		return accountId;
+	}
+
+	@Override
+	public Map<String, TimestampRecordEntry> load() {
+		try (Jedis jedis = jedisPool.getResource()) {
+			migrate(jedis);
+
+			Map<byte[], byte[]> encodedEntries = jedis.hgetAll(getEntriesKey(namespace, accountId).getBytes(StandardCharsets.UTF_8));
+			List<String> documentIds = new ArrayList<>(encodedEntries.size());
+			List<byte[]> values = new ArrayList<>(encodedEntries.size());
+			for (Map.Entry<byte[], byte[]> encodedEntry : encodedEntries.entrySet()) {
+				documentIds.add(new String(encodedEntry.getKey(), StandardCharsets.UTF_8));
+				values.add(encodedEntry.getValue());
+			}
+
+			return decodeEntries(jedis, documentIds, values);
+		}
+	}
+
+	@Override
+	public void save(Map<String, TimestampRecordEntry> entriesByDocumentId) {
+		try (Jedis jedis = jedisPool.getResource()) {
+			Map<byte[], byte[]> encodedEntries = encodeEntries(jedis, entriesByDocumentId.values());
+			Transaction transaction = jedis.multi();
+			transaction.del(getEntriesKey(namespace, accountId), getLegacyKey(namespace, accountId));
+			write(transaction, entriesByDocumentId.values(), encodedEntries);
+			transaction.exec();
+		}
+	}
+
+	@Override
+	public void put(Collection<TimestampRecordEntry> entries) {
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		try (Jedis jedis = jedisPool.getResource()) {
+			put(jedis, entries);
+		}
+	}
+
+	/**
+	 * Write entries through a connection the caller already holds, rather than borrowing another from the pool
+	 */
+	private void put(Jedis jedis, Collection<TimestampRecordEntry> entries) {
+		Map<byte[], byte[]> encodedEntries = encodeEntries(jedis, entries);
+		Transaction transaction = jedis.multi();
+		write(transaction, entries, encodedEntries);
+		transaction.exec();
+	}
+
+	@Override
+	public long incrementSeq(int count) {
+		try (Jedis jedis = jedisPool.getResource()) {
+			return jedis.incrBy(getSeqKey(namespace, accountId), count);
+		}
+	}
+
+	@Override
+	public CompactionWatermark loadCompactionWatermark() {
+		try (Jedis jedis = jedisPool.getResource()) {
+			List<String> values = jedis.hmget(getCompactionKey(namespace, accountId), "timestampSeconds", "seq");
+			if (values.get(0) == null || values.get(1) == null) {
+				return CompactionWatermark.NONE;
+			}
+			return new CompactionWatermark(Long.parseLong(values.get(0)), Long.parseLong(values.get(1)));
+		}
+	}
+
+	@Override
+	public void compact(Collection<String> documentIds, CompactionWatermark watermark) {
+		Map<String, String> values = new HashMap<>();
+		values.put("timestampSeconds", Long.toString(watermark.getTimestampSeconds()));
+		values.put("seq", Long.toString(watermark.getSeq()));
+
+		try (Jedis jedis = jedisPool.getResource()) {
+			Transaction transaction = jedis.multi();
+			if (!documentIds.isEmpty()) {
+				String[] ids = documentIds.toArray(new String[documentIds.size()]);
+				transaction.hdel(getEntriesKey(namespace, accountId), ids);
+			}
+			transaction.hmset(getCompactionKey(namespace, accountId), values);
+			transaction.exec();
+		}
+	}
+
+	/**
+	 * Encode entries, adding any document types not yet in the string table to it. This has to happen before a
+	 * transaction is begun, since the types' indexes are needed to encode the entries.
+	 *
+	 * @return map of encoded document id to encoded entry
+	 */
+	private Map<byte[], byte[]> encodeEntries(Jedis jedis, Collection<TimestampRecordEntry> entries) {
+		Map<byte[], byte[]> encodedEntries = new HashMap<>();
+		for (TimestampRecordEntry entry : entries) {
+			int documentTypeIndex = getDocumentTypeIndex(jedis, entry.getDocumentType());
+			encodedEntries.put(entry.getDocumentId().getBytes(StandardCharsets.UTF_8), TimestampRecordEntryCodec.encode(entry, documentTypeIndex));
+		}
+		return encodedEntries;
+	}
+
+	/**
+	 * Queue the writes of entries to the hash onto a transaction
+	 */
+	private void write(Transaction transaction, Collection<TimestampRecordEntry> entries, Map<byte[], byte[]> encodedEntries) {
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		transaction.hmset(getEntriesKey(namespace, accountId).getBytes(StandardCharsets.UTF_8), encodedEntries);
+	}
+
+	/**
+	 * @return the index of documentType in the string table, appending it to the table if it isn't already there
+	 */
+	private int getDocumentTypeIndex(Jedis jedis, String documentType) {
+		synchronized (documentTypes) {
+			Integer index = documentTypeIndexes.get(documentType);
+			if (index == null) {
+				refreshDocumentTypes(jedis);
+				index = documentTypeIndexes.get(documentType);
+			}
+
+			if (index == null) {
+				// if another server appends the same type meanwhile, the table holds it twice, which is harmless
+				index = (int) (jedis.rpush(getDocumentTypesKey(namespace, accountId), documentType) - 1);
+				refreshDocumentTypes(jedis);
+			}
+
+			return index;
+		}
+	}
+
+	/**
+	 * Read any document types appended to the string table since it was last read. Since the table is append-only,
+	 * the cached types keep their indexes.
+	 */
+	private void refreshDocumentTypes(Jedis jedis) {
+		synchronized (documentTypes) {
+			List<String> appended = jedis.lrange(getDocumentTypesKey(namespace, accountId), documentTypes.size(), -1);
+			for (String documentType : appended) {
+				documentTypeIndexes.putIfAbsent(documentType, documentTypes.size());
+				documentTypes.add(documentType);
+			}
+		}
+	}
+
+	/**
+	 * If the record is persisted as a JSON snapshot, as earlier versions persisted it, rewrite it as a hash.
+	 * The snapshot is watched from before it's read, and deleted in the same transaction, so the migration happens at
+	 * most once, and is abandoned if the snapshot is replaced meanwhile.
+	 */
+	private void migrate(Jedis jedis) {
+		String legacyKey = getLegacyKey(namespace, accountId);
+		jedis.watch(legacyKey);
+		String jsonString = jedis.get(legacyKey);
+		if (jsonString == null) {
+			jedis.unwatch();
+			return;
+		}
+
+		try {
+			Map<String, TimestampRecordEntry> entries = jsonString.isEmpty() ? Collections.emptyMap() : objectMapper.reader()
+					.forType(new TypeReference<Map<String, TimestampRecordEntry>>() {
+					})
+					.readValue(jsonString);
+
+			Map<byte[], byte[]> encodedEntries = encodeEntries(jedis, entries.values());
+			Transaction transaction = jedis.multi();
+			write(transaction, entries.values(), encodedEntries);
+			transaction.del(legacyKey);
+			if (transaction.exec() != null) {
+				logger.info("RedisTimestampRecordStorage::migrate - migrated {} entries for account: {} namespace: {}", entries.size(), accountId, namespace);
+			}
+		} catch (IOException e) {
+			jedis.unwatch();
+			logger.error("RedisTimestampRecordStorage::migrate - unable to create entriesByDocumentId map from JSON", e);
+		}
+	}
+
+	/**
+	 * Decode entries read from the hash. Entries persisted as JSON by earlier versions are decoded as such, then
+	 * rewritten in the binary encoding.
+	 *
+	 * @param documentIds the ids of the documents the entries were persisted under
+	 * @param values      the encoded entries, in the order of documentIds; null values are skipped
+	 * @return map of document id to entry
+	 */
+	private Map<String, TimestampRecordEntry> decodeEntries(Jedis jedis, List<String> documentIds, List<byte[]> values) {
+		// the entries were written after any types they refer to were appended, so the table is up to date
+		List<String> documentTypesSnapshot;
+		synchronized (documentTypes) {
+			refreshDocumentTypes(jedis);
+			documentTypesSnapshot = new ArrayList<>(documentTypes);
+		}
+
+		Map<String, TimestampRecordEntry> entries = new HashMap<>();
+		List<TimestampRecordEntry> jsonEntries = new ArrayList<>();
+		for (int i = 0; i < documentIds.size(); i++) {
+			String documentId = documentIds.get(i);
+			byte[] value = values.get(i);
+			if (value == null) {
+				continue;
+			}
+
+			try {
+				if (TimestampRecordEntryCodec.isJson(value)) {
+					TimestampRecordEntry entry = objectMapper.readValue(value, TimestampRecordEntry.class);
+					entries.put(documentId, entry);
+					jsonEntries.add(entry);
+				} else {
+					entries.put(documentId, TimestampRecordEntryCodec.decode(documentId, value, documentTypesSnapshot));
+				}
+			} catch (IOException e) {
+				logger.error("RedisTimestampRecordStorage::decodeEntries - unable to decode entry for document: {} account: {} namespace: {}", documentId, accountId, namespace, e);
+			}
+		}
+
+		if (!jsonEntries.isEmpty()) {
+			// the caller's connection is reused: borrowing a second one while holding it can deadlock a bounded pool
+			put(jedis, jsonEntries);
+			logger.info("RedisTimestampRecordStorage::decodeEntries - re-encoded {} JSON entries for account: {} namespace: {}", jsonEntries.size(), accountId, namespace);
+		}
+
+		return entries;
+	}
+
+	/**
+	 * @return key of the hash of document id to encoded entry
+	 */
+	static String getEntriesKey(String namespace, String accountId) {
+		return namespace + "/" + accountId + "/timestamps/entries";
+	}
+
+	/**
+	 * @return key of the counter sequence numbers are allocated from
+	 */
+	static String getSeqKey(String namespace, String accountId) {
+		return namespace + "/" + accountId + "/timestamps/seq";
+	}
+
+	/**
+	 * @return key of the hash holding the compaction watermark's timestamp and sequence number
+	 */
+	static String getCompactionKey(String namespace, String accountId) {
+		return namespace + "/" + accountId + "/timestamps/compaction";
+	}
+
+	/**
+	 * @return key of the list of document types which encoded entries refer to by index
+	 */
+	static String getDocumentTypesKey(String namespace, String accountId) {
+		return namespace + "/" + accountId + "/timestamps/types";
+	}
+
+	/**
+	 * @return key of the JSON snapshot earlier versions persisted the record as
+	 */
+	static String getLegacyKey(String namespace, String accountId) {
+		return namespace + "/" + accountId + "/timestamps";
+	}
+}
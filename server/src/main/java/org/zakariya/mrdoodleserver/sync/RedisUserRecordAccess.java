@@ -0,0 +1,123 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import org.zakariya.mrdoodleserver.auth.User;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * RedisUserRecordAccess
+ * UserRecordAccess which keeps the user record in redis: a set of user ids, and a hash of info per user.
+ */
+public class RedisUserRecordAccess implements UserRecordAccess {
+
+	private static final String FIELD_USER_EMAIL = "email";
+	private static final String FIELD_USER_AVATAR_URL = "avatarUrl";
+	private static final String FIELD_USER_TIMESTAMP_SECONDS = "timestampSeconds";
+
+	private JedisPool jedisPool;
+	private String namespace;
+
+	public RedisUserRecordAccess(JedisPool jedisPool, String namespace) {
+		this.jedisPool = jedisPool;
+		this.namespace = namespace;
+	}
+
+	@Override
+	public void recordUserVisit(User user) {
+		try (Jedis jedis = jedisPool.getResource()) {
+			jedis.sadd(getUserSetJedisKey(), user.getAccountId());
+
+			String hashKey = getUserInfoHashJedisKey(user.getAccountId());
+			Transaction transaction = jedis.multi();
+			transaction.hset(hashKey, FIELD_USER_EMAIL, safe(user.getEmail()));
+			transaction.hset(hashKey, FIELD_USER_AVATAR_URL, safe(user.getAvatarUrl()));
+			transaction.hset(hashKey, FIELD_USER_TIMESTAMP_SECONDS, Long.toString(getTimestampSeconds()));
+			transaction.exec();
+		}
+	}
+
+	@Override
+	public Set<String> getUserIds() {
+		try (Jedis jedis = jedisPool.getResource()) {
+			return jedis.smembers(getUserSetJedisKey());
+		}
+	}
+
+	@Override
+	public boolean isUser(String userId) {
+		try (Jedis jedis = jedisPool.getResource()) {
+			return jedis.sismember(getUserSetJedisKey(), userId);
+		}
+	}
+
+	@Override
+	public long getUserCount() {
+		try (Jedis jedis = jedisPool.getResource()) {
+			return jedis.scard(getUserSetJedisKey());
+		}
+	}
+
+	@Override
+	@Nullable
+	public User getUser(String userId) {
+		try (Jedis jedis = jedisPool.getResource()) {
+			String hashKey = getUserInfoHashJedisKey(userId);
+
+			Transaction transaction = jedis.multi();
+			Response<String> email = transaction.hget(hashKey, FIELD_USER_EMAIL);
+			Response<String> avatarUrl = transaction.hget(hashKey, FIELD_USER_AVATAR_URL);
+			Response<String> timestampSeconds = transaction.hget(hashKey, FIELD_USER_TIMESTAMP_SECONDS);
+			transaction.exec();
+
+			if (email.get() != null && email.get().length() > 0) {
+				long timestamp;
+				try {
+					timestamp = Long.parseLong(timestampSeconds.get());
+				} catch(NumberFormatException e) {
+					timestamp = 0;
+				}
+
+				return new User(userId, email.get(), avatarUrl.get(), timestamp);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public long getUserVisitTimestampSeconds(String userId) {
+		try (Jedis jedis = jedisPool.getResource()) {
+			String hashKey = getUserInfoHashJedisKey(userId);
+			String timestampSeconds = jedis.hget(hashKey, FIELD_USER_TIMESTAMP_SECONDS);
+			try {
+				return Long.parseLong(timestampSeconds);
+			} catch (NumberFormatException nfe) {
+				return 0;
+			}
+		}
+	}
+
+	private String getBaseJedisKey() {
+		return namespace + "/";
+	}
+
+	private String getUserSetJedisKey() {
+		return getBaseJedisKey() + "users";
+	}
+
+	private String getUserInfoHashJedisKey(String userId) {
+		return getBaseJedisKey() + userId + "/info";
+	}
+
+	private String safe(String string) {
+		return string != null && !string.isEmpty() ? string : "";
+	}
+
+	private long getTimestampSeconds() {
+		return (new Date()).getTime() / 1000;
+	}
+}
@@ -0,0 +1,55 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * StorageEngine
+ * Vends the persistent storage used by SyncManager and the routers - blob stores, timestamp records and the user
+ * record. SyncServer picks an engine via the "storage/engine" configuration value.
+ */
+public interface StorageEngine {
+
+	/**
+	 * Open the store of an account's committed blobs
+	 *
+	 * @param namespace        the top-level namespace under which blobs are persisted
+	 * @param accountId        the account whose blobs are stored
+	 * @param contentAddressed if true, blob data is deduplicated by storing it once under its digest
+	 * @param codec            if non-null, blob data is stored compressed with this codec
+	 * @return the account's BlobStore
+	 */
+	BlobStore openBlobStore(String namespace, String accountId, boolean contentAddressed, @Nullable BlobCodec codec);
+
+	/**
+	 * Create a blob store, generally to hold a write session's blobs until they're saved to the committed store
+	 *
+	 * @param namespace        the namespace under which blobs will be persisted
+	 * @param accountId        the account whose blobs are stored
+	 * @param contentNamespace the namespace under which content-addressed blob data is shared; must match the
+	 *                         namespace of any store this store is saved to
+	 * @param contentAddressed if true, blob data is deduplicated by storing it once under its digest
+	 * @param codec            if non-null, blob data is stored compressed with this codec
+	 * @return a new BlobStore
+	 */
+	BlobStore createBlobStore(String namespace, String accountId, String contentNamespace, boolean contentAddressed, @Nullable BlobCodec codec);
+
+	/**
+	 * @param namespace the top-level namespace under which the record is persisted
+	 * @param accountId the account whose record is stored
+	 * @return storage for the account's TimestampRecord
+	 */
+	TimestampRecordStorage createTimestampRecordStorage(String namespace, String accountId);
+
+	/**
+	 * @param namespace the top-level namespace under which the user record is persisted
+	 * @return access to the user record
+	 */
+	UserRecordAccess createUserRecordAccess(String namespace);
+
+	/**
+	 * Delete everything stored under a prefix
+	 *
+	 * @param prefix a namespace prefix
+	 */
+	void flush(String prefix);
+}
@@ -10,9 +10,14 @@ import org.zakariya.mrdoodleserver.transport.Status;
 import org.zakariya.mrdoodleserver.transport.TimestampRecordEntry;
 import org.zakariya.mrdoodleserver.util.Configuration;
 import org.zakariya.mrdoodleserver.util.Debouncer;
-import redis.clients.jedis.JedisPool;
+import org.zakariya.mrdoodleserver.util.SingleFlight;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * SyncManager
@@ -22,18 +27,37 @@ public class SyncManager implements WebSocketConnection.OnUserSessionStatusChang
 
 	private static final Logger logger = LoggerFactory.getLogger(SyncManager.class);
 	private static final String WRITE_SESSION_NAMESPACE = "write-session";
-	private static final int STATUS_BROADCAST_DEBOUNCE_MILLISECONDS = 1000;
+	private static final int DEFAULT_STATUS_BROADCAST_INTERVAL_MILLISECONDS = 1000;
+
+	/**
+	 * Uncached blobs up to this size are read into memory by readBlob, so concurrent readers can share the data
+	 */
+	private static final int MAX_SHARED_READ_BYTES = 1024 * 1024;
+	private static final long COMPACTION_INTERVAL_MILLISECONDS = 60 * 60 * 1000;
 
 	private String storagePrefix;
 	private String accountId;
-	private JedisPool jedisPool;
+	private boolean contentAddressedBlobs;
+	private BlobCodec blobCodec;
+	private StorageEngine storageEngine;
 	private TimestampRecord timestampRecord;
 	private BlobStore blobStore;
+	private BlobCache blobCache;
+	private long tombstoneHorizonSeconds;
+	private long lastCompactionMillis;
+	private SingleFlight<String, BlobStore.Metadata> blobReads = new SingleFlight<>();
 	private LockManager lockManager;
 	private DeviceIdManagerInterface deviceIdManager;
-	private Map<String, WriteSession> writeSessionsByToken = new HashMap<>();
-	private Map<String, WriteSession> writeSessionsByDeviceId = new HashMap<>();
-	private Debouncer.Function<Void> debouncedStatusBroadcastCall;
+	// synchronized, since write sessions are started without the account lock, and the SyncManagerCache checks for them
+	private Map<String, WriteSession> writeSessionsByToken = Collections.synchronizedMap(new HashMap<>());
+	private Map<String, WriteSession> writeSessionsByDeviceId = Collections.synchronizedMap(new HashMap<>());
+	private Debouncer.Function<Void> throttledStatusBroadcastCall;
+	private int statusBroadcastIntervalMilliseconds = DEFAULT_STATUS_BROADCAST_INTERVAL_MILLISECONDS;
+
+	// when the oldest broadcast request not yet broadcast was made (0 if none is waiting), and how many are waiting
+	private final AtomicLong statusBroadcastRequestedNanos = new AtomicLong();
+	private final AtomicInteger statusBroadcastRequestCount = new AtomicInteger();
+	private volatile long lastStatusBroadcastLatencyMillis;
 
 	public static class WriteSession {
 		private String storagePrefix;
@@ -43,13 +67,15 @@ public class SyncManager implements WebSocketConnection.OnUserSessionStatusChang
 		private TimestampRecord timestampRecord;
 		private BlobStore blobStore;
 
-		WriteSession(JedisPool jedisPool, String storagePrefix, String accountId, String deviceId) {
+		WriteSession(StorageEngine storageEngine, String storagePrefix, String accountId, String deviceId, boolean contentAddressedBlobs, @Nullable BlobCodec blobCodec) {
 			this.storagePrefix = storagePrefix;
 			this.accountId = accountId;
 			this.deviceId = deviceId;
 			token = UUID.randomUUID().toString();
 			timestampRecord = new TimestampRecord();
-			blobStore = new BlobStore(jedisPool, storagePrefix + "/" + WRITE_SESSION_NAMESPACE + "/" + token, accountId);
+
+			// session blobs share the committed store's content namespace, so committing can hand over content references
+			blobStore = storageEngine.createBlobStore(storagePrefix + "/" + WRITE_SESSION_NAMESPACE + "/" + token, accountId, storagePrefix, contentAddressedBlobs, blobCodec);
 		}
 
 		public String getToken() {
@@ -86,24 +112,72 @@ public class SyncManager implements WebSocketConnection.OnUserSessionStatusChang
 		}
 	}
 
-	public SyncManager(JedisPool jedisPool, DeviceIdManagerInterface deviceIdManager, String storagePrefix, String accountId) {
-		this.jedisPool = jedisPool;
+	public SyncManager(StorageEngine storageEngine, DeviceIdManagerInterface deviceIdManager, String storagePrefix, String accountId) {
+		this(storageEngine, deviceIdManager, storagePrefix, accountId, false);
+	}
+
+	/**
+	 * @param storageEngine         the storage engine the account's blobs and timestamp record persist to
+	 * @param deviceIdManager       vends and validates device ids for the account's connected devices
+	 * @param storagePrefix         the top-level namespace for storage
+	 * @param accountId             the account this SyncManager coordinates
+	 * @param contentAddressedBlobs if true, blob data is deduplicated by storing it once under its digest (see BlobStore)
+	 */
+	public SyncManager(StorageEngine storageEngine, DeviceIdManagerInterface deviceIdManager, String storagePrefix, String accountId, boolean contentAddressedBlobs) {
+		this(storageEngine, deviceIdManager, storagePrefix, accountId, contentAddressedBlobs, null);
+	}
+
+	/**
+	 * @param storageEngine         the storage engine the account's blobs and timestamp record persist to
+	 * @param deviceIdManager       vends and validates device ids for the account's connected devices
+	 * @param storagePrefix         the top-level namespace for storage
+	 * @param accountId             the account this SyncManager coordinates
+	 * @param contentAddressedBlobs if true, blob data is deduplicated by storing it once under its digest (see BlobStore)
+	 * @param blobCodec             if non-null, blob data is stored compressed with this codec
+	 */
+	public SyncManager(StorageEngine storageEngine, DeviceIdManagerInterface deviceIdManager, String storagePrefix, String accountId, boolean contentAddressedBlobs, @Nullable BlobCodec blobCodec) {
+		this.storageEngine = storageEngine;
 		this.deviceIdManager = deviceIdManager;
 		this.storagePrefix = storagePrefix;
 		this.accountId = accountId;
+		this.contentAddressedBlobs = contentAddressedBlobs;
+		this.blobCodec = blobCodec;
+
+		long loadStartNanos = System.nanoTime();
+		this.timestampRecord = new TimestampRecord(storageEngine.createTimestampRecordStorage(storagePrefix, accountId));
+		logger.info("SyncManager - loaded timestamp record of {} entries for account: {} in {} ms", timestampRecord.size(), accountId, (System.nanoTime() - loadStartNanos) / 1000000);
 
-		this.timestampRecord = new TimestampRecord(jedisPool, storagePrefix, accountId);
-		this.blobStore = new BlobStore(jedisPool, storagePrefix, accountId);
+		this.blobStore = storageEngine.openBlobStore(storagePrefix, accountId, contentAddressedBlobs, blobCodec);
 		this.lockManager = new LockManager();
 		this.lockManager.addListener(this);
 	}
 
+	/**
+	 * Discard any open write sessions, which can't be committed once this SyncManager is gone, and persist any
+	 * timestamp record entries whose debounced save hasn't run yet; called as the SyncManager is discarded, so the
+	 * account's next SyncManager loads them.
+	 */
 	public void close() {
-		// nothing, for now
+		synchronized (writeSessionsByToken) {
+			for (WriteSession session : writeSessionsByToken.values()) {
+				session.discard();
+			}
+			writeSessionsByToken.clear();
+		}
+		writeSessionsByDeviceId.clear();
+
+		timestampRecord.save();
+	}
+
+	/**
+	 * @return true if any write session is open, in which case the SyncManager mustn't be discarded
+	 */
+	public boolean hasWriteSessions() {
+		return !writeSessionsByToken.isEmpty();
 	}
 
-	public JedisPool getJedisPool() {
-		return jedisPool;
+	public StorageEngine getStorageEngine() {
+		return storageEngine;
 	}
 
 	public String getAccountId() {
@@ -126,8 +200,140 @@ public class SyncManager implements WebSocketConnection.OnUserSessionStatusChang
 		return deviceIdManager;
 	}
 
+	/**
+	 * @param statusBroadcastIntervalMilliseconds the minimum interval between status broadcasts to the account's
+	 *                                            devices; requests within it are coalesced into one broadcast
+	 */
+	public void setStatusBroadcastIntervalMilliseconds(int statusBroadcastIntervalMilliseconds) {
+		this.statusBroadcastIntervalMilliseconds = statusBroadcastIntervalMilliseconds;
+	}
+
+	public int getStatusBroadcastIntervalMilliseconds() {
+		return statusBroadcastIntervalMilliseconds;
+	}
+
+	/**
+	 * @return milliseconds between the oldest request coalesced into the last status broadcast, and the broadcast
+	 */
+	public long getLastStatusBroadcastLatencyMillis() {
+		return lastStatusBroadcastLatencyMillis;
+	}
+
+	/**
+	 * @param tombstoneHorizonSeconds if greater than 0, DELETE entries older than this are compacted out of the
+	 *                                timestamp record as write sessions commit, at most every COMPACTION_INTERVAL_MILLISECONDS
+	 */
+	public void setTombstoneHorizonSeconds(long tombstoneHorizonSeconds) {
+		this.tombstoneHorizonSeconds = tombstoneHorizonSeconds;
+	}
+
+	public long getTombstoneHorizonSeconds() {
+		return tombstoneHorizonSeconds;
+	}
+
+	/**
+	 * @param blobCache if non-null, the cache of the account's hot blobs; it's refreshed as write sessions commit
+	 */
+	public void setBlobCache(@Nullable BlobCache blobCache) {
+		this.blobCache = blobCache;
+	}
+
+	@Nullable
+	public BlobCache getBlobCache() {
+		return blobCache;
+	}
+
+	/**
+	 * Look up a blob in the blob cache. Caller must hold the account's read lock, so the timestamp record isn't
+	 * being modified by a commit.
+	 *
+	 * @param blobId a blob id
+	 * @return the cached blob, if it's cached at its current timestamp
+	 */
+	@Nullable
+	public BlobCache.CachedBlob getCachedBlob(String blobId) {
+		if (blobCache == null) {
+			return null;
+		}
+
+		long timestamp = timestampRecord.getTimestampSeconds(blobId);
+		return timestamp >= 0 ? blobCache.get(accountId, blobId, timestamp) : null;
+	}
+
+	/**
+	 * Read a blob's data into the blob cache. Blobs whose timestamp doesn't match the timestamp record's could never
+	 * be looked up, so aren't cached.
+	 *
+	 * @param metadata the blob's metadata
+	 * @return the cached blob, or null if there's no blob cache or the blob is too large for it
+	 * @throws IOException if the blob's data can't be read
+	 */
+	@Nullable
+	private BlobCache.CachedBlob cacheBlob(BlobStore.Metadata metadata) throws IOException {
+		if (blobCache == null || !blobCache.accepts(metadata.getLength()) || timestampRecord.getTimestampSeconds(metadata.getId()) != metadata.getTimestamp()) {
+			return null;
+		}
+
+		return blobCache.put(accountId, metadata, readData(metadata));
+	}
+
+	/**
+	 * Look up a blob for serving, without reading its data, so a request the client's copy already satisfies
+	 * (If-None-Match) can be answered from the metadata alone. Blobs in the blob cache are returned from it.
+	 * Caller must hold the account's read lock.
+	 *
+	 * @param blobId a blob id
+	 * @return null if there's no such blob; a CachedBlob if the blob is cached; otherwise just its metadata
+	 */
+	@Nullable
+	public BlobStore.Metadata getBlobMetadata(String blobId) {
+		BlobCache.CachedBlob cachedBlob = getCachedBlob(blobId);
+		if (cachedBlob != null) {
+			return cachedBlob;
+		}
+
+		return blobStore.getMetadata(blobId);
+	}
+
+	/**
+	 * Read a blob's data for serving, once it's certain to be sent. Concurrent reads of the same blob (e.g., by each
+	 * of an account's devices, told of a commit at once) share one read of the blob store, whose result is cached if
+	 * possible. Caller must hold the account's read lock, so no commit can change the blob while a read is in flight.
+	 *
+	 * @param metadata the blob's metadata, from getBlobMetadata
+	 * @return a CachedBlob holding its data if it's small enough to have been read into memory; otherwise just its
+	 * metadata, so the caller can stream the data from the blob store
+	 * @throws IOException if the blob can't be read
+	 */
+	public BlobStore.Metadata readBlob(BlobStore.Metadata metadata) throws IOException {
+		if (metadata instanceof BlobCache.CachedBlob) {
+			return metadata;
+		}
+
+		return blobReads.get(metadata.getId(), () -> {
+			BlobCache.CachedBlob blob = cacheBlob(metadata);
+			if (blob == null && metadata.getLength() <= MAX_SHARED_READ_BYTES) {
+				blob = new BlobCache.CachedBlob(metadata, readData(metadata));
+			}
+			return blob != null ? blob : metadata;
+		});
+	}
+
+	/**
+	 * @return the SingleFlight coalescing concurrent reads of the same blob, for its metrics
+	 */
+	public SingleFlight<String, BlobStore.Metadata> getBlobReads() {
+		return blobReads;
+	}
+
+	private byte[] readData(BlobStore.Metadata metadata) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) metadata.getLength());
+		blobStore.writeData(metadata, 0, metadata.getLength(), out);
+		return out.toByteArray();
+	}
+
 	public WriteSession startWriteSession(String deviceId) {
-		WriteSession session = new WriteSession(jedisPool, storagePrefix, accountId, deviceId);
+		WriteSession session = new WriteSession(storageEngine, storagePrefix, accountId, deviceId, contentAddressedBlobs, blobCodec);
 		writeSessionsByToken.put(session.getToken(), session);
 		writeSessionsByDeviceId.put(deviceId, session);
 		return session;
@@ -144,6 +350,8 @@ public class SyncManager implements WebSocketConnection.OnUserSessionStatusChang
 			session.commit(timestampRecord, blobStore);
 			writeSessionsByToken.remove(token);
 			writeSessionsByDeviceId.remove(deviceId);
+			refreshBlobCache(session.getTimestampRecord());
+			compactTimestampRecord();
 
 			return true;
 		} else {
@@ -151,6 +359,54 @@ public class SyncManager implements WebSocketConnection.OnUserSessionStatusChang
 		}
 	}
 
+	/**
+	 * Compact tombstones older than the horizon out of the timestamp record, if it hasn't been compacted for
+	 * COMPACTION_INTERVAL_MILLISECONDS. Compaction walks the record's oldest entries, so it's kept infrequent. Caller
+	 * must hold the account's write lock.
+	 */
+	private void compactTimestampRecord() {
+		long now = System.currentTimeMillis();
+		if (tombstoneHorizonSeconds <= 0 || now - lastCompactionMillis < COMPACTION_INTERVAL_MILLISECONDS) {
+			return;
+		}
+		lastCompactionMillis = now;
+
+		int dropped = timestampRecord.compact(now / 1000 - tombstoneHorizonSeconds);
+		if (dropped > 0) {
+			logger.info("SyncManager - compacted {} tombstones from timestamp record of account: {}", dropped, accountId);
+		}
+	}
+
+	/**
+	 * Drop blobs a committed write session deleted from the blob cache, and replace those it wrote with their new
+	 * data, since devices other than the writer are about to be told to fetch them. Caller must hold the account's
+	 * write lock, so no reader can see the committed timestamp record alongside a stale cache.
+	 *
+	 * @param committed the committed write session's timestamp record
+	 */
+	private void refreshBlobCache(TimestampRecord committed) {
+		if (blobCache == null) {
+			return;
+		}
+
+		for (TimestampRecordEntry entry : committed.getEntries().values()) {
+			String blobId = entry.getDocumentId();
+			blobCache.invalidate(accountId, blobId);
+			if (entry.getAction() != TimestampRecord.Action.WRITE.ordinal()) {
+				continue;
+			}
+
+			try {
+				BlobStore.Metadata metadata = blobStore.getMetadata(blobId);
+				if (metadata != null) {
+					cacheBlob(metadata);
+				}
+			} catch (IOException e) {
+				logger.warn("Unable to read committed blob {} into the blob cache", blobId, e);
+			}
+		}
+	}
+
 	private void discardActiveWriteSessionsForDeviceId(String deviceId) {
 		WriteSession session = writeSessionsByDeviceId.get(deviceId);
 		if (session != null) {
@@ -170,22 +426,45 @@ public class SyncManager implements WebSocketConnection.OnUserSessionStatusChang
 			throw new NullPointerException("DeviceId cannot be null");
 		}
 
+		Status status = getTimestampStatus(deviceId);
+		addLockStatus(status);
+		return status;
+	}
+
+	/**
+	 * Get a device's status, with only the timestamp record's fields filled in. Only the timestamp record's volatile
+	 * head and watermark are read, so this is safe to call without the account lock, though a commit may then be
+	 * seen half-applied (see AccountLock.readOptimistically).
+	 *
+	 * @param deviceId the device's id
+	 * @return the device's status, without its locks
+	 */
+	public Status getTimestampStatus(String deviceId) {
 		Status status = new Status();
 		status.deviceId = deviceId;
 
+		// the head can't fall behind the watermark, even if the newest entries were tombstones since compacted away
+		CompactionWatermark compactionWatermark = getTimestampRecord().getCompactionWatermark();
 		TimestampRecordEntry timestampHead = getTimestampRecord().getTimestampHead();
-		if (timestampHead != null) {
-			status.timestampHeadSeconds = timestampHead.getTimestampSeconds();
-		}
+		status.timestampHeadSeconds = Math.max(timestampHead != null ? timestampHead.getTimestampSeconds() : 0, compactionWatermark.getTimestampSeconds());
+		status.headSeq = getTimestampRecord().getHeadSeq();
+		status.compactionWatermarkSeconds = compactionWatermark.getTimestampSeconds();
+		status.compactionWatermarkSeq = compactionWatermark.getSeq();
+		return status;
+	}
 
+	/**
+	 * Fill in a status' locks, from the LockManager, which guards its own state
+	 *
+	 * @param status a device's status
+	 */
+	public void addLockStatus(Status status) {
 		// copy over this device's granted locks
-		status.grantedLockedDocumentIds = new ArrayList<>(getLockManager().getLockedDocumentIds(deviceId));
+		status.grantedLockedDocumentIds = new ArrayList<>(getLockManager().getLockedDocumentIds(status.deviceId));
 
 		// foreign locks are all locks minus device's granted locks
 		status.foreignLockedDocumentIds = new ArrayList<>(getLockManager().getLockedDocumentIds());
 		status.foreignLockedDocumentIds.removeAll(status.grantedLockedDocumentIds);
-
-		return status;
 	}
 
 	/**
@@ -205,12 +484,21 @@ public class SyncManager implements WebSocketConnection.OnUserSessionStatusChang
 	}
 
 	/**
-	 * Sends status via websocket to each connected device associated with this SyncManager's account
+	 * Sends status via websocket to each connected device associated with this SyncManager's account. The first
+	 * request is broadcast at once; requests made within statusBroadcastIntervalMilliseconds of a broadcast are
+	 * coalesced into one broadcast when the interval has passed (see Debouncer.throttle).
 	 */
 	public void broadcastStatusToConnectedDevices() {
+		statusBroadcastRequestedNanos.compareAndSet(0, System.nanoTime());
+		statusBroadcastRequestCount.incrementAndGet();
+
+		if (throttledStatusBroadcastCall == null) {
+			throttledStatusBroadcastCall = Debouncer.throttle(aVoid -> {
+				int requestCount = statusBroadcastRequestCount.getAndSet(0);
+				long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - statusBroadcastRequestedNanos.getAndSet(0));
+				lastStatusBroadcastLatencyMillis = latencyMillis;
+				logger.debug("SyncManager - broadcasting status for account: {} coalescing {} requests, {} ms after the first", accountId, requestCount, latencyMillis);
 
-		if (debouncedStatusBroadcastCall == null) {
-			debouncedStatusBroadcastCall = Debouncer.debounce(aVoid -> {
 				// broadcast an updated status to each connected device.
 				// note: Each device get a custom status, since they each have
 				// a different set of granted and foreign locks
@@ -223,10 +511,10 @@ public class SyncManager implements WebSocketConnection.OnUserSessionStatusChang
 						return getStatus(deviceId);
 					}
 				});
-			}, STATUS_BROADCAST_DEBOUNCE_MILLISECONDS);
+			}, statusBroadcastIntervalMilliseconds);
 		}
 
-		debouncedStatusBroadcastCall.apply(null);
+		throttledStatusBroadcastCall.apply(null);
 	}
 
 	@Override
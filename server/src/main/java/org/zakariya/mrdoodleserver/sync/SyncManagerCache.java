@@ -0,0 +1,319 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * SyncManagerCache
+ * The SyncManagers of recently active accounts, shared by every request and websocket session of an account.
+ * A SyncManager is pinned while any of its account's devices are connected. Otherwise it's evicted once it has gone
+ * unused for the idle time, or, after its account's last device disconnects, for the grace period; so a flapping
+ * connection doesn't reload the account's timestamp record each time it reconnects. The cache's weight, the total
+ * entries of its SyncManagers' timestamp records, is bounded too: when it's exceeded, the least recently used
+ * unpinned SyncManagers are evicted. Not every route takes the account lock, so a SyncManager with an open write
+ * session is never evicted (its uploads would land in a session its successor doesn't know), and a SyncManager's
+ * expiry is rechecked as it's evicted, under the account's write lock, so one just handed to a request is kept.
+ */
+public class SyncManagerCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(SyncManagerCache.class);
+
+	// a SyncManager's weight, on top of its timestamp record's entries
+	private static final long ENTRY_OVERHEAD_WEIGHT = 1;
+
+	private static class Entry {
+		final SyncManager syncManager;
+		volatile boolean connected;
+		volatile long lastAccessMillis;
+		volatile long expiresAtMillis;
+
+		// set, synchronized on the entry, as it's removed; an evicted entry is never handed out again
+		boolean evicted;
+
+		Entry(SyncManager syncManager) {
+			this.syncManager = syncManager;
+		}
+
+		long getWeight() {
+			return ENTRY_OVERHEAD_WEIGHT + syncManager.getTimestampRecord().size();
+		}
+	}
+
+	private final Function<String, SyncManager> loader;
+	private final Function<String, ReadWriteLock> accountLocks;
+	private final long maxWeight;
+	private final long idleMillis;
+	private final long gracePeriodMillis;
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+	private ScheduledExecutorService sweepExecutor;
+
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong loadCount = new AtomicLong();
+	private final AtomicLong loadNanos = new AtomicLong();
+	private final AtomicLong idleEvictionCount = new AtomicLong();
+	private final AtomicLong weightEvictionCount = new AtomicLong();
+
+	/**
+	 * @param loader               creates the SyncManager of an account
+	 * @param accountLocks         vends the read/write lock of an account, whose write lock is held to evict its SyncManager
+	 * @param maxWeight            the maximum total timestamp record entries of the cached SyncManagers
+	 * @param idleMillis           how long a SyncManager whose account has no connected devices is kept after its last use
+	 * @param gracePeriodMillis    how long a SyncManager is kept after its account's last device disconnects
+	 * @param sweepIntervalSeconds how often expired SyncManagers are evicted; if 0, only when sweep() is called
+	 */
+	public SyncManagerCache(Function<String, SyncManager> loader, Function<String, ReadWriteLock> accountLocks, long maxWeight, long idleMillis, long gracePeriodMillis, int sweepIntervalSeconds) {
+		this.loader = loader;
+		this.accountLocks = accountLocks;
+		this.maxWeight = maxWeight;
+		this.idleMillis = idleMillis;
+		this.gracePeriodMillis = gracePeriodMillis;
+
+		if (sweepIntervalSeconds > 0) {
+			sweepExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "SyncManagerCacheSweeper");
+				thread.setDaemon(true);
+				return thread;
+			});
+			sweepExecutor.scheduleWithFixedDelay(this::sweepQuietly, sweepIntervalSeconds, sweepIntervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Get an account's SyncManager, loading it if it isn't cached
+	 *
+	 * @param accountId an account id
+	 * @return the account's SyncManager
+	 */
+	public SyncManager get(String accountId) {
+		return getEntry(accountId).syncManager;
+	}
+
+	private Entry getEntry(String accountId) {
+		while (true) {
+			Entry entry = entries.get(accountId);
+			if (entry != null) {
+				hitCount.incrementAndGet();
+			} else {
+				entry = entries.computeIfAbsent(accountId, id -> {
+					long startNanos = System.nanoTime();
+					Entry loaded = new Entry(loader.apply(id));
+					loadNanos.addAndGet(System.nanoTime() - startNanos);
+					loadCount.incrementAndGet();
+					return loaded;
+				});
+			}
+
+			synchronized (entry) {
+				if (!entry.evicted) {
+					long now = System.currentTimeMillis();
+					entry.lastAccessMillis = now;
+					entry.expiresAtMillis = Math.max(entry.expiresAtMillis, now + idleMillis);
+					return entry;
+				}
+			}
+
+			// evicted between lookup and touch; load its successor
+		}
+	}
+
+	/**
+	 * Record whether any of an account's devices are connected. A connected account's SyncManager isn't evicted;
+	 * when its last device disconnects, it's kept for the grace period.
+	 *
+	 * @param accountId an account id
+	 * @param connected true if any of the account's devices are connected
+	 */
+	public void setConnected(String accountId, boolean connected) {
+		while (true) {
+			Entry entry = connected ? getEntry(accountId) : entries.get(accountId);
+			if (entry == null) {
+				return;
+			}
+
+			synchronized (entry) {
+				if (!entry.evicted) {
+					entry.connected = connected;
+					if (!connected) {
+						entry.expiresAtMillis = System.currentTimeMillis() + gracePeriodMillis;
+					}
+					return;
+				} else if (!connected) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Evict the SyncManagers which have expired, then the least recently used unpinned ones while the cache is over
+	 * its maximum weight. SyncManagers whose account lock is held are skipped, to be retried by the next sweep.
+	 */
+	public void sweep() {
+		long now = System.currentTimeMillis();
+		List<Candidate> unpinned = new ArrayList<>();
+		long weight = 0;
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			Entry entry = e.getValue();
+			if (!entry.connected && now >= entry.expiresAtMillis) {
+				if (evict(e.getKey(), entry, expired -> now >= expired.expiresAtMillis)) {
+					idleEvictionCount.incrementAndGet();
+					continue;
+				}
+			}
+
+			weight += entry.getWeight();
+			if (!entry.connected && !entry.syncManager.hasWriteSessions()) {
+				unpinned.add(new Candidate(e.getKey(), entry));
+			}
+		}
+
+		if (weight <= maxWeight) {
+			return;
+		}
+
+		unpinned.sort(Comparator.comparingLong(c -> c.lastAccessMillis));
+		for (Candidate candidate : unpinned) {
+			if (weight <= maxWeight) {
+				break;
+			}
+
+			// only evict if it hasn't been used since it was ranked least recently used
+			long entryWeight = candidate.entry.getWeight();
+			if (evict(candidate.accountId, candidate.entry, unused -> unused.lastAccessMillis == candidate.lastAccessMillis)) {
+				weightEvictionCount.incrementAndGet();
+				weight -= entryWeight;
+			}
+		}
+	}
+
+	private static class Candidate {
+		final String accountId;
+		final Entry entry;
+		final long lastAccessMillis;
+
+		Candidate(String accountId, Entry entry) {
+			this.accountId = accountId;
+			this.entry = entry;
+			this.lastAccessMillis = entry.lastAccessMillis;
+		}
+	}
+
+	private void sweepQuietly() {
+		try {
+			sweep();
+		} catch (RuntimeException e) {
+			logger.error("SyncManagerCache::sweep - failed", e);
+		}
+	}
+
+	/**
+	 * Evict an entry, if its account's write lock is free, and it's still unpinned and evictable once the lock is held
+	 *
+	 * @param evictable rechecks, under the lock, that the entry is still expired or unused
+	 * @return true if evicted
+	 */
+	private boolean evict(String accountId, Entry entry, Predicate<Entry> evictable) {
+		Lock lock = accountLocks.apply(accountId).writeLock();
+		if (!lock.tryLock()) {
+			return false;
+		}
+
+		try {
+			synchronized (entry) {
+				if (entry.evicted || entry.connected || entry.syncManager.hasWriteSessions() || !evictable.test(entry)) {
+					return false;
+				}
+
+				entry.evicted = true;
+				entries.remove(accountId, entry);
+			}
+
+			logger.info("SyncManagerCache::evict - evicting SyncManager of account: {}", accountId);
+			entry.syncManager.close();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop sweeping in the background
+	 */
+	public void close() {
+		if (sweepExecutor != null) {
+			sweepExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * @return number of SyncManagers cached
+	 */
+	public int getCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return total timestamp record entries of the SyncManagers cached
+	 */
+	public long getWeight() {
+		long weight = 0;
+		for (Entry entry : entries.values()) {
+			weight += entry.getWeight();
+		}
+		return weight;
+	}
+
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	/**
+	 * @return number of gets served by a cached SyncManager
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	/**
+	 * @return number of SyncManagers loaded
+	 */
+	public long getLoadCount() {
+		return loadCount.get();
+	}
+
+	/**
+	 * @return mean time taken to load a SyncManager, in milliseconds
+	 */
+	public double getAverageLoadMillis() {
+		long loads = loadCount.get();
+		return loads > 0 ? loadNanos.get() / 1e6 / loads : 0;
+	}
+
+	/**
+	 * @return number of SyncManagers evicted for going unused
+	 */
+	public long getIdleEvictionCount() {
+		return idleEvictionCount.get();
+	}
+
+	/**
+	 * @return number of SyncManagers evicted to bring the cache under its maximum weight
+	 */
+	public long getWeightEvictionCount() {
+		return weightEvictionCount.get();
+	}
+}
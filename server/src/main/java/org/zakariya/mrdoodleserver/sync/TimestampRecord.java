@@ -1,26 +1,23 @@
 package org.zakariya.mrdoodleserver.sync;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.jetbrains.annotations.Nullable;
 import org.zakariya.mrdoodleserver.transport.TimestampRecordEntry;
 import org.zakariya.mrdoodleserver.util.Debouncer;
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
 
-import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 
 /**
- *
+ * TimestampRecord
+ * Records the timestamp of the latest write or delete of each document of an account. Entries are indexed by document
+ * id, and by time, so the entries since a timestamp are found in O(log n + k) and the newest in O(1).
+ * Each entry also carries a sequence number, allocated from a per-account counter as it's recorded, and entries are
+ * indexed by it too. A client which has seen every change up to a sequence number can ask for exactly the changes
+ * after it, where a timestamp would re-send the changes made in the same second.
+ * DELETE entries are tombstones, kept so clients learn of deletions; compact() drops those older than a horizon, so
+ * the record doesn't grow without bound, and raises the record's CompactionWatermark past them.
  */
 public class TimestampRecord {
 
-	private static final Logger logger = LoggerFactory.getLogger(TimestampRecord.class);
-
 	public enum Action {
 		WRITE,
 		DELETE
@@ -28,26 +25,49 @@ public class TimestampRecord {
 
 	private static final int DEBOUNCE_MILLIS = 3000;
 
-	private JedisPool jedisPool;
-	private String namespace;
-	private String accountId;
+	/**
+	 * Orders entries by timestamp, then by document id so entries with the same timestamp are distinct
+	 */
+	private static final Comparator<TimestampRecordEntry> TIMESTAMP_ORDER = Comparator
+			.comparingLong(TimestampRecordEntry::getTimestampSeconds)
+			.thenComparing(TimestampRecordEntry::getDocumentId);
+
+	/**
+	 * Orders entries by sequence number, then by document id, though only entries of unsaved sessions share them
+	 */
+	private static final Comparator<TimestampRecordEntry> SEQ_ORDER = Comparator
+			.comparingLong(TimestampRecordEntry::getSeq)
+			.thenComparing(TimestampRecordEntry::getDocumentId);
+
+	private TimestampRecordStorage storage;
 	private Map<String, TimestampRecordEntry> entriesByDocumentId = new HashMap<>();
-	private TimestampRecordEntry head;
+
+	// the entries of entriesByDocumentId, kept in step with it, in TIMESTAMP_ORDER
+	private NavigableSet<TimestampRecordEntry> entriesByTimestamp = new TreeSet<>(TIMESTAMP_ORDER);
+
+	// the entries of entriesByDocumentId, kept in step with it, in SEQ_ORDER
+	private NavigableSet<TimestampRecordEntry> entriesBySeq = new TreeSet<>(SEQ_ORDER);
+
+	// snapshots of the last entries of the indexes, and the watermark; volatile, so they can be read without the account lock
+	private volatile TimestampRecordEntry head;
+	private volatile long headEntrySeq;
+
+	// the last sequence number allocated; in-memory records allocate from it, persistent ones from their storage
+	private long lastSeq;
+
+	private volatile CompactionWatermark compactionWatermark = CompactionWatermark.NONE;
 	private Debouncer.Function<Void> debouncedSave;
 
-	private ObjectMapper objectMapper = new ObjectMapper();
+	// ids of documents whose entries have changed since the record was last saved; guarded by itself
+	private final Set<String> dirtyDocumentIds = new HashSet<>();
 
 	/**
-	 * Create a TimestampRecord which persists to redis
+	 * Create a TimestampRecord which persists to a storage engine
 	 *
-	 * @param jedisPool the pool where jedis instances will be extracted for reads and writes
-	 * @param namespace the top-level namespace used for storage in redis (all fields will be named namespace/*)
-	 * @param accountId the account namespace for all writes/reads
-	 */
-	TimestampRecord(JedisPool jedisPool, String namespace, String accountId) {
-		this.jedisPool = jedisPool;
-		this.namespace = namespace;
-		this.accountId = accountId;
+	 * @param storage where the record's entries are loaded from, and saved to
+	 */
+	TimestampRecord(TimestampRecordStorage storage) {
+		this.storage = storage;
 		load();
 	}
 
@@ -57,16 +77,12 @@ public class TimestampRecord {
 	TimestampRecord() {
 	}
 
-	public JedisPool getJedisPool() {
-		return jedisPool;
-	}
-
-	public String getAccountId() {
-		return accountId;
-	}
-
-	public String getNamespace() {
-		return namespace;
+	/**
+	 * @return the storage this record persists to, or null if it's in-memory
+	 */
+	@Nullable
+	public TimestampRecordStorage getStorage() {
+		return storage;
 	}
 
 	/**
@@ -79,21 +95,60 @@ public class TimestampRecord {
 	 * @return the entry that was created
 	 */
 	public TimestampRecordEntry record(String documentId, String documentType, long seconds, Action action) {
-		TimestampRecordEntry entry = new TimestampRecordEntry(documentId, documentType, seconds, action.ordinal());
-		entriesByDocumentId.put(documentId, entry);
+		TimestampRecordEntry entry = new TimestampRecordEntry(documentId, documentType, seconds, action.ordinal(), allocateSeqs(1));
+		put(entry);
+		markDirty(documentId);
+		scheduleSave();
+		return entry;
+	}
 
-		// update head
-		if (head == null) {
-			head = findHeadEntry();
+	/**
+	 * Add an entry to the record, replacing any entry for the same document, in the id map and both indexes
+	 */
+	private void put(TimestampRecordEntry entry) {
+		TimestampRecordEntry replaced = entriesByDocumentId.put(entry.getDocumentId(), entry);
+		if (replaced != null) {
+			entriesByTimestamp.remove(replaced);
+			entriesBySeq.remove(replaced);
 		}
+		entriesByTimestamp.add(entry);
+		entriesBySeq.add(entry);
+		head = entriesByTimestamp.last();
+		headEntrySeq = entriesBySeq.last().getSeq();
+		lastSeq = Math.max(lastSeq, entry.getSeq());
+	}
 
-		// this is the new head
-		if (seconds > head.getTimestampSeconds()) {
-			head = entry;
+	/**
+	 * Remove an entry from the record, from the id map and both indexes
+	 */
+	private void remove(TimestampRecordEntry entry) {
+		entriesByDocumentId.remove(entry.getDocumentId());
+		entriesByTimestamp.remove(entry);
+		entriesBySeq.remove(entry);
+		head = entriesByTimestamp.isEmpty() ? null : entriesByTimestamp.last();
+		headEntrySeq = entriesBySeq.isEmpty() ? 0 : entriesBySeq.last().getSeq();
+	}
+
+	/**
+	 * Reserve sequence numbers for entries about to be added to the record
+	 *
+	 * @param count the number of sequence numbers to reserve
+	 * @return the last sequence number reserved; the reserved numbers run from it - count + 1 to it
+	 */
+	private long allocateSeqs(int count) {
+		if (storage == null) {
+			lastSeq += count;
+			return lastSeq;
 		}
 
-		markDirty();
-		return entry;
+		long last = storage.incrementSeq(count);
+		if (last - count < lastSeq) {
+			// the counter is behind the entries (e.g., it was lost, or the entries predate it); catch it up so
+			// sequence numbers are never reused
+			last = storage.incrementSeq((int) Math.min(Integer.MAX_VALUE, lastSeq - (last - count)));
+		}
+		lastSeq = last;
+		return last;
 	}
 
 	/**
@@ -113,22 +168,55 @@ public class TimestampRecord {
 	 * @return map of modelId->Entry of all events which occurred after said timestamp
 	 */
 	public Map<String, TimestampRecordEntry> getEntriesSince(long sinceTimestampSeconds) {
-		if (sinceTimestampSeconds > 0) {
-
-			// filter to subset of modelId:timestampSeconds pairs AFTER `sinceTimestampSeconds
-			Map<String, TimestampRecordEntry> entries = new HashMap<>();
-			for (String documentId : entriesByDocumentId.keySet()) {
-				TimestampRecordEntry entry = entriesByDocumentId.get(documentId);
-				if (entry.getTimestampSeconds() >= sinceTimestampSeconds) {
-					entries.put(documentId, entry);
-				}
-			}
+		Map<String, TimestampRecordEntry> entries = new HashMap<>();
+		for (TimestampRecordEntry entry : getEntriesSinceView(sinceTimestampSeconds)) {
+			entries.put(entry.getDocumentId(), entry);
+		}
+		return entries;
+	}
 
-			return entries;
+	/**
+	 * Get a live, read-only view of the events at or after sinceTimestampSeconds, without copying them. The view
+	 * reflects later changes to the record, so callers must not let it be modified (e.g., by a commit) while using it.
+	 *
+	 * @param sinceTimestampSeconds a timestamp in seconds; if 0 or less, every event is included
+	 * @return the events, oldest first, ties ordered by document id
+	 */
+	public NavigableSet<TimestampRecordEntry> getEntriesSinceView(long sinceTimestampSeconds) {
+		if (sinceTimestampSeconds <= 0) {
+			return Collections.unmodifiableNavigableSet(entriesByTimestamp);
+		}
+
+		// the earliest possible entry at sinceTimestampSeconds, since no document id sorts before the empty string
+		TimestampRecordEntry from = new TimestampRecordEntry("", "", sinceTimestampSeconds, 0);
+		return Collections.unmodifiableNavigableSet(entriesByTimestamp.tailSet(from, true));
+	}
 
-		} else {
-			return new HashMap<>(entriesByDocumentId);
+	/**
+	 * Get a live, read-only view of the events after a cursor's position. See getEntriesSinceView.
+	 *
+	 * @param cursor a position in the record, typically just after the last entry of a page of changes
+	 * @return the events after the cursor's position, oldest first, ties ordered by document id
+	 */
+	public NavigableSet<TimestampRecordEntry> getEntriesAfterView(ChangeCursor cursor) {
+		TimestampRecordEntry after = new TimestampRecordEntry(cursor.getDocumentId(), "", cursor.getTimestampSeconds(), 0);
+		return Collections.unmodifiableNavigableSet(entriesByTimestamp.tailSet(after, false));
+	}
+
+	/**
+	 * Get a live, read-only view of the events with a sequence number greater than sinceSeq. See getEntriesSinceView.
+	 *
+	 * @param sinceSeq the sequence number of the last event already seen; if 0 or less, every event is included
+	 * @return the events, in the order of their sequence numbers
+	 */
+	public NavigableSet<TimestampRecordEntry> getEntriesAfterSeqView(long sinceSeq) {
+		if (sinceSeq <= 0) {
+			return Collections.unmodifiableNavigableSet(entriesBySeq);
 		}
+
+		// the earliest possible entry after sinceSeq, since no document id sorts before the empty string
+		TimestampRecordEntry from = new TimestampRecordEntry("", "", 0, 0, sinceSeq + 1);
+		return Collections.unmodifiableNavigableSet(entriesBySeq.tailSet(from, true));
 	}
 
 	/**
@@ -141,12 +229,64 @@ public class TimestampRecord {
 	/**
 	 * @return the Entry representing the most recent event to be added to the record
 	 */
+	@Nullable
 	TimestampRecordEntry getTimestampHead() {
-		if (head == null) {
-			head = findHeadEntry();
+		return head;
+	}
+
+	/**
+	 * @return the greatest sequence number of the record's entries, including those compacted away, or 0 if it has none
+	 */
+	long getHeadSeq() {
+		return Math.max(headEntrySeq, compactionWatermark.getSeq());
+	}
+
+	/**
+	 * @return how far the record's tombstones have been compacted away
+	 */
+	public CompactionWatermark getCompactionWatermark() {
+		return compactionWatermark;
+	}
+
+	/**
+	 * Drop the DELETE entries older than a horizon, raising the compaction watermark past them. Clients which last
+	 * synced before the dropped entries can no longer be sent a complete delta, and have to resync in full.
+	 *
+	 * @param horizonTimestampSeconds DELETE entries with timestamps before this are dropped
+	 * @return the number of entries dropped
+	 */
+	int compact(long horizonTimestampSeconds) {
+		List<TimestampRecordEntry> dropped = new ArrayList<>();
+		for (TimestampRecordEntry entry : entriesByTimestamp) {
+			if (entry.getTimestampSeconds() >= horizonTimestampSeconds) {
+				break;
+			}
+			if (entry.getAction() == Action.DELETE.ordinal()) {
+				dropped.add(entry);
+			}
 		}
 
-		return head;
+		if (dropped.isEmpty()) {
+			return 0;
+		}
+
+		List<String> droppedDocumentIds = new ArrayList<>(dropped.size());
+		CompactionWatermark watermark = compactionWatermark;
+		for (TimestampRecordEntry entry : dropped) {
+			remove(entry);
+			droppedDocumentIds.add(entry.getDocumentId());
+			watermark = watermark.max(new CompactionWatermark(entry.getTimestampSeconds(), entry.getSeq()));
+		}
+		compactionWatermark = watermark;
+
+		if (storage != null) {
+			synchronized (dirtyDocumentIds) {
+				dirtyDocumentIds.removeAll(droppedDocumentIds);
+			}
+			storage.compact(droppedDocumentIds, watermark);
+		}
+
+		return dropped.size();
 	}
 
 
@@ -154,16 +294,20 @@ public class TimestampRecord {
 		return entriesByDocumentId.isEmpty();
 	}
 
-	private String getJedisKey() {
-		return getJedisKey(namespace, accountId);
+	int size() {
+		return entriesByDocumentId.size();
 	}
 
-	static String getJedisKey(String namespace, String accountId) {
-		return namespace + "/" + accountId + "/timestamps";
+	private void markDirty(String documentId) {
+		if (storage != null) {
+			synchronized (dirtyDocumentIds) {
+				dirtyDocumentIds.add(documentId);
+			}
+		}
 	}
 
-	private void markDirty() {
-		if (jedisPool == null) {
+	private void scheduleSave() {
+		if (storage == null) {
 			return;
 		}
 
@@ -175,70 +319,76 @@ public class TimestampRecord {
 	}
 
 	/**
-	 * Write this TimestampRecord's values onto the target
+	 * Write this TimestampRecord's values onto the target. The entries are given sequence numbers from the target's
+	 * counter, in timestamp order, so they follow every change the target already holds.
 	 *
 	 * @param target the TimestampRecord which will receive this TimestampRecord's values
 	 */
 	void save(TimestampRecord target) {
-		for (TimestampRecordEntry entry : entriesByDocumentId.values()) {
-			target.entriesByDocumentId.put(entry.getDocumentId(), entry);
+		if (!entriesByTimestamp.isEmpty()) {
+			long seq = target.allocateSeqs(entriesByTimestamp.size()) - entriesByTimestamp.size();
+			for (TimestampRecordEntry entry : entriesByTimestamp) {
+				target.put(withSeq(entry, ++seq));
+				target.markDirty(entry.getDocumentId());
+			}
 		}
 
-		target.head = null; // invalidate
 		target.save();
 	}
 
-	void save() {
-		if (jedisPool == null) {
-			return;
-		}
-
-		try (Jedis jedis = jedisPool.getResource()) {
-			String jsonString = objectMapper.writeValueAsString(entriesByDocumentId);
-			jedis.set(getJedisKey(), jsonString);
-		} catch (JsonProcessingException e) {
-			logger.error("TimestampRecord::save - unable to serialize entriesByDocumentId map to JSON", e);
-		}
+	private static TimestampRecordEntry withSeq(TimestampRecordEntry entry, long seq) {
+		return new TimestampRecordEntry(entry.getDocumentId(), entry.getDocumentType(), entry.getTimestampSeconds(), entry.getAction(), seq);
 	}
 
-	private void load() {
-		if (jedisPool == null) {
+	/**
+	 * Persist the entries which have changed since the last save
+	 */
+	void save() {
+		if (storage == null) {
 			return;
 		}
 
-		try (Jedis jedis = jedisPool.getResource()) {
-			String jsonString = jedis.get(getJedisKey());
-			if (jsonString != null && !jsonString.isEmpty()) {
-				try {
-					entriesByDocumentId = objectMapper.reader()
-							.forType(new TypeReference<Map<String, TimestampRecordEntry>>() {
-							})
-							.readValue(jsonString);
+		List<TimestampRecordEntry> dirtyEntries = new ArrayList<>();
+		synchronized (dirtyDocumentIds) {
+			for (String documentId : dirtyDocumentIds) {
+				dirtyEntries.add(entriesByDocumentId.get(documentId));
+			}
+			dirtyDocumentIds.clear();
+		}
 
-					head = findHeadEntry();
-				} catch (IOException e) {
-					logger.error("TimestampRecord::load - unable to create entriesByDocumentId map from JSON", e);
-				}
+		try {
+			storage.put(dirtyEntries);
+		} catch (RuntimeException e) {
+			// the entries are still dirty, so the next save retries them
+			for (TimestampRecordEntry entry : dirtyEntries) {
+				markDirty(entry.getDocumentId());
 			}
+			throw e;
 		}
 	}
 
-	/**
-	 * Walk the entriesByDocumentId map and find the newest entry, and assign it to `head
-	 */
-	private TimestampRecordEntry findHeadEntry() {
-		TimestampRecordEntry headEntry = null;
-		long headTimestamp = 0;
-
-		for (String documentId : entriesByDocumentId.keySet()) {
-			TimestampRecordEntry entry = entriesByDocumentId.get(documentId);
-			if (entry.getTimestampSeconds() > headTimestamp) {
-				headEntry = entry;
-				headTimestamp = entry.getTimestampSeconds();
+	private void load() {
+		compactionWatermark = storage.loadCompactionWatermark();
+
+		List<TimestampRecordEntry> unsequenced = new ArrayList<>();
+		for (TimestampRecordEntry entry : storage.load().values()) {
+			if (entry.getSeq() > 0) {
+				put(entry);
+			} else {
+				unsequenced.add(entry);
 			}
 		}
 
-		return headEntry;
+		// entries persisted before sequence numbers existed are given them, oldest first, after any sequenced entries
+		if (!unsequenced.isEmpty()) {
+			unsequenced.sort(TIMESTAMP_ORDER);
+			long seq = allocateSeqs(unsequenced.size()) - unsequenced.size();
+			for (TimestampRecordEntry entry : unsequenced) {
+				put(withSeq(entry, ++seq));
+				markDirty(entry.getDocumentId());
+			}
+			save();
+		}
 	}
 
 }
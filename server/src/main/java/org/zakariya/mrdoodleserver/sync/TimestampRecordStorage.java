@@ -0,0 +1,64 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import org.zakariya.mrdoodleserver.transport.TimestampRecordEntry;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * TimestampRecordStorage
+ * Persists a TimestampRecord's entries. Storage engines (see StorageEngine) vend an implementation per account.
+ */
+public interface TimestampRecordStorage {
+
+	/**
+	 * @return the persisted entries, mapping document id to entry; empty if nothing has been persisted
+	 */
+	Map<String, TimestampRecordEntry> load();
+
+	/**
+	 * Persist entries, replacing whatever was persisted before
+	 *
+	 * @param entriesByDocumentId map of document id to entry
+	 */
+	void save(Map<String, TimestampRecordEntry> entriesByDocumentId);
+
+	/**
+	 * Reserve sequence numbers for entries about to be recorded. The account's counter must only ever increase,
+	 * and survive restarts.
+	 *
+	 * @param count how many sequence numbers to reserve
+	 * @return the last sequence number reserved; the reserved numbers run from it - count + 1 to it
+	 */
+	long incrementSeq(int count);
+
+	/**
+	 * @return the watermark recorded by the last compact(), or CompactionWatermark.NONE if there hasn't been one
+	 */
+	CompactionWatermark loadCompactionWatermark();
+
+	/**
+	 * Remove the persisted entries of documents whose DELETE tombstones have been compacted away, and record the
+	 * compaction's watermark, replacing the one recorded before.
+	 *
+	 * @param documentIds the ids of the documents whose entries were dropped
+	 * @param watermark   the record's watermark, following the compaction
+	 */
+	void compact(Collection<String> documentIds, CompactionWatermark watermark);
+
+	/**
+	 * Persist some entries, replacing any persisted entries for the same documents and leaving the rest untouched.
+	 * TimestampRecord saves just the entries which changed this way, so implementations should make its cost
+	 * proportional to the number of entries, not to the number persisted; the default implementation isn't.
+	 *
+	 * @param entries the entries to persist
+	 */
+	default void put(Collection<TimestampRecordEntry> entries) {
+		Map<String, TimestampRecordEntry> entriesByDocumentId = new HashMap<>(load());
+		for (TimestampRecordEntry entry : entries) {
+			entriesByDocumentId.put(entry.getDocumentId(), entry);
+		}
+		save(entriesByDocumentId);
+	}
+}
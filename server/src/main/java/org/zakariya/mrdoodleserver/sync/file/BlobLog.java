@@ -0,0 +1,802 @@
+package org.zakariya.mrdoodleserver.sync.file;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * BlobLog
+ * Log-structured storage for blobs. Blobs are appended as records to segment files in a directory, and found via an
+ * in-memory index of store key and blob id to record. Deletes, moves (a write session's blob being committed) and
+ * drops (a whole store being discarded) are appended as records too, so the index can be rebuilt by replaying the
+ * segments in order when the log is opened.
+ * <p>
+ * Overwritten and deleted records are reclaimed by compact(), which copies the still-live records of the oldest
+ * segment to the end of the log and deletes the segment. Only ever retiring the oldest segment means no record in a
+ * retired segment can matter to a replay - any record it held which affects a live blob has been superseded by a later one.
+ * <p>
+ * Record layout (big-endian): magic, op, then per op:
+ * PUT store, id, type, timestamp, encoding, decoded length, data length, data CRC32;
+ * DELETE store, id; MOVE from store, to store, id; DROP store. The header ends with the CRC32 of everything after
+ * the magic, and a PUT's data follows its header. Strings are written as a length followed by UTF-8 bytes.
+ */
+class BlobLog implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(BlobLog.class);
+
+	private static final int MAGIC = 0x4D44424C;
+	private static final byte OP_PUT = 1;
+	private static final byte OP_DELETE = 2;
+	private static final byte OP_MOVE = 3;
+	private static final byte OP_DROP = 4;
+	private static final int MAX_STRING_LENGTH = 64 * 1024;
+	private static final int MAX_HEADER_LENGTH = 4 * (MAX_STRING_LENGTH + 4) + 64;
+	private static final int HEADER_READ_SIZE = 4096;
+	private static final String UPLOAD_DIRECTORY = "uploads";
+	private static final int MAX_MAPPED_WRITE_LENGTH = 8 * 1024 * 1024;
+
+	/**
+	 * Where a live blob's record is in the log, along with the blob's attributes. Immutable.
+	 */
+	static class Record {
+		final Segment segment;
+		final long position;
+		final long recordLength;
+		final long dataPosition;
+		final long length;
+		final int dataCrc;
+		final String type;
+		final long timestamp;
+		final String encoding;
+		final long decodedLength;
+
+		/**
+		 * identifies the blob write this record holds; preserved when compaction copies the record, so readers
+		 * can tell a copy from a rewrite
+		 */
+		final long version;
+
+		Record(Segment segment, long position, long headerLength, Header header, long version) {
+			this.segment = segment;
+			this.position = position;
+			this.recordLength = headerLength + header.length;
+			this.dataPosition = position + headerLength;
+			this.length = header.length;
+			this.dataCrc = header.dataCrc;
+			this.type = header.type;
+			this.timestamp = header.timestamp;
+			this.encoding = header.encoding;
+			this.decodedLength = header.decodedLength;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * A record's header fields
+	 */
+	private static class Header {
+		byte op;
+		String store;
+		String id;
+		String toStore;
+		String type;
+		long timestamp;
+		String encoding;
+		long decodedLength;
+		long length;
+		int dataCrc;
+	}
+
+	/**
+	 * Writes a PUT record's data to the log's active segment, at the channel's position
+	 */
+	interface DataSource {
+		void writeTo(FileChannel target) throws IOException;
+	}
+
+	private File directory;
+	private File uploadDirectory;
+	private long segmentSize;
+	private ReentrantLock appendLock = new ReentrantLock();
+	private ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+	private volatile Segment active;
+	private Map<String, Map<String, Record>> stores = new ConcurrentHashMap<>();
+	private AtomicLong versions = new AtomicLong();
+
+	/**
+	 * Open a log, replaying its segments to rebuild the index. A torn record at the end of the newest segment
+	 * (the server died mid-append) is truncated away.
+	 *
+	 * @param directory   directory holding the log's segments; created if it doesn't exist
+	 * @param segmentSize size in bytes past which the active segment is sealed and a new one started
+	 * @throws IOException if the directory or its segments can't be read
+	 */
+	BlobLog(File directory, long segmentSize) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.uploadDirectory = new File(directory, UPLOAD_DIRECTORY);
+		if (!uploadDirectory.isDirectory() && !uploadDirectory.mkdirs()) {
+			throw new IOException("Unable to create blob log directory " + uploadDirectory);
+		}
+
+		// uploads in progress when the server stopped will never finish
+		File[] uploads = uploadDirectory.listFiles();
+		if (uploads != null) {
+			for (File upload : uploads) {
+				if (!upload.delete()) {
+					logger.warn("BlobLog - unable to delete abandoned upload {}", upload);
+				}
+			}
+		}
+
+		List<Long> ids = new ArrayList<>();
+		String[] fileNames = directory.list();
+		if (fileNames != null) {
+			for (String fileName : fileNames) {
+				long id = Segment.parseId(fileName);
+				if (id >= 0) {
+					ids.add(id);
+				}
+			}
+		}
+		Collections.sort(ids);
+
+		for (int i = 0; i < ids.size(); i++) {
+			Segment segment = new Segment(directory, ids.get(i));
+			segments.put(segment.getId(), segment);
+			replay(segment, i == ids.size() - 1);
+			if (i < ids.size() - 1) {
+				segment.seal();
+			}
+		}
+
+		if (segments.isEmpty()) {
+			Segment segment = new Segment(directory, 1);
+			segments.put(segment.getId(), segment);
+		}
+
+		active = segments.lastEntry().getValue();
+		logger.info("BlobLog - opened {} with {} segments, {} bytes", directory, segments.size(), getSize());
+	}
+
+	File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return a new file in which to stage an upload; the caller deletes it
+	 */
+	File createUploadFile() {
+		return new File(uploadDirectory, UUID.randomUUID().toString() + ".tmp");
+	}
+
+	/**
+	 * @return number of segments in the log
+	 */
+	int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * @return total size in bytes of the log's segments
+	 */
+	long getSize() {
+		long size = 0;
+		for (Segment segment : segments.values()) {
+			size += segment.getSize();
+		}
+		return size;
+	}
+
+	/**
+	 * @return total size in bytes of the records referenced by the index
+	 */
+	long getLiveBytes() {
+		long live = 0;
+		for (Segment segment : segments.values()) {
+			live += segment.getLiveBytes();
+		}
+		return live;
+	}
+
+	///////////////////////////////////////////////////////////////////
+
+	@Nullable
+	Record get(String store, String id) {
+		Map<String, Record> records = stores.get(store);
+		return records != null ? records.get(id) : null;
+	}
+
+	/**
+	 * @return ids of the blobs in a store
+	 */
+	Set<String> getIds(String store) {
+		Map<String, Record> records = stores.get(store);
+		return records != null ? new HashSet<>(records.keySet()) : Collections.emptySet();
+	}
+
+	/**
+	 * Append a blob
+	 *
+	 * @return the blob's record
+	 */
+	Record put(String store, String id, String type, long timestamp, String encoding, long decodedLength, byte[] data) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return put(store, id, type, timestamp, encoding, decodedLength, data.length, (int) crc.getValue(), target -> {
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			while (buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+		});
+	}
+
+	/**
+	 * Append a blob whose data is staged in a file
+	 *
+	 * @return the blob's record
+	 */
+	Record put(String store, String id, String type, long timestamp, String encoding, long decodedLength, FileChannel source, long length, int dataCrc) throws IOException {
+		return put(store, id, type, timestamp, encoding, decodedLength, length, dataCrc, target -> transfer(source, 0, length, target));
+	}
+
+	private Record put(String store, String id, String type, long timestamp, String encoding, long decodedLength, long length, int dataCrc, DataSource data) throws IOException {
+		Header header = new Header();
+		header.op = OP_PUT;
+		header.store = store;
+		header.id = id;
+		header.type = type;
+		header.timestamp = timestamp;
+		header.encoding = encoding;
+		header.decodedLength = decodedLength;
+		header.length = length;
+		header.dataCrc = dataCrc;
+		byte[] headerBytes = encode(header);
+
+		appendLock.lock();
+		try {
+			Segment segment = getActiveSegment();
+			long position = append(segment, headerBytes, length, data);
+			Record record = new Record(segment, position, headerBytes.length, header, versions.incrementAndGet());
+			index(store, id, record);
+			return record;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Delete a blob
+	 */
+	void delete(String store, String id) throws IOException {
+		appendLock.lock();
+		try {
+			if (get(store, id) != null) {
+				Header header = new Header();
+				header.op = OP_DELETE;
+				header.store = store;
+				header.id = id;
+				append(getActiveSegment(), encode(header), 0, null);
+				applyDelete(store, id);
+			}
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Move a blob from one store to another, replacing the blob with the same id in the destination
+	 *
+	 * @return true if the source store had the blob
+	 */
+	boolean move(String fromStore, String toStore, String id) throws IOException {
+		appendLock.lock();
+		try {
+			if (get(fromStore, id) == null) {
+				return false;
+			}
+
+			Header header = new Header();
+			header.op = OP_MOVE;
+			header.store = fromStore;
+			header.toStore = toStore;
+			header.id = id;
+			append(getActiveSegment(), encode(header), 0, null);
+			applyMove(fromStore, toStore, id);
+			return true;
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Delete every blob in a store
+	 */
+	void drop(String store) throws IOException {
+		appendLock.lock();
+		try {
+			if (stores.containsKey(store)) {
+				Header header = new Header();
+				header.op = OP_DROP;
+				header.store = store;
+				append(getActiveSegment(), encode(header), 0, null);
+				applyDrop(store);
+			}
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	/**
+	 * Delete every blob in every store whose key starts with a prefix
+	 */
+	void dropAll(String prefix) throws IOException {
+		for (String store : new ArrayList<>(stores.keySet())) {
+			if (store.startsWith(prefix)) {
+				drop(store);
+			}
+		}
+	}
+
+	/**
+	 * Map a region of a record's data into memory. The record's segment must be retained.
+	 *
+	 * @return a read-only buffer of the region
+	 */
+	ByteBuffer map(Record record, long offset, int length) throws IOException {
+		return record.segment.map(record.dataPosition + offset, length);
+	}
+
+	/**
+	 * Write a region of a record's data to a channel. File and socket channels are handed the bytes with
+	 * FileChannel.transferTo, so the OS copies them straight from the file. Any other channel (say, a servlet
+	 * response) is written mapped regions of the segment, which at least spares copying the bytes onto the heap.
+	 * The record's segment must be retained.
+	 */
+	void transferTo(Record record, long offset, long length, WritableByteChannel target) throws IOException {
+		if (target instanceof FileChannel || target instanceof SelectableChannel) {
+			transfer(record.segment.getChannel(), record.dataPosition + offset, length, target);
+			return;
+		}
+
+		for (long written = 0; written < length; ) {
+			ByteBuffer region = map(record, offset + written, (int) Math.min(MAX_MAPPED_WRITE_LENGTH, length - written));
+			while (region.hasRemaining()) {
+				written += target.write(region);
+			}
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////
+
+	/**
+	 * Reclaim space held by overwritten and deleted records. While garbage makes up more than garbageRatio of the
+	 * sealed segments, the oldest segment's live records are copied to the end of the log, and the segment deleted.
+	 *
+	 * @param garbageRatio fraction (0-1) of the sealed segments' bytes which may be garbage before they're compacted
+	 * @return number of segments compacted
+	 */
+	int compact(double garbageRatio) throws IOException {
+		int compacted = 0;
+		for (; ; ) {
+			Map.Entry<Long, Segment> oldest = segments.firstEntry();
+			if (oldest == null || oldest.getValue() == active) {
+				return compacted;
+			}
+
+			long sealedSize = 0;
+			long sealedLiveBytes = 0;
+			for (Segment segment : segments.values()) {
+				if (segment != active) {
+					sealedSize += segment.getSize();
+					sealedLiveBytes += segment.getLiveBytes();
+				}
+			}
+
+			if (sealedSize == 0 || sealedSize - sealedLiveBytes <= garbageRatio * sealedSize) {
+				return compacted;
+			}
+
+			compactSegment(oldest.getValue());
+			compacted++;
+		}
+	}
+
+	private void compactSegment(Segment segment) throws IOException {
+		long size = segment.getSize();
+		long liveBytes = segment.getLiveBytes();
+
+		for (; ; ) {
+			for (Map.Entry<String, Map<String, Record>> store : stores.entrySet()) {
+				for (Map.Entry<String, Record> entry : store.getValue().entrySet()) {
+					if (entry.getValue().segment == segment) {
+						copy(store.getKey(), store.getValue(), entry.getKey(), entry.getValue());
+					}
+				}
+			}
+
+			// a blob can be moved between stores mid-pass, so only retire the segment once nothing references it
+			appendLock.lock();
+			try {
+				if (segment.getLiveBytes() == 0) {
+					segments.remove(segment.getId());
+					break;
+				}
+			} finally {
+				appendLock.unlock();
+			}
+		}
+
+		segment.retire();
+		logger.info("BlobLog::compact - retired segment {}, copied {} of {} bytes", segment.getFile().getName(), liveBytes, size);
+	}
+
+	/**
+	 * Copy a live record to the end of the log, unless it's been replaced or removed in the meantime
+	 */
+	private void copy(String store, Map<String, Record> records, String id, Record record) throws IOException {
+		appendLock.lock();
+		try {
+			if (stores.get(store) != records || records.get(id) != record) {
+				return;
+			}
+
+			Header header = new Header();
+			header.op = OP_PUT;
+			header.store = store;
+			header.id = id;
+			header.type = record.type;
+			header.timestamp = record.timestamp;
+			header.encoding = record.encoding;
+			header.decodedLength = record.decodedLength;
+			header.length = record.length;
+			header.dataCrc = record.dataCrc;
+			byte[] headerBytes = encode(header);
+
+			Segment segment = getActiveSegment();
+			long position = append(segment, headerBytes, record.length, target -> transfer(record.segment.getChannel(), record.dataPosition, record.length, target));
+			index(store, id, new Record(segment, position, headerBytes.length, header, record.version));
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		appendLock.lock();
+		try {
+			active.getChannel().force(true);
+			for (Segment segment : segments.values()) {
+				segment.release();
+			}
+			segments.clear();
+			stores.clear();
+		} finally {
+			appendLock.unlock();
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return the segment to append to, sealing the active segment and starting a new one if it's full. Caller holds appendLock.
+	 */
+	private Segment getActiveSegment() throws IOException {
+		if (active.getSize() >= segmentSize) {
+			active.getChannel().truncate(active.getSize());
+			active.seal();
+			Segment segment = new Segment(directory, active.getId() + 1);
+			segments.put(segment.getId(), segment);
+			active = segment;
+		}
+		return active;
+	}
+
+	/**
+	 * Append a record to a segment. Caller holds appendLock.
+	 *
+	 * @return the position of the record in the segment
+	 */
+	private long append(Segment segment, byte[] header, long dataLength, @Nullable DataSource data) throws IOException {
+		FileChannel channel = segment.getChannel();
+		long position = segment.getSize();
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(header);
+			long offset = position;
+			while (buffer.hasRemaining()) {
+				offset += channel.write(buffer, offset);
+			}
+
+			if (data != null) {
+				channel.position(position + header.length);
+				data.writeTo(channel);
+				if (channel.position() != position + header.length + dataLength) {
+					throw new IOException("Record data length mismatch, expected " + dataLength + " bytes");
+				}
+			}
+		} catch (IOException e) {
+			// drop the partial record, so the next append replaces it
+			channel.truncate(position);
+			throw e;
+		}
+
+		segment.setSize(position + header.length + dataLength);
+		return position;
+	}
+
+	private void replay(Segment segment, boolean newest) throws IOException {
+		FileChannel channel = segment.getChannel();
+		long size = channel.size();
+		long position = 0;
+
+		while (position < size) {
+			try {
+				ByteBuffer headerBuffer = readHeader(channel, position, size);
+				Header header = decode(headerBuffer);
+				long headerLength = headerBuffer.position();
+				long end = position + headerLength + (header.op == OP_PUT ? header.length : 0);
+				if (end > size) {
+					throw new EOFException("Record data is truncated");
+				}
+
+				// torn writes can only be at the end of the log, so only the newest segment's data is checked
+				if (newest && header.op == OP_PUT && getCrc(channel, position + headerLength, header.length) != header.dataCrc) {
+					throw new IOException("Record data checksum mismatch");
+				}
+
+				apply(segment, position, headerLength, header);
+				position = end;
+			} catch (IOException e) {
+				if (newest) {
+					logger.warn("BlobLog::replay - truncating {} at {}: {}", segment.getFile().getName(), position, e.getMessage());
+					channel.truncate(position);
+				} else {
+					logger.error("BlobLog::replay - {} is unreadable past {}, its remaining records are lost: {}", segment.getFile().getName(), position, e.getMessage());
+				}
+				break;
+			}
+		}
+
+		segment.setSize(position);
+	}
+
+	private void apply(Segment segment, long position, long headerLength, Header header) {
+		switch (header.op) {
+			case OP_PUT:
+				index(header.store, header.id, new Record(segment, position, headerLength, header, versions.incrementAndGet()));
+				break;
+			case OP_DELETE:
+				applyDelete(header.store, header.id);
+				break;
+			case OP_MOVE:
+				applyMove(header.store, header.toStore, header.id);
+				break;
+			case OP_DROP:
+				applyDrop(header.store);
+				break;
+		}
+	}
+
+	private void index(String store, String id, Record record) {
+		record.segment.addLiveBytes(record.recordLength);
+		release(stores.computeIfAbsent(store, k -> new ConcurrentHashMap<>()).put(id, record));
+	}
+
+	private void applyDelete(String store, String id) {
+		Map<String, Record> records = stores.get(store);
+		if (records != null) {
+			release(records.remove(id));
+		}
+	}
+
+	private void applyMove(String fromStore, String toStore, String id) {
+		Map<String, Record> records = stores.get(fromStore);
+		Record record = records != null ? records.remove(id) : null;
+		if (record != null) {
+			release(stores.computeIfAbsent(toStore, k -> new ConcurrentHashMap<>()).put(id, record));
+		}
+	}
+
+	private void applyDrop(String store) {
+		Map<String, Record> records = stores.remove(store);
+		if (records != null) {
+			records.values().forEach(this::release);
+		}
+	}
+
+	/**
+	 * A record is no longer referenced by the index; its bytes are now garbage
+	 */
+	private void release(@Nullable Record record) {
+		if (record != null) {
+			record.segment.addLiveBytes(-record.recordLength);
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////
+
+	private static byte[] encode(Header header) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeByte(header.op);
+		switch (header.op) {
+			case OP_PUT:
+				writeString(out, header.store);
+				writeString(out, header.id);
+				writeString(out, header.type);
+				out.writeLong(header.timestamp);
+				writeString(out, header.encoding);
+				out.writeLong(header.decodedLength);
+				out.writeLong(header.length);
+				out.writeInt(header.dataCrc);
+				break;
+			case OP_DELETE:
+				writeString(out, header.store);
+				writeString(out, header.id);
+				break;
+			case OP_MOVE:
+				writeString(out, header.store);
+				writeString(out, header.toStore);
+				writeString(out, header.id);
+				break;
+			case OP_DROP:
+				writeString(out, header.store);
+				break;
+		}
+		out.flush();
+
+		CRC32 crc = new CRC32();
+		byte[] fields = bytes.toByteArray();
+		crc.update(fields, 4, fields.length - 4);
+		out.writeInt((int) crc.getValue());
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decode a header, leaving the buffer positioned after it
+	 */
+	private static Header decode(ByteBuffer buffer) throws IOException {
+		if (buffer.getInt() != MAGIC) {
+			throw new IOException("Bad record magic");
+		}
+
+		Header header = new Header();
+		header.op = buffer.get();
+		switch (header.op) {
+			case OP_PUT:
+				header.store = readString(buffer);
+				header.id = readString(buffer);
+				header.type = readString(buffer);
+				header.timestamp = buffer.getLong();
+				header.encoding = readString(buffer);
+				header.decodedLength = buffer.getLong();
+				header.length = buffer.getLong();
+				header.dataCrc = buffer.getInt();
+				if (header.length < 0) {
+					throw new IOException("Bad record data length");
+				}
+				break;
+			case OP_DELETE:
+				header.store = readString(buffer);
+				header.id = readString(buffer);
+				break;
+			case OP_MOVE:
+				header.store = readString(buffer);
+				header.toStore = readString(buffer);
+				header.id = readString(buffer);
+				break;
+			case OP_DROP:
+				header.store = readString(buffer);
+				break;
+			default:
+				throw new IOException("Unknown record op " + header.op);
+		}
+
+		CRC32 crc = new CRC32();
+		ByteBuffer fields = buffer.duplicate();
+		fields.flip();
+		fields.position(4);
+		crc.update(fields);
+		if (buffer.getInt() != (int) crc.getValue()) {
+			throw new IOException("Record header checksum mismatch");
+		}
+
+		return header;
+	}
+
+	/**
+	 * Read enough of the segment at position to hold a record header. Headers are almost always small, so a
+	 * small read is tried first, and grown only if it didn't hold the entire header.
+	 */
+	private static ByteBuffer readHeader(FileChannel channel, long position, long size) throws IOException {
+		int capacity = (int) Math.min(HEADER_READ_SIZE, size - position);
+		for (; ; ) {
+			ByteBuffer buffer = ByteBuffer.allocate(capacity);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0) {
+					throw new EOFException("Record header is truncated");
+				}
+			}
+			buffer.flip();
+
+			try {
+				decode(buffer.duplicate());
+				return buffer;
+			} catch (BufferUnderflowException e) {
+				if (capacity >= size - position || capacity >= MAX_HEADER_LENGTH) {
+					throw new EOFException("Record header is truncated");
+				}
+				capacity = (int) Math.min(Math.min(capacity * 4L, MAX_HEADER_LENGTH), size - position);
+			}
+		}
+	}
+
+	private static int getCrc(FileChannel channel, long position, long length) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		long end = position + length;
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			int n = channel.read(buffer, position);
+			if (n < 0) {
+				throw new EOFException("Record data is truncated");
+			}
+			buffer.flip();
+			crc.update(buffer);
+			position += n;
+		}
+		return (int) crc.getValue();
+	}
+
+	private static void transfer(FileChannel source, long position, long length, WritableByteChannel target) throws IOException {
+		long transferred = 0;
+		while (transferred < length) {
+			long n = source.transferTo(position + transferred, length - transferred, target);
+			if (n <= 0) {
+				throw new EOFException("Unable to read record data");
+			}
+			transferred += n;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length > MAX_STRING_LENGTH) {
+			throw new IOException("String of " + bytes.length + " bytes is too long for a record header");
+		}
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) throws IOException {
+		int length = buffer.getInt();
+		if (length < 0 || length > MAX_STRING_LENGTH) {
+			throw new IOException("Bad record string length");
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
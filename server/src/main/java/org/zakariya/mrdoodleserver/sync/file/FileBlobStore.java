@@ -0,0 +1,313 @@
+package org.zakariya.mrdoodleserver.sync.file;
+
+import org.jetbrains.annotations.Nullable;
+import org.zakariya.mrdoodleserver.sync.BlobCodec;
+import org.zakariya.mrdoodleserver.sync.BlobCodecs;
+import org.zakariya.mrdoodleserver.sync.BlobStore;
+import org.zakariya.mrdoodleserver.sync.file.BlobLog.Record;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * FileBlobStore
+ * BlobStore which keeps blobs in a FileStorageEngine's BlobLog. Each blob's data is stored contiguously in a segment
+ * file, so it's read via memory-mapped regions of the file, and written to channels with FileChannel.transferTo
+ * without passing through the heap at all.
+ */
+public class FileBlobStore extends BlobStore {
+
+	/**
+	 * Metadata of a blob in the log; holds the blob's record, so reads see a consistent snapshot even if the blob is replaced
+	 */
+	private static class FileMetadata extends Metadata {
+		Record record;
+
+		FileMetadata(String id, Record record, int chunkSize) {
+			super(id, record.type, record.timestamp, record.length, chunkSize, record.encoding, record.decodedLength, getRecordDigest(record));
+			this.record = record;
+		}
+	}
+
+	private BlobLog log;
+	private String storeKey;
+
+	/**
+	 * @param log       the log holding the store's blobs
+	 * @param namespace the top-level namespace under which blobs will be stored
+	 * @param accountId the user account for the blobs which will be stored
+	 * @param codec     if non-null, blob data written to the store is compressed with this codec
+	 */
+	FileBlobStore(BlobLog log, String namespace, String accountId, @Nullable BlobCodec codec) {
+		super(namespace, accountId, namespace, false, codec);
+		this.log = log;
+		this.storeKey = getStoreKey(namespace, accountId);
+	}
+
+	@Override
+	public void set(String id, String type, long timestamp, byte[] data) {
+		String encoding = BlobCodecs.IDENTITY;
+		long decodedLength = data.length;
+		BlobCodec codec = getCodec();
+		if (codec != null) {
+			encoding = codec.getName();
+			data = encode(codec, data);
+		}
+
+		try {
+			log.put(storeKey, id, type, timestamp, encoding, decodedLength, data);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to write blob \"" + id + "\"", e);
+		}
+		writes.add(id);
+	}
+
+	@Override
+	protected Upload beginUpload() {
+		try {
+			return new FileUpload(log.createUploadFile());
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to stage upload", e);
+		}
+	}
+
+	@Override
+	protected void finishUpload(String id, String type, long timestamp, Upload upload, String encoding, long decodedLength) {
+		FileUpload fileUpload = (FileUpload) upload;
+		try {
+			log.put(storeKey, id, type, timestamp, encoding, decodedLength, fileUpload.channel, upload.getLength(), (int) fileUpload.crc.getValue());
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to write blob \"" + id + "\"", e);
+		} finally {
+			fileUpload.discardChunks();
+		}
+	}
+
+	/**
+	 * Upload which stages its chunks in a file, from which the log copies them once the upload completes
+	 */
+	private class FileUpload extends Upload {
+		File file;
+		FileChannel channel;
+		CRC32 crc = new CRC32();
+
+		FileUpload(File file) throws IOException {
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+		}
+
+		@Override
+		protected void writeChunk(int index, byte[] buffer, int offset, int length) {
+			crc.update(buffer, offset, length);
+			ByteBuffer chunk = ByteBuffer.wrap(buffer, offset, length);
+			try {
+				while (chunk.hasRemaining()) {
+					channel.write(chunk);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException("Unable to stage upload chunk", e);
+			}
+		}
+
+		@Override
+		protected void discardChunks() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// nothing to do; the file is being deleted anyway
+			}
+			if (!file.delete() && file.exists()) {
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	@Nullable
+	@Override
+	public Entry get(String id) {
+		Record record = log.get(storeKey, id);
+		if (record == null) {
+			return null;
+		}
+
+		try {
+			record = retain(id, record);
+			try {
+				byte[] data = new byte[(int) record.length];
+				log.map(record, 0, data.length).get(data);
+				return new Entry(id, record.type, record.timestamp, decode(record.encoding, data));
+			} finally {
+				record.segment.release();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to read blob \"" + id + "\"", e);
+		}
+	}
+
+	@Nullable
+	@Override
+	public Metadata getMetadata(String id) {
+		Record record = log.get(storeKey, id);
+		return record != null ? new FileMetadata(id, record, getChunkSize()) : null;
+	}
+
+	@Override
+	protected InputStream openData(Metadata metadata) throws IOException {
+		final Record record = retain(metadata.getId(), ((FileMetadata) metadata).record);
+		return new ChunkInputStream(metadata) {
+			boolean closed;
+
+			@Override
+			protected byte[] readChunk(int index) throws IOException {
+				long offset = (long) index * metadata.getChunkSize();
+				if (closed || offset >= record.length) {
+					return null;
+				}
+
+				byte[] chunk = new byte[(int) Math.min(metadata.getChunkSize(), record.length - offset)];
+				log.map(record, offset, chunk.length).get(chunk);
+				return chunk;
+			}
+
+			@Override
+			public void close() throws IOException {
+				if (!closed) {
+					closed = true;
+					record.segment.release();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Transfers the range straight from the blob's segment file to the channel
+	 */
+	@Override
+	public void writeData(Metadata metadata, long offset, long length, WritableByteChannel out) throws IOException {
+		if (offset < 0 || length < 0 || offset + length > metadata.getLength()) {
+			throw new IllegalArgumentException("Range [" + offset + ", " + (offset + length) + ") is outside blob of length " + metadata.getLength());
+		}
+
+		Record record = retain(metadata.getId(), ((FileMetadata) metadata).record);
+		try {
+			log.transferTo(record, offset, length, out);
+		} finally {
+			record.segment.release();
+		}
+	}
+
+	@Override
+	public Map<String, Entry> getAll(Collection<String> ids) {
+		Map<String, Entry> entries = new LinkedHashMap<>();
+		for (String id : ids) {
+			Entry entry = get(id);
+			if (entry != null) {
+				entries.put(id, entry);
+			}
+		}
+		return entries;
+	}
+
+	@Nullable
+	@Override
+	public String getType(String id) {
+		Record record = log.get(storeKey, id);
+		return record != null ? record.type : null;
+	}
+
+	@Override
+	public boolean has(String id) {
+		return log.get(storeKey, id) != null;
+	}
+
+	@Override
+	public void delete(String id) {
+		deletions.add(id);
+		try {
+			log.delete(storeKey, id);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to delete blob \"" + id + "\"", e);
+		}
+	}
+
+	@Override
+	public void discard() {
+		try {
+			log.drop(storeKey);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to discard blobs of " + storeKey, e);
+		}
+
+		deletions.clear();
+		writes.clear();
+	}
+
+	/**
+	 * Save this store's writes and deletes to another FileBlobStore. Written blobs are moved to the destination
+	 * without copying their data.
+	 *
+	 * @param store the store to copy changes from this store to; must be a FileBlobStore of the same engine
+	 */
+	@Override
+	public void save(BlobStore store) {
+		if (!(store instanceof FileBlobStore) || ((FileBlobStore) store).log != log) {
+			throw new IllegalArgumentException("FileBlobStore can only save to another FileBlobStore of the same FileStorageEngine");
+		}
+
+		FileBlobStore destination = (FileBlobStore) store;
+		try {
+			for (String id : writes) {
+				log.move(storeKey, destination.storeKey, id);
+			}
+			destination.writes.addAll(writes);
+
+			for (String id : deletions) {
+				log.delete(destination.storeKey, id);
+			}
+			destination.deletions.addAll(deletions);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to save blobs of " + storeKey + " to " + destination.storeKey, e);
+		}
+	}
+
+	/**
+	 * Retain the segment holding a record, so it can be read. If compaction retired the segment in the meantime, the
+	 * blob's data will have been copied to a newer record with the same version.
+	 *
+	 * @return the record to read, whose segment the caller must release
+	 * @throws IOException if the blob has been replaced or removed
+	 */
+	private Record retain(String id, Record record) throws IOException {
+		for (; ; ) {
+			if (record.segment.retain()) {
+				return record;
+			}
+
+			Record current = log.get(storeKey, id);
+			if (current == null || current == record || current.version != record.version) {
+				throw new IOException("Blob \"" + id + "\" was modified while being read");
+			}
+			record = current;
+		}
+	}
+
+	/**
+	 * Records carry a CRC32 of their data rather than a cryptographic digest. That's plenty to tell one version of
+	 * a blob from the next, especially alongside the timestamp, which a rewrite almost always changes as well.
+	 */
+	private static String getRecordDigest(Record record) {
+		return String.format("%08x-%x-%x", record.dataCrc, record.length, record.timestamp);
+	}
+
+		static String getStoreKey(String namespace, String accountId) {
+		return namespace + "/" + accountId;
+	}
+}
@@ -0,0 +1,157 @@
+package org.zakariya.mrdoodleserver.sync.file;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zakariya.mrdoodleserver.sync.BlobCodec;
+import org.zakariya.mrdoodleserver.sync.BlobStore;
+import org.zakariya.mrdoodleserver.sync.StorageEngine;
+import org.zakariya.mrdoodleserver.sync.TimestampRecordStorage;
+import org.zakariya.mrdoodleserver.sync.UserRecordAccess;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * FileStorageEngine
+ * StorageEngine which keeps blobs in a log-structured set of segment files on local disk (see BlobLog), and
+ * everything else - timestamp records and the user record - in a delegate engine. The log is compacted periodically
+ * on a background thread.
+ * <p>
+ * Blob data isn't content-addressed under this engine; stores asked to be content-addressed store data inline.
+ */
+public class FileStorageEngine implements StorageEngine, Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(FileStorageEngine.class);
+
+	private StorageEngine delegate;
+	private BlobLog log;
+	private double compactionGarbageRatio;
+	private ScheduledExecutorService compactionExecutor;
+	private AtomicBoolean warnedContentAddressed = new AtomicBoolean();
+
+	/**
+	 * @param directory                  directory holding the blob log's segment files
+	 * @param segmentSize                size in bytes past which a segment is sealed and a new one started
+	 * @param compactionGarbageRatio     fraction (0-1) of the sealed segments' bytes which may be overwritten or deleted
+	 *                                   blobs before the oldest segments are compacted
+	 * @param compactionIntervalSeconds  how often to check whether compaction is needed; if <= 0, compaction only
+	 *                                   happens when compact() is called
+	 * @param delegate                   engine which stores timestamp records and the user record
+	 * @throws IOException if the blob log can't be opened
+	 */
+	public FileStorageEngine(File directory, long segmentSize, double compactionGarbageRatio, int compactionIntervalSeconds, StorageEngine delegate) throws IOException {
+		this.delegate = delegate;
+		this.log = new BlobLog(directory, segmentSize);
+		this.compactionGarbageRatio = compactionGarbageRatio;
+
+		if (compactionIntervalSeconds > 0) {
+			compactionExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "BlobLogCompactor");
+				thread.setDaemon(true);
+				return thread;
+			});
+			compactionExecutor.scheduleWithFixedDelay(this::compactQuietly, compactionIntervalSeconds, compactionIntervalSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	public StorageEngine getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * @return number of segment files in the blob log
+	 */
+	public int getSegmentCount() {
+		return log.getSegmentCount();
+	}
+
+	/**
+	 * @return total size in bytes of the blob log's segment files
+	 */
+	public long getSize() {
+		return log.getSize();
+	}
+
+	/**
+	 * @return size in bytes of the records in the blob log which belong to live blobs
+	 */
+	public long getLiveBytes() {
+		return log.getLiveBytes();
+	}
+
+	@Override
+	public BlobStore openBlobStore(String namespace, String accountId, boolean contentAddressed, @Nullable BlobCodec codec) {
+		return createBlobStore(namespace, accountId, namespace, contentAddressed, codec);
+	}
+
+	@Override
+	public BlobStore createBlobStore(String namespace, String accountId, String contentNamespace, boolean contentAddressed, @Nullable BlobCodec codec) {
+		if (contentAddressed && warnedContentAddressed.compareAndSet(false, true)) {
+			logger.warn("FileStorageEngine doesn't support content-addressed blobs; blob data will be stored inline");
+		}
+		return new FileBlobStore(log, namespace, accountId, codec);
+	}
+
+	@Override
+	public TimestampRecordStorage createTimestampRecordStorage(String namespace, String accountId) {
+		return delegate.createTimestampRecordStorage(namespace, accountId);
+	}
+
+	@Override
+	public UserRecordAccess createUserRecordAccess(String namespace) {
+		return delegate.createUserRecordAccess(namespace);
+	}
+
+	@Override
+	public void flush(String prefix) {
+		logger.info("Deleting all blobs under the {}* namespace", prefix);
+		try {
+			log.dropAll(prefix);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to flush blobs under " + prefix, e);
+		}
+		delegate.flush(prefix);
+	}
+
+	/**
+	 * Compact the blob log if enough of it is garbage
+	 *
+	 * @return number of segments compacted
+	 * @throws IOException if the log can't be read or written
+	 */
+	public int compact() throws IOException {
+		return log.compact(compactionGarbageRatio);
+	}
+
+	private void compactQuietly() {
+		try {
+			compact();
+		} catch (IOException | RuntimeException e) {
+			logger.error("FileStorageEngine::compact - compaction failed", e);
+		}
+	}
+
+	/**
+	 * Stop compaction and close the blob log's files
+	 */
+	@Override
+	public void close() throws IOException {
+		if (compactionExecutor != null) {
+			// not shutdownNow - interrupting a thread mid-transfer closes the FileChannel it's using
+			compactionExecutor.shutdown();
+			try {
+				compactionExecutor.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		log.close();
+	}
+}
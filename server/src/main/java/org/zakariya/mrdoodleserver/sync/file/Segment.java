@@ -0,0 +1,179 @@
+package org.zakariya.mrdoodleserver.sync.file;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Segment
+ * One file of a BlobLog. Records are only ever appended to the log's active segment; once it grows past the
+ * log's segment size it's sealed and never written again. Segments are reference counted so compaction can
+ * retire a segment while readers are still streaming from it - the file is closed and deleted once the last
+ * reader releases it.
+ */
+class Segment {
+
+	private static final Logger logger = LoggerFactory.getLogger(Segment.class);
+	private static final String FILE_PREFIX = "segment-";
+	private static final String FILE_SUFFIX = ".log";
+
+	private long id;
+	private File file;
+	private FileChannel channel;
+	private volatile long size;
+	private volatile boolean sealed;
+	private AtomicLong liveBytes = new AtomicLong();
+	private MappedByteBuffer mapping;
+	private int refs = 1;
+	private boolean retired;
+
+	Segment(File directory, long id) throws IOException {
+		this.id = id;
+		this.file = new File(directory, getFileName(id));
+		this.channel = new RandomAccessFile(file, "rw").getChannel();
+		this.size = channel.size();
+	}
+
+	long getId() {
+		return id;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	FileChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return number of bytes of records in the segment
+	 */
+	long getSize() {
+		return size;
+	}
+
+	void setSize(long size) {
+		this.size = size;
+	}
+
+	/**
+	 * @return number of bytes of records in the segment which are still referenced by the log's index
+	 */
+	long getLiveBytes() {
+		return liveBytes.get();
+	}
+
+	void addLiveBytes(long delta) {
+		liveBytes.addAndGet(delta);
+	}
+
+	boolean isSealed() {
+		return sealed;
+	}
+
+	/**
+	 * Mark the segment as complete; it will not be appended to again
+	 */
+	void seal() throws IOException {
+		channel.force(true);
+		sealed = true;
+	}
+
+	/**
+	 * Map a region of the segment into memory, read-only. Sealed segments are mapped once in their entirety and
+	 * sliced; the active segment is still growing, so the region itself is mapped.
+	 *
+	 * @param position offset in the segment of the region
+	 * @param length   length of the region
+	 * @return a buffer whose position is 0 and limit is length
+	 */
+	ByteBuffer map(long position, int length) throws IOException {
+		MappedByteBuffer segmentMapping = getMapping();
+		if (segmentMapping != null) {
+			ByteBuffer slice = segmentMapping.duplicate();
+			slice.position((int) position);
+			slice.limit((int) position + length);
+			return slice.slice();
+		}
+
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+	}
+
+	private synchronized MappedByteBuffer getMapping() throws IOException {
+		if (mapping == null && sealed && size <= Integer.MAX_VALUE) {
+			mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		return mapping;
+	}
+
+	/**
+	 * Take a reference to the segment, so it isn't deleted while being read
+	 *
+	 * @return false if the segment has been retired and can no longer be read
+	 */
+	synchronized boolean retain() {
+		if (retired) {
+			return false;
+		}
+		refs++;
+		return true;
+	}
+
+	/**
+	 * Drop a reference taken by retain(); the file of a retired segment is deleted when its last reference is dropped
+	 */
+	synchronized void release() {
+		if (--refs == 0) {
+			close();
+			if (retired && !file.delete()) {
+				logger.error("Segment::release - unable to delete retired segment {}", file);
+			}
+		}
+	}
+
+	/**
+	 * Retire the segment, dropping the log's own reference to it
+	 */
+	void retire() {
+		synchronized (this) {
+			retired = true;
+		}
+		release();
+	}
+
+	void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.error("Segment::close - unable to close " + file, e);
+		}
+	}
+
+	static String getFileName(long id) {
+		return String.format("%s%016d%s", FILE_PREFIX, id, FILE_SUFFIX);
+	}
+
+	/**
+	 * @param fileName name of a file in a log's directory
+	 * @return the id of the segment stored in the file, or -1 if it isn't a segment
+	 */
+	static long parseId(String fileName) {
+		if (!fileName.startsWith(FILE_PREFIX) || !fileName.endsWith(FILE_SUFFIX)) {
+			return -1;
+		}
+
+		try {
+			return Long.parseLong(fileName.substring(FILE_PREFIX.length(), fileName.length() - FILE_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+package org.zakariya.mrdoodleserver.sync.memory;
+
+import org.jetbrains.annotations.Nullable;
+import org.zakariya.mrdoodleserver.sync.BlobCodec;
+import org.zakariya.mrdoodleserver.sync.BlobCodecs;
+import org.zakariya.mrdoodleserver.sync.BlobStore;
+import org.zakariya.mrdoodleserver.sync.memory.MemoryStorageEngine.StoredBlob;
+import org.zakariya.mrdoodleserver.sync.memory.MemoryStorageEngine.StoredData;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * MemoryBlobStore
+ * BlobStore which keeps blobs in MemoryStorageEngine. Blob data is chunked and encoded exactly as RedisBlobStore
+ * stores it, so behavior (ranges, compression, content-addressed sharing) is the same under either engine.
+ */
+public class MemoryBlobStore extends BlobStore {
+
+	/**
+	 * Metadata of a blob stored in memory; holds the blob's data, so reads see a consistent snapshot even if the blob is replaced
+	 */
+	private static class MemoryMetadata extends Metadata {
+		StoredData data;
+
+		MemoryMetadata(String id, StoredBlob blob, StoredData data) {
+			super(id, blob.type, blob.timestamp, data.length, data.chunkSize, data.encoding, data.decodedLength, data.digest);
+			this.data = data;
+		}
+	}
+
+	private MemoryStorageEngine engine;
+
+	/**
+	 * @param engine           the engine holding the store's blobs
+	 * @param namespace        the top-level namespace under which blobs will be stored
+	 * @param accountId        the user account for the blobs which will be stored
+	 * @param contentNamespace the namespace under which content-addressed blob data is shared
+	 * @param contentAddressed if true, blob data is stored once under its SHA-256 digest and shared by every blob with identical data
+	 * @param codec            if non-null, blob data written to the store is compressed with this codec
+	 */
+	public MemoryBlobStore(MemoryStorageEngine engine, String namespace, String accountId, String contentNamespace, boolean contentAddressed, @Nullable BlobCodec codec) {
+		super(namespace, accountId, contentNamespace, contentAddressed, codec);
+		this.engine = engine;
+	}
+
+	@Override
+	public void set(String id, String type, long timestamp, byte[] data) {
+		String encoding = BlobCodecs.IDENTITY;
+		long decodedLength = data.length;
+		BlobCodec codec = getCodec();
+		if (codec != null) {
+			encoding = codec.getName();
+			data = encode(codec, data);
+		}
+
+		int chunkSize = getChunkSize();
+		List<byte[]> chunks = new ArrayList<>();
+		for (int offset = 0; offset < data.length; offset += chunkSize) {
+			chunks.add(Arrays.copyOfRange(data, offset, Math.min(data.length, offset + chunkSize)));
+		}
+
+		store(id, type, timestamp, new StoredData(chunks, data.length, chunkSize, encoding, decodedLength, getDigest(data)));
+		writes.add(id);
+	}
+
+	@Override
+	protected Upload beginUpload() {
+		return new MemoryUpload();
+	}
+
+	@Override
+	protected void finishUpload(String id, String type, long timestamp, Upload upload, String encoding, long decodedLength) {
+		StoredData data = new StoredData(((MemoryUpload) upload).chunks, upload.getLength(), getChunkSize(), encoding, decodedLength, upload.getDigest());
+		store(id, type, timestamp, data);
+	}
+
+	/**
+	 * Upload which simply collects its chunks
+	 */
+	private class MemoryUpload extends Upload {
+		List<byte[]> chunks = new ArrayList<>();
+
+		@Override
+		protected void writeChunk(int index, byte[] buffer, int offset, int length) {
+			chunks.add(Arrays.copyOfRange(buffer, offset, offset + length));
+		}
+
+		@Override
+		protected void discardChunks() {
+			chunks.clear();
+		}
+	}
+
+	/**
+	 * Store a blob, replacing any blob with the same id. Content-addressed data is referenced before the replaced
+	 * blob's is released, so rewriting identical data never drops the content.
+	 */
+	private void store(String id, String type, long timestamp, StoredData data) {
+		StoredBlob blob;
+		if (isContentAddressed()) {
+			String contentKey = MemoryStorageEngine.getContentKey(getContentNamespace(), getContentId(data.digest, data.encoding));
+			engine.retainContent(contentKey, data);
+			blob = new StoredBlob(type, timestamp, null, contentKey);
+		} else {
+			blob = new StoredBlob(type, timestamp, data, null);
+		}
+
+		release(getBlobs().put(id, blob));
+	}
+
+	@Nullable
+	@Override
+	public Entry get(String id) {
+		StoredBlob blob = getBlobs().get(id);
+		StoredData data = getData(blob);
+		if (data == null) {
+			return null;
+		}
+
+		byte[] bytes = new byte[(int) data.length];
+		int offset = 0;
+		for (byte[] chunk : data.chunks) {
+			System.arraycopy(chunk, 0, bytes, offset, chunk.length);
+			offset += chunk.length;
+		}
+
+		return new Entry(id, blob.type, blob.timestamp, decode(data.encoding, bytes));
+	}
+
+	@Nullable
+	@Override
+	public Metadata getMetadata(String id) {
+		StoredBlob blob = getBlobs().get(id);
+		StoredData data = getData(blob);
+		return data != null ? new MemoryMetadata(id, blob, data) : null;
+	}
+
+	@Override
+	protected InputStream openData(Metadata metadata) throws IOException {
+		final List<byte[]> chunks = ((MemoryMetadata) metadata).data.chunks;
+		return new ChunkInputStream(metadata) {
+			@Override
+			protected byte[] readChunk(int index) throws IOException {
+				return index < chunks.size() ? chunks.get(index) : null;
+			}
+		};
+	}
+
+	@Override
+	public Map<String, Entry> getAll(Collection<String> ids) {
+		Map<String, Entry> entries = new LinkedHashMap<>();
+		for (String id : ids) {
+			Entry entry = get(id);
+			if (entry != null) {
+				entries.put(id, entry);
+			}
+		}
+		return entries;
+	}
+
+	@Nullable
+	@Override
+	public String getType(String id) {
+		StoredBlob blob = getBlobs().get(id);
+		return blob != null ? blob.type : null;
+	}
+
+	@Override
+	public boolean has(String id) {
+		return getBlobs().containsKey(id);
+	}
+
+	@Override
+	public void delete(String id) {
+		deletions.add(id);
+		release(getBlobs().remove(id));
+	}
+
+	@Override
+	public void discard() {
+		Map<String, StoredBlob> blobs = engine.removeBlobs(getNamespace(), getAccountId());
+		if (blobs != null) {
+			blobs.values().forEach(this::release);
+		}
+
+		deletions.clear();
+		writes.clear();
+	}
+
+	/**
+	 * Save this store's writes and deletes to another MemoryBlobStore. Written blobs are moved to the destination,
+	 * along with their references to content-addressed data.
+	 *
+	 * @param store the store to copy changes from this store to; must be a MemoryBlobStore of the same engine
+	 */
+	@Override
+	public void save(BlobStore store) {
+		if (!(store instanceof MemoryBlobStore) || ((MemoryBlobStore) store).engine != engine) {
+			throw new IllegalArgumentException("MemoryBlobStore can only save to another MemoryBlobStore of the same MemoryStorageEngine");
+		}
+
+		MemoryBlobStore destination = (MemoryBlobStore) store;
+		Map<String, StoredBlob> sourceBlobs = getBlobs();
+		Map<String, StoredBlob> destinationBlobs = destination.getBlobs();
+
+		for (String id : writes) {
+			StoredBlob blob = sourceBlobs.remove(id);
+			if (blob != null) {
+				release(destinationBlobs.put(id, blob));
+			}
+		}
+		destination.writes.addAll(writes);
+
+		for (String id : deletions) {
+			release(destinationBlobs.remove(id));
+		}
+		destination.deletions.addAll(deletions);
+	}
+
+	private Map<String, StoredBlob> getBlobs() {
+		return engine.getBlobs(getNamespace(), getAccountId());
+	}
+
+	@Nullable
+	private StoredData getData(@Nullable StoredBlob blob) {
+		if (blob == null) {
+			return null;
+		}
+		return blob.contentKey != null ? engine.getContent(blob.contentKey) : blob.data;
+	}
+
+	/**
+	 * Drop a removed or replaced blob's reference to content-addressed data
+	 */
+	private void release(@Nullable StoredBlob blob) {
+		if (blob != null && blob.contentKey != null) {
+			engine.releaseContent(blob.contentKey);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package org.zakariya.mrdoodleserver.sync.memory;
+
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zakariya.mrdoodleserver.auth.User;
+import org.zakariya.mrdoodleserver.sync.BlobCodec;
+import org.zakariya.mrdoodleserver.sync.BlobStore;
+import org.zakariya.mrdoodleserver.sync.CompactionWatermark;
+import org.zakariya.mrdoodleserver.sync.StorageEngine;
+import org.zakariya.mrdoodleserver.sync.TimestampRecordStorage;
+import org.zakariya.mrdoodleserver.sync.UserRecordAccess;
+import org.zakariya.mrdoodleserver.transport.TimestampRecordEntry;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MemoryStorageEngine
+ * StorageEngine which keeps everything in memory, in concurrent maps keyed by namespace. Nothing survives a restart;
+ * this is intended for tests and local development, where it saves having to run redis.
+ */
+public class MemoryStorageEngine implements StorageEngine {
+
+	private static final Logger logger = LoggerFactory.getLogger(MemoryStorageEngine.class);
+
+	/**
+	 * A blob's data as stored: its chunks and how they're encoded. Immutable, so it can be shared freely
+	 * between stores, and read while being replaced.
+	 */
+	static class StoredData {
+		final List<byte[]> chunks;
+		final long length;
+		final int chunkSize;
+		final String encoding;
+		final long decodedLength;
+		final String digest;
+
+		StoredData(List<byte[]> chunks, long length, int chunkSize, String encoding, long decodedLength, String digest) {
+			this.chunks = Collections.unmodifiableList(chunks);
+			this.length = length;
+			this.chunkSize = chunkSize;
+			this.encoding = encoding;
+			this.decodedLength = decodedLength;
+			this.digest = digest;
+		}
+	}
+
+	/**
+	 * A blob; its data is either held inline, or is the content stored under contentKey
+	 */
+	static class StoredBlob {
+		final String type;
+		final long timestamp;
+		final StoredData data;
+		final String contentKey;
+
+		StoredBlob(String type, long timestamp, @Nullable StoredData data, @Nullable String contentKey) {
+			this.type = type;
+			this.timestamp = timestamp;
+			this.data = data;
+			this.contentKey = contentKey;
+		}
+	}
+
+	/**
+	 * Content-addressed data, and the number of blobs referencing it
+	 */
+	private static class Content {
+		final StoredData data;
+		final int refs;
+
+		Content(StoredData data, int refs) {
+			this.data = data;
+			this.refs = refs;
+		}
+	}
+
+	private Map<String, Map<String, StoredBlob>> blobsByStore = new ConcurrentHashMap<>();
+	private Map<String, Content> contentByKey = new ConcurrentHashMap<>();
+	private Map<String, Map<String, TimestampRecordEntry>> timestampRecords = new ConcurrentHashMap<>();
+	private Map<String, AtomicLong> timestampRecordSeqs = new ConcurrentHashMap<>();
+	private Map<String, CompactionWatermark> timestampRecordCompactionWatermarks = new ConcurrentHashMap<>();
+	private Map<String, Map<String, User>> userRecords = new ConcurrentHashMap<>();
+
+	@Override
+	public BlobStore openBlobStore(String namespace, String accountId, boolean contentAddressed, @Nullable BlobCodec codec) {
+		return new MemoryBlobStore(this, namespace, accountId, namespace, contentAddressed, codec);
+	}
+
+	@Override
+	public BlobStore createBlobStore(String namespace, String accountId, String contentNamespace, boolean contentAddressed, @Nullable BlobCodec codec) {
+		return new MemoryBlobStore(this, namespace, accountId, contentNamespace, contentAddressed, codec);
+	}
+
+	@Override
+	public TimestampRecordStorage createTimestampRecordStorage(String namespace, String accountId) {
+		return new MemoryTimestampRecordStorage(timestampRecords, timestampRecordSeqs, timestampRecordCompactionWatermarks, getStoreKey(namespace, accountId));
+	}
+
+	@Override
+	public UserRecordAccess createUserRecordAccess(String namespace) {
+		return new MemoryUserRecordAccess(userRecords.computeIfAbsent(namespace + "/", k -> new ConcurrentHashMap<>()));
+	}
+
+	@Override
+	public void flush(String prefix) {
+		logger.info("Deleting all storage under the {}* namespace", prefix);
+		blobsByStore.keySet().removeIf(key -> key.startsWith(prefix));
+		contentByKey.keySet().removeIf(key -> key.startsWith(prefix));
+		timestampRecords.keySet().removeIf(key -> key.startsWith(prefix));
+		timestampRecordSeqs.keySet().removeIf(key -> key.startsWith(prefix));
+		timestampRecordCompactionWatermarks.keySet().removeIf(key -> key.startsWith(prefix));
+		userRecords.keySet().removeIf(key -> key.startsWith(prefix));
+	}
+
+	/**
+	 * @return number of distinct content-addressed data currently stored
+	 */
+	public int getContentCount() {
+		return contentByKey.size();
+	}
+
+	/**
+	 * @return the map of blob id to blob for a store
+	 */
+	Map<String, StoredBlob> getBlobs(String namespace, String accountId) {
+		return blobsByStore.computeIfAbsent(getStoreKey(namespace, accountId), k -> new ConcurrentHashMap<>());
+	}
+
+	/**
+	 * Drop a store's map of blobs
+	 *
+	 * @return the dropped map, or null if there was none
+	 */
+	@Nullable
+	Map<String, StoredBlob> removeBlobs(String namespace, String accountId) {
+		return blobsByStore.remove(getStoreKey(namespace, accountId));
+	}
+
+	/**
+	 * Add a reference to content, storing it if nothing references it yet
+	 */
+	void retainContent(String contentKey, StoredData data) {
+		contentByKey.compute(contentKey, (key, content) -> content == null ? new Content(data, 1) : new Content(content.data, content.refs + 1));
+	}
+
+	/**
+	 * Drop a reference to content, deleting it when nothing references it anymore
+	 */
+	void releaseContent(String contentKey) {
+		contentByKey.computeIfPresent(contentKey, (key, content) -> content.refs <= 1 ? null : new Content(content.data, content.refs - 1));
+	}
+
+	@Nullable
+	StoredData getContent(String contentKey) {
+		Content content = contentByKey.get(contentKey);
+		return content != null ? content.data : null;
+	}
+
+	/**
+	 * @return number of blobs referencing content, or 0 if it isn't stored
+	 */
+	int getContentRefCount(String contentKey) {
+		Content content = contentByKey.get(contentKey);
+		return content != null ? content.refs : 0;
+	}
+
+	static String getStoreKey(String namespace, String accountId) {
+		return namespace + "/" + accountId;
+	}
+
+	static String getContentKey(String contentNamespace, String contentId) {
+		return contentNamespace + "/content/" + contentId;
+	}
+}
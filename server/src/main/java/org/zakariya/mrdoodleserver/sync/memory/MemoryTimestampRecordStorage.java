@@ -0,0 +1,68 @@
+package org.zakariya.mrdoodleserver.sync.memory;
+
+import org.zakariya.mrdoodleserver.sync.CompactionWatermark;
+import org.zakariya.mrdoodleserver.sync.TimestampRecordStorage;
+import org.zakariya.mrdoodleserver.transport.TimestampRecordEntry;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MemoryTimestampRecordStorage
+ * Keeps a TimestampRecord's entries in MemoryStorageEngine
+ */
+class MemoryTimestampRecordStorage implements TimestampRecordStorage {
+
+	private Map<String, Map<String, TimestampRecordEntry>> timestampRecords;
+	private Map<String, AtomicLong> seqs;
+	private Map<String, CompactionWatermark> compactionWatermarks;
+	private String key;
+
+	MemoryTimestampRecordStorage(Map<String, Map<String, TimestampRecordEntry>> timestampRecords, Map<String, AtomicLong> seqs, Map<String, CompactionWatermark> compactionWatermarks, String key) {
+		this.timestampRecords = timestampRecords;
+		this.seqs = seqs;
+		this.compactionWatermarks = compactionWatermarks;
+		this.key = key;
+	}
+
+	@Override
+	public Map<String, TimestampRecordEntry> load() {
+		Map<String, TimestampRecordEntry> entries = timestampRecords.get(key);
+		return entries != null ? new HashMap<>(entries) : new HashMap<>();
+	}
+
+	@Override
+	public void save(Map<String, TimestampRecordEntry> entriesByDocumentId) {
+		timestampRecords.put(key, new ConcurrentHashMap<>(entriesByDocumentId));
+	}
+
+	@Override
+	public long incrementSeq(int count) {
+		return seqs.computeIfAbsent(key, k -> new AtomicLong()).addAndGet(count);
+	}
+
+	@Override
+	public CompactionWatermark loadCompactionWatermark() {
+		return compactionWatermarks.getOrDefault(key, CompactionWatermark.NONE);
+	}
+
+	@Override
+	public void compact(Collection<String> documentIds, CompactionWatermark watermark) {
+		Map<String, TimestampRecordEntry> persisted = timestampRecords.get(key);
+		if (persisted != null) {
+			persisted.keySet().removeAll(documentIds);
+		}
+		compactionWatermarks.put(key, watermark);
+	}
+
+	@Override
+	public void put(Collection<TimestampRecordEntry> entries) {
+		Map<String, TimestampRecordEntry> persisted = timestampRecords.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+		for (TimestampRecordEntry entry : entries) {
+			persisted.put(entry.getDocumentId(), entry);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package org.zakariya.mrdoodleserver.sync.memory;
+
+import org.zakariya.mrdoodleserver.auth.User;
+import org.zakariya.mrdoodleserver.sync.UserRecordAccess;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * MemoryUserRecordAccess
+ * UserRecordAccess which keeps the user record in MemoryStorageEngine
+ */
+class MemoryUserRecordAccess implements UserRecordAccess {
+
+	private Map<String, User> usersById;
+
+	MemoryUserRecordAccess(Map<String, User> usersById) {
+		this.usersById = usersById;
+	}
+
+	@Override
+	public void recordUserVisit(User user) {
+		usersById.put(user.getAccountId(), new User(user.getAccountId(), safe(user.getEmail()), safe(user.getAvatarUrl()), getTimestampSeconds()));
+	}
+
+	@Override
+	public Set<String> getUserIds() {
+		return new HashSet<>(usersById.keySet());
+	}
+
+	@Override
+	public boolean isUser(String userId) {
+		return usersById.containsKey(userId);
+	}
+
+	@Override
+	public long getUserCount() {
+		return usersById.size();
+	}
+
+	@Override
+	@Nullable
+	public User getUser(String userId) {
+		User user = usersById.get(userId);
+		return user != null && !user.getEmail().isEmpty() ? user : null;
+	}
+
+	@Override
+	public long getUserVisitTimestampSeconds(String userId) {
+		User user = usersById.get(userId);
+		return user != null ? user.getLastAccessTimestampSeconds() : 0;
+	}
+
+	private String safe(String string) {
+		return string != null && !string.isEmpty() ? string : "";
+	}
+
+	private long getTimestampSeconds() {
+		return (new Date()).getTime() / 1000;
+	}
+}
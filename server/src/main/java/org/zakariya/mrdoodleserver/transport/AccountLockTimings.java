@@ -0,0 +1,29 @@
+package org.zakariya.mrdoodleserver.transport;
+
+/**
+ * AccountLockTimings
+ * How long one route's requests have waited for, and held, account locks. Percentiles are bucketed to within a
+ * factor of two.
+ */
+public class AccountLockTimings {
+
+	// times the route took an account's read or write lock
+	public long acquisitions;
+
+	public double waitMeanMicros;
+	public long waitP50Micros;
+	public long waitP99Micros;
+	public long waitMaxMicros;
+
+	public double holdMeanMicros;
+	public long holdP50Micros;
+	public long holdP99Micros;
+	public long holdMaxMicros;
+
+	// reads served without taking the lock
+	public long optimisticReads;
+
+	// optimistic reads retried under the read lock because a writer intervened
+	public long optimisticFallbacks;
+
+}
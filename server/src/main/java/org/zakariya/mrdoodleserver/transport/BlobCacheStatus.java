@@ -0,0 +1,30 @@
+package org.zakariya.mrdoodleserver.transport;
+
+/**
+ * BlobCacheStatus
+ * Size and effectiveness of the server's in-process blob cache
+ */
+public class BlobCacheStatus {
+
+	// false if the blob cache is disabled, in which case the other fields are 0
+	public boolean enabled;
+
+	// maximum bytes the cache holds
+	public long capacity;
+
+	// bytes currently held
+	public long size;
+
+	// number of blobs currently held
+	public int count;
+
+	// blob reads served from the cache
+	public long hits;
+
+	// blob reads which had to go to the blob store
+	public long misses;
+
+	// blobs dropped to make room for others
+	public long evictions;
+
+}
@@ -0,0 +1,18 @@
+package org.zakariya.mrdoodleserver.transport;
+
+/**
+ * DebouncerStatus
+ * Load on the scheduler shared by the server's debounced calls (timestamp record saves, status broadcasts)
+ */
+public class DebouncerStatus {
+
+	// debounced calls waiting for their delay to pass
+	public int pending;
+
+	// debounced calls running now
+	public int active;
+
+	// debounced calls which have run
+	public long completed;
+
+}
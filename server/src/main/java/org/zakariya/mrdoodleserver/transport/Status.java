@@ -10,6 +10,9 @@ import java.util.List;
 public final class Status {
 	public String deviceId;
 	public long timestampHeadSeconds = 0;
+	public long headSeq = 0;
+	public long compactionWatermarkSeconds = 0;
+	public long compactionWatermarkSeq = 0;
 	public List<String> grantedLockedDocumentIds = new ArrayList<>();
 	public List<String> foreignLockedDocumentIds = new ArrayList<>();
 }
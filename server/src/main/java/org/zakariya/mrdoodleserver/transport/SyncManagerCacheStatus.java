@@ -0,0 +1,36 @@
+package org.zakariya.mrdoodleserver.transport;
+
+/**
+ * SyncManagerCacheStatus
+ * Size and effectiveness of the server's cache of account SyncManagers
+ */
+public class SyncManagerCacheStatus {
+
+	// false if the server has no SyncManager cache, in which case the other fields are 0
+	public boolean enabled;
+
+	// number of SyncManagers currently cached
+	public int count;
+
+	// total timestamp record entries of the cached SyncManagers
+	public long weight;
+
+	// weight past which the least recently used SyncManagers are evicted
+	public long maxWeight;
+
+	// SyncManager lookups served from the cache
+	public long hits;
+
+	// SyncManagers loaded from storage
+	public long loads;
+
+	// mean time taken to load a SyncManager
+	public double averageLoadMillis;
+
+	// SyncManagers evicted for going unused, or after their account's devices disconnected
+	public long idleEvictions;
+
+	// SyncManagers evicted to bring the cache under its maximum weight
+	public long weightEvictions;
+
+}
@@ -1,5 +1,6 @@
 package org.zakariya.mrdoodleserver.transport;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 /**
@@ -18,15 +19,25 @@ public class TimestampRecordEntry {
 	@JsonProperty
 	private int action;
 
+	// position of the entry in the account's sequence of changes; 0, and omitted from json, if not yet assigned one
+	@JsonProperty
+	@JsonInclude(JsonInclude.Include.NON_DEFAULT)
+	private long seq;
+
 	public TimestampRecordEntry() {
 		super();
 	}
 
 	public TimestampRecordEntry(String documentId, String documentType, long timestampSeconds, int action) {
+		this(documentId, documentType, timestampSeconds, action, 0);
+	}
+
+	public TimestampRecordEntry(String documentId, String documentType, long timestampSeconds, int action, long seq) {
 		this.documentId = documentId;
 		this.documentType = documentType;
 		this.timestampSeconds = timestampSeconds;
 		this.action = action;
+		this.seq = seq;
 	}
 
 	public String getDocumentId() {
@@ -45,6 +56,18 @@ public class TimestampRecordEntry {
 		return action;
 	}
 
+	/**
+	 * @return the account-wide sequence number assigned to the entry when it was committed. Sequence numbers
+	 * increase with every change, so unlike timestamps they order changes made in the same second.
+	 */
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * Entries are equal if they record the same event; the sequence number isn't compared, as it records where the
+	 * event falls in an account's changes rather than the event itself.
+	 */
 	@Override
 	public boolean equals(Object obj) {
 		if (obj != null && obj instanceof TimestampRecordEntry) {
@@ -0,0 +1,51 @@
+package org.zakariya.mrdoodleserver.util;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * AcceptEncoding
+ * Content negotiation against an HTTP Accept-Encoding header (RFC 7231)
+ */
+public class AcceptEncoding {
+
+	/**
+	 * @param header the value of the Accept-Encoding header, may be null
+	 * @param coding a content-coding, e.g., "gzip"
+	 * @return true if a response encoded with the content-coding is acceptable to the client
+	 */
+	public static boolean accepts(@Nullable String header, String coding) {
+		if (header == null) {
+			return false;
+		}
+
+		Float wildcardQuality = null;
+		for (String element : header.split(",")) {
+			String[] parts = element.split(";");
+			String name = parts[0].trim();
+			float quality = getQuality(parts);
+
+			if (name.equalsIgnoreCase(coding)) {
+				// an explicit entry takes precedence over the wildcard
+				return quality > 0;
+			} else if (name.equals("*")) {
+				wildcardQuality = quality;
+			}
+		}
+
+		return wildcardQuality != null && wildcardQuality > 0;
+	}
+
+	private static float getQuality(String[] parts) {
+		for (int i = 1; i < parts.length; i++) {
+			String param = parts[i].trim();
+			if (param.startsWith("q=")) {
+				try {
+					return Float.parseFloat(param.substring(2).trim());
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+}
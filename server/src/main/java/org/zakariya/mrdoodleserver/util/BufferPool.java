@@ -0,0 +1,66 @@
+package org.zakariya.mrdoodleserver.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool
+ * A bounded pool of fixed-size byte buffers, so code which needs a large scratch buffer per request doesn't
+ * allocate (and make garbage of) a new one every time. Buffers beyond the pool's capacity are simply dropped.
+ */
+public class BufferPool {
+
+	private int bufferSize;
+	private int capacity;
+	private ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+	private AtomicInteger pooledCount = new AtomicInteger();
+
+	/**
+	 * @param bufferSize size in bytes of the buffers vended by the pool
+	 * @param capacity   maximum number of idle buffers the pool retains
+	 */
+	public BufferPool(int bufferSize, int capacity) {
+		this.bufferSize = bufferSize;
+		this.capacity = capacity;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return number of idle buffers currently in the pool
+	 */
+	public int getPooledCount() {
+		return pooledCount.get();
+	}
+
+	/**
+	 * @return a buffer of getBufferSize() bytes, with arbitrary contents
+	 */
+	public byte[] acquire() {
+		byte[] buffer = buffers.poll();
+		if (buffer != null) {
+			pooledCount.decrementAndGet();
+			return buffer;
+		}
+		return new byte[bufferSize];
+	}
+
+	/**
+	 * Return a buffer to the pool. The caller must not use the buffer afterwards.
+	 *
+	 * @param buffer a buffer from acquire(); buffers of any other size are ignored
+	 */
+	public void release(byte[] buffer) {
+		if (buffer == null || buffer.length != bufferSize) {
+			return;
+		}
+
+		if (pooledCount.incrementAndGet() <= capacity) {
+			buffers.offer(buffer);
+		} else {
+			pooledCount.decrementAndGet();
+		}
+	}
+}
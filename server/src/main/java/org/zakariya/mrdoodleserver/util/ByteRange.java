@@ -0,0 +1,112 @@
+package org.zakariya.mrdoodleserver.util;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * ByteRange
+ * A single byte range requested via an HTTP Range header (RFC 7233), resolved against the length of the
+ * resource being requested.
+ */
+public class ByteRange {
+
+	private static final String UNIT_PREFIX = "bytes=";
+
+	private long first;
+	private long last;
+	private long resourceLength;
+
+	private ByteRange(long first, long last, long resourceLength) {
+		this.first = first;
+		this.last = last;
+		this.resourceLength = resourceLength;
+	}
+
+	/**
+	 * Parse a Range header value.
+	 *
+	 * @param header         the value of the Range header, may be null
+	 * @param resourceLength the length of the resource the range applies to
+	 * @return the requested range, or null if there's no header or it should be ignored (it's malformed, or
+	 * requests multiple ranges) and the whole resource served. The range returned may not be satisfiable.
+	 */
+	@Nullable
+	public static ByteRange parse(@Nullable String header, long resourceLength) {
+		if (header == null) {
+			return null;
+		}
+
+		header = header.trim();
+		if (!header.startsWith(UNIT_PREFIX) || header.indexOf(',') >= 0) {
+			return null;
+		}
+
+		String spec = header.substring(UNIT_PREFIX.length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+
+		try {
+			String firstSpec = spec.substring(0, dash).trim();
+			String lastSpec = spec.substring(dash + 1).trim();
+
+			if (firstSpec.isEmpty()) {
+				// suffix range, "bytes=-500" is the final 500 bytes
+				long suffixLength = Long.parseLong(lastSpec);
+				if (suffixLength < 0) {
+					return null;
+				}
+				return new ByteRange(Math.max(0, resourceLength - suffixLength), resourceLength - 1, resourceLength);
+			}
+
+			long first = Long.parseLong(firstSpec);
+			long last = lastSpec.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastSpec);
+			if (first < 0 || last < first) {
+				return null;
+			}
+
+			return new ByteRange(first, Math.min(last, resourceLength - 1), resourceLength);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return offset of the first byte in the range
+	 */
+	public long getFirst() {
+		return first;
+	}
+
+	/**
+	 * @return offset of the last byte in the range (inclusive)
+	 */
+	public long getLast() {
+		return last;
+	}
+
+	/**
+	 * @return number of bytes in the range
+	 */
+	public long getLength() {
+		return last - first + 1;
+	}
+
+	/**
+	 * @return true if the range overlaps the resource; if not the request should be answered with a 416
+	 */
+	public boolean isSatisfiable() {
+		return first < resourceLength && first <= last;
+	}
+
+	/**
+	 * @return the value of the Content-Range header to send with a response to this range
+	 */
+	public String getContentRange() {
+		if (isSatisfiable()) {
+			return "bytes " + first + "-" + last + "/" + resourceLength;
+		} else {
+			return "bytes */" + resourceLength;
+		}
+	}
+}
@@ -1,12 +1,20 @@
 package org.zakariya.mrdoodleserver.util;
 
-import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Simple debounce implementation.
+ * Simple debounce and throttle implementations. Every debounced or throttled function's timers run on one shared
+ * scheduler, so applying one only queues a task; cancelled timers are removed from the queue at once.
  */
 public class Debouncer {
 
+	private static final int SCHEDULER_THREADS = 2;
+
+	private static final ScheduledThreadPoolExecutor scheduler = createScheduler();
+
 	public interface Function<T> {
 		void apply(T t);
 
@@ -16,27 +24,89 @@ public class Debouncer {
 
 	public static <T> Function<T> debounce(final Function<T> function, final int delayMilliseconds) {
 		return new Function<T>() {
-			private java.util.concurrent.ScheduledFuture<Void> timeout;
+			private ScheduledFuture<?> timeout;
 
 			@Override
-			public void apply(T v) {
+			public synchronized void apply(T v) {
 				clearTimeout(timeout);
+				timeout = scheduler.schedule(() -> function.apply(v), delayMilliseconds, TimeUnit.MILLISECONDS);
+			}
+		};
+	}
+
+	/**
+	 * Throttle a function: the first call runs at once, and calls made within intervalMilliseconds of the last run are
+	 * coalesced into one run, with the latest value, as soon as the interval has passed. Unlike debouncing, a steady
+	 * stream of calls can't postpone the function; no call waits longer than intervalMilliseconds.
+	 */
+	public static <T> Function<T> throttle(final Function<T> function, final int intervalMilliseconds) {
+		return new Function<T>() {
+			private final long intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMilliseconds);
+			private ScheduledFuture<?> pending;
+			private T pendingValue;
+			private boolean hasRun;
+			private long lastRunNanos;
+
+			@Override
+			public synchronized void apply(T v) {
+				pendingValue = v;
+				if (pending != null) {
+					// coalesced into the scheduled run
+					return;
+				}
 
-				java.util.concurrent.ScheduledExecutorService scheduler = java.util.concurrent.Executors.newSingleThreadScheduledExecutor();
-				timeout = scheduler.schedule(new Callable<Void>() {
-					@Override
-					public Void call() throws Exception {
-						function.apply(v);
-						return null;
-					}
-				}, delayMilliseconds, java.util.concurrent.TimeUnit.MILLISECONDS);
+				long delayNanos = hasRun ? Math.max(0, lastRunNanos + intervalNanos - System.nanoTime()) : 0;
+				pending = scheduler.schedule(this::run, delayNanos, TimeUnit.NANOSECONDS);
+			}
 
-				scheduler.shutdown();
+			private void run() {
+				T v;
+				synchronized (this) {
+					v = pendingValue;
+					pendingValue = null;
+					pending = null;
+					hasRun = true;
+					lastRunNanos = System.nanoTime();
+				}
+				function.apply(v);
 			}
 		};
 	}
 
-	private static void clearTimeout(java.util.concurrent.ScheduledFuture scheduledFuture) {
+	/**
+	 * @return the number of debounced calls waiting for their delay to pass
+	 */
+	public static int getPendingCount() {
+		return scheduler.getQueue().size();
+	}
+
+	/**
+	 * @return the number of debounced calls running now
+	 */
+	public static int getActiveCount() {
+		return scheduler.getActiveCount();
+	}
+
+	/**
+	 * @return the number of debounced calls which have run
+	 */
+	public static long getCompletedCount() {
+		return scheduler.getCompletedTaskCount();
+	}
+
+	private static ScheduledThreadPoolExecutor createScheduler() {
+		AtomicInteger threadCount = new AtomicInteger();
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(SCHEDULER_THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "debouncer-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		executor.prestartAllCoreThreads();
+		return executor;
+	}
+
+	private static void clearTimeout(ScheduledFuture<?> scheduledFuture) {
 		if (scheduledFuture != null && !scheduledFuture.isDone() && !scheduledFuture.isCancelled()) {
 			scheduledFuture.cancel(false);
 		}
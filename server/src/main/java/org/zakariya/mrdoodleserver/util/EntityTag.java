@@ -0,0 +1,90 @@
+package org.zakariya.mrdoodleserver.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * EntityTag
+ * Entity tags, and evaluation of the If-None-Match and If-Range conditional request headers against them (RFC 7232)
+ */
+public class EntityTag {
+
+	private static final String WEAK_PREFIX = "W/";
+
+	/**
+	 * @param opaqueTag a value identifying a specific representation of a resource; must not contain double quotes
+	 * @return a strong entity tag, for an ETag header
+	 */
+	public static String strong(String opaqueTag) {
+		return "\"" + opaqueTag + "\"";
+	}
+
+	/**
+	 * Evaluate an If-None-Match header. Comparison is weak, as the RFC specifies for If-None-Match.
+	 *
+	 * @param header the value of the If-None-Match header, may be null
+	 * @param etag   the current entity tag of the resource
+	 * @return true if the header lists the entity tag (or is "*"), meaning the client's copy is current
+	 */
+	public static boolean matchesAny(@Nullable String header, String etag) {
+		if (header == null) {
+			return false;
+		}
+		if (header.trim().equals("*")) {
+			return true;
+		}
+
+		String opaqueTag = stripWeakPrefix(etag);
+		for (String candidate : parseList(header)) {
+			if (stripWeakPrefix(candidate).equals(opaqueTag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Evaluate an If-Range header. Comparison is strong, so weak entity tags never match; nor do dates, since blob
+	 * responses don't carry Last-Modified.
+	 *
+	 * @param header the value of the If-Range header, may be null
+	 * @param etag   the current entity tag of the resource
+	 * @return true if a Range in the request should be honored
+	 */
+	public static boolean rangeApplies(@Nullable String header, String etag) {
+		if (header == null) {
+			return true;
+		}
+
+		String candidate = header.trim();
+		return !candidate.startsWith(WEAK_PREFIX) && !etag.startsWith(WEAK_PREFIX) && candidate.equals(etag);
+	}
+
+	/**
+	 * Split a comma separated list of entity tags. Commas may appear inside the quotes of an entity tag.
+	 */
+	private static List<String> parseList(String header) {
+		List<String> tags = new ArrayList<>();
+		StringBuilder tag = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < header.length(); i++) {
+			char c = header.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+			} else if (c == ',' && !quoted) {
+				tags.add(tag.toString().trim());
+				tag.setLength(0);
+				continue;
+			}
+			tag.append(c);
+		}
+		tags.add(tag.toString().trim());
+		return tags;
+	}
+
+	private static String stripWeakPrefix(String etag) {
+		return etag.startsWith(WEAK_PREFIX) ? etag.substring(WEAK_PREFIX.length()) : etag;
+	}
+}
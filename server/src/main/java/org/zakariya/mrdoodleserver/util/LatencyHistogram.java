@@ -0,0 +1,88 @@
+package org.zakariya.mrdoodleserver.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram
+ * Counts durations into power-of-two buckets of microseconds: bucket 0 holds durations under 1us, bucket i those in
+ * [2^(i-1), 2^i) microseconds. Recording takes no lock, so it's cheap enough for hot paths; percentiles are accurate
+ * to within a factor of two, which is plenty to tell a contended lock from an uncontended one.
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	/**
+	 * @param nanos a duration, in nanoseconds
+	 */
+	public void record(long nanos) {
+		nanos = Math.max(0, nanos);
+		long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+
+		long max;
+		while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+			// another thread raised the max; retry against its value
+		}
+	}
+
+	/**
+	 * @return number of durations recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return mean of the durations recorded, in microseconds
+	 */
+	public double getMeanMicros() {
+		long n = count.get();
+		return n > 0 ? totalNanos.get() / 1e3 / n : 0;
+	}
+
+	/**
+	 * @return longest duration recorded, in microseconds
+	 */
+	public long getMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(maxNanos.get());
+	}
+
+	/**
+	 * @param percentile a percentile, in [0,100]
+	 * @return the upper bound, in microseconds, of the bucket holding the percentile's duration; 0 if none were recorded
+	 */
+	public long getPercentileMicros(double percentile) {
+		Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "percentile must be in [0,100]");
+
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(1L << i, getMaxMicros());
+			}
+		}
+		return getMaxMicros();
+	}
+}
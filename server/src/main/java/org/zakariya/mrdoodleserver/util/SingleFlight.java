@@ -0,0 +1,88 @@
+package org.zakariya.mrdoodleserver.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SingleFlight
+ * Coalesces concurrent loads of the same key: the first caller runs the load, and callers arriving while it's in
+ * flight wait for and share its result (or its exception) rather than repeating it. Once a load completes the key is
+ * forgotten, so results are never cached; the next caller loads afresh.
+ */
+public class SingleFlight<K, V> {
+
+	public interface Loader<V> {
+		V load() throws IOException;
+	}
+
+	private ConcurrentMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+	private AtomicLong loadCount = new AtomicLong();
+	private AtomicLong sharedCount = new AtomicLong();
+
+	/**
+	 * Load the value for a key, or wait for the load already in flight for it
+	 *
+	 * @param key    identifies the value being loaded
+	 * @param loader loads the value; only run if no load of the key is in flight
+	 * @return the loaded value, which may be shared with other callers so must not be modified
+	 * @throws IOException if the load failed, or the caller was interrupted waiting for another caller's load
+	 */
+	public V get(K key, Loader<V> loader) throws IOException {
+		CompletableFuture<V> flight = new CompletableFuture<>();
+		CompletableFuture<V> inFlight = flights.putIfAbsent(key, flight);
+		if (inFlight != null) {
+			sharedCount.incrementAndGet();
+			return await(inFlight);
+		}
+
+		loadCount.incrementAndGet();
+		try {
+			V value = loader.load();
+			flight.complete(value);
+			return value;
+		} catch (IOException | RuntimeException | Error e) {
+			flight.completeExceptionally(e);
+			throw e;
+		} finally {
+			flights.remove(key, flight);
+		}
+	}
+
+	private V await(CompletableFuture<V> flight) throws IOException {
+		try {
+			return flight.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for an in-flight load");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw new IOException(cause.getMessage(), cause);
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * @return number of loads run
+	 */
+	public long getLoadCount() {
+		return loadCount.get();
+	}
+
+	/**
+	 * @return number of calls which shared another call's load rather than running their own
+	 */
+	public long getSharedCount() {
+		return sharedCount.get();
+	}
+}
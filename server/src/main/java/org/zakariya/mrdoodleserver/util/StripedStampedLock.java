@@ -0,0 +1,72 @@
+package org.zakariya.mrdoodleserver.util;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * StripedStampedLock
+ * A fixed table of read/write locks, one of which is vended for each key by hashing it. Finding a key's lock takes
+ * no lock of its own, and the table's size never grows however many keys are seen. Keys which hash to the same stripe
+ * share a lock, so the more stripes, the less often unrelated keys contend; holding a key's lock while taking
+ * another key's lock may deadlock, since the two may be the same lock. The locks are StampedLocks, so aren't reentrant,
+ * but can be read optimistically, without blocking behind writers at all.
+ */
+public class StripedStampedLock {
+
+	private static final int MAX_STRIPES = 1 << 16;
+
+	private final StampedLock[] stripes;
+	private final int mask;
+
+	/**
+	 * @param stripeCount the number of locks, rounded up to a power of two
+	 */
+	public StripedStampedLock(int stripeCount) {
+		Preconditions.checkArgument(stripeCount > 0 && stripeCount <= MAX_STRIPES, "stripeCount must be in (0," + MAX_STRIPES + "]");
+
+		int size = Integer.highestOneBit(stripeCount);
+		if (size < stripeCount) {
+			size <<= 1;
+		}
+
+		stripes = new StampedLock[size];
+		for (int i = 0; i < size; i++) {
+			stripes[i] = new StampedLock();
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * @param key a key
+	 * @return the lock of the key's stripe, as a ReadWriteLock; always the same lock for equal keys
+	 */
+	public ReadWriteLock get(Object key) {
+		return getStampedLock(key).asReadWriteLock();
+	}
+
+	/**
+	 * @param key a key
+	 * @return the lock of the key's stripe; always the same lock for equal keys
+	 */
+	public StampedLock getStampedLock(Object key) {
+		return stripes[indexFor(key)];
+	}
+
+	/**
+	 * @return the number of locks
+	 */
+	public int size() {
+		return stripes.length;
+	}
+
+	int indexFor(Object key) {
+		// spread the hash's high bits into the low bits the mask keeps (murmur3's finalizer)
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h & mask;
+	}
+}
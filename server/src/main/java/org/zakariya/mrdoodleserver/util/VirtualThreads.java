@@ -0,0 +1,62 @@
+package org.zakariya.mrdoodleserver.util;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * VirtualThreads
+ * Access to virtual threads (JDK 21+) from code compiled for Java 8. They're looked up reflectively, so on older
+ * JDKs isSupported() is false and callers fall back to platform threads.
+ */
+public class VirtualThreads {
+
+	@Nullable
+	private static final Method ofVirtual = findMethod(Thread.class, "ofVirtual");
+
+	/**
+	 * @return true if the running JDK has virtual threads (though on JDK 19 and 20 they also need --enable-preview)
+	 */
+	public static boolean isSupported() {
+		return ofVirtual != null;
+	}
+
+	/**
+	 * Create an executor which runs each task on a new virtual thread. A virtual thread blocked on I/O or a lock
+	 * releases its carrier thread, and its stack lives on the heap, so thousands cost little more than their tasks.
+	 *
+	 * @param namePrefix the threads are named namePrefix followed by a counter
+	 * @return the executor, or null if the running JDK has no virtual threads
+	 */
+	@Nullable
+	public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+		if (ofVirtual == null) {
+			return null;
+		}
+
+		try {
+			// Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 0).factory())
+			Object builder = ofVirtual.invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+			ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+		} catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+			// e.g., JDK 19 or 20 without --enable-preview
+			return null;
+		}
+	}
+
+	@Nullable
+	private static Method findMethod(Class<?> c, String name) {
+		try {
+			return c.getMethod(name);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+}
@@ -4,14 +4,14 @@ import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.jetbrains.annotations.Nullable;
 import org.zakariya.mrdoodleserver.SyncServer;
+import org.zakariya.mrdoodleserver.sync.StorageEngine;
 import org.zakariya.mrdoodleserver.util.Configuration;
-import redis.clients.jedis.JedisPool;
 import spark.Spark;
-import spark.utils.IOUtils;
 
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -26,7 +26,7 @@ import static org.junit.Assert.fail;
 public class BaseIntegrationTest {
 
 	private static Configuration configuration;
-	private static JedisPool jedisPool;
+	private static StorageEngine storageEngine;
 	private static String storagePrefix;
 
 	static void startServer(String configurationFilePath) {
@@ -35,14 +35,11 @@ public class BaseIntegrationTest {
 		configuration = new Configuration();
 		configuration.addConfigJsonFilePath(configurationFilePath);
 
-		// start server, flushing storage
-		SyncServer.start(configuration, true);
+		// start server, flushing storage; keep its storage engine so tests can inspect what was stored
+		storageEngine = SyncServer.start(configuration, true);
 
 		storagePrefix = configuration.get("prefix");
 
-		// get a jedis pool we can use for testing
-		jedisPool = SyncServer.buildJedisPool(configuration);
-
 		// wait for server to spin up?
 		try {
 			Thread.sleep(5000);
@@ -61,15 +58,17 @@ public class BaseIntegrationTest {
 		}
 
 		Spark.stop();
-		SyncServer.flushStorage(configuration);
+		if (storagePrefix != null) {
+			storageEngine.flush(storagePrefix);
+		}
 	}
 
 	static String getStoragePrefix() {
 		return storagePrefix;
 	}
 
-	static JedisPool getJedisPool() {
-		return jedisPool;
+	static StorageEngine getStorageEngine() {
+		return storageEngine;
 	}
 
 	static class Header {
@@ -103,21 +102,28 @@ public class BaseIntegrationTest {
 	}
 
 	TestResponse request(String method, String path) {
-		return _request(method, path, null, null);
+		return _request(method, path, null, null, null);
 	}
 
 	TestResponse request(String method, String path, @Nullable Map<String, String> headers) {
-		return _request(method, path, headers, null);
+		return _request(method, path, headers, null, null);
 	}
 
 	TestResponse request(String method, String path, @Nullable Map<String, String> headers, FormPart part) {
 		ArrayList<FormPart> parts = new ArrayList<>();
 		parts.add(part);
 
-		return _request(method, path, headers, parts);
+		return _request(method, path, headers, parts, null);
+	}
+
+	/**
+	 * Send a request whose body is sent as-is; set its Content-Type in headers
+	 */
+	TestResponse request(String method, String path, @Nullable Map<String, String> headers, byte[] body) {
+		return _request(method, path, headers, null, body);
 	}
 
-	private TestResponse _request(String method, String path, @Nullable Map<String, String> headers, @Nullable List<FormPart> formParts) {
+	private TestResponse _request(String method, String path, @Nullable Map<String, String> headers, @Nullable List<FormPart> formParts, @Nullable byte[] body) {
 
 		URL url;
 		HttpURLConnection connection = null;
@@ -142,19 +148,30 @@ public class BaseIntegrationTest {
 					part.apply(builder);
 				}
 				builder.finish();
+			} else if (body != null) {
+				try (OutputStream os = connection.getOutputStream()) {
+					os.write(body);
+				}
 			}
 
 			connection.connect();
 			int status = connection.getResponseCode();
-			String responseBody = null;
+			byte[] responseBody = null;
 
 			if (status >= 200 && status <= 299) {
-				responseBody = IOUtils.toString(connection.getInputStream());
+				responseBody = readFully(connection.getInputStream());
 			} else if (status >= 400) {
-				responseBody = IOUtils.toString(connection.getErrorStream());
+				responseBody = readFully(connection.getErrorStream());
+			}
+
+			Map<String, String> responseHeaders = new HashMap<>();
+			for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+				if (header.getKey() != null && !header.getValue().isEmpty()) {
+					responseHeaders.put(header.getKey().toLowerCase(), header.getValue().get(0));
+				}
 			}
 
-			return new TestResponse(status, responseBody);
+			return new TestResponse(status, responseBody, responseHeaders);
 
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -167,22 +184,48 @@ public class BaseIntegrationTest {
 		}
 	}
 
+	private static byte[] readFully(@Nullable InputStream in) throws IOException {
+		if (in == null) {
+			return null;
+		}
+
+		try (InputStream is = in) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			for (int n; (n = is.read(buffer)) >= 0; ) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		}
+	}
+
 	static class TestResponse {
 
-		private final String body;
+		private final byte[] body;
 		private final int status;
+		private final Map<String, String> headers;
 
-		TestResponse(int status, String body) {
+		TestResponse(int status, byte[] body, Map<String, String> headers) {
 			this.status = status;
 			this.body = body;
+			this.headers = headers;
 		}
 
 		String getBody() {
-			return body;
+			return body != null ? new String(body, StandardCharsets.UTF_8) : null;
 		}
 
 		byte[] getBodyBytes() {
-			return body.getBytes();
+			return body;
+		}
+
+		/**
+		 * @param name a header name, in any case
+		 * @return the header's first value, or null if the response doesn't have it
+		 */
+		@Nullable
+		String getHeader(String name) {
+			return headers.get(name.toLowerCase());
 		}
 
 		<T> T getBody(Class c) {
@@ -6,14 +6,19 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.zakariya.mrdoodleserver.auth.User;
 import org.zakariya.mrdoodleserver.routes.SyncRouter;
+import org.zakariya.mrdoodleserver.sync.BlobDelta;
+import org.zakariya.mrdoodleserver.sync.CompactionWatermark;
 import org.zakariya.mrdoodleserver.sync.TimestampRecord;
 import org.zakariya.mrdoodleserver.sync.UserRecordAccess;
 import org.zakariya.mrdoodleserver.transport.LockStatus;
 import org.zakariya.mrdoodleserver.transport.Status;
 import org.zakariya.mrdoodleserver.transport.TimestampRecordEntry;
 
-import java.util.Date;
-import java.util.Map;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.Assert.*;
 
@@ -30,6 +35,22 @@ public class SyncRouterTests extends BaseIntegrationTest {
 	private static final String DEVICE_ID_0 = "abcde";
 	private static final String DEVICE_ID_1 = "fghij";
 
+	// accounts of their own, for tests which mustn't disturb (or be disturbed by) the others
+	private static final String BLOBS_AUTH_TOKEN = "BLOBS-MOCK-TOKEN";
+	private static final String BLOBS_ACCOUNT_ID = "23456";
+	private static final String LIMIT_AUTH_TOKEN = "LIMIT-MOCK-TOKEN";
+	private static final String LIMIT_ACCOUNT_ID = "34567";
+	private static final String CURSOR_AUTH_TOKEN = "CURSOR-MOCK-TOKEN";
+	private static final String CURSOR_ACCOUNT_ID = "45678";
+	private static final String SINCE_SEQ_AUTH_TOKEN = "SINCE-SEQ-MOCK-TOKEN";
+	private static final String SINCE_SEQ_ACCOUNT_ID = "56789";
+	private static final String COMPACTED_AUTH_TOKEN = "COMPACTED-MOCK-TOKEN";
+	private static final String COMPACTED_ACCOUNT_ID = "67890";
+
+	private static final String DATA_TYPE = "text/plain";
+	private static final TypeReference<Map<String, TimestampRecordEntry>> CHANGES_TYPE_REFERENCE = new TypeReference<Map<String, TimestampRecordEntry>>() {
+	};
+
 
 	@BeforeClass
 	public static void setup() {
@@ -64,6 +85,61 @@ public class SyncRouterTests extends BaseIntegrationTest {
 		return super.header(SyncRouter.REQUEST_HEADER_AUTH, AUTH_TOKEN);
 	}
 
+	private Map<String, String> authHeader(String authToken, String deviceId) {
+		Map<String, String> headers = header(SyncRouter.REQUEST_HEADER_AUTH, authToken);
+		headers.put(SyncRouter.REQUEST_HEADER_DEVICE_ID, deviceId);
+		return headers;
+	}
+
+	/**
+	 * Start a write session
+	 *
+	 * @return headers for uploading blobs of type DATA_TYPE in the session
+	 */
+	private Map<String, String> startWriteSession(String authToken, String accountId) {
+		TestResponse response = request("GET", getPath(accountId) + "writeSession/start", authHeader(authToken, DEVICE_ID_0));
+		assertEquals("Starting a write session response code should be 200", 200, response.getStatus());
+
+		Map<String, String> headers = authHeader(authToken, DEVICE_ID_0);
+		headers.put(SyncRouter.REQUEST_HEADER_DOCUMENT_TYPE, DATA_TYPE);
+		headers.put(SyncRouter.REQUEST_HEADER_WRITE_TOKEN, response.getBody());
+		return headers;
+	}
+
+	private void commitWriteSession(String accountId, Map<String, String> sessionHeaders) {
+		String path = getPath(accountId) + "writeSession/sessions/" + sessionHeaders.get(SyncRouter.REQUEST_HEADER_WRITE_TOKEN);
+		TestResponse response = request("DELETE", path, sessionHeaders);
+		assertEquals("Committing a valid write session response code should be 200", 200, response.getStatus());
+	}
+
+	/**
+	 * Upload and commit a blob per document id, returning the upload response's ETag
+	 */
+	private String writeBlob(String authToken, String accountId, String documentId, byte[] data) {
+		Map<String, String> sessionHeaders = startWriteSession(authToken, accountId);
+		TestResponse response = request("PUT", getPath(accountId) + "blob/" + documentId, sessionHeaders, new BytePart("blob", data));
+		assertEquals("Uploading a blob should have status 200", 200, response.getStatus());
+		commitWriteSession(accountId, sessionHeaders);
+		return response.getHeader(SyncRouter.RESPONSE_HEADER_ETAG);
+	}
+
+	private void writeDocuments(String authToken, String accountId, List<String> documentIds) {
+		Map<String, String> sessionHeaders = startWriteSession(authToken, accountId);
+		for (String documentId : documentIds) {
+			TestResponse response = request("PUT", getPath(accountId) + "blob/" + documentId, sessionHeaders, new BytePart("blob", documentId.getBytes()));
+			assertEquals("Uploading a blob should have status 200", 200, response.getStatus());
+		}
+		commitWriteSession(accountId, sessionHeaders);
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+			gzip.write(data);
+		}
+		return out.toByteArray();
+	}
+
 	@Test
 	public void testAuthentication() {
 		TestResponse response = request("GET", getPath() + "status", authHeader());
@@ -376,7 +452,7 @@ public class SyncRouterTests extends BaseIntegrationTest {
 		// just make an authorized request of the server to tickle the UserRecord
 		request("GET", getPath() + "status", authHeader(DEVICE_ID_0));
 
-		UserRecordAccess userRecordAccess = new UserRecordAccess(getJedisPool(), getStoragePrefix());
+		UserRecordAccess userRecordAccess = getStorageEngine().createUserRecordAccess(getStoragePrefix());
 		User user = userRecordAccess.getUser(ACCOUNT_ID);
 
 		assertNotNull("User should have been recorded by UserRecordAccess when API access happened", user);
@@ -401,6 +477,311 @@ public class SyncRouterTests extends BaseIntegrationTest {
 		assertTrue("After waiting 2 seconds, and tickling API, user access timestamp should be newer than last check", userAccessTimestamp2 > userAccessTimestamp);
 	}
 
+	@Test
+	public void testConditionalGet() {
+		final byte[] DATA = "Okely dokely".getBytes();
+		final String DATA_ID = "conditional";
+		String path = getPath(BLOBS_ACCOUNT_ID) + "blob/" + DATA_ID;
+		Map<String, String> authHeader = authHeader(BLOBS_AUTH_TOKEN, DEVICE_ID_0);
+
+		String uploadETag = writeBlob(BLOBS_AUTH_TOKEN, BLOBS_ACCOUNT_ID, DATA_ID, DATA);
+		assertNotNull("Uploading a blob should respond with its ETag", uploadETag);
+
+		TestResponse response = request("GET", path, authHeader);
+		assertEquals("GET of blob should return status 200", 200, response.getStatus());
+		String etag = response.getHeader(SyncRouter.RESPONSE_HEADER_ETAG);
+		assertEquals("GET of blob should respond with the ETag its upload responded with", uploadETag, etag);
+
+		// a client which already has this version is told so, without the data
+		Map<String, String> conditionalHeaders = authHeader(BLOBS_AUTH_TOKEN, DEVICE_ID_0);
+		conditionalHeaders.put(SyncRouter.REQUEST_HEADER_IF_NONE_MATCH, etag);
+		response = request("GET", path, conditionalHeaders);
+		assertEquals("Repeated GET with If-None-Match of the blob's ETag should return status 304", 304, response.getStatus());
+		assertEquals("304 response should carry the ETag", etag, response.getHeader(SyncRouter.RESPONSE_HEADER_ETAG));
+
+		conditionalHeaders.put(SyncRouter.REQUEST_HEADER_IF_NONE_MATCH, "\"some-other-version\"");
+		response = request("GET", path, conditionalHeaders);
+		assertEquals("GET with If-None-Match of another ETag should return status 200", 200, response.getStatus());
+		assertEquals("GET with If-None-Match of another ETag should return the data", new String(DATA), response.getBody());
+
+		// once the blob changes, the old ETag no longer matches
+		String newETag = writeBlob(BLOBS_AUTH_TOKEN, BLOBS_ACCOUNT_ID, DATA_ID, "Hi diddly ho".getBytes());
+		assertNotEquals("Changing a blob should change its ETag", etag, newETag);
+		conditionalHeaders.put(SyncRouter.REQUEST_HEADER_IF_NONE_MATCH, etag);
+		response = request("GET", path, conditionalHeaders);
+		assertEquals("GET with If-None-Match of a stale ETag should return status 200", 200, response.getStatus());
+		assertEquals("GET with If-None-Match of a stale ETag should return the new data", "Hi diddly ho", response.getBody());
+	}
+
+	@Test
+	public void testRangedGet() {
+		final byte[] DATA = "0123456789".getBytes();
+		final String DATA_ID = "ranged";
+		String path = getPath(BLOBS_ACCOUNT_ID) + "blob/" + DATA_ID;
+		String etag = writeBlob(BLOBS_AUTH_TOKEN, BLOBS_ACCOUNT_ID, DATA_ID, DATA);
+
+		Map<String, String> rangeHeaders = authHeader(BLOBS_AUTH_TOKEN, DEVICE_ID_0);
+		rangeHeaders.put(SyncRouter.REQUEST_HEADER_RANGE, "bytes=2-5");
+		TestResponse response = request("GET", path, rangeHeaders);
+		assertEquals("GET with a satisfiable Range should return status 206", 206, response.getStatus());
+		assertEquals("206 response should describe the range sent", "bytes 2-5/10", response.getHeader(SyncRouter.RESPONSE_HEADER_CONTENT_RANGE));
+		assertEquals("206 response should carry just the requested bytes", "2345", response.getBody());
+
+		rangeHeaders.put(SyncRouter.REQUEST_HEADER_RANGE, "bytes=7-");
+		response = request("GET", path, rangeHeaders);
+		assertEquals("GET with an open-ended Range should return status 206", 206, response.getStatus());
+		assertEquals("206 response should carry the rest of the blob", "789", response.getBody());
+
+		rangeHeaders.put(SyncRouter.REQUEST_HEADER_RANGE, "bytes=20-");
+		response = request("GET", path, rangeHeaders);
+		assertEquals("GET with a Range past the end of the blob should return status 416", 416, response.getStatus());
+		assertEquals("416 response should give the blob's length", "bytes */10", response.getHeader(SyncRouter.RESPONSE_HEADER_CONTENT_RANGE));
+
+		// a range is only honored if the client's partial copy is of the current version
+		rangeHeaders.put(SyncRouter.REQUEST_HEADER_RANGE, "bytes=2-5");
+		rangeHeaders.put(SyncRouter.REQUEST_HEADER_IF_RANGE, etag);
+		response = request("GET", path, rangeHeaders);
+		assertEquals("GET with If-Range of the blob's ETag should return status 206", 206, response.getStatus());
+		assertEquals("GET with If-Range of the blob's ETag should return the range", "2345", response.getBody());
+
+		rangeHeaders.put(SyncRouter.REQUEST_HEADER_IF_RANGE, "\"some-other-version\"");
+		response = request("GET", path, rangeHeaders);
+		assertEquals("GET with If-Range of a stale ETag should return status 200", 200, response.getStatus());
+		assertEquals("GET with If-Range of a stale ETag should return the whole blob", new String(DATA), response.getBody());
+	}
+
+	@Test
+	public void testBatchGet() {
+		final String DATA1_ID = "batch1";
+		final String DATA2_ID = "batch2";
+		writeBlob(BLOBS_AUTH_TOKEN, BLOBS_ACCOUNT_ID, DATA1_ID, "Stupid Flanders".getBytes());
+		writeBlob(BLOBS_AUTH_TOKEN, BLOBS_ACCOUNT_ID, DATA2_ID, "Okily dokily".getBytes());
+
+		String path = getPath(BLOBS_ACCOUNT_ID) + "blobs";
+		Map<String, String> headers = authHeader(BLOBS_AUTH_TOKEN, DEVICE_ID_0);
+		headers.put("Content-Type", "application/json");
+
+		byte[] body = "[\"batch1\", \"batch-missing\", \"batch2\"]".getBytes(StandardCharsets.UTF_8);
+		TestResponse response = request("POST", path, headers, body);
+		assertEquals("POST of blob ids should return status 200", 200, response.getStatus());
+		assertTrue("POST of blob ids should respond with a multipart body", response.getHeader("Content-Type").startsWith("multipart/mixed"));
+
+		// parts come in request order
+		String parts = response.getBody();
+		int part1 = parts.indexOf(SyncRouter.RESPONSE_HEADER_BLOB_ID + ": " + DATA1_ID);
+		int missingPart = parts.indexOf(SyncRouter.RESPONSE_HEADER_BLOB_ID + ": batch-missing");
+		int part2 = parts.indexOf(SyncRouter.RESPONSE_HEADER_BLOB_ID + ": " + DATA2_ID);
+		assertTrue("Response should have a part per id, in request order", part1 >= 0 && part1 < missingPart && missingPart < part2);
+		assertTrue("Found blob's part should have status 200", parts.substring(part1, missingPart).contains(SyncRouter.RESPONSE_HEADER_BLOB_STATUS + ": 200"));
+		assertTrue("Found blob's part should have its data", parts.substring(part1, missingPart).contains("Stupid Flanders"));
+		assertTrue("Missing blob's part should have status 404", parts.substring(missingPart, part2).contains(SyncRouter.RESPONSE_HEADER_BLOB_STATUS + ": 404"));
+		assertTrue("Second found blob's part should have its data", parts.substring(part2).contains("Okily dokily"));
+
+		response = request("POST", path, headers, "[\"batch1\\r\\nX-Blob-Status: 200\"]".getBytes(StandardCharsets.UTF_8));
+		assertEquals("POST of a blob id with a line break should return status 400", 400, response.getStatus());
+
+		response = request("POST", path, headers, "not json".getBytes(StandardCharsets.UTF_8));
+		assertEquals("POST of a body which isn't a JSON array should return status 400", 400, response.getStatus());
+
+		response = request("POST", path, headers, "[]".getBytes(StandardCharsets.UTF_8));
+		assertEquals("POST of no blob ids should return status 400", 400, response.getStatus());
+	}
+
+	@Test
+	public void testRawUpload() throws IOException {
+		final byte[] DATA = "Hi-diddly-ho, neighborino! Hi-diddly-ho, neighborino!".getBytes();
+		String rawPath = getPath(BLOBS_ACCOUNT_ID) + "blob/raw";
+		String encodedPath = getPath(BLOBS_ACCOUNT_ID) + "blob/encoded";
+
+		Map<String, String> sessionHeaders = startWriteSession(BLOBS_AUTH_TOKEN, BLOBS_ACCOUNT_ID);
+		sessionHeaders.put("Content-Type", "application/octet-stream");
+		TestResponse response = request("PUT", rawPath, sessionHeaders, DATA);
+		assertEquals("Raw upload should have status 200", 200, response.getStatus());
+		TimestampRecordEntry entry = response.getBody(TimestampRecordEntry.class);
+		assertEquals("Raw upload should respond with the document id", "raw", entry.getDocumentId());
+
+		sessionHeaders.put(SyncRouter.REQUEST_HEADER_CONTENT_ENCODING, "gzip");
+		response = request("PUT", encodedPath, sessionHeaders, gzip(DATA));
+		assertEquals("gzip encoded raw upload should have status 200", 200, response.getStatus());
+
+		sessionHeaders.put(SyncRouter.REQUEST_HEADER_CONTENT_ENCODING, "not-a-coding");
+		response = request("PUT", encodedPath, sessionHeaders, DATA);
+		assertEquals("Upload in an unsupported encoding should have status 415", 415, response.getStatus());
+
+		commitWriteSession(BLOBS_ACCOUNT_ID, sessionHeaders);
+
+		Map<String, String> authHeader = authHeader(BLOBS_AUTH_TOKEN, DEVICE_ID_0);
+		response = request("GET", rawPath, authHeader);
+		assertEquals("GET of raw uploaded blob should return status 200", 200, response.getStatus());
+		assertArrayEquals("GET of raw uploaded blob should return the data uploaded", DATA, response.getBodyBytes());
+
+		// the encoded blob is decoded for clients which don't accept its encoding, and served as stored to those which do
+		response = request("GET", encodedPath, authHeader);
+		assertEquals("GET of encoded blob should return status 200", 200, response.getStatus());
+		assertNull("Encoded blob should be decoded for a client which doesn't accept gzip", response.getHeader(SyncRouter.RESPONSE_HEADER_CONTENT_ENCODING));
+		assertArrayEquals("Encoded blob should decode to the data uploaded", DATA, response.getBodyBytes());
+
+		authHeader.put(SyncRouter.REQUEST_HEADER_ACCEPT_ENCODING, "gzip");
+		response = request("GET", encodedPath, authHeader);
+		assertEquals("GET of encoded blob should return status 200", 200, response.getStatus());
+		assertEquals("Encoded blob should be sent encoded to a client which accepts gzip", "gzip", response.getHeader(SyncRouter.RESPONSE_HEADER_CONTENT_ENCODING));
+		assertArrayEquals("Encoded blob should be sent as uploaded to a client which accepts gzip", gzip(DATA), response.getBodyBytes());
+	}
+
+	@Test
+	public void testDeltaUpload() {
+		final byte[] DATA = "Hi-diddly-ho".getBytes();
+		final byte[] SUFFIX = ", neighborino".getBytes();
+		String path = getPath(BLOBS_ACCOUNT_ID) + "blob/delta";
+		String etag = writeBlob(BLOBS_AUTH_TOKEN, BLOBS_ACCOUNT_ID, "delta", DATA);
+		byte[] delta = BlobDelta.append(DATA.length, SUFFIX);
+
+		Map<String, String> sessionHeaders = startWriteSession(BLOBS_AUTH_TOKEN, BLOBS_ACCOUNT_ID);
+		sessionHeaders.put("Content-Type", BlobDelta.CONTENT_TYPE);
+
+		TestResponse response = request("PUT", path, sessionHeaders, delta);
+		assertEquals("Delta upload without a base should have status 400", 400, response.getStatus());
+
+		// a delta against any version but the current one would corrupt the blob
+		sessionHeaders.put(SyncRouter.REQUEST_HEADER_DELTA_BASE, "\"some-other-version\"");
+		response = request("PUT", path, sessionHeaders, delta);
+		assertEquals("Delta upload against a stale base should have status 412", 412, response.getStatus());
+
+		sessionHeaders.put(SyncRouter.REQUEST_HEADER_DELTA_BASE, etag);
+		response = request("PUT", path, sessionHeaders, delta);
+		assertEquals("Delta upload against the current version should have status 200", 200, response.getStatus());
+		String deltaETag = response.getHeader(SyncRouter.RESPONSE_HEADER_ETAG);
+		assertNotNull("Delta upload should respond with the new version's ETag", deltaETag);
+		assertNotEquals("Delta upload should change the blob's ETag", etag, deltaETag);
+
+		response = request("PUT", path, sessionHeaders, delta);
+		assertEquals("Delta upload against a version the session has replaced should have status 412", 412, response.getStatus());
+
+		commitWriteSession(BLOBS_ACCOUNT_ID, sessionHeaders);
+
+		response = request("GET", path, authHeader(BLOBS_AUTH_TOKEN, DEVICE_ID_0));
+		assertEquals("GET of delta uploaded blob should return status 200", 200, response.getStatus());
+		assertEquals("GET of delta uploaded blob should return the rebuilt data", "Hi-diddly-ho, neighborino", response.getBody());
+		assertEquals("GET of delta uploaded blob should carry the ETag its upload responded with", deltaETag, response.getHeader(SyncRouter.RESPONSE_HEADER_ETAG));
+	}
+
+	@Test
+	public void testChangesLimit() {
+		List<String> documentIds = Arrays.asList("a", "b", "c", "d", "e");
+		writeDocuments(LIMIT_AUTH_TOKEN, LIMIT_ACCOUNT_ID, documentIds);
+		String path = getPath(LIMIT_ACCOUNT_ID) + "changes";
+		Map<String, String> authHeader = authHeader(LIMIT_AUTH_TOKEN, DEVICE_ID_0);
+
+		TestResponse response = request("GET", path + "?limit=2", authHeader);
+		assertEquals("Changes response code should be 200", 200, response.getStatus());
+		Map<String, TimestampRecordEntry> changes = response.getBody(CHANGES_TYPE_REFERENCE);
+		assertEquals("Changes should be limited to a page of 2", 2, changes.size());
+		assertNotNull("A limited page with more entries after it should have a next cursor", response.getHeader(SyncRouter.RESPONSE_HEADER_NEXT_CURSOR));
+
+		response = request("GET", path + "?limit=5", authHeader);
+		changes = response.getBody(CHANGES_TYPE_REFERENCE);
+		assertEquals("A page as large as the change list should have every entry", 5, changes.size());
+		assertNull("The last page should have no next cursor", response.getHeader(SyncRouter.RESPONSE_HEADER_NEXT_CURSOR));
+
+		response = request("GET", path, authHeader);
+		changes = response.getBody(CHANGES_TYPE_REFERENCE);
+		assertEquals("Without a limit, changes should have every entry", 5, changes.size());
+		assertNull("Without a limit, there should be no next cursor", response.getHeader(SyncRouter.RESPONSE_HEADER_NEXT_CURSOR));
+
+		assertEquals("A limit of zero should return status 400", 400, request("GET", path + "?limit=0", authHeader).getStatus());
+		assertEquals("A negative limit should return status 400", 400, request("GET", path + "?limit=-1", authHeader).getStatus());
+		assertEquals("A limit which isn't a number should return status 400", 400, request("GET", path + "?limit=lots", authHeader).getStatus());
+	}
+
+	@Test
+	public void testChangesCursor() {
+		List<String> documentIds = Arrays.asList("a", "b", "c", "d", "e");
+		writeDocuments(CURSOR_AUTH_TOKEN, CURSOR_ACCOUNT_ID, documentIds);
+		String path = getPath(CURSOR_ACCOUNT_ID) + "changes";
+		Map<String, String> authHeader = authHeader(CURSOR_AUTH_TOKEN, DEVICE_ID_0);
+
+		// the documents share a timestamp, so only the cursor can page through them without repeats or gaps
+		Set<String> seen = new HashSet<>();
+		String cursor = null;
+		int pages = 0;
+		do {
+			TestResponse response = request("GET", path + "?limit=2" + (cursor != null ? "&cursor=" + cursor : ""), authHeader);
+			assertEquals("Changes response code should be 200", 200, response.getStatus());
+			Map<String, TimestampRecordEntry> page = response.getBody(CHANGES_TYPE_REFERENCE);
+			assertTrue("Pages should have at most 2 entries", page.size() <= 2);
+			for (String documentId : page.keySet()) {
+				assertTrue("No entry should be on more than one page", seen.add(documentId));
+			}
+
+			cursor = response.getHeader(SyncRouter.RESPONSE_HEADER_NEXT_CURSOR);
+			pages++;
+		} while (cursor != null && pages < 10);
+
+		assertEquals("Paging with the cursor should take 3 pages", 3, pages);
+		assertEquals("Paging with the cursor should visit every entry", new HashSet<>(documentIds), seen);
+
+		assertEquals("An invalid cursor should return status 400", 400, request("GET", path + "?cursor=not-a-cursor", authHeader).getStatus());
+	}
+
+	@Test
+	public void testChangesSinceSeq() {
+		List<String> documentIds = Arrays.asList("a", "b", "c", "d", "e");
+		writeDocuments(SINCE_SEQ_AUTH_TOKEN, SINCE_SEQ_ACCOUNT_ID, documentIds);
+		String path = getPath(SINCE_SEQ_ACCOUNT_ID) + "changes";
+		Map<String, String> authHeader = authHeader(SINCE_SEQ_AUTH_TOKEN, DEVICE_ID_0);
+
+		Set<String> seen = new HashSet<>();
+		String sinceSeq = "0";
+		int pages = 0;
+		do {
+			TestResponse response = request("GET", path + "?limit=2&sinceSeq=" + sinceSeq, authHeader);
+			assertEquals("Changes response code should be 200", 200, response.getStatus());
+			Map<String, TimestampRecordEntry> page = response.getBody(CHANGES_TYPE_REFERENCE);
+			assertTrue("Pages should have at most 2 entries", page.size() <= 2);
+			for (String documentId : page.keySet()) {
+				assertTrue("No entry should be on more than one page", seen.add(documentId));
+			}
+
+			sinceSeq = response.getHeader(SyncRouter.RESPONSE_HEADER_NEXT_SINCE_SEQ);
+			assertNull("Paging by sequence number shouldn't hand out a cursor", response.getHeader(SyncRouter.RESPONSE_HEADER_NEXT_CURSOR));
+			pages++;
+		} while (sinceSeq != null && pages < 10);
+
+		assertEquals("Paging by sequence number should take 3 pages", 3, pages);
+		assertEquals("Paging by sequence number should visit every entry", new HashSet<>(documentIds), seen);
+
+		// a client which is up to date gets nothing
+		writeDocuments(SINCE_SEQ_AUTH_TOKEN, SINCE_SEQ_ACCOUNT_ID, Collections.singletonList("f"));
+		TestResponse response = request("GET", path + "?sinceSeq=0", authHeader);
+		Map<String, TimestampRecordEntry> changes = response.getBody(CHANGES_TYPE_REFERENCE);
+		assertEquals("Changes since seq 0 should have every entry", 6, changes.size());
+		long lastSeq = changes.get("f").getSeq();
+		response = request("GET", path + "?sinceSeq=" + lastSeq, authHeader);
+		changes = response.getBody(CHANGES_TYPE_REFERENCE);
+		assertEquals("Changes since the last seq should be empty", 0, changes.size());
+
+		assertEquals("A negative sinceSeq should return status 400", 400, request("GET", path + "?sinceSeq=-1", authHeader).getStatus());
+		assertEquals("A sinceSeq which isn't a number should return status 400", 400, request("GET", path + "?sinceSeq=latest", authHeader).getStatus());
+	}
+
+	@Test
+	public void testChangesCompacted() {
+		// record a compaction before the account's first request, as if its tombstones up to seq 5 had been dropped
+		getStorageEngine().createTimestampRecordStorage(getStoragePrefix(), COMPACTED_ACCOUNT_ID)
+				.compact(Collections.<String>emptyList(), new CompactionWatermark(100, 5));
+
+		String path = getPath(COMPACTED_ACCOUNT_ID) + "changes";
+		Map<String, String> authHeader = authHeader(COMPACTED_AUTH_TOKEN, DEVICE_ID_0);
+
+		assertEquals("Changes since a timestamp before the compaction should return status 410", 410, request("GET", path + "?since=50", authHeader).getStatus());
+		assertEquals("Changes since a seq before the compaction should return status 410", 410, request("GET", path + "?sinceSeq=2", authHeader).getStatus());
+
+		assertEquals("Changes since a timestamp after the compaction should return status 200", 200, request("GET", path + "?since=200", authHeader).getStatus());
+		assertEquals("Changes since the compaction's seq should return status 200", 200, request("GET", path + "?sinceSeq=5", authHeader).getStatus());
+		assertEquals("A full resync should return status 200", 200, request("GET", path, authHeader).getStatus());
+		assertEquals("A full resync by seq should return status 200", 200, request("GET", path + "?sinceSeq=0", authHeader).getStatus());
+	}
+
 	private long getTimestampSeconds() {
 		return (new Date()).getTime() / 1000;
 	}
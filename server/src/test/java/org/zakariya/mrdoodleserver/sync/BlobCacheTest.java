@@ -0,0 +1,111 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test org.zakariya.mrdoodleserver.sync.BlobCache
+ */
+public class BlobCacheTest {
+
+	static final String accountId = "blobCacheTestAccount";
+
+	private static BlobStore.Metadata metadata(String id, long timestamp, int length) {
+		return new BlobStore.Metadata(id, "Foo", timestamp, length, length, null, length, null);
+	}
+
+	@Test
+	public void testLookup() throws Exception {
+		BlobCache cache = new BlobCache(1024 * 1024, 1024);
+		byte[] data = "A".getBytes();
+
+		assertNull(cache.get(accountId, "A", 10));
+		assertNotNull(cache.put(accountId, metadata("A", 10, data.length), data));
+
+		BlobCache.CachedBlob blob = cache.get(accountId, "A", 10);
+		assertNotNull(blob);
+		assertArrayEquals(data, blob.getData());
+		assertEquals(10, blob.getTimestamp());
+		assertNull("blobs are cached per account", cache.get("otherAccount", "A", 10));
+
+		// a lookup at a newer timestamp means the cached copy is stale
+		assertNull(cache.get(accountId, "A", 11));
+		assertNull("stale copies should be dropped", cache.get(accountId, "A", 10));
+		assertEquals(0, cache.getCount());
+		assertEquals(0, cache.getSize());
+
+		cache.put(accountId, metadata("A", 10, data.length), data);
+		cache.invalidate(accountId, "A");
+		assertNull(cache.get(accountId, "A", 10));
+
+		assertEquals(1, cache.getHitCount());
+		assertEquals(5, cache.getMissCount());
+		assertEquals(0, cache.getEvictionCount());
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		BlobCache cache = new BlobCache(4096, 4096);
+		byte[] data = new byte[1000];
+
+		assertNull("blobs larger than the max entry size aren't cached", new BlobCache(4096, 100).put(accountId, metadata("A", 1, data.length), data));
+
+		for (String id : Arrays.asList("A", "B", "C")) {
+			cache.put(accountId, metadata(id, 1, data.length), data);
+		}
+		assertEquals(3, cache.getCount());
+
+		// touch A, so B is least recently used
+		assertNotNull(cache.get(accountId, "A", 1));
+
+		// capacity is by bytes held, so one large blob displaces several small ones
+		cache.put(accountId, metadata("D", 1, 2000), new byte[2000]);
+		assertEquals(2, cache.getEvictionCount());
+		assertNull(cache.get(accountId, "B", 1));
+		assertNull(cache.get(accountId, "C", 1));
+		assertNotNull(cache.get(accountId, "A", 1));
+		assertNotNull(cache.get(accountId, "D", 1));
+		assertTrue(cache.getSize() <= cache.getCapacity());
+
+		cache.invalidateAll(accountId);
+		assertEquals(0, cache.getCount());
+		assertEquals(0, cache.getSize());
+	}
+
+	@Test
+	public void testWriteData() throws Exception {
+		byte[] data = new byte[5000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 10);
+		}
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		try (OutputStream gzip = BlobCodecs.GZIP.encode(buffer)) {
+			gzip.write(data);
+		}
+		byte[] encoded = buffer.toByteArray();
+
+		BlobCache cache = new BlobCache(1024 * 1024, 1024 * 1024);
+		BlobStore.Metadata metadata = new BlobStore.Metadata("A", "Foo", 10, encoded.length, encoded.length, "gzip", data.length, null);
+		BlobCache.CachedBlob blob = cache.put(accountId, metadata, encoded);
+		assertNotNull(blob);
+		assertEquals("gzip", blob.getEncoding());
+		assertEquals(data.length, blob.getDecodedLength());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		blob.writeData(2, 10, out);
+		assertArrayEquals(Arrays.copyOfRange(encoded, 2, 12), out.toByteArray());
+
+		out = new ByteArrayOutputStream();
+		blob.writeDecodedData(1234, 100, out);
+		assertArrayEquals(Arrays.copyOfRange(data, 1234, 1334), out.toByteArray());
+
+		out = new ByteArrayOutputStream();
+		blob.writeDecodedData(4000, -1, out);
+		assertArrayEquals(Arrays.copyOfRange(data, 4000, 5000), out.toByteArray());
+	}
+}
@@ -0,0 +1,117 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test org.zakariya.mrdoodleserver.sync.BlobDelta
+ */
+public class BlobDeltaTest {
+
+	@Test
+	public void testAppend() throws Exception {
+		byte[] base = "stroke 1;".getBytes();
+		byte[] suffix = "stroke 2;".getBytes();
+
+		assertArrayEquals("stroke 1;stroke 2;".getBytes(), BlobDelta.apply(base, BlobDelta.append(base.length, suffix)));
+		assertArrayEquals(base, BlobDelta.apply(base, BlobDelta.append(base.length, new byte[0])));
+		assertArrayEquals(suffix, BlobDelta.apply(new byte[0], BlobDelta.append(0, suffix)));
+	}
+
+	@Test
+	public void testCopyAndInsert() throws Exception {
+		byte[] base = "0123456789".getBytes();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream delta = new DataOutputStream(bytes);
+		delta.writeByte(BlobDelta.OP_COPY);
+		delta.writeLong(5);
+		delta.writeInt(5);
+		delta.writeByte(BlobDelta.OP_INSERT);
+		delta.writeInt(3);
+		delta.write("abc".getBytes());
+		delta.writeByte(BlobDelta.OP_COPY);
+		delta.writeLong(0);
+		delta.writeInt(2);
+		delta.writeByte(BlobDelta.OP_END);
+
+		assertArrayEquals("56789abc01".getBytes(), BlobDelta.apply(base, bytes.toByteArray()));
+	}
+
+	@Test
+	public void testInvalidDeltas() throws Exception {
+		byte[] base = "0123456789".getBytes();
+		byte[] valid = BlobDelta.append(base.length, "abc".getBytes());
+
+		assertInvalid(base, Arrays.copyOf(valid, valid.length - 1));
+		assertInvalid(base, Arrays.copyOf(valid, 5));
+		assertInvalid(base, new byte[]{7});
+		assertInvalid(base, BlobDelta.append(base.length + 1, new byte[0]));
+
+		// a COPY whose end overflows a long is outside the base, not an index out of bounds
+		ByteArrayOutputStream overflow = new ByteArrayOutputStream();
+		DataOutputStream overflowDelta = new DataOutputStream(overflow);
+		overflowDelta.writeByte(BlobDelta.OP_COPY);
+		overflowDelta.writeLong(Long.MAX_VALUE - 2);
+		overflowDelta.writeInt(5);
+		overflowDelta.writeByte(BlobDelta.OP_END);
+		assertInvalid(base, overflow.toByteArray());
+
+		// a few bytes of COPYs mustn't be able to rebuild an enormous blob
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream delta = new DataOutputStream(bytes);
+		for (int i = 0; i < 100; i++) {
+			delta.writeByte(BlobDelta.OP_COPY);
+			delta.writeLong(0);
+			delta.writeInt(base.length);
+		}
+		delta.writeByte(BlobDelta.OP_END);
+		try {
+			BlobDelta.apply(base, new ByteArrayInputStream(bytes.toByteArray()), new ByteArrayOutputStream(), 500);
+			fail("delta exceeding the max length should be rejected");
+		} catch (BlobDelta.InvalidDeltaException ignored) {
+		}
+	}
+
+	@Test
+	public void testOversizedInsert() throws Exception {
+		byte[] base = "0123456789".getBytes();
+
+		// an INSERT past the max length is rejected before any of it is written
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream delta = new DataOutputStream(bytes);
+		delta.writeByte(BlobDelta.OP_COPY);
+		delta.writeLong(0);
+		delta.writeInt(base.length);
+		delta.writeByte(BlobDelta.OP_INSERT);
+		delta.writeInt(1000);
+		delta.write(new byte[1000]);
+		delta.writeByte(BlobDelta.OP_END);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			BlobDelta.apply(base, new ByteArrayInputStream(bytes.toByteArray()), out, 500);
+			fail("INSERT exceeding the max length should be rejected");
+		} catch (BlobDelta.InvalidDeltaException ignored) {
+		}
+		assertEquals(base.length, out.size());
+
+		// ops reaching exactly the max length are fine
+		out.reset();
+		assertEquals(1010, BlobDelta.apply(base, new ByteArrayInputStream(bytes.toByteArray()), out, 1010));
+	}
+
+	private static void assertInvalid(byte[] base, byte[] delta) throws Exception {
+		try {
+			BlobDelta.apply(base, delta);
+			fail("delta should be rejected: " + Arrays.toString(delta));
+		} catch (BlobDelta.InvalidDeltaException ignored) {
+		}
+	}
+}
@@ -1,10 +1,26 @@
 package org.zakariya.mrdoodleserver.sync;
 
+import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.Before;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
 import static org.junit.Assert.*;
 
 /**
@@ -16,13 +32,13 @@ public class BlobStoreTest {
 	static final String accountId = "blobStoreTestAccount";
 	static final String MAIN_NAMESPACE = "test";
 	static final String TEMP_NAMESPACE = "test-temp";
-	BlobStore mainStore;
-	BlobStore tempStore;
+	RedisBlobStore mainStore;
+	RedisBlobStore tempStore;
 
 	@Before
 	public void setUp() throws Exception {
-		mainStore = new BlobStore(pool, MAIN_NAMESPACE, accountId);
-		tempStore = new BlobStore(pool, TEMP_NAMESPACE, accountId);
+		mainStore = new RedisBlobStore(pool, MAIN_NAMESPACE, accountId);
+		tempStore = new RedisBlobStore(pool, TEMP_NAMESPACE, accountId);
 	}
 
 	@After
@@ -46,10 +62,314 @@ public class BlobStoreTest {
 
 		// confirm the data is deleted
 		try (Jedis jedis = pool.getResource()) {
-			assertFalse("blob id should be deleted", jedis.exists(BlobStore.getEntryIdKey(accountId, mainStore.getNamespace(), e.getId())));
-			assertFalse("blob type should be deleted", jedis.exists(BlobStore.getEntryTypeKey(accountId, mainStore.getNamespace(), e.getId())));
-			assertFalse("blob timestamp should be deleted", jedis.exists(BlobStore.getEntryTimestampKey(accountId, mainStore.getNamespace(), e.getId())));
-			assertFalse("blob data should be deleted", jedis.exists(BlobStore.getEntryDataKey(accountId, mainStore.getNamespace(), e.getId())));
+			assertFalse("blob hash should be deleted", jedis.exists(RedisBlobStore.getEntryKey(accountId, mainStore.getNamespace(), e.getId())));
+		}
+	}
+
+	@org.junit.Test
+	public void testLegacyLayoutMigration() throws Exception {
+		BlobStore.Entry a = new BlobStore.Entry("A", "Foo", 10, "A Data".getBytes());
+		BlobStore.Entry b = new BlobStore.Entry("B", "Bar", 11, "B Data".getBytes());
+
+		// write blobs in the legacy four-keys-per-blob layout
+		try (Jedis jedis = pool.getResource()) {
+			for (BlobStore.Entry e : Arrays.asList(a, b)) {
+				String[] keys = BlobStoreMigrator.getLegacyEntryKeys(accountId, MAIN_NAMESPACE, e.getId());
+				jedis.set(keys[0], e.getId());
+				jedis.set(keys[1], e.getType());
+				jedis.set(keys[2], Long.toString(e.getTimestamp()));
+				jedis.set(keys[3].getBytes(), e.getData());
+			}
+		}
+
+		try {
+			assertFalse("store with legacy blobs should not be marked as migrated", BlobStoreMigrator.isMigrated(mainStore));
+			assertNull("without a pending migration, legacy blobs aren't visible", mainStore.get(a.getId()));
+
+			// with a migration pending, reads migrate blobs on demand
+			mainStore.setLegacyLayoutMigrationPending(true);
+			assertEquals("pending migration should migrate blob on read", a, mainStore.get(a.getId()));
+
+			// the rest are migrated by the migrator
+			assertEquals("migrator should convert the one remaining blob", 1, BlobStoreMigrator.migrate(mainStore));
+			assertFalse("migration should no longer be pending", mainStore.isLegacyLayoutMigrationPending());
+			assertTrue("store should be marked as migrated", BlobStoreMigrator.isMigrated(mainStore));
+			assertEquals(b, mainStore.get(b.getId()));
+
+			try (Jedis jedis = pool.getResource()) {
+				for (String key : BlobStoreMigrator.getLegacyEntryKeys(accountId, MAIN_NAMESPACE, b.getId())) {
+					assertFalse("legacy keys should be deleted after migration", jedis.exists(key));
+				}
+				assertTrue("migrated blobs should be indexed", jedis.sismember(RedisBlobStore.getIndexKey(accountId, MAIN_NAMESPACE), a.getId()));
+				assertTrue("migrated blobs should be indexed", jedis.sismember(RedisBlobStore.getIndexKey(accountId, MAIN_NAMESPACE), b.getId()));
+			}
+		} finally {
+			try (Jedis jedis = pool.getResource()) {
+				jedis.del(BlobStoreMigrator.getLayoutKey(accountId, MAIN_NAMESPACE));
+			}
+		}
+	}
+
+	@org.junit.Test
+	public void testGetAll() throws Exception {
+		BlobStore.Entry a = new BlobStore.Entry("A", "Foo", 10, "A Data".getBytes());
+		BlobStore.Entry b = new BlobStore.Entry("B", "Bar", 11, "B Data".getBytes());
+		BlobStore.Entry c = new BlobStore.Entry("C", "Baz", 12, "C Data".getBytes());
+		mainStore.set(a);
+		mainStore.set(b);
+		mainStore.set(c);
+
+		Map<String, BlobStore.Entry> entries = mainStore.getAll(Arrays.asList("C", "missing", "A", "B"));
+		assertEquals("getAll should omit missing ids", 3, entries.size());
+		assertEquals("getAll should preserve request order", Arrays.asList("C", "A", "B"), new ArrayList<>(entries.keySet()));
+		assertEquals(a, entries.get("A"));
+		assertEquals(b, entries.get("B"));
+		assertEquals(c, entries.get("C"));
+
+		assertTrue("getAll of no ids should be empty", mainStore.getAll(Collections.emptyList()).isEmpty());
+
+		Map<String, BlobStore.Metadata> metadata = mainStore.getAllMetadata(Arrays.asList("C", "missing", "A", "B"));
+		assertEquals("getAllMetadata should omit missing ids and preserve request order", Arrays.asList("C", "A", "B"), new ArrayList<>(metadata.keySet()));
+		assertEquals("Bar", metadata.get("B").getType());
+		assertEquals(12, metadata.get("C").getTimestamp());
+		assertEquals("A Data".length(), metadata.get("A").getDecodedLength());
+	}
+
+	@org.junit.Test
+	public void testContentAddressedStorage() throws Exception {
+		BlobStore casMainStore = new RedisBlobStore(pool, MAIN_NAMESPACE, accountId, MAIN_NAMESPACE, true);
+		BlobStore casTempStore = new RedisBlobStore(pool, TEMP_NAMESPACE, accountId, MAIN_NAMESPACE, true);
+		byte[] data = "Duplicated Data".getBytes();
+		String digest = RedisBlobStore.getDigest(data);
+		String contentKey = RedisBlobStore.getContentKey(MAIN_NAMESPACE, digest);
+		String refCountKey = RedisBlobStore.getContentRefCountKey(MAIN_NAMESPACE, digest);
+
+		try (Jedis jedis = pool.getResource()) {
+			BlobStore.Entry a = new BlobStore.Entry("A", "Foo", 10, data);
+			BlobStore.Entry b = new BlobStore.Entry("B", "Foo", 11, data);
+			casMainStore.set(a);
+			casMainStore.set(b);
+			assertEquals(a, casMainStore.get(a.getId()));
+			assertEquals(b, casMainStore.get(b.getId()));
+			assertEquals("both blobs should reference the single copy of their data", "2", jedis.get(refCountKey));
+
+			// re-uploading identical data under a new write session, and committing it, shouldn't change the count
+			BlobStore.Entry aCopy = new BlobStore.Entry("A", "Foo", 12, data);
+			casTempStore.set(aCopy);
+			assertEquals("temp store should hold its own reference", "3", jedis.get(refCountKey));
+			casTempStore.save(casMainStore);
+			assertEquals("committed write should replace the reference it overwrote", "2", jedis.get(refCountKey));
+			assertEquals(12, casMainStore.get(a.getId()).getTimestamp());
+
+			casMainStore.delete(a.getId());
+			assertEquals("1", jedis.get(refCountKey));
+			assertTrue("content should survive while referenced", jedis.exists(contentKey));
+
+			casMainStore.delete(b.getId());
+			assertFalse("unreferenced content should be collected", jedis.exists(contentKey));
+			assertFalse("unreferenced content ref count should be collected", jedis.exists(refCountKey));
+
+			// discarding a write session releases its references
+			casTempStore.set(aCopy);
+			assertTrue(jedis.exists(contentKey));
+			casTempStore.discard();
+			assertFalse("discarded session's content should be collected", jedis.exists(contentKey));
+		} finally {
+			casMainStore.discard();
+			casTempStore.discard();
+		}
+	}
+
+	@org.junit.Test
+	public void testChunkedStorage() throws Exception {
+		BlobStore casMainStore = new RedisBlobStore(pool, MAIN_NAMESPACE, accountId, MAIN_NAMESPACE, true);
+		byte[] data = new byte[50];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+
+		try (Jedis jedis = pool.getResource()) {
+			for (BlobStore store : Arrays.asList(mainStore, casMainStore)) {
+				store.setChunkSize(7);
+				BlobStore.Entry a = new BlobStore.Entry("A", "Foo", 10, data);
+				store.set(a);
+				assertEquals("chunks should be reassembled on read", a, store.get(a.getId()));
+
+				BlobStore.Metadata metadata = store.getMetadata(a.getId());
+				assertNotNull(metadata);
+				assertEquals("Foo", metadata.getType());
+				assertEquals(10, metadata.getTimestamp());
+				assertEquals(data.length, metadata.getLength());
+				assertEquals(7, metadata.getChunkSize());
+
+				// ranges starting and ending both on and off chunk boundaries
+				long[][] ranges = {{0, 50}, {0, 7}, {7, 14}, {3, 30}, {49, 1}, {20, 0}};
+				for (long[] range : ranges) {
+					ByteArrayOutputStream out = new ByteArrayOutputStream();
+					store.writeData(metadata, range[0], range[1], out);
+					assertArrayEquals(Arrays.copyOfRange(data, (int) range[0], (int) (range[0] + range[1])), out.toByteArray());
+				}
+
+				// a smaller rewrite shouldn't leave stale chunks behind
+				store.set("A", "Foo", 11, Arrays.copyOf(data, 10));
+				assertArrayEquals(Arrays.copyOf(data, 10), store.get("A").getData());
+				if (!store.isContentAddressed()) {
+					assertFalse(jedis.hexists(RedisBlobStore.getEntryKey(accountId, MAIN_NAMESPACE, "A"), RedisBlobStore.getChunkField(2)));
+				}
+
+				store.set("Empty", "Foo", 12, new byte[0]);
+				assertEquals(0, store.get("Empty").getData().length);
+				assertEquals(0, store.getMetadata("Empty").getLength());
+				store.discard();
+			}
+
+			// blobs written before data was chunked are re-chunked when first read
+			String key = RedisBlobStore.getEntryKey(accountId, MAIN_NAMESPACE, "Legacy");
+			jedis.hset(key, "type", "Foo");
+			jedis.hset(key, "timestamp", "10");
+			jedis.hset(key.getBytes(), "data".getBytes(), data);
+			BlobStore.Metadata metadata = mainStore.getMetadata("Legacy");
+			assertNotNull(metadata);
+			assertEquals(data.length, metadata.getLength());
+			assertEquals(7, metadata.getChunkSize());
+			assertTrue(jedis.hexists(key, RedisBlobStore.getChunkField(7)));
+			assertArrayEquals(data, mainStore.get("Legacy").getData());
+		} finally {
+			casMainStore.discard();
+		}
+	}
+
+	@org.junit.Test
+	public void testStreamedSet() throws Exception {
+		BlobStore casMainStore = new RedisBlobStore(pool, MAIN_NAMESPACE, accountId, MAIN_NAMESPACE, true);
+		byte[] data = new byte[50];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+
+		try (Jedis jedis = pool.getResource()) {
+			for (BlobStore store : Arrays.asList(mainStore, casMainStore)) {
+				store.setChunkSize(7);
+
+				// lengths which do and don't fall on chunk boundaries
+				for (int length : new int[]{50, 49, 7, 1, 0}) {
+					byte[] blobData = Arrays.copyOf(data, length);
+					store.set("A", "Foo", 10 + length, new ByteArrayInputStream(blobData));
+					BlobStore.Entry entry = store.get("A");
+					assertNotNull(entry);
+					assertEquals(10 + length, entry.getTimestamp());
+					assertArrayEquals(blobData, entry.getData());
+					assertEquals(length, store.getMetadata("A").getLength());
+				}
+
+				// streaming identical data as an array write should share content
+				if (store.isContentAddressed()) {
+					store.set("B", "Foo", 10, data);
+					store.set("C", "Foo", 10, new ByteArrayInputStream(data));
+					assertEquals("2", jedis.get(RedisBlobStore.getContentRefCountKey(MAIN_NAMESPACE, RedisBlobStore.getDigest(data))));
+				}
+
+				// a failed upload should leave the blob untouched, and clean up after itself
+				InputStream failing = new SequenceInputStream(new ByteArrayInputStream(data), new InputStream() {
+					@Override
+					public int read() throws IOException {
+						throw new IOException("connection reset");
+					}
+				});
+
+				try {
+					store.set("A", "Foo", 100, failing);
+					fail("set should throw when the stream fails");
+				} catch (IOException e) {
+					assertEquals(10, store.get("A").getTimestamp());
+					assertTrue("staged chunks should be removed", jedis.keys(RedisBlobStore.getUploadKey(accountId, MAIN_NAMESPACE, "*")).isEmpty());
+				}
+
+				store.discard();
+			}
+		} finally {
+			casMainStore.discard();
+		}
+	}
+
+	@org.junit.Test
+	public void testCompression() throws Exception {
+		BlobStore gzipStore = new RedisBlobStore(pool, MAIN_NAMESPACE, accountId, MAIN_NAMESPACE, false, BlobCodecs.GZIP);
+		BlobStore casGzipStore = new RedisBlobStore(pool, MAIN_NAMESPACE, accountId, MAIN_NAMESPACE, true, BlobCodecs.GZIP);
+		byte[] data = new byte[5000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 10);
+		}
+
+		try {
+			for (BlobStore store : Arrays.asList(gzipStore, casGzipStore)) {
+				store.setChunkSize(64);
+				store.set("A", "Foo", 10, data);
+				store.set("B", "Foo", 10, new ByteArrayInputStream(data));
+
+				for (String id : Arrays.asList("A", "B")) {
+					assertArrayEquals("data should be decoded on read", data, store.get(id).getData());
+					assertArrayEquals("stores without a codec should read compressed blobs", data, mainStore.get(id).getData());
+
+					BlobStore.Metadata metadata = store.getMetadata(id);
+					assertEquals("gzip", metadata.getEncoding());
+					assertEquals(data.length, metadata.getDecodedLength());
+					assertTrue("data should be stored compressed", metadata.getLength() < data.length / 4);
+
+					ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+					store.writeData(metadata, 0, metadata.getLength(), encoded);
+					assertArrayEquals(data, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(encoded.toByteArray()))));
+
+					ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+					store.writeDecodedData(metadata, 1234, 100, decoded);
+					assertArrayEquals(Arrays.copyOfRange(data, 1234, 1334), decoded.toByteArray());
+				}
+
+				String digest = store.getMetadata("A").getDigest();
+				assertNotNull(digest);
+				assertEquals("digest should be of the stored data, however it was written", digest, store.getMetadata("B").getDigest());
+
+				// uploads which are already encoded are stored as-is, even in another encoding
+				ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+				try (OutputStream out = new DeflaterOutputStream(deflated)) {
+					out.write(data);
+				}
+				store.set("C", "Foo", 10, new ByteArrayInputStream(deflated.toByteArray()), "deflate");
+				BlobStore.Metadata metadata = store.getMetadata("C");
+				assertEquals("deflate", metadata.getEncoding());
+				assertEquals(deflated.size(), metadata.getLength());
+				assertEquals("decoded length of pre-encoded uploads is unknown", -1, metadata.getDecodedLength());
+				assertNotEquals(digest, metadata.getDigest());
+				assertArrayEquals(data, store.get("C").getData());
+
+				ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+				store.writeDecodedData(metadata, 0, -1, decoded);
+				assertArrayEquals(data, decoded.toByteArray());
+
+				store.discard();
+			}
+
+			// a gzip file uploaded as-is mustn't share content with the same file's contents uploaded gzip encoded
+			ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+			try (OutputStream out = new GZIPOutputStream(gzipped)) {
+				out.write(data);
+			}
+			BlobStore casStore = new RedisBlobStore(pool, MAIN_NAMESPACE, accountId, MAIN_NAMESPACE, true);
+			casStore.set("Raw", "Foo", 10, gzipped.toByteArray());
+			casStore.set("Encoded", "Foo", 10, new ByteArrayInputStream(gzipped.toByteArray()), "gzip");
+			assertArrayEquals(gzipped.toByteArray(), casStore.get("Raw").getData());
+			assertArrayEquals(data, casStore.get("Encoded").getData());
+			casStore.discard();
+
+			try {
+				gzipStore.set("D", "Foo", 10, new ByteArrayInputStream(data), "x-unknown");
+				fail("unknown encodings should be rejected");
+			} catch (IllegalArgumentException e) {
+				assertFalse(gzipStore.has("D"));
+			}
+		} finally {
+			gzipStore.discard();
+			casGzipStore.discard();
 		}
 	}
 
@@ -86,6 +406,37 @@ public class BlobStoreTest {
 		assertNotNull(mainStore.get(entryInTemp.getId()));
 		assertEquals(entryInTemp, mainStore.get(entryInTemp.getId()));
 		assertNull("entryInMainThatWillBeDeleted should no longer be in the main store", mainStore.get(entryInMainThatWillBeDeleted.getId()));
+
+		// confirm the index followed the blobs
+		try (Jedis jedis = pool.getResource()) {
+			assertEquals(new HashSet<>(Arrays.asList(entryInMain.getId(), entryInTemp.getId())), jedis.smembers(RedisBlobStore.getIndexKey(accountId, MAIN_NAMESPACE)));
+			assertFalse("committed writes should leave the temp store's index", jedis.exists(RedisBlobStore.getIndexKey(accountId, TEMP_NAMESPACE)));
+		}
+	}
+
+	@org.junit.Test
+	public void testDiscardUsesIndex() throws Exception {
+		for (int i = 0; i < 250; i++) {
+			tempStore.set("Blob" + i, "Foo", 10, ("Data" + i).getBytes());
+		}
+		tempStore.delete("Blob0");
+
+		try (Jedis jedis = pool.getResource()) {
+			String indexKey = RedisBlobStore.getIndexKey(accountId, TEMP_NAMESPACE);
+			assertEquals(249L, (long) jedis.scard(indexKey));
+
+			// a blob hash which isn't indexed isn't found by discard; this is how we know discard didn't search the keyspace
+			String unindexedKey = RedisBlobStore.getEntryKey(accountId, TEMP_NAMESPACE, "Unindexed");
+			jedis.hset(unindexedKey, "type", "Foo");
+
+			tempStore.discard();
+			for (int i = 0; i < 250; i++) {
+				assertFalse(tempStore.has("Blob" + i));
+			}
+			assertFalse(jedis.exists(indexKey));
+			assertTrue(jedis.exists(unindexedKey));
+			jedis.del(unindexedKey);
+		}
 	}
 
 }
\ No newline at end of file
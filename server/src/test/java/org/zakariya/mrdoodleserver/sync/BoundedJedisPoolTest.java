@@ -0,0 +1,73 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test org.zakariya.mrdoodleserver.sync.BoundedJedisPool
+ */
+public class BoundedJedisPoolTest {
+
+	private BoundedJedisPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		JedisPoolConfig config = new JedisPoolConfig();
+		config.setMaxTotal(2);
+		pool = new BoundedJedisPool(config, "localhost", Protocol.DEFAULT_PORT, 100);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		pool.close();
+	}
+
+	@Test
+	public void testBound() throws Exception {
+		Jedis a = pool.getResource();
+		Jedis b = pool.getResource();
+		assertEquals(0, pool.getAvailableCount());
+
+		try {
+			pool.getResource();
+			fail("Borrowing past the pool's size should time out");
+		} catch (JedisConnectionException ignored) {
+		}
+
+		// a waiting caller gets the next connection returned
+		CompletableFuture<Jedis> waiting = CompletableFuture.supplyAsync(() -> {
+			try (Jedis jedis = pool.getResource()) {
+				return jedis;
+			}
+		});
+		a.close();
+		assertNotNull(waiting.get(1, TimeUnit.SECONDS));
+
+		b.close();
+		assertEquals(2, pool.getAvailableCount());
+	}
+
+	@Test
+	public void testRepeatedClose() throws Exception {
+		Jedis a = pool.getResource();
+		assertEquals("PONG", a.ping());
+		a.close();
+		try {
+			a.close();
+			fail("The pool should reject a connection returned twice");
+		} catch (JedisException ignored) {
+		}
+		assertEquals("Closing a connection twice shouldn't return two permits", 2, pool.getAvailableCount());
+	}
+}
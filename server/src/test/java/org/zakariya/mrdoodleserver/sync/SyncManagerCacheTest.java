@@ -0,0 +1,134 @@
+package org.zakariya.mrdoodleserver.sync;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.zakariya.mrdoodleserver.sync.memory.MemoryStorageEngine;
+import org.zakariya.mrdoodleserver.sync.mock.MockDeviceIdManager;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test org.zakariya.mrdoodleserver.sync.SyncManagerCache
+ */
+public class SyncManagerCacheTest {
+
+	private static final String NAMESPACE = "test";
+
+	private StorageEngine storageEngine;
+	private Map<String, ReadWriteLock> locks;
+
+	@Before
+	public void setUp() throws Exception {
+		storageEngine = new MemoryStorageEngine();
+		locks = new ConcurrentHashMap<>();
+	}
+
+	private SyncManagerCache createCache(long maxWeight, long idleMillis, long gracePeriodMillis) {
+		return new SyncManagerCache(
+				accountId -> new SyncManager(storageEngine, new MockDeviceIdManager(Collections.emptyList()), NAMESPACE, accountId, false, null),
+				this::getLock,
+				maxWeight, idleMillis, gracePeriodMillis, 0);
+	}
+
+	private ReadWriteLock getLock(String accountId) {
+		return locks.computeIfAbsent(accountId, id -> new ReentrantReadWriteLock());
+	}
+
+	@Test
+	public void testGet() throws Exception {
+		SyncManagerCache cache = createCache(1000, 60000, 60000);
+		SyncManager a = cache.get("a");
+		assertSame(a, cache.get("a"));
+		assertNotSame(a, cache.get("b"));
+		assertEquals(2, cache.getCount());
+		assertEquals(2, cache.getLoadCount());
+		assertEquals(1, cache.getHitCount());
+	}
+
+	@Test
+	public void testIdleEviction() throws Exception {
+		SyncManagerCache cache = createCache(1000, 50, 50);
+		SyncManager a = cache.get("a");
+		cache.sweep();
+		assertSame("a recently used SyncManager should be kept", a, cache.get("a"));
+
+		Thread.sleep(100);
+
+		// a SyncManager in use (its account lock held) isn't evicted
+		getLock("a").readLock().lock();
+		cache.sweep();
+		getLock("a").readLock().unlock();
+		assertEquals(1, cache.getCount());
+
+		cache.sweep();
+		assertEquals(0, cache.getCount());
+		assertEquals(1, cache.getIdleEvictionCount());
+		assertNotSame(a, cache.get("a"));
+	}
+
+	@Test
+	public void testGracePeriod() throws Exception {
+		SyncManagerCache cache = createCache(1000, 50, 300);
+		cache.setConnected("a", true);
+		SyncManager a = cache.get("a");
+
+		// connected accounts' SyncManagers are pinned
+		Thread.sleep(100);
+		cache.sweep();
+		assertSame(a, cache.get("a"));
+
+		// once the last device disconnects, the SyncManager outlives the idle time, for the grace period
+		cache.setConnected("a", false);
+		Thread.sleep(100);
+		cache.sweep();
+		assertEquals(1, cache.getCount());
+
+		Thread.sleep(300);
+		cache.sweep();
+		assertEquals(0, cache.getCount());
+	}
+
+	@Test
+	public void testWriteSessionPins() throws Exception {
+		SyncManagerCache cache = createCache(0, 50, 50);
+		SyncManager a = cache.get("a");
+		SyncManager.WriteSession session = a.startWriteSession("device");
+
+		// a SyncManager with an open write session is neither expired nor weighed out
+		Thread.sleep(100);
+		cache.sweep();
+		assertSame(a, cache.get("a"));
+
+		assertTrue(a.commitWriteSession("device", session.getToken()));
+		Thread.sleep(100);
+		cache.sweep();
+		assertEquals(0, cache.getCount());
+	}
+
+	@Test
+	public void testWeightEviction() throws Exception {
+		SyncManagerCache cache = createCache(4, 60000, 60000);
+		SyncManager a = cache.get("a");
+		a.getTimestampRecord().record("doc0", "fooClass", 10, TimestampRecord.Action.WRITE);
+		a.getTimestampRecord().record("doc1", "fooClass", 11, TimestampRecord.Action.WRITE);
+		Thread.sleep(5);
+		cache.get("b");
+		cache.setConnected("c", true);
+		assertEquals(5, cache.getWeight());
+
+		// "a" is least recently used, and "c" is pinned
+		cache.sweep();
+		assertEquals(2, cache.getCount());
+		assertEquals(1, cache.getWeightEvictionCount());
+		assertEquals(2, cache.getWeight());
+
+		// the evicted SyncManager persisted its timestamp record, so its successor picks it up
+		assertEquals(2, cache.get("a").getTimestampRecord().getEntries().size());
+	}
+}
@@ -6,9 +6,12 @@ import org.junit.Before;
 import org.zakariya.mrdoodleserver.transport.TimestampRecordEntry;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
 
 import java.io.IOException;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 
 import static org.junit.Assert.*;
 
@@ -29,7 +32,7 @@ public class TimestampRecordTest {
 	@After
 	public void tearDown() throws Exception {
 		try (Jedis jedis = pool.getResource()) {
-			jedis.del(TimestampRecord.getJedisKey(namespace, accountId));
+			deleteKeys(jedis);
 		}
 	}
 
@@ -69,10 +72,78 @@ public class TimestampRecordTest {
 		assertEquals("timestamps since 12 should have \"D\" == 13", 13, result.get("D").getTimestampSeconds());
 	}
 
+	@org.junit.Test
+	public void testTimeIndex() {
+		TimestampRecord timestampRecord = new TimestampRecord();
+		assertNull(timestampRecord.getTimestampHead());
+		assertTrue(timestampRecord.getEntriesSinceView(0).isEmpty());
+
+		timestampRecord.record("C", "fooClass", 12, TimestampRecord.Action.WRITE);
+		timestampRecord.record("A", "fooClass", 10, TimestampRecord.Action.WRITE);
+		timestampRecord.record("B", "fooClass", 12, TimestampRecord.Action.WRITE);
+		timestampRecord.record("D", "fooClass", 11, TimestampRecord.Action.WRITE);
+		assertEquals(12, timestampRecord.getTimestampHead().getTimestampSeconds());
+
+		assertEquals(Arrays.asList("A", "D", "B", "C"), getDocumentIds(timestampRecord.getEntriesSinceView(0)));
+		assertEquals(Arrays.asList("D", "B", "C"), getDocumentIds(timestampRecord.getEntriesSinceView(11)));
+		assertEquals(Arrays.asList("B", "C"), getDocumentIds(timestampRecord.getEntriesSinceView(12)));
+		assertTrue(timestampRecord.getEntriesSinceView(13).isEmpty());
+
+		// re-recording a document moves it, rather than adding a second entry
+		NavigableSet<TimestampRecordEntry> view = timestampRecord.getEntriesSinceView(11);
+		timestampRecord.record("A", "fooClass", 14, TimestampRecord.Action.DELETE);
+		assertEquals("views should be live", Arrays.asList("D", "B", "C", "A"), getDocumentIds(view));
+		assertEquals(4, timestampRecord.getEntriesSinceView(0).size());
+		assertEquals("A", timestampRecord.getTimestampHead().getDocumentId());
+
+		try {
+			view.clear();
+			fail("views should be read-only");
+		} catch (UnsupportedOperationException ignored) {
+		}
+	}
+
+	@org.junit.Test
+	public void testCursorPaging() {
+		TimestampRecord timestampRecord = new TimestampRecord();
+		timestampRecord.record("A", "fooClass", 10, TimestampRecord.Action.WRITE);
+		timestampRecord.record("B:1", "fooClass", 11, TimestampRecord.Action.WRITE);
+		timestampRecord.record("C", "fooClass", 11, TimestampRecord.Action.WRITE);
+		timestampRecord.record("D", "fooClass", 12, TimestampRecord.Action.WRITE);
+
+		ChangeCursor cursor = ChangeCursor.decode(ChangeCursor.after(timestampRecord.getEntriesSinceView(0).first()).encode());
+		assertEquals(10, cursor.getTimestampSeconds());
+		assertEquals("A", cursor.getDocumentId());
+		assertEquals(Arrays.asList("B:1", "C", "D"), getDocumentIds(timestampRecord.getEntriesAfterView(cursor)));
+
+		// cursors between entries with the same timestamp, and with colons in the document id
+		cursor = ChangeCursor.decode(ChangeCursor.after(timestampRecord.getEntriesSinceView(11).first()).encode());
+		assertEquals("B:1", cursor.getDocumentId());
+		assertEquals(Arrays.asList("C", "D"), getDocumentIds(timestampRecord.getEntriesAfterView(cursor)));
+
+		// a document changed after its page was read shows up again on a later page
+		timestampRecord.record("A", "fooClass", 13, TimestampRecord.Action.DELETE);
+		assertEquals(Arrays.asList("C", "D", "A"), getDocumentIds(timestampRecord.getEntriesAfterView(cursor)));
+
+		try {
+			ChangeCursor.decode("not a cursor");
+			fail("malformed cursors should be rejected");
+		} catch (IllegalArgumentException ignored) {
+		}
+	}
+
+	private static List<String> getDocumentIds(Collection<TimestampRecordEntry> entries) {
+		List<String> documentIds = new ArrayList<>();
+		for (TimestampRecordEntry entry : entries) {
+			documentIds.add(entry.getDocumentId());
+		}
+		return documentIds;
+	}
+
 	@org.junit.Test
 	public void testTimestampPersistence() {
 		// create a persisting record
-		TimestampRecord tr0 = new TimestampRecord(pool, namespace, accountId);
+		TimestampRecord tr0 = new TimestampRecord(new RedisTimestampRecordStorage(pool, namespace, accountId));
 		tr0.record("A", "fooClass", 10, TimestampRecord.Action.WRITE);
 		tr0.record("B", "fooClass", 11, TimestampRecord.Action.WRITE);
 		tr0.record("C", "fooClass", 12, TimestampRecord.Action.WRITE);
@@ -84,7 +155,7 @@ public class TimestampRecordTest {
 		tr0.save();
 
 		// this record should have same entries as tr0
-		TimestampRecord tr1 = new TimestampRecord(pool, namespace, accountId);
+		TimestampRecord tr1 = new TimestampRecord(new RedisTimestampRecordStorage(pool, namespace, accountId));
 		assertEquals("should have same value for modelId A", tr0.getTimestampSeconds("A"), tr1.getTimestampSeconds("A"));
 		assertEquals("should have same value for modelId B", tr0.getTimestampSeconds("B"), tr1.getTimestampSeconds("B"));
 		assertEquals("should have same value for modelId C", tr0.getTimestampSeconds("C"), tr1.getTimestampSeconds("C"));
@@ -95,7 +166,7 @@ public class TimestampRecordTest {
 		assertEquals("should have same value for modelId H", tr0.getTimestampSeconds("H"), tr1.getTimestampSeconds("H"));
 
 		try (Jedis jedis = pool.getResource()) {
-			jedis.del(TimestampRecord.getJedisKey(namespace, accountId));
+			deleteKeys(jedis);
 		}
 	}
 
@@ -104,25 +175,204 @@ public class TimestampRecordTest {
 
 
 		// create a persisting record
-		TimestampRecord tr0 = new TimestampRecord(pool, namespace, accountId);
+		TimestampRecord tr0 = new TimestampRecord(new RedisTimestampRecordStorage(pool, namespace, accountId));
 		tr0.record("A", "fooClass", 10, TimestampRecord.Action.WRITE);
 		tr0.record("B", "fooClass", 11, TimestampRecord.Action.WRITE);
 		tr0.record("C", "fooClass", 12, TimestampRecord.Action.WRITE);
 		tr0.record("D", "fooClass", 13, TimestampRecord.Action.WRITE);
 
 		// the debounced save will not have run yet, so this pool should be empty
-		TimestampRecord tr1 = new TimestampRecord(pool, namespace, accountId);
+		TimestampRecord tr1 = new TimestampRecord(new RedisTimestampRecordStorage(pool, namespace, accountId));
 		assertTrue("pool should be empty since debounced save hasn't had time to run", tr1.isEmpty());
 
 		Thread.sleep(3500);
 
-		tr1 = new TimestampRecord(pool, namespace, accountId);
+		tr1 = new TimestampRecord(new RedisTimestampRecordStorage(pool, namespace, accountId));
 		assertTrue("after debounced save has run, new timestamp record should have same contents as saved one", tr0.getEntries().equals(tr1.getEntries()));
 
 		try (Jedis jedis = pool.getResource()) {
-			jedis.del(TimestampRecord.getJedisKey(namespace, accountId));
+			deleteKeys(jedis);
+		}
+
+	}
+
+	@org.junit.Test
+	public void testIncrementalPersistence() throws Exception {
+		RedisTimestampRecordStorage storage = new RedisTimestampRecordStorage(pool, namespace, accountId);
+		TimestampRecord tr0 = new TimestampRecord(storage);
+		tr0.record("A", "fooClass", 10, TimestampRecord.Action.WRITE);
+		tr0.record("B", "fooClass", 11, TimestampRecord.Action.WRITE);
+		tr0.save();
+
+		// entries persisted by someone else should survive a save which didn't touch them
+		storage.put(Collections.singletonList(new TimestampRecordEntry("C", "fooClass", 12, TimestampRecord.Action.WRITE.ordinal())));
+		tr0.record("A", "fooClass", 13, TimestampRecord.Action.DELETE);
+		tr0.save();
+
+		Map<String, TimestampRecordEntry> persisted = storage.load();
+		assertEquals(3, persisted.size());
+		assertEquals(13, persisted.get("A").getTimestampSeconds());
+		assertEquals(TimestampRecord.Action.DELETE.ordinal(), persisted.get("A").getAction());
+
+		storage.save(Collections.singletonMap("B", persisted.get("B")));
+		assertEquals(Collections.singleton("B"), storage.load().keySet());
+	}
+
+	@org.junit.Test
+	public void testLegacySnapshotMigration() throws Exception {
+		ObjectMapper mapper = new ObjectMapper();
+		Map<String, TimestampRecordEntry> snapshot = new HashMap<>();
+		snapshot.put("A", new TimestampRecordEntry("A", "fooClass", 10, TimestampRecord.Action.WRITE.ordinal()));
+		snapshot.put("B", new TimestampRecordEntry("B", "fooClass", 11, TimestampRecord.Action.DELETE.ordinal()));
+
+		try (Jedis jedis = pool.getResource()) {
+			jedis.set(RedisTimestampRecordStorage.getLegacyKey(namespace, accountId), mapper.writeValueAsString(snapshot));
+		}
+
+		TimestampRecord tr0 = new TimestampRecord(new RedisTimestampRecordStorage(pool, namespace, accountId));
+		assertEquals(snapshot, tr0.getEntries());
+		assertEquals(11, tr0.getTimestampHead().getTimestampSeconds());
+
+		try (Jedis jedis = pool.getResource()) {
+			assertFalse("snapshot should be deleted once migrated", jedis.exists(RedisTimestampRecordStorage.getLegacyKey(namespace, accountId)));
+			assertEquals(Long.valueOf(2), jedis.hlen(RedisTimestampRecordStorage.getEntriesKey(namespace, accountId)));
 		}
 
+		TimestampRecord tr1 = new TimestampRecord(new RedisTimestampRecordStorage(pool, namespace, accountId));
+		assertEquals(snapshot, tr1.getEntries());
+	}
+
+	private void deleteKeys(Jedis jedis) {
+		jedis.del(RedisTimestampRecordStorage.getLegacyKey(namespace, accountId),
+				RedisTimestampRecordStorage.getEntriesKey(namespace, accountId),
+				RedisTimestampRecordStorage.getSeqKey(namespace, accountId),
+				RedisTimestampRecordStorage.getDocumentTypesKey(namespace, accountId),
+				RedisTimestampRecordStorage.getCompactionKey(namespace, accountId));
+	}
+
+	@org.junit.Test
+	public void testTombstoneCompaction() throws Exception {
+		RedisTimestampRecordStorage storage = new RedisTimestampRecordStorage(pool, namespace, accountId);
+		TimestampRecord tr0 = new TimestampRecord(storage);
+		tr0.record("A", "fooClass", 10, TimestampRecord.Action.DELETE);
+		tr0.record("B", "fooClass", 11, TimestampRecord.Action.WRITE);
+		tr0.record("C", "fooClass", 12, TimestampRecord.Action.DELETE);
+		tr0.record("D", "fooClass", 20, TimestampRecord.Action.DELETE);
+		tr0.record("E", "fooClass", 13, TimestampRecord.Action.DELETE);
+		tr0.save();
+		assertEquals(CompactionWatermark.NONE.getTimestampSeconds(), tr0.getCompactionWatermark().getTimestampSeconds());
+
+		// only tombstones older than the horizon are dropped; writes stay however old they are
+		assertEquals(2, tr0.compact(13));
+		assertEquals(new HashSet<>(Arrays.asList("B", "D", "E")), tr0.getEntries().keySet());
+		assertEquals(12, tr0.getCompactionWatermark().getTimestampSeconds());
+		assertEquals(3, tr0.getCompactionWatermark().getSeq());
+		assertEquals(0, tr0.compact(13));
+
+		CompactionWatermark watermark = tr0.getCompactionWatermark();
+		assertTrue(watermark.isAfterTimestamp(12));
+		assertFalse(watermark.isAfterTimestamp(13));
+		assertFalse("a full sync is never incomplete", watermark.isAfterTimestamp(0));
+		assertTrue(watermark.isAfterSeq(2));
+		assertFalse(watermark.isAfterSeq(3));
+
+		// dropping the newest tombstone mustn't move the head sequence number backwards
+		assertEquals(2, tr0.compact(21));
+		assertEquals(Collections.singleton("B"), tr0.getEntries().keySet());
+		assertEquals(5, tr0.getHeadSeq());
+
+		TimestampRecord tr1 = new TimestampRecord(storage);
+		assertEquals(tr0.getEntries(), tr1.getEntries());
+		assertEquals(20, tr1.getCompactionWatermark().getTimestampSeconds());
+		assertEquals(5, tr1.getCompactionWatermark().getSeq());
+		assertEquals(5, tr1.getHeadSeq());
+	}
+
+	@org.junit.Test
+	public void testBinaryEncoding() throws Exception {
+		RedisTimestampRecordStorage storage = new RedisTimestampRecordStorage(pool, namespace, accountId);
+		TimestampRecord tr0 = new TimestampRecord(storage);
+		tr0.record("A", "fooClass", 10, TimestampRecord.Action.WRITE);
+		tr0.record("B", "fooClass", 11, TimestampRecord.Action.DELETE);
+		tr0.record("C", "barClass", 12, TimestampRecord.Action.WRITE);
+		tr0.save();
+
+		byte[] entriesKey = RedisTimestampRecordStorage.getEntriesKey(namespace, accountId).getBytes(StandardCharsets.UTF_8);
+		try (Jedis jedis = pool.getResource()) {
+			assertEquals(Arrays.asList("fooClass", "barClass"), jedis.lrange(RedisTimestampRecordStorage.getDocumentTypesKey(namespace, accountId), 0, -1));
+			byte[] encoded = jedis.hget(entriesKey, "B".getBytes(StandardCharsets.UTF_8));
+			assertEquals(TimestampRecordEntryCodec.FORMAT_VERSION, encoded[0]);
+			assertTrue("encoded entry should be compact", encoded.length < 16);
+
+			// an entry persisted as JSON, as earlier versions did
+			TimestampRecordEntry jsonEntry = new TimestampRecordEntry("D", "bazClass", 13, TimestampRecord.Action.WRITE.ordinal(), 4);
+			jedis.hset(RedisTimestampRecordStorage.getEntriesKey(namespace, accountId), "D", new ObjectMapper().writeValueAsString(jsonEntry));
+		}
+
+		// re-encoding the JSON entry mustn't borrow a second connection while loading holds one
+		JedisPoolConfig singleConnection = new JedisPoolConfig();
+		singleConnection.setMaxTotal(1);
+		try (BoundedJedisPool boundedPool = new BoundedJedisPool(singleConnection, "localhost", Protocol.DEFAULT_PORT, 100)) {
+			TimestampRecord tr1 = new TimestampRecord(new RedisTimestampRecordStorage(boundedPool, namespace, accountId));
+			assertEquals(tr0.getEntries().get("B"), tr1.getEntries().get("B"));
+			assertEquals(3, tr1.getEntries().get("C").getSeq());
+			assertEquals(4, tr1.getHeadSeq());
+			assertEquals("bazClass", tr1.getEntries().get("D").getDocumentType());
+		}
+
+		// the JSON entry is rewritten in the binary encoding once read
+		try (Jedis jedis = pool.getResource()) {
+			assertEquals(TimestampRecordEntryCodec.FORMAT_VERSION, jedis.hget(entriesKey, "D".getBytes(StandardCharsets.UTF_8))[0]);
+		}
+		assertEquals(4, storage.load().size());
+	}
+
+	@org.junit.Test
+	public void testSequenceNumbers() throws Exception {
+		RedisTimestampRecordStorage storage = new RedisTimestampRecordStorage(pool, namespace, accountId);
+		TimestampRecord tr0 = new TimestampRecord(storage);
+		tr0.record("A", "fooClass", 10, TimestampRecord.Action.WRITE);
+		tr0.record("B", "fooClass", 10, TimestampRecord.Action.WRITE);
+		assertEquals(2, tr0.getHeadSeq());
+
+		// a session's entries are sequenced as they're committed, in timestamp order, after everything committed
+		TimestampRecord session = new TimestampRecord();
+		session.record("D", "fooClass", 12, TimestampRecord.Action.WRITE);
+		session.record("C", "fooClass", 12, TimestampRecord.Action.WRITE);
+		session.record("A", "fooClass", 11, TimestampRecord.Action.DELETE);
+		session.save(tr0);
+
+		assertEquals(5, tr0.getHeadSeq());
+		assertEquals(3, tr0.getEntries().get("A").getSeq());
+		assertEquals(4, tr0.getEntries().get("C").getSeq());
+		assertEquals(5, tr0.getEntries().get("D").getSeq());
+
+		// sinceSeq gets exactly the changes not yet seen, even those in the same second as ones already seen
+		assertEquals(Arrays.asList("A", "C", "D"), getDocumentIds(tr0.getEntriesAfterSeqView(2)));
+		assertEquals(Arrays.asList("D"), getDocumentIds(tr0.getEntriesAfterSeqView(4)));
+		assertTrue(tr0.getEntriesAfterSeqView(5).isEmpty());
+		assertEquals(Arrays.asList("B", "A", "C", "D"), getDocumentIds(tr0.getEntriesAfterSeqView(0)));
+
+		// sequence numbers persist, and the counter carries on from where it was
+		TimestampRecord tr1 = new TimestampRecord(storage);
+		assertEquals(5, tr1.getHeadSeq());
+		assertEquals(5, tr1.getEntries().get("D").getSeq());
+		assertEquals(6, tr1.record("E", "fooClass", 13, TimestampRecord.Action.WRITE).getSeq());
+
+		// entries persisted without sequence numbers are given them when loaded, and a lost counter is caught up
+		try (Jedis jedis = pool.getResource()) {
+			deleteKeys(jedis);
+		}
+		storage = new RedisTimestampRecordStorage(pool, namespace, accountId);
+		storage.put(Arrays.asList(
+				new TimestampRecordEntry("X", "fooClass", 21, TimestampRecord.Action.WRITE.ordinal(), 7),
+				new TimestampRecordEntry("Y", "fooClass", 20, TimestampRecord.Action.WRITE.ordinal()),
+				new TimestampRecordEntry("Z", "fooClass", 19, TimestampRecord.Action.WRITE.ordinal())));
+		TimestampRecord tr2 = new TimestampRecord(storage);
+		assertEquals(Arrays.asList("X", "Z", "Y"), getDocumentIds(tr2.getEntriesAfterSeqView(0)));
+		assertEquals(9, tr2.getHeadSeq());
+		assertEquals(9, storage.load().get("Y").getSeq());
+		assertEquals(10, tr2.record("W", "fooClass", 22, TimestampRecord.Action.WRITE).getSeq());
 	}
 
 	@org.junit.Test
@@ -0,0 +1,241 @@
+package org.zakariya.mrdoodleserver.sync.file;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.zakariya.mrdoodleserver.sync.BlobCodecs;
+import org.zakariya.mrdoodleserver.sync.BlobStore;
+import org.zakariya.mrdoodleserver.sync.memory.MemoryStorageEngine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the log-structured file storage engine
+ */
+public class FileBlobStoreTest {
+
+	static final String accountId = "fileBlobStoreTestAccount";
+	static final String MAIN_NAMESPACE = "test";
+	static final String TEMP_NAMESPACE = "test-temp";
+	static final long SEGMENT_SIZE = 4096;
+	File directory;
+	FileStorageEngine engine;
+	BlobStore mainStore;
+	BlobStore tempStore;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Files.createTempDirectory("file-blob-store-test").toFile();
+		open();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		engine.close();
+		FileUtils.deleteDirectory(directory);
+	}
+
+	private void open() throws Exception {
+		engine = new FileStorageEngine(directory, SEGMENT_SIZE, 0.5, 0, new MemoryStorageEngine());
+		mainStore = engine.openBlobStore(MAIN_NAMESPACE, accountId, false, null);
+		tempStore = engine.createBlobStore(TEMP_NAMESPACE, accountId, MAIN_NAMESPACE, false, null);
+	}
+
+	private void reopen() throws Exception {
+		engine.close();
+		open();
+	}
+
+	@org.junit.Test
+	public void basicReadWriteDeleteTests() throws Exception {
+		BlobStore.Entry e = new BlobStore.Entry("A", "Foo", 10, "Data".getBytes());
+		mainStore.set(e);
+		assertEquals("Loaded blob entry should be equal to the original", e, mainStore.get(e.getId()));
+		assertEquals("Foo", mainStore.getType(e.getId()));
+		assertTrue(mainStore.has(e.getId()));
+
+		mainStore.delete(e.getId());
+		assertNull(mainStore.get(e.getId()));
+		assertFalse(mainStore.has(e.getId()));
+
+		// confirm that saving writes and deletes from one store to another behaves as expected
+		BlobStore.Entry a = new BlobStore.Entry("A", "Foo", 10, "A".getBytes());
+		BlobStore.Entry b = new BlobStore.Entry("B", "Foo", 11, "B".getBytes());
+		mainStore.set(b);
+		tempStore.set(a);
+		tempStore.delete(b.getId());
+		tempStore.save(mainStore);
+		assertEquals(a, mainStore.get(a.getId()));
+		assertFalse(mainStore.has(b.getId()));
+		assertFalse("saved writes should move out of the temp store", tempStore.has(a.getId()));
+
+		Map<String, BlobStore.Entry> entries = mainStore.getAll(Arrays.asList("A", "B"));
+		assertEquals(Collections.singletonMap("A", a), entries);
+
+		mainStore.discard();
+		assertFalse(mainStore.has(a.getId()));
+	}
+
+	@org.junit.Test
+	public void testRangesAndChannels() throws Exception {
+		byte[] data = new byte[10000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+
+		mainStore.setChunkSize(700);
+		mainStore.set("A", "Foo", 10, data);
+		mainStore.set("B", "Foo", 10, new ByteArrayInputStream(data));
+
+		File target = new File(directory, "target");
+		for (String id : Arrays.asList("A", "B")) {
+			BlobStore.Metadata metadata = mainStore.getMetadata(id);
+			assertNotNull(metadata);
+			assertEquals(data.length, metadata.getLength());
+			assertArrayEquals(data, mainStore.get(id).getData());
+
+			long[][] ranges = {{0, 10000}, {0, 700}, {700, 1400}, {3, 3000}, {9999, 1}, {20, 0}};
+			for (long[] range : ranges) {
+				byte[] expected = Arrays.copyOfRange(data, (int) range[0], (int) (range[0] + range[1]));
+
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				mainStore.writeData(metadata, range[0], range[1], out);
+				assertArrayEquals(expected, out.toByteArray());
+
+				// arbitrary channels are written mapped buffers
+				out = new ByteArrayOutputStream();
+				mainStore.writeData(metadata, range[0], range[1], Channels.newChannel(out));
+				assertArrayEquals(expected, out.toByteArray());
+
+				// file channels are transferred to directly
+				try (FileChannel channel = new RandomAccessFile(target, "rw").getChannel()) {
+					channel.truncate(0);
+					mainStore.writeData(metadata, range[0], range[1], channel);
+				}
+				assertArrayEquals(expected, FileUtils.readFileToByteArray(target));
+			}
+		}
+	}
+
+	@org.junit.Test
+	public void testCompression() throws Exception {
+		BlobStore gzipStore = engine.createBlobStore(MAIN_NAMESPACE, accountId, MAIN_NAMESPACE, false, BlobCodecs.GZIP);
+		byte[] data = new byte[5000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 10);
+		}
+
+		gzipStore.set("A", "Foo", 10, new ByteArrayInputStream(data));
+		assertArrayEquals(data, gzipStore.get("A").getData());
+		assertArrayEquals("stores without a codec should read compressed blobs", data, mainStore.get("A").getData());
+
+		BlobStore.Metadata metadata = gzipStore.getMetadata("A");
+		assertEquals("gzip", metadata.getEncoding());
+		assertEquals(data.length, metadata.getDecodedLength());
+
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		gzipStore.writeData(metadata, 0, metadata.getLength(), encoded);
+		assertArrayEquals(data, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(encoded.toByteArray()))));
+
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		gzipStore.writeDecodedData(metadata, 1234, 100, decoded);
+		assertArrayEquals(Arrays.copyOfRange(data, 1234, 1334), decoded.toByteArray());
+	}
+
+	@org.junit.Test
+	public void testReplay() throws Exception {
+		mainStore.set("A", "Foo", 10, "A1".getBytes());
+		mainStore.set("B", "Foo", 11, "B".getBytes());
+		mainStore.set("A", "Foo", 12, "A2".getBytes());
+		tempStore.set("C", "Bar", 13, "C".getBytes());
+		tempStore.delete("B");
+		tempStore.save(mainStore);
+		tempStore.set("D", "Bar", 14, "D".getBytes());
+		tempStore.discard();
+
+		reopen();
+		assertEquals(new BlobStore.Entry("A", "Foo", 12, "A2".getBytes()), mainStore.get("A"));
+		assertEquals(new BlobStore.Entry("C", "Bar", 13, "C".getBytes()), mainStore.get("C"));
+		assertFalse(mainStore.has("B"));
+		assertFalse(tempStore.has("C"));
+		assertFalse(tempStore.has("D"));
+
+		// a record torn by a crash mid-append should be truncated away
+		File newest = new File(directory, Segment.getFileName(engine.getSegmentCount()));
+		long size = newest.length();
+		engine.close();
+		try (FileOutputStream out = new FileOutputStream(newest, true)) {
+			out.write(new byte[]{0x4D, 0x44, 0x42, 0x4C, 1, 0, 0});
+		}
+
+		open();
+		assertEquals(size, newest.length());
+		assertEquals(12, mainStore.get("A").getTimestamp());
+		mainStore.set("E", "Foo", 15, "E".getBytes());
+		reopen();
+		assertArrayEquals("E".getBytes(), mainStore.get("E").getData());
+	}
+
+	@org.junit.Test
+	public void testCompaction() throws Exception {
+		byte[] data = new byte[1000];
+		mainStore.set("C", "Foo", 0, "C".getBytes());
+		for (int round = 0; round < 20; round++) {
+			Arrays.fill(data, (byte) round);
+			mainStore.set("A", "Foo", round, data);
+			mainStore.set("B", "Foo", round, data);
+		}
+
+		int segmentCount = engine.getSegmentCount();
+		long size = engine.getSize();
+		assertTrue(segmentCount > 5);
+
+		// C is in the oldest segment; metadata read before compaction should find the copy compaction makes
+		BlobStore.Metadata metadata = mainStore.getMetadata("C");
+		assertTrue(engine.compact() > 0);
+		assertTrue(engine.getSegmentCount() < segmentCount);
+		assertTrue(engine.getSize() < size);
+		assertEquals("nothing left to compact", 0, engine.compact());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		mainStore.writeData(metadata, 0, 1, out);
+		assertArrayEquals("C".getBytes(), out.toByteArray());
+
+		Arrays.fill(data, (byte) 19);
+		assertArrayEquals(data, mainStore.get("A").getData());
+		assertArrayEquals(data, mainStore.get("B").getData());
+
+		reopen();
+		assertArrayEquals(data, mainStore.get("A").getData());
+		assertArrayEquals(data, mainStore.get("B").getData());
+		assertArrayEquals("C".getBytes(), mainStore.get("C").getData());
+		assertEquals(19, mainStore.get("B").getTimestamp());
+	}
+
+	@org.junit.Test
+	public void testFlush() throws Exception {
+		mainStore.set("A", "Foo", 10, "A".getBytes());
+		tempStore.set("B", "Foo", 10, "B".getBytes());
+
+		engine.flush("unrelated");
+		assertTrue(mainStore.has("A"));
+
+		engine.flush(MAIN_NAMESPACE);
+		assertFalse(mainStore.has("A"));
+		assertFalse(tempStore.has("B"));
+	}
+}
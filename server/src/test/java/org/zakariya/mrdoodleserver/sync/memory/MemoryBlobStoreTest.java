@@ -0,0 +1,198 @@
+package org.zakariya.mrdoodleserver.sync.memory;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.zakariya.mrdoodleserver.sync.BlobCodecs;
+import org.zakariya.mrdoodleserver.sync.BlobStore;
+import org.zakariya.mrdoodleserver.sync.TimestampRecordStorage;
+import org.zakariya.mrdoodleserver.transport.TimestampRecordEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the in-memory storage engine
+ */
+public class MemoryBlobStoreTest {
+
+	static final String accountId = "memoryBlobStoreTestAccount";
+	static final String MAIN_NAMESPACE = "test";
+	static final String TEMP_NAMESPACE = "test-temp";
+	MemoryStorageEngine engine;
+	BlobStore mainStore;
+	BlobStore tempStore;
+
+	@Before
+	public void setUp() throws Exception {
+		engine = new MemoryStorageEngine();
+		mainStore = engine.openBlobStore(MAIN_NAMESPACE, accountId, false, null);
+		tempStore = engine.createBlobStore(TEMP_NAMESPACE, accountId, MAIN_NAMESPACE, false, null);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		mainStore.discard();
+		tempStore.discard();
+	}
+
+	@org.junit.Test
+	public void basicReadWriteDeleteTests() throws Exception {
+		BlobStore.Entry e = new BlobStore.Entry("A", "Foo", 10, "Data".getBytes());
+		mainStore.set(e);
+		assertEquals("Loaded blob entry should be equal to the original", e, mainStore.get(e.getId()));
+		assertEquals("Foo", mainStore.getType(e.getId()));
+		assertTrue(mainStore.has(e.getId()));
+
+		mainStore.delete(e.getId());
+		assertNull(mainStore.get(e.getId()));
+		assertFalse(mainStore.has(e.getId()));
+
+		// confirm that saving writes and deletes from one store to another behaves as expected
+		BlobStore.Entry a = new BlobStore.Entry("A", "Foo", 10, "A".getBytes());
+		BlobStore.Entry b = new BlobStore.Entry("B", "Foo", 11, "B".getBytes());
+		mainStore.set(b);
+		tempStore.set(a);
+		tempStore.delete(b.getId());
+		tempStore.save(mainStore);
+		assertEquals(a, mainStore.get(a.getId()));
+		assertFalse(mainStore.has(b.getId()));
+		assertFalse("saved writes should move out of the temp store", tempStore.has(a.getId()));
+
+		Map<String, BlobStore.Entry> entries = mainStore.getAll(Arrays.asList("A", "B"));
+		assertEquals(Collections.singletonMap("A", a), entries);
+
+		mainStore.discard();
+		assertFalse(mainStore.has(a.getId()));
+	}
+
+	@org.junit.Test
+	public void testChunkedStorage() throws Exception {
+		byte[] data = new byte[50];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+
+		mainStore.setChunkSize(7);
+		mainStore.set("A", "Foo", 10, data);
+		mainStore.set("B", "Foo", 10, new ByteArrayInputStream(data));
+
+		for (String id : Arrays.asList("A", "B")) {
+			BlobStore.Metadata metadata = mainStore.getMetadata(id);
+			assertNotNull(metadata);
+			assertEquals(data.length, metadata.getLength());
+			assertEquals(7, metadata.getChunkSize());
+			assertEquals(getDigest(data), metadata.getDigest());
+			assertArrayEquals(data, mainStore.get(id).getData());
+
+			long[][] ranges = {{0, 50}, {0, 7}, {7, 14}, {3, 30}, {49, 1}, {20, 0}};
+			for (long[] range : ranges) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				mainStore.writeData(metadata, range[0], range[1], out);
+				assertArrayEquals(Arrays.copyOfRange(data, (int) range[0], (int) (range[0] + range[1])), out.toByteArray());
+			}
+		}
+
+		// a failed upload should leave the blob untouched
+		InputStream failing = new SequenceInputStream(new ByteArrayInputStream(data), new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("connection reset");
+			}
+		});
+
+		try {
+			mainStore.set("A", "Foo", 100, failing);
+			fail("set should throw when the stream fails");
+		} catch (IOException e) {
+			assertEquals(10, mainStore.get("A").getTimestamp());
+		}
+	}
+
+	@org.junit.Test
+	public void testCompression() throws Exception {
+		BlobStore gzipStore = engine.createBlobStore(MAIN_NAMESPACE, accountId, MAIN_NAMESPACE, false, BlobCodecs.GZIP);
+		byte[] data = new byte[5000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 10);
+		}
+
+		gzipStore.setChunkSize(64);
+		gzipStore.set("A", "Foo", 10, new ByteArrayInputStream(data));
+		assertArrayEquals(data, gzipStore.get("A").getData());
+		assertArrayEquals("stores without a codec should read compressed blobs", data, mainStore.get("A").getData());
+
+		BlobStore.Metadata metadata = gzipStore.getMetadata("A");
+		assertEquals("gzip", metadata.getEncoding());
+		assertEquals(data.length, metadata.getDecodedLength());
+		assertTrue("data should be stored compressed", metadata.getLength() < data.length / 4);
+
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		gzipStore.writeData(metadata, 0, metadata.getLength(), encoded);
+		assertArrayEquals(data, IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(encoded.toByteArray()))));
+
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		gzipStore.writeDecodedData(metadata, 1234, 100, decoded);
+		assertArrayEquals(Arrays.copyOfRange(data, 1234, 1334), decoded.toByteArray());
+	}
+
+	@org.junit.Test
+	public void testContentAddressedStorage() throws Exception {
+		BlobStore casMainStore = engine.openBlobStore(MAIN_NAMESPACE, accountId, true, null);
+		BlobStore casTempStore = engine.createBlobStore(TEMP_NAMESPACE, accountId, MAIN_NAMESPACE, true, null);
+		byte[] data = "Duplicated Data".getBytes();
+		String contentKey = MemoryStorageEngine.getContentKey(MAIN_NAMESPACE, getDigest(data));
+
+		casMainStore.set("A", "Foo", 10, data);
+		casMainStore.set("B", "Foo", 11, new ByteArrayInputStream(data));
+		assertEquals("both blobs should reference the single copy of their data", 2, engine.getContentRefCount(contentKey));
+		assertEquals(1, engine.getContentCount());
+
+		casTempStore.set("A", "Foo", 12, data);
+		assertEquals("temp store should hold its own reference", 3, engine.getContentRefCount(contentKey));
+		casTempStore.save(casMainStore);
+		assertEquals("committed write should replace the reference it overwrote", 2, engine.getContentRefCount(contentKey));
+		assertEquals(12, casMainStore.get("A").getTimestamp());
+
+		casMainStore.delete("A");
+		assertEquals(1, engine.getContentRefCount(contentKey));
+		casMainStore.delete("B");
+		assertEquals("unreferenced content should be collected", 0, engine.getContentCount());
+
+		casTempStore.set("A", "Foo", 12, data);
+		casTempStore.discard();
+		assertEquals("discarded session's content should be collected", 0, engine.getContentCount());
+	}
+
+	@org.junit.Test
+	public void testFlush() throws Exception {
+		mainStore.set("A", "Foo", 10, "A".getBytes());
+		TimestampRecordStorage timestamps = engine.createTimestampRecordStorage(MAIN_NAMESPACE, accountId);
+		timestamps.save(Collections.singletonMap("A", new TimestampRecordEntry("A", "Foo", 10, 0)));
+		assertEquals(1, timestamps.load().size());
+
+		engine.flush("unrelated");
+		assertTrue(mainStore.has("A"));
+
+		engine.flush(MAIN_NAMESPACE);
+		assertFalse(mainStore.has("A"));
+		assertTrue(timestamps.load().isEmpty());
+	}
+
+	private static String getDigest(byte[] data) throws Exception {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : java.security.MessageDigest.getInstance("SHA-256").digest(data)) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+}
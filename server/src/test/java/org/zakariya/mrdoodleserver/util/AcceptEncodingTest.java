@@ -0,0 +1,27 @@
+package org.zakariya.mrdoodleserver.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test org.zakariya.mrdoodleserver.util.AcceptEncoding
+ */
+public class AcceptEncodingTest {
+
+	@Test
+	public void testAccepts() throws Exception {
+		assertTrue(AcceptEncoding.accepts("gzip", "gzip"));
+		assertTrue(AcceptEncoding.accepts("deflate, GZIP", "gzip"));
+		assertTrue(AcceptEncoding.accepts("gzip;q=0.5, deflate", "gzip"));
+		assertTrue(AcceptEncoding.accepts("*", "gzip"));
+		assertTrue(AcceptEncoding.accepts("deflate, *;q=0.1", "gzip"));
+
+		assertFalse(AcceptEncoding.accepts(null, "gzip"));
+		assertFalse(AcceptEncoding.accepts("", "gzip"));
+		assertFalse(AcceptEncoding.accepts("deflate", "gzip"));
+		assertFalse(AcceptEncoding.accepts("gzip;q=0", "gzip"));
+		assertFalse("explicit refusal should override wildcard", AcceptEncoding.accepts("*, gzip;q=0", "gzip"));
+		assertFalse(AcceptEncoding.accepts("*;q=0", "gzip"));
+	}
+}
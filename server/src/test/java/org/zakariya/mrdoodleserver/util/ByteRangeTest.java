@@ -0,0 +1,60 @@
+package org.zakariya.mrdoodleserver.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test org.zakariya.mrdoodleserver.util.ByteRange
+ */
+public class ByteRangeTest {
+
+	@Test
+	public void testParse() throws Exception {
+		ByteRange range = ByteRange.parse("bytes=10-19", 100);
+		assertNotNull(range);
+		assertTrue(range.isSatisfiable());
+		assertEquals(10, range.getFirst());
+		assertEquals(19, range.getLast());
+		assertEquals(10, range.getLength());
+		assertEquals("bytes 10-19/100", range.getContentRange());
+
+		range = ByteRange.parse("bytes=90-", 100);
+		assertNotNull(range);
+		assertEquals("open ended range should run to end of resource", "bytes 90-99/100", range.getContentRange());
+
+		range = ByteRange.parse("bytes=90-1000", 100);
+		assertNotNull(range);
+		assertEquals("range should be clamped to end of resource", "bytes 90-99/100", range.getContentRange());
+
+		range = ByteRange.parse("bytes=-30", 100);
+		assertNotNull(range);
+		assertEquals("suffix range should address final bytes", "bytes 70-99/100", range.getContentRange());
+
+		range = ByteRange.parse("bytes=-300", 100);
+		assertNotNull(range);
+		assertEquals("bytes 0-99/100", range.getContentRange());
+	}
+
+	@Test
+	public void testUnsatisfiable() throws Exception {
+		for (String header : new String[]{"bytes=100-", "bytes=200-300", "bytes=-0"}) {
+			ByteRange range = ByteRange.parse(header, 100);
+			assertNotNull(header, range);
+			assertFalse(header, range.isSatisfiable());
+			assertEquals("bytes */100", range.getContentRange());
+		}
+
+		ByteRange range = ByteRange.parse("bytes=0-", 0);
+		assertNotNull(range);
+		assertFalse("no range is satisfiable for empty resources", range.isSatisfiable());
+	}
+
+	@Test
+	public void testIgnored() throws Exception {
+		String[] headers = {null, "", "items=0-10", "bytes=10", "bytes=20-10", "bytes=a-b", "bytes=0-10,20-30", "bytes=--5"};
+		for (String header : headers) {
+			assertNull("header \"" + header + "\" should be ignored", ByteRange.parse(header, 100));
+		}
+	}
+}
@@ -2,6 +2,11 @@ package org.zakariya.mrdoodleserver.util;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 /**
@@ -78,4 +83,59 @@ public class DebouncerTest {
 
 	}
 
+	@Test
+	public void sharedScheduler() throws Exception {
+		Counter counter = new Counter();
+		Debouncer.debounce(v -> counter.incrementCount(), 10).apply(null);
+		Thread.sleep(100);
+
+		int threadsBefore = Thread.activeCount();
+		int pendingBefore = Debouncer.getPendingCount();
+
+		List<Debouncer.Function<Integer>> debouncedCalls = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			debouncedCalls.add(Debouncer.debounce(v -> counter.incrementCount(), 500));
+		}
+		for (int i = 0; i < 10; i++) {
+			for (Debouncer.Function<Integer> debouncedCall : debouncedCalls) {
+				debouncedCall.apply(i);
+			}
+		}
+
+		// rescheduling drops the cancelled timer, and no threads are created per call
+		int pending = Debouncer.getPendingCount();
+		assertTrue("each debounced function should have one pending timer, not " + pending, pending >= 100 && pending <= pendingBefore + 100);
+		assertTrue("debouncing shouldn't create threads", Thread.activeCount() <= threadsBefore);
+
+		Thread.sleep(600);
+		assertEquals("each debounced function should have run once", 101, counter.getCount());
+	}
+
+	@Test
+	public void throttle() throws Exception {
+		List<Integer> values = Collections.synchronizedList(new ArrayList<>());
+		Debouncer.Function<Integer> throttledCall = Debouncer.throttle(values::add, 300);
+
+		// the first call runs at once
+		throttledCall.apply(1);
+		Thread.sleep(100);
+		assertEquals(Collections.singletonList(1), values);
+
+		// calls within the interval are coalesced into one run, with the latest value, when it has passed
+		throttledCall.apply(2);
+		throttledCall.apply(3);
+		assertEquals(1, values.size());
+		Thread.sleep(300);
+		assertEquals(Arrays.asList(1, 3), values);
+
+		// a steady stream of calls can't starve the function, as it would a debounced one
+		values.clear();
+		long start = System.currentTimeMillis();
+		while (System.currentTimeMillis() - start < 1000) {
+			throttledCall.apply(0);
+			Thread.sleep(20);
+		}
+		assertTrue("throttled function should run throughout a stream of calls, ran " + values.size() + " times", values.size() >= 3 && values.size() <= 5);
+	}
+
 }
\ No newline at end of file
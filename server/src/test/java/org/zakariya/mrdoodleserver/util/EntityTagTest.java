@@ -0,0 +1,41 @@
+package org.zakariya.mrdoodleserver.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test org.zakariya.mrdoodleserver.util.EntityTag
+ */
+public class EntityTagTest {
+
+	@Test
+	public void testNoneMatch() throws Exception {
+		String etag = EntityTag.strong("abc");
+		assertEquals("\"abc\"", etag);
+
+		assertTrue(EntityTag.matchesAny("\"abc\"", etag));
+		assertTrue(EntityTag.matchesAny("\"xyz\", \"abc\"", etag));
+		assertTrue("comparison should be weak", EntityTag.matchesAny("W/\"abc\"", etag));
+		assertTrue(EntityTag.matchesAny("*", etag));
+		assertTrue(EntityTag.matchesAny("\"a,b\", \"abc\"", etag));
+
+		assertFalse(EntityTag.matchesAny(null, etag));
+		assertFalse(EntityTag.matchesAny("", etag));
+		assertFalse(EntityTag.matchesAny("\"xyz\"", etag));
+		assertFalse(EntityTag.matchesAny("\"abc-identity\"", etag));
+		assertFalse(EntityTag.matchesAny("\"a,b\"", "\"a\""));
+	}
+
+	@Test
+	public void testRangeApplies() throws Exception {
+		String etag = EntityTag.strong("abc");
+
+		assertTrue(EntityTag.rangeApplies(null, etag));
+		assertTrue(EntityTag.rangeApplies("\"abc\"", etag));
+
+		assertFalse(EntityTag.rangeApplies("\"xyz\"", etag));
+		assertFalse("comparison should be strong", EntityTag.rangeApplies("W/\"abc\"", etag));
+		assertFalse(EntityTag.rangeApplies("Wed, 21 Oct 2015 07:28:00 GMT", etag));
+	}
+}
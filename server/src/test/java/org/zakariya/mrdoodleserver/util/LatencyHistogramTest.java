@@ -0,0 +1,53 @@
+package org.zakariya.mrdoodleserver.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test org.zakariya.mrdoodleserver.util.LatencyHistogram
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void testEmpty() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMeanMicros(), 0);
+		assertEquals(0, histogram.getMaxMicros());
+		assertEquals(0, histogram.getPercentileMicros(99));
+	}
+
+	@Test
+	public void testPercentiles() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		// 98 fast acquisitions, and two slow ones
+		for (int i = 0; i < 98; i++) {
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(3));
+		}
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(10));
+		histogram.record(TimeUnit.MILLISECONDS.toNanos(20));
+
+		assertEquals(100, histogram.getCount());
+		assertEquals((98 * 3 + 10000 + 20000) / 100.0, histogram.getMeanMicros(), 0.01);
+		assertEquals(20000, histogram.getMaxMicros());
+
+		// percentiles are the upper bound of their bucket, so within a factor of two of the truth
+		assertEquals(4, histogram.getPercentileMicros(50));
+		assertEquals(4, histogram.getPercentileMicros(98));
+		assertEquals(16384, histogram.getPercentileMicros(99));
+		assertEquals(20000, histogram.getPercentileMicros(100));
+	}
+
+	@Test
+	public void testSubMicrosecond() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(200);
+		histogram.record(-5);
+		assertEquals(2, histogram.getCount());
+		assertEquals(0, histogram.getPercentileMicros(50));
+	}
+}
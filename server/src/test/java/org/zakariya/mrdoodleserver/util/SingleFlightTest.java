@@ -0,0 +1,116 @@
+package org.zakariya.mrdoodleserver.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test org.zakariya.mrdoodleserver.util.SingleFlight
+ */
+public class SingleFlightTest {
+
+	static final int CALLERS = 5;
+
+	@Test
+	public void testCoalescing() throws Exception {
+		SingleFlight<String, String> singleFlight = new SingleFlight<>();
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+
+		ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < CALLERS; i++) {
+				results.add(executor.submit(() -> singleFlight.get("A", () -> {
+					loads.incrementAndGet();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+					return "value";
+				})));
+			}
+
+			// wait for every caller to have joined the flight before letting the load finish
+			long deadline = System.currentTimeMillis() + 5000;
+			while (singleFlight.getSharedCount() < CALLERS - 1 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			release.countDown();
+
+			for (Future<String> result : results) {
+				assertEquals("value", result.get(5, TimeUnit.SECONDS));
+			}
+			assertEquals("concurrent callers should share one load", 1, loads.get());
+			assertEquals(1, singleFlight.getLoadCount());
+			assertEquals(CALLERS - 1, singleFlight.getSharedCount());
+
+			// results aren't cached once the flight lands
+			assertEquals("other", singleFlight.get("A", () -> "other"));
+			assertEquals(2, singleFlight.getLoadCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		SingleFlight<String, String> singleFlight = new SingleFlight<>();
+		CountDownLatch loading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> leader = executor.submit(() -> singleFlight.get("A", () -> {
+				loading.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ignored) {
+				}
+				throw new IOException("connection reset");
+			}));
+			assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+			AtomicReference<String> followerResult = new AtomicReference<>();
+			Thread follower = new Thread(() -> {
+				try {
+					followerResult.set(singleFlight.get("A", () -> "unexpected"));
+				} catch (IOException e) {
+					followerResult.set(e.getMessage());
+				}
+			});
+			follower.start();
+			while (singleFlight.getSharedCount() < 1) {
+				Thread.sleep(10);
+			}
+			release.countDown();
+			follower.join(5000);
+			assertEquals("follower should see the leader's failure", "connection reset", followerResult.get());
+
+			try {
+				leader.get(5, TimeUnit.SECONDS);
+				fail("leader should throw");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IOException);
+			}
+
+			// a failed flight isn't remembered
+			assertEquals("value", singleFlight.get("A", () -> "value"));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
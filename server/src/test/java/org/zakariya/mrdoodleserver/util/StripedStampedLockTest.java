@@ -0,0 +1,78 @@
+package org.zakariya.mrdoodleserver.util;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test org.zakariya.mrdoodleserver.util.StripedStampedLock
+ */
+public class StripedStampedLockTest {
+
+	@Test
+	public void testSize() throws Exception {
+		assertEquals(1, new StripedStampedLock(1).size());
+		assertEquals(64, new StripedStampedLock(64).size());
+		assertEquals(128, new StripedStampedLock(65).size());
+
+		try {
+			new StripedStampedLock(0);
+			fail("A StripedStampedLock needs at least one stripe");
+		} catch (IllegalArgumentException ignored) {
+		}
+	}
+
+	@Test
+	public void testSameKeySameLock() throws Exception {
+		StripedStampedLock locks = new StripedStampedLock(16);
+		ReadWriteLock lock = locks.get("account-1");
+		assertSame(lock, locks.get("account-1"));
+		assertSame(lock, locks.get(new String("account-1")));
+	}
+
+	@Test
+	public void testDistribution() throws Exception {
+		// sequential ids, whose hashes differ only in their low bits, should still spread over the stripes
+		StripedStampedLock locks = new StripedStampedLock(64);
+		int[] counts = new int[locks.size()];
+		for (int i = 0; i < 64 * 100; i++) {
+			counts[locks.indexFor("1000000" + i)]++;
+		}
+
+		for (int count : counts) {
+			assertTrue("Each stripe should take roughly its share of keys, got: " + count, count > 50 && count < 150);
+		}
+	}
+
+	@Test
+	public void testStripesAreIndependent() throws Exception {
+		StripedStampedLock locks = new StripedStampedLock(16);
+		Set<ReadWriteLock> distinct = new HashSet<>();
+		String a = "a";
+		String b = null;
+		for (int i = 0; i < 1000 && b == null; i++) {
+			if (locks.get("b" + i) != locks.get(a)) {
+				b = "b" + i;
+			}
+		}
+		assertNotNull(b);
+
+		// holding one account's write lock doesn't block an account on another stripe
+		locks.get(a).writeLock().lock();
+		try {
+			assertTrue(locks.get(b).writeLock().tryLock());
+			locks.get(b).writeLock().unlock();
+		} finally {
+			locks.get(a).writeLock().unlock();
+		}
+
+		for (int i = 0; i < 1000; i++) {
+			distinct.add(locks.get("account-" + i));
+		}
+		assertEquals(locks.size(), distinct.size());
+	}
+}